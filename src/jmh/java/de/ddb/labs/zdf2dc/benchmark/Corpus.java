@@ -0,0 +1,90 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Testdaten für die Benchmarks: ZDF-Dokumente unter
+ * <code>src/jmh/resources/corpus</code>, vom kurzen Clip bis zur Sendung mit
+ * vielen Relationen (Module, Teaser, Streams).
+ * <ul>
+ * <li><code>clip</code>: kurzer Clip, ca. 4 KB</li>
+ * <li><code>documentary</code>: Dokumentation mit einigen Modulen, ca. 40
+ * KB</li>
+ * <li><code>series</code>: Seite mit vielen Teasern und Streams, ca. 300
+ * KB</li>
+ * </ul>
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class Corpus {
+
+    public final static String[] DOCUMENTS = {"clip", "documentary", "series"};
+
+    private Corpus() {
+    }
+
+    /**
+     * @param name z.B. <code>clip</code>
+     * @return das Dokument als JSON
+     * @throws IOException
+     */
+    public static byte[] load(String name) throws IOException {
+        try (final InputStream in = Corpus.class.getResourceAsStream("/corpus/" + name + ".json")) {
+            if (in == null) {
+                throw new FileNotFoundException("corpus/" + name + ".json");
+            }
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Verwirft alles, damit nur Serialisierung gemessen wird und nicht die
+     * Platte.
+     */
+    public static class NullOutputStream extends OutputStream {
+
+        private long count;
+
+        @Override
+        public void write(int b) {
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+
+        /**
+         * @return Anzahl der geschriebenen Bytes
+         */
+        public long getCount() {
+            return count;
+        }
+    }
+}
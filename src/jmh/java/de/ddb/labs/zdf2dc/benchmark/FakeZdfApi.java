@@ -0,0 +1,513 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Nachbau der ZDF-API für Lasttests, auf dem HTTP-Server des JDK. Liefert
+ * <code>/content/documents/{id}.json</code>, <code>/search/documents</code>
+ * und <code>/content/feed/current</code> aus einem künstlichen Bestand von
+ * {@link #getDocumentCount()} Dokumenten (<code>fake-000000</code>,
+ * <code>fake-000001</code>, ...), die aus dem {@link Corpus} erzeugt werden:
+ * 60 % Clips, 30 % Dokumentationen, 10 % große Seiten. Jedes Dokument ist
+ * eine Minute jünger als das vorige; {@link #update(int)} macht ein Dokument
+ * zum jüngsten, {@link #setDocumentCount(int)} fügt neue hinzu. Der Feed
+ * liefert die Dokumente nach <code>editorialDate</code> absteigend, in
+ * Seiten zu {@value #FEED_SIZE}.
+ * <p>
+ * Störungen lassen sich einstellen:
+ * <ul>
+ * <li>Antwortzeit: log-normalverteilt um {@link #setLatency(long) latency} ms
+ * (Median), {@link #setSpread(double) spread} ist die Standardabweichung des
+ * Logarithmus (<code>0</code>: immer gleich, <code>1</code>: p99 etwa beim
+ * Zehnfachen).</li>
+ * <li>{@link #setErrorRate(double) errorRate}: Anteil der Anfragen, die mit
+ * <code>500</code> beantwortet werden.</li>
+ * <li>{@link #setRateLimit(int) rateLimit}: Anfragen pro Sekunde (festes
+ * Fenster), darüber <code>429</code> mit <code>Retry-After</code>. Jede
+ * Antwort trägt <code>X-RateLimit-Remaining</code> und
+ * <code>X-RateLimit-Reset</code>.</li>
+ * <li>{@link #setSlowRate(double) slowRate}: Anteil der Dokumente, deren
+ * Inhalt in Stücken über {@link #setSlowBody(long) slowBody} ms verteilt
+ * geschickt wird.</li>
+ * </ul>
+ * Ist ein {@link #setApiKey(String) apiKey} gesetzt, wird er wie von der
+ * echten API verlangt (sonst <code>401</code>).
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class FakeZdfApi implements AutoCloseable {
+
+    private final static String DOCUMENTS_PATH = "/content/documents/";
+    private final static String ID_PREFIX = "fake-";
+    private final static String[] MIX = {"clip", "clip", "clip", "clip", "clip", "clip", "documentary", "documentary", "documentary", "series"};
+    private final static String TEMPLATE_DATE = "2021-04-12T20:15:00.000+02:00";
+    private final static DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSXXX").withZone(ZoneId.of("Europe/Berlin"));
+    private final static int PAGE_SIZE = 24;
+    private final static int FEED_SIZE = 50;
+    private final static int SLOW_CHUNKS = 8;
+    private final static long MAX_LATENCY = 60000; // ms
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, Template> templates;
+    private final Instant epoch;
+    // editorialDate of updated documents
+    private final Map<Integer, Instant> updated;
+
+    @Getter
+    @Setter
+    private volatile int documentCount = 1000;
+    @Getter
+    @Setter
+    private volatile long latency;
+    @Getter
+    @Setter
+    private volatile double spread;
+    @Getter
+    @Setter
+    private volatile double errorRate;
+    @Getter
+    @Setter
+    private volatile int rateLimit;
+    @Getter
+    @Setter
+    private volatile double slowRate;
+    @Getter
+    @Setter
+    private volatile long slowBody = 2000;
+    @Getter
+    @Setter
+    private volatile String apiKey;
+
+    private final AtomicLong requests, documents, notFound, unauthorized, errors, throttled, slow, bytes;
+    private long window;
+    private int windowCount;
+
+    /**
+     * @param port <code>0</code>: ein freier Port
+     * @throws IOException
+     */
+    public FakeZdfApi(int port) throws IOException {
+        this.templates = new HashMap<>();
+        for (String name : Corpus.DOCUMENTS) {
+            templates.put(name, new Template(Corpus.load(name)));
+        }
+        this.epoch = Instant.now();
+        this.updated = new ConcurrentHashMap<>();
+        this.requests = new AtomicLong(0);
+        this.documents = new AtomicLong(0);
+        this.notFound = new AtomicLong(0);
+        this.unauthorized = new AtomicLong(0);
+        this.errors = new AtomicLong(0);
+        this.throttled = new AtomicLong(0);
+        this.slow = new AtomicLong(0);
+        this.bytes = new AtomicLong(0);
+
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+        // one thread per request, so the injected latency doesn't limit concurrency
+        this.executor = Executors.newCachedThreadPool(r -> {
+            final Thread t = new Thread(r, "fake-zdf-api");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * @return z.B. <code>http://127.0.0.1:34567</code>
+     */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @param i
+     * @return ID des <code>i</code>-ten Dokuments
+     */
+    public static String id(int i) {
+        return String.format("%s%06d", ID_PREFIX, i);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            requests.incrementAndGet();
+            if (apiKey != null && !("Bearer " + apiKey).equals(exchange.getRequestHeaders().getFirst("Api-Auth"))) {
+                unauthorized.incrementAndGet();
+                send(exchange, 401, null, false);
+                return;
+            }
+            if (!admit(exchange)) {
+                throttled.incrementAndGet();
+                send(exchange, 429, null, false);
+                return;
+            }
+            sleep(latency());
+            if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                errors.incrementAndGet();
+                send(exchange, 500, null, false);
+                return;
+            }
+
+            final String path = exchange.getRequestURI().getPath();
+            if (path.startsWith(DOCUMENTS_PATH) && path.endsWith(".json")) {
+                final byte[] body = document(path.substring(DOCUMENTS_PATH.length(), path.length() - ".json".length()));
+                if (body == null) {
+                    notFound.incrementAndGet();
+                    send(exchange, 404, null, false);
+                    return;
+                }
+                documents.incrementAndGet();
+                final boolean slowly = slowRate > 0 && ThreadLocalRandom.current().nextDouble() < slowRate;
+                if (slowly) {
+                    slow.incrementAndGet();
+                }
+                send(exchange, 200, body, slowly);
+            } else if (path.equals("/search/documents")) {
+                send(exchange, 200, search(query(exchange)), false);
+            } else if (path.equals("/content/feed/current")) {
+                send(exchange, 200, feed(query(exchange)), false);
+            } else {
+                notFound.incrementAndGet();
+                send(exchange, 404, null, false);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Festes Fenster von einer Sekunde.
+     */
+    private synchronized boolean admit(HttpExchange exchange) {
+        if (rateLimit <= 0) {
+            return true;
+        }
+        final long now = System.currentTimeMillis();
+        if (now / 1000 != window) {
+            window = now / 1000;
+            windowCount = 0;
+        }
+        // the window ends within a second
+        final long reset = 1;
+        final boolean admitted = windowCount < rateLimit;
+        if (admitted) {
+            ++windowCount;
+        } else {
+            exchange.getResponseHeaders().set("Retry-After", String.valueOf(reset));
+        }
+        exchange.getResponseHeaders().set("X-RateLimit-Limit", String.valueOf(rateLimit));
+        exchange.getResponseHeaders().set("X-RateLimit-Remaining", String.valueOf(rateLimit - windowCount));
+        exchange.getResponseHeaders().set("X-RateLimit-Reset", String.valueOf(reset));
+        return admitted;
+    }
+
+    private long latency() {
+        if (latency <= 0) {
+            return 0;
+        }
+        if (spread <= 0) {
+            return latency;
+        }
+        return Math.min((long) (latency * Math.exp(spread * ThreadLocalRandom.current().nextGaussian())), MAX_LATENCY);
+    }
+
+    private void send(HttpExchange exchange, int code, byte[] body, boolean slowly) throws IOException, InterruptedException {
+        if (body != null) {
+            exchange.getResponseHeaders().set("Content-Type", "application/json;charset=UTF-8");
+        }
+        if (body == null || exchange.getRequestMethod().equals("HEAD")) {
+            exchange.sendResponseHeaders(code, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(code, body.length);
+        try (final OutputStream out = exchange.getResponseBody()) {
+            if (!slowly) {
+                out.write(body);
+            } else {
+                final int chunk = (body.length + SLOW_CHUNKS - 1) / SLOW_CHUNKS;
+                for (int off = 0; off < body.length; off += chunk) {
+                    out.write(body, off, Math.min(chunk, body.length - off));
+                    out.flush();
+                    sleep(slowBody / SLOW_CHUNKS);
+                }
+            }
+        }
+        bytes.addAndGet(body.length);
+    }
+
+    private static void sleep(long millis) throws InterruptedException {
+        if (millis > 0) {
+            Thread.sleep(millis);
+        }
+    }
+
+    /**
+     * @return <code>null</code>, wenn es die ID nicht gibt
+     */
+    private byte[] document(String id) {
+        final int i = index(id);
+        if (i < 0) {
+            return null;
+        }
+        return templates.get(MIX[i % MIX.length]).render(id, "SCMS_" + id, DATE_FORMAT.format(date(i)));
+    }
+
+    private int index(String id) {
+        if (!id.startsWith(ID_PREFIX)) {
+            return -1;
+        }
+        try {
+            final int i = Integer.parseInt(id.substring(ID_PREFIX.length()));
+            return i >= 0 && i < documentCount ? i : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Ohne {@link #update(int)} ist Dokument <code>i</code> <code>i</code>
+     * Minuten jünger als das erste.
+     */
+    private Instant date(int i) {
+        final Instant date = updated.get(i);
+        return date != null ? date : epoch.plusSeconds(60L * i);
+    }
+
+    /**
+     * Ändert ein Dokument: Es bekommt ein <code>editorialDate</code> nach
+     * allen anderen.
+     *
+     * @param i
+     */
+    public synchronized void update(int i) {
+        Instant latest = epoch.plusSeconds(60L * documentCount);
+        for (Instant date : updated.values()) {
+            if (!date.isBefore(latest)) {
+                latest = date.plusSeconds(60);
+            }
+        }
+        updated.put(i, latest);
+    }
+
+    private byte[] search(Map<String, String> query) throws UnsupportedEncodingException {
+        final String q = query.getOrDefault("q", "");
+        final int page = Math.max(number(query.get("page"), 1), 1);
+        final int limit = Math.max(number(query.get("limit"), PAGE_SIZE), 1);
+        final int from = (page - 1) * limit;
+        final int to = Math.min(from + limit, documentCount);
+        final List<Integer> hits = new ArrayList<>();
+        for (int i = from; i < to; ++i) {
+            hits.add(i);
+        }
+        final StringBuilder sb = new StringBuilder("{\"totalResultsCount\":").append(documentCount);
+        if (to < documentCount) {
+            sb.append(",\"next\":\"/search/documents?q=").append(URLEncoder.encode(q, "UTF-8"))
+                    .append("&limit=").append(limit).append("&page=").append(page + 1).append('"');
+        }
+        return results(sb, hits);
+    }
+
+    private byte[] feed(Map<String, String> query) {
+        final int page = Math.max(number(query.get("page"), 1), 1);
+        final List<Integer> all = new ArrayList<>();
+        for (int i = 0; i < documentCount; ++i) {
+            all.add(i);
+        }
+        all.sort(Comparator.comparing(this::date).reversed());
+        final int from = Math.min((page - 1) * FEED_SIZE, all.size());
+        final int to = Math.min(from + FEED_SIZE, all.size());
+        final StringBuilder sb = new StringBuilder("{\"profile\":\"http://zdf.de/rels/content/feed\"");
+        if (to < all.size()) {
+            sb.append(",\"next\":\"/content/feed/current?page=").append(page + 1).append('"');
+        }
+        return results(sb, all.subList(from, to));
+    }
+
+    private byte[] results(StringBuilder sb, List<Integer> hits) {
+        sb.append(",\"http://zdf.de/rels/search/results\":[");
+        for (int n = 0; n < hits.size(); ++n) {
+            final int i = hits.get(n);
+            final String date = DATE_FORMAT.format(date(i));
+            sb.append(n == 0 ? "" : ",")
+                    .append("{\"id\":\"").append(id(i)).append("\",\"editorialDate\":\"").append(date)
+                    .append("\",\"http://zdf.de/rels/target\":{\"id\":\"").append(id(i))
+                    .append("\",\"teaserHeadline\":\"Testdokument ").append(i)
+                    .append("\",\"editorialDate\":\"").append(date).append("\"}}");
+        }
+        return sb.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) throws UnsupportedEncodingException {
+        final Map<String, String> result = new HashMap<>();
+        final String raw = exchange.getRequestURI().getRawQuery();
+        if (raw == null) {
+            return result;
+        }
+        for (String pair : raw.split("&")) {
+            final int eq = pair.indexOf('=');
+            if (eq > 0) {
+                result.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return result;
+    }
+
+    private static int number(String value, int def) {
+        try {
+            return value == null ? def : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    /**
+     * Ein Dokument aus dem {@link Corpus}, zerlegt an den Stellen, an denen ID,
+     * <code>externalId</code> und Datum eingesetzt werden.
+     */
+    private static class Template {
+
+        private final static Pattern EXTERNAL_ID = Pattern.compile("\"externalId\":\"([^\"]*)\"");
+        private final static Pattern ID = Pattern.compile("\"id\":\"([^\"]*)\"");
+
+        private final List<byte[]> parts;
+        // what follows each part: 0 the ID, 1 the externalId, 2 the date
+        private final List<Integer> fields;
+
+        private Template(byte[] json) {
+            this.parts = new ArrayList<>();
+            this.fields = new ArrayList<>();
+            final String s = new String(json, StandardCharsets.UTF_8);
+            final String[] values = {group(ID, s), group(EXTERNAL_ID, s), TEMPLATE_DATE};
+            final Matcher m = Pattern.compile(Pattern.quote(values[1]) + "|" + Pattern.quote(values[0]) + "|" + Pattern.quote(values[2])).matcher(s);
+            int last = 0;
+            while (m.find()) {
+                parts.add(s.substring(last, m.start()).getBytes(StandardCharsets.UTF_8));
+                fields.add(Arrays.asList(values).indexOf(m.group()));
+                last = m.end();
+            }
+            parts.add(s.substring(last).getBytes(StandardCharsets.UTF_8));
+        }
+
+        private static String group(Pattern p, String s) {
+            final Matcher m = p.matcher(s);
+            if (!m.find()) {
+                throw new IllegalArgumentException("Corpus document without " + p.pattern());
+            }
+            return m.group(1);
+        }
+
+        private byte[] render(String id, String externalId, String date) {
+            final byte[][] values = {id.getBytes(StandardCharsets.UTF_8), externalId.getBytes(StandardCharsets.UTF_8), date.getBytes(StandardCharsets.UTF_8)};
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(parts.get(0).length * 2);
+            for (int n = 0; n < parts.size(); ++n) {
+                out.write(parts.get(n), 0, parts.get(n).length);
+                if (n < fields.size()) {
+                    final byte[] value = values[fields.get(n)];
+                    out.write(value, 0, value.length);
+                }
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Setzt die Zähler zurück.
+     */
+    public void resetCounts() {
+        requests.set(0);
+        documents.set(0);
+        notFound.set(0);
+        unauthorized.set(0);
+        errors.set(0);
+        throttled.set(0);
+        slow.set(0);
+        bytes.set(0);
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public long getDocumentRequestCount() {
+        return documents.get();
+    }
+
+    /**
+     * @return Anzahl der eingestreuten <code>500</code>
+     */
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    /**
+     * @return Anzahl der <code>429</code>
+     */
+    public long getThrottledCount() {
+        return throttled.get();
+    }
+
+    /**
+     * @return Anzahl der langsam geschickten Dokumente
+     */
+    public long getSlowCount() {
+        return slow.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Server: %d Anfragen, %d Dokumente (%.1f MB), %d langsam, %d x 500, %d x 429, %d x 404, %d x 401",
+                requests.get(), documents.get(), bytes.get() / 1048576.0, slow.get(), errors.get(), throttled.get(), notFound.get(), unauthorized.get());
+    }
+}
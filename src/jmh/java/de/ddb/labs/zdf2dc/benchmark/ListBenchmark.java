@@ -0,0 +1,92 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.benchmark;
+
+import de.ddb.labs.zdf2dc.data.rdfdc.OaiPmhReponse;
+import de.ddb.labs.zdf2dc.data.rdfdc.OaiPmhWriter;
+import de.ddb.labs.zdf2dc.data.rdfdc.RdfDocumentProcessor;
+import de.ddb.labs.zdf2dc.data.rdfdc.ZdfRdfRecord;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serialisierung einer OAI-PMH-Antwort mit vielen Datensätzen (abwechselnd
+ * aus allen Dokumenten des {@link Corpus}): als Ganzes über
+ * {@link RdfDocumentProcessor#save(OaiPmhReponse, java.io.OutputStream)} und
+ * inkrementell über den {@link OaiPmhWriter}.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ListBenchmark {
+
+    @Param({"1000", "10000"})
+    public int records;
+
+    private OaiPmhReponse list;
+    private List<ZdfRdfRecord> recordList;
+
+    @Setup
+    public void setup() throws IOException {
+        final byte[][] documents = new byte[Corpus.DOCUMENTS.length][];
+        for (int i = 0; i < documents.length; ++i) {
+            documents[i] = Corpus.load(Corpus.DOCUMENTS[i]);
+        }
+        list = new OaiPmhReponse();
+        recordList = new ArrayList<>(records);
+        for (int i = 0; i < records; ++i) {
+            final ZdfRdfRecord rec = RdfDocumentProcessor.process(documents[i % documents.length]);
+            list.getListRecords().addRecord(rec);
+            recordList.add(rec);
+        }
+    }
+
+    @Benchmark
+    public long saveList() throws IOException {
+        final Corpus.NullOutputStream out = new Corpus.NullOutputStream();
+        RdfDocumentProcessor.save(list, out);
+        return out.getCount();
+    }
+
+    @Benchmark
+    public long writeList() throws IOException {
+        final Corpus.NullOutputStream out = new Corpus.NullOutputStream();
+        try (final OaiPmhWriter writer = RdfDocumentProcessor.openListRecords(out)) {
+            for (ZdfRdfRecord rec : recordList) {
+                writer.write(rec);
+            }
+        }
+        return out.getCount();
+    }
+}
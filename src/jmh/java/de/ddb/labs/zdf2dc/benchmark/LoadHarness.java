@@ -0,0 +1,323 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.benchmark;
+
+import de.ddb.labs.zdf2dc.cli.BatchConverter;
+import de.ddb.labs.zdf2dc.helper.AdaptiveLimiter;
+import de.ddb.labs.zdf2dc.helper.DocumentCache;
+import de.ddb.labs.zdf2dc.helper.LatencyHistogram;
+import de.ddb.labs.zdf2dc.helper.PipelineMetrics;
+import de.ddb.labs.zdf2dc.helper.RateLimiter;
+import de.ddb.labs.zdf2dc.helper.RetryPolicy;
+import de.ddb.labs.zdf2dc.helper.Transport;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Lasttest der ganzen Pipeline (Download, Konvertierung, Speichern) gegen
+ * eine {@link FakeZdfApi}. Für jede Einstellung der Parallelität wird
+ * derselbe Bestand mit einem {@link BatchConverter} geladen; am Ende steht
+ * eine Tabelle mit Datensätzen/s, Antwortzeiten (p50/p95/p99, aus Sicht
+ * des Clients inkl. Wiederholungen), höchster Heap-Belegung und Fehlern.
+ * <p>
+ * Mit <code>--fail-below</code> endet das Programm mit Exit-Code 1, wenn
+ * eine Einstellung langsamer war oder Datensätze verloren gingen, z.B. als
+ * Prüfung vor einem Release.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class LoadHarness {
+
+    private final static String USAGE = "Aufruf: LoadHarness [Optionen]\n"
+            + "  -n, --records <n>          Anzahl der Dokumente (Standard: 2000)\n"
+            + "  -c, --concurrency <liste>  Einstellungen, durch Komma getrennt: \"16\" feste Anzahl paralleler\n"
+            + "                             Downloads, \"4-64\" adaptiv (Standard: 4,16,64,1-64)\n"
+            + "  -f, --format <dc|rdf>      Ausgabeformat (Standard: rdf)\n"
+            + "      --per-record           Ein Datensatz pro Datei statt einer gemeinsamen Datei\n"
+            + "  -t, --threads <n>          Anzahl der Konvertierungs-Threads (Standard: Anzahl der Prozessorkerne)\n"
+            + "      --warmup <n>           So viele Dokumente vorab laden, ohne zu messen (Standard: 500)\n"
+            + "      --retries <n>          Wiederholungen pro Download (Standard: " + RetryPolicy.DEFAULT_RETRIES + ")\n"
+            + "      --rate <n>             Anfragen pro Sekunde des Clients, 0: unbegrenzt (Standard: 0)\n"
+            + "      --target-latency <ms>  Zielwert der adaptiven Parallelität (Standard: " + AdaptiveLimiter.DEFAULT_TARGET_LATENCY + ")\n"
+            + "  Server:\n"
+            + "      --latency <ms>         Median der Antwortzeit (Standard: 50)\n"
+            + "      --spread <s>           Streuung (log-normal), 0: konstant (Standard: 0.5)\n"
+            + "      --error-rate <p>       Anteil der Antworten mit 500 (Standard: 0)\n"
+            + "      --server-rate <n>      Anfragen pro Sekunde, darüber 429 (Standard: 0, unbegrenzt)\n"
+            + "      --slow-rate <p>        Anteil der Dokumente, die langsam geschickt werden (Standard: 0)\n"
+            + "      --slow-ms <ms>         Dauer eines langsamen Dokuments (Standard: 2000)\n"
+            + "  Prüfung:\n"
+            + "      --fail-below <n>       Exit-Code 1, wenn eine Einstellung weniger Datensätze/s schafft\n"
+            + "                             oder nicht alle Datensätze konvertiert wurden\n"
+            + "  -h, --help                 Diese Hilfe";
+
+    private int records = 2000;
+    private String[] settings = {"4", "16", "64", "1-64"};
+    private BatchConverter.Format format = BatchConverter.Format.RDF;
+    private boolean perRecord;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int warmup = 500;
+    private int retries = RetryPolicy.DEFAULT_RETRIES;
+    private double rate;
+    private long targetLatency = AdaptiveLimiter.DEFAULT_TARGET_LATENCY;
+    private double failBelow = -1;
+
+    /**
+     * Ergebnis einer Einstellung.
+     */
+    private static class Result {
+
+        private String setting;
+        private int converted, errors;
+        private double seconds;
+        private LatencyHistogram.Snapshot fetch;
+        private long peakHeap;
+        private long serverErrors, throttled, slow, retried;
+
+        private double getRecordsPerSecond() {
+            return seconds > 0 ? converted / seconds : 0;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.exit(new LoadHarness().run(args));
+    }
+
+    private int run(String[] args) throws Exception {
+        final FakeZdfApi api = new FakeZdfApi(0);
+        api.setLatency(50);
+        api.setSpread(0.5);
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                switch (args[i]) {
+                    case "-n":
+                    case "--records":
+                        records = Integer.parseInt(value(args, ++i));
+                        break;
+                    case "-c":
+                    case "--concurrency":
+                        settings = value(args, ++i).split(",");
+                        break;
+                    case "-f":
+                    case "--format":
+                        format = BatchConverter.Format.valueOf(value(args, ++i).toUpperCase());
+                        break;
+                    case "--per-record":
+                        perRecord = true;
+                        break;
+                    case "-t":
+                    case "--threads":
+                        threads = Integer.parseInt(value(args, ++i));
+                        break;
+                    case "--warmup":
+                        warmup = Integer.parseInt(value(args, ++i));
+                        break;
+                    case "--retries":
+                        retries = Integer.parseInt(value(args, ++i));
+                        break;
+                    case "--rate":
+                        rate = Double.parseDouble(value(args, ++i));
+                        break;
+                    case "--target-latency":
+                        targetLatency = Long.parseLong(value(args, ++i));
+                        break;
+                    case "--latency":
+                        api.setLatency(Long.parseLong(value(args, ++i)));
+                        break;
+                    case "--spread":
+                        api.setSpread(Double.parseDouble(value(args, ++i)));
+                        break;
+                    case "--error-rate":
+                        api.setErrorRate(Double.parseDouble(value(args, ++i)));
+                        break;
+                    case "--server-rate":
+                        api.setRateLimit(Integer.parseInt(value(args, ++i)));
+                        break;
+                    case "--slow-rate":
+                        api.setSlowRate(Double.parseDouble(value(args, ++i)));
+                        break;
+                    case "--slow-ms":
+                        api.setSlowBody(Long.parseLong(value(args, ++i)));
+                        break;
+                    case "--fail-below":
+                        failBelow = Double.parseDouble(value(args, ++i));
+                        break;
+                    case "-h":
+                    case "--help":
+                        System.out.println(USAGE);
+                        return 0;
+                    default:
+                        throw new IllegalArgumentException("Unbekannte Option: " + args[i]);
+                }
+            }
+            for (String setting : settings) {
+                limiter(setting);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            api.close();
+            return 2;
+        }
+
+        final Path dir = Files.createTempDirectory("zdf2dc-harness");
+        try {
+            api.setDocumentCount(records);
+            api.setApiKey("harness");
+            System.setProperty("zdf2dc.api.url", api.getBaseUrl());
+            System.out.println(String.format("Fake API %s: %d Dokumente, Antwortzeit %d ms (Streuung %.1f), %.1f %% Fehler, %d Anfragen/s, %.1f %% langsam (%d ms)",
+                    api.getBaseUrl(), records, api.getLatency(), api.getSpread(), api.getErrorRate() * 100, api.getRateLimit(), api.getSlowRate() * 100, api.getSlowBody()));
+
+            if (warmup > 0) {
+                System.out.println("Aufwärmen mit " + Math.min(warmup, records) + " Dokumenten ...");
+                measure(api, settings[0], Math.min(warmup, records), dir.resolve("warmup"));
+            }
+            final List<Result> results = new ArrayList<>();
+            for (String setting : settings) {
+                System.out.println("Einstellung " + setting + " ...");
+                results.add(measure(api, setting, records, dir.resolve(setting)));
+            }
+            print(results);
+            return check(results);
+        } finally {
+            api.close();
+            delete(dir);
+        }
+    }
+
+    private Result measure(FakeZdfApi api, String setting, int n, Path target) throws IOException, InterruptedException {
+        DocumentCache.configure(target.resolve("cache").toFile(), 0, 0);
+        RateLimiter.configure(rate, -1);
+        Transport.configure(api.getApiKey());
+        final RetryPolicy retry = new RetryPolicy(retries);
+        final File output = perRecord ? target.toFile() : target.resolve("export.xml").toFile();
+        final BatchConverter converter = new BatchConverter(output, format, limiter(setting), retry, Integer.MAX_VALUE, threads, false, false, true);
+
+        final StringBuilder ids = new StringBuilder();
+        for (int i = 0; i < n; ++i) {
+            ids.append(FakeZdfApi.id(i)).append('\n');
+        }
+        api.resetCounts();
+        System.gc();
+        final List<MemoryPoolMXBean> heap = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported()) {
+                pool.resetPeakUsage();
+                heap.add(pool);
+            }
+        }
+        final PipelineMetrics.Snapshot before = PipelineMetrics.getInstance().snapshot();
+        final long start = System.nanoTime();
+        try {
+            converter.convert(new BufferedReader(new StringReader(ids.toString())));
+        } finally {
+            Transport.getInstance().shutdown();
+            converter.close();
+        }
+
+        final Result result = new Result();
+        result.seconds = (System.nanoTime() - start) / 1e9;
+        result.setting = setting;
+        result.converted = converter.getConvertedCount();
+        result.errors = converter.getErrorCount();
+        result.fetch = PipelineMetrics.getInstance().snapshot().getHistogram(PipelineMetrics.Stage.FETCH)
+                .minus(before.getHistogram(PipelineMetrics.Stage.FETCH));
+        for (MemoryPoolMXBean pool : heap) {
+            result.peakHeap += pool.getPeakUsage().getUsed();
+        }
+        result.serverErrors = api.getErrorCount();
+        result.throttled = api.getThrottledCount();
+        result.slow = api.getSlowCount();
+        result.retried = retry.getRetryCount();
+        System.out.println(api);
+        delete(target);
+        return result;
+    }
+
+    /**
+     * @param setting <code>16</code> oder <code>4-64</code>
+     */
+    private AdaptiveLimiter limiter(String setting) {
+        final String[] range = setting.trim().split("-");
+        try {
+            final int min = Integer.parseInt(range[0]);
+            final int max = range.length > 1 ? Integer.parseInt(range[1]) : min;
+            if (range.length > 2 || min <= 0 || max < min) {
+                throw new NumberFormatException();
+            }
+            return new AdaptiveLimiter(range.length > 1 ? Math.max(min, Math.min(AdaptiveLimiter.DEFAULT_INITIAL, max)) : min, min, max, targetLatency);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Ungültige Einstellung: " + setting);
+        }
+    }
+
+    private void print(List<Result> results) {
+        System.out.println();
+        System.out.println(String.format("%-10s %12s %8s %7s %24s %9s %7s %7s %7s %7s",
+                "Parallel", "Datensätze/s", "fertig", "Fehler", "Antwort p50/p95/p99 ms", "Heap MB", "500", "429", "langsam", "wiederh."));
+        for (Result r : results) {
+            System.out.println(String.format("%-10s %12.1f %8d %7d %24s %9.0f %7d %7d %7d %7d",
+                    r.setting, r.getRecordsPerSecond(), r.converted, r.errors,
+                    String.format("%.0f/%.0f/%.0f", r.fetch.getPercentile(0.5), r.fetch.getPercentile(0.95), r.fetch.getPercentile(0.99)),
+                    r.peakHeap / 1048576.0, r.serverErrors, r.throttled, r.slow, r.retried));
+        }
+    }
+
+    private int check(List<Result> results) {
+        if (failBelow < 0) {
+            return 0;
+        }
+        int exit = 0;
+        for (Result r : results) {
+            if (r.getRecordsPerSecond() < failBelow) {
+                System.err.println(String.format("%s: %.1f Datensätze/s, erwartet mindestens %.1f", r.setting, r.getRecordsPerSecond(), failBelow));
+                exit = 1;
+            }
+            if (r.converted != records) {
+                System.err.println(String.format("%s: %d von %d Datensätzen konvertiert", r.setting, r.converted, records));
+                exit = 1;
+            }
+        }
+        return exit;
+    }
+
+    private static String value(String[] args, int i) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Option " + args[i - 1] + " erwartet einen Wert.");
+        }
+        return args[i];
+    }
+
+    private static void delete(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (final Stream<Path> paths = Files.walk(path)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
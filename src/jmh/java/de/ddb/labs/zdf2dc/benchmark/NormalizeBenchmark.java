@@ -0,0 +1,97 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.benchmark;
+
+import de.ddb.labs.zdf2dc.data.rdfdc.OaiPmhWriter;
+import de.ddb.labs.zdf2dc.data.rdfdc.RdfDocumentProcessor;
+import de.ddb.labs.zdf2dc.helper.NamespaceNormalizer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Normalisierung der Namespaces einer OAI-PMH-Antwort mit dem
+ * {@link NamespaceNormalizer} (Nachfolger von <code>Reformatter</code>):
+ * einmal als Stream, einmal von Datei zu Datei (zwei Durchläufe).
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NormalizeBenchmark {
+
+    @Param({"1000", "10000"})
+    public int records;
+
+    private byte[] xml;
+    private File src, dst;
+
+    @Setup
+    public void setup() throws IOException {
+        final byte[][] documents = new byte[Corpus.DOCUMENTS.length][];
+        for (int i = 0; i < documents.length; ++i) {
+            documents[i] = Corpus.load(Corpus.DOCUMENTS[i]);
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (final OaiPmhWriter writer = RdfDocumentProcessor.openListRecords(out)) {
+            for (int i = 0; i < records; ++i) {
+                writer.write(RdfDocumentProcessor.process(documents[i % documents.length]));
+            }
+        }
+        xml = out.toByteArray();
+        src = File.createTempFile("zdf2dc-bench-", ".xml");
+        dst = File.createTempFile("zdf2dc-bench-", ".xml");
+        Files.write(src.toPath(), xml);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(src.toPath());
+        Files.deleteIfExists(dst.toPath());
+    }
+
+    @Benchmark
+    public long normalizeStream() throws IOException {
+        final Corpus.NullOutputStream out = new Corpus.NullOutputStream();
+        NamespaceNormalizer.normalize(new ByteArrayInputStream(xml), out);
+        return out.getCount();
+    }
+
+    @Benchmark
+    public long normalizeFile() throws IOException {
+        NamespaceNormalizer.normalize(src, dst);
+        return dst.length();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.benchmark;
+
+import de.ddb.labs.zdf2dc.data.dc.DocumentProcessor;
+import de.ddb.labs.zdf2dc.data.dc.ZdfRecord;
+import de.ddb.labs.zdf2dc.data.rdfdc.RdfDocumentProcessor;
+import de.ddb.labs.zdf2dc.data.rdfdc.ZdfRdfRecord;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Konvertierung eines einzelnen Dokuments: JSON nach DC bzw. RDF und
+ * Serialisierung eines RDF-Datensatzes.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RecordBenchmark {
+
+    @Param({"clip", "documentary", "series"})
+    public String document;
+
+    private byte[] json;
+    private ZdfRdfRecord record;
+
+    @Setup
+    public void setup() throws IOException {
+        json = Corpus.load(document);
+        record = RdfDocumentProcessor.process(json);
+    }
+
+    @Benchmark
+    public ZdfRecord dcProcess() throws IOException {
+        return DocumentProcessor.process(json);
+    }
+
+    @Benchmark
+    public ZdfRdfRecord rdfProcess() throws IOException {
+        return RdfDocumentProcessor.process(json);
+    }
+
+    @Benchmark
+    public long rdfSave() throws IOException {
+        final Corpus.NullOutputStream out = new Corpus.NullOutputStream();
+        RdfDocumentProcessor.save(record, out);
+        return out.getCount();
+    }
+}
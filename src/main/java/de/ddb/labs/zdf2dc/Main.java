@@ -15,8 +15,10 @@
  */
 package de.ddb.labs.zdf2dc;
 
+import de.ddb.labs.zdf2dc.cli.BatchConverter;
 import de.ddb.labs.zdf2dc.gui.Gui;
 import java.awt.EventQueue;
+import java.awt.GraphicsEnvironment;
 import javax.swing.UIManager;
 import javax.swing.UnsupportedLookAndFeelException;
 import org.slf4j.Logger;
@@ -31,11 +33,17 @@ public class Main {
     private final static Logger LOG = LoggerFactory.getLogger(Main.class);
 
     /**
-     * 
-     * @param args 
+     * Ohne Parameter wird die GUI gestartet, mit Parametern (oder ohne
+     * Display) die Konvertierung auf der Kommandozeile.
+     *
+     * @param args siehe {@link BatchConverter#run(java.lang.String[])}
      */
     public static void main(String args[]) {
 
+        if (args.length > 0 || GraphicsEnvironment.isHeadless()) {
+            System.exit(BatchConverter.run(args.length > 0 ? args : new String[]{"--help"}));
+        }
+
         try {
             for (UIManager.LookAndFeelInfo info : UIManager.getInstalledLookAndFeels()) {
                 if ("Nimbus".equals(info.getName())) {
@@ -0,0 +1,754 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.cli;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.ddb.labs.zdf2dc.data.dc.DocumentProcessor;
+import de.ddb.labs.zdf2dc.data.dc.ZdfRecord;
+import de.ddb.labs.zdf2dc.data.dc.ZdfRecordList;
+import de.ddb.labs.zdf2dc.data.rdfdc.OaiPmhMerger;
+import de.ddb.labs.zdf2dc.data.rdfdc.RdfDocumentProcessor;
+import de.ddb.labs.zdf2dc.data.rdfdc.ShardedOaiPmhWriter;
+import de.ddb.labs.zdf2dc.data.rdfdc.ZdfRdfRecord;
+import de.ddb.labs.zdf2dc.helper.AdaptiveLimiter;
+import de.ddb.labs.zdf2dc.helper.ConversionPool;
+import de.ddb.labs.zdf2dc.helper.DocumentCache;
+import de.ddb.labs.zdf2dc.helper.FeedHarvester;
+import de.ddb.labs.zdf2dc.helper.HarvestMark;
+import de.ddb.labs.zdf2dc.helper.JobJournal;
+import de.ddb.labs.zdf2dc.helper.NamespaceNormalizer;
+import de.ddb.labs.zdf2dc.helper.PipelineMetrics;
+import de.ddb.labs.zdf2dc.helper.RateLimiter;
+import de.ddb.labs.zdf2dc.helper.RecordStore;
+import de.ddb.labs.zdf2dc.helper.RetryPolicy;
+import de.ddb.labs.zdf2dc.helper.Transport;
+import de.ddb.labs.zdf2dc.server.OaiPmhServer;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Konvertiert eine Liste von ZDF-IDs ohne GUI, z.B. per Cron. Es wird dieselbe
+ * Pipeline wie in der GUI verwendet (Download, Konvertierung, Speichern), die
+ * Anzahl paralleler Downloads ist einstellbar. Am Ende wird eine Statistik
+ * ausgegeben.
+ * <p>
+ * Der Fortschritt wird in einem {@link JobJournal} neben dem Ziel
+ * festgehalten. Wird ein abgebrochener Auftrag erneut gestartet, werden
+ * bereits gespeicherte IDs übersprungen und eine gemeinsame Ausgabedatei wird
+ * fortgesetzt. Ist der Auftrag ohne Fehler erledigt, wird das Journal
+ * gelöscht. Bei DC in einer gemeinsamen Datei (wird erst am Ende geschrieben)
+ * gibt es kein Journal.
+ * <p>
+ * Mit {@link #harvest(java.io.BufferedReader)} werden nur die Dokumente
+ * geladen, die laut Feed seit dem letzten Lauf neu sind oder geändert wurden
+ * (siehe {@link HarvestMark}). Im Zielverzeichnis ersetzen sie die alten
+ * Dateien; eine vorhandene gemeinsame Datei wird erst in
+ * <code>export.xml.delta</code> geschrieben und am Ende mit dem Export
+ * zusammengeführt ({@link OaiPmhMerger}).
+ * <p>
+ * Mit <code>--serve</code> wird nichts geladen, sondern ein vorhandener
+ * Export per OAI-PMH bereitgestellt ({@link ServeCommand}).
+ * <code>--from-store</code> und <code>--compact</code> arbeiten nur mit dem
+ * Speicher ({@link StoreCommand}).
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class BatchConverter {
+
+    private final static Logger LOG = LoggerFactory.getLogger(BatchConverter.class);
+    private final static String DELTA_SUFFIX = ".delta";
+    final static String USAGE = "Aufruf: zdf2dc [Optionen]\n"
+            + "  -i, --input <datei>        Datei mit einer ID pro Zeile (Standard: stdin, mit --delta keine)\n"
+            + "  -o, --output <pfad>        Zielverzeichnis (ein Datensatz pro Datei) oder\n"
+            + "                             Zieldatei *.xml (alle Datensätze in einer Datei)\n"
+            + "  -f, --format <dc|rdf>      Ausgabeformat (Standard: rdf, d.h. OAI-PMH mit RDF/DC)\n"
+            + "  -c, --concurrency <n>      Anzahl paralleler Downloads am Anfang, wird dann an die\n"
+            + "                             Antwortzeiten des Servers angepasst (Standard: " + AdaptiveLimiter.DEFAULT_INITIAL + ")\n"
+            + "      --min-concurrency <n>  Mindestens so viele parallele Downloads (Standard: " + AdaptiveLimiter.DEFAULT_MIN + ")\n"
+            + "      --max-concurrency <n>  Höchstens so viele parallele Downloads (Standard: " + AdaptiveLimiter.DEFAULT_MAX + ")\n"
+            + "      --target-latency <ms>  Langsamere Antworten verringern die Parallelität (Standard: " + AdaptiveLimiter.DEFAULT_TARGET_LATENCY + ")\n"
+            + "      --retries <n>          Fehlgeschlagene Downloads so oft wiederholen (Standard: " + RetryPolicy.DEFAULT_RETRIES + ")\n"
+            + "      --rate <n>             Höchstens so viele Anfragen pro Sekunde, 0: nur nach den\n"
+            + "                             Angaben des Servers (Standard: " + RateLimiter.DEFAULT_RATE + ")\n"
+            + "      --burst <n>            So viele Anfragen dürfen auf einmal kommen (Standard: " + RateLimiter.DEFAULT_BURST + ")\n"
+            + "  -p, --per-host <n>         Maximale Anzahl paralleler Downloads pro Host (Standard: wie --max-concurrency)\n"
+            + "  -t, --threads <n>          Anzahl der Konvertierungs-Threads (Standard: Anzahl der Prozessorkerne)\n"
+            + "  -k, --api-key <key>        ZDF-API-Schlüssel (Standard: $ZDFAPIKEY bzw. Schlüssel aus der GUI)\n"
+            + "  -j, --keep-json            JSON-Daten zusätzlich speichern (nur mit Zielverzeichnis)\n"
+            + "  -n, --normalize            Namespaces im Wurzelelement deklarieren\n"
+            + "  -r, --restart              Abgebrochenen Auftrag nicht fortsetzen, sondern neu beginnen\n"
+            + "  -d, --delta                Nur Dokumente laden, die laut Feed seit dem letzten Lauf neu sind\n"
+            + "                             oder geändert wurden, und in das Ziel übernehmen\n"
+            + "      --cache-dir <pfad>     Verzeichnis des Dokument-Caches (Standard: ~/.zdf2dc/cache)\n"
+            + "      --cache-size <MB>      Maximale Größe des Dokument-Caches, 0 schaltet ihn ab (Standard: 512)\n"
+            + "      --trust-cache <h>      Gespeicherte Dokumente so viele Stunden ohne Rückfrage verwenden\n"
+            + "      --shard-records <n>    Zieldatei *.xml (RDF) nach so vielen Datensätzen in eine neue Datei\n"
+            + "                             fortsetzen: export-0001.xml, export-0002.xml, ... (Standard: " + ShardedOaiPmhWriter.DEFAULT_MAX_RECORDS + ", nie)\n"
+            + "      --shard-size <MB>      ... bzw. ab dieser Größe (Standard: " + ShardedOaiPmhWriter.DEFAULT_MAX_MB + ", nie)\n"
+            + "  -s, --store <pfad>         Datensätze (JSON und RDF) zusätzlich im Speicher in diesem\n"
+            + "                             Verzeichnis ablegen (Standard: System-Property " + RecordStore.DIR_PROPERTY + ")\n"
+            + "      --from-store           Kein Download: die IDs aus -i (ohne -i: alle) aus dem Speicher\n"
+            + "                             nach -o exportieren (nur RDF)\n"
+            + "      --compact              Veraltete Datensätze aus dem Speicher entfernen\n"
+            + "      --serve <port>         Kein Download: die Datensätze aus -o (Datei oder Verzeichnis,\n"
+            + "                             ohne -o aus dem Speicher) per OAI-PMH unter\n"
+            + "                             http://localhost:<port>/oai bereitstellen\n"
+            + "      --page-size <n>        Datensätze pro OAI-PMH-Seite (Standard: " + OaiPmhServer.DEFAULT_PAGE_SIZE + ")\n"
+            + "      --admin-email <adr>    adminEmail für Identify (Standard: " + OaiPmhServer.DEFAULT_ADMIN_EMAIL + ")\n"
+            + "  -h, --help                 Diese Hilfe";
+
+    public enum Format {
+        DC, RDF
+    }
+
+    private final File output;
+    private final Format format;
+    private final boolean singleFile;
+    private final boolean keepJson;
+    private final boolean normalize;
+    private final boolean restart;
+    private final OkHttpClient client;
+    private final AdaptiveLimiter limiter;
+    private final RetryPolicy retry;
+    private final ConversionPool pool;
+    // bounds the calls handed to OkHttp, so the ID list is read as the downloads go
+    private final Semaphore inFlight;
+    // downloads and conversions not yet finished
+    private final Phaser pending;
+    private final AtomicInteger count, errorCount;
+    // failed IDs and why
+    private final Map<String, String> errorDownloads;
+    // records of a harvest are merged into an existing export
+    private boolean merge;
+    // documents the feed reports as changed, fetched again even if an interrupted harvest already did
+    private List<String> changed = Collections.emptyList();
+    private ShardedOaiPmhWriter writer;
+    // split a single file after this many records or bytes, 0: never
+    private int shardRecords;
+    private long shardBytes;
+    private ZdfRecordList dcList;
+    private JobJournal journal;
+    private RecordStore store;
+
+    /**
+     * @param output Zielverzeichnis oder Zieldatei <code>*.xml</code>
+     * @param format
+     * @param limiter passt die Anzahl paralleler Downloads an
+     * @param retry wiederholt fehlgeschlagene Downloads
+     * @param maxRequestsPerHost höchstens so viele Downloads pro Host
+     * @param threads Anzahl der Konvertierungs-Threads
+     * @param keepJson
+     * @param normalize
+     * @param restart
+     */
+    public BatchConverter(File output, Format format, AdaptiveLimiter limiter, RetryPolicy retry, int maxRequestsPerHost, int threads, boolean keepJson, boolean normalize, boolean restart) {
+        this.output = output;
+        this.format = format;
+        this.singleFile = output.getName().toLowerCase().endsWith(".xml");
+        this.keepJson = keepJson && !singleFile;
+        this.normalize = normalize;
+        this.restart = restart;
+        this.limiter = limiter;
+        this.retry = retry;
+
+        // the limiter decides how many requests run, the dispatcher only caps it
+        final Transport transport = Transport.getInstance();
+        transport.allowConcurrency(limiter.getMax());
+        transport.getDispatcher().setMaxRequestsPerHost(Math.min(maxRequestsPerHost, limiter.getMax()));
+
+        // retries wait outside of the limit
+        this.client = limiter.apply(RateLimiter.getInstance().apply(retry.apply(transport.newBuilder()))).build();
+
+        this.pool = new ConversionPool(threads);
+        this.inFlight = new Semaphore(limiter.getMax());
+        this.pending = new Phaser(1);
+        this.count = new AtomicInteger(0);
+        this.errorCount = new AtomicInteger(0);
+        this.errorDownloads = new TreeMap<>();
+    }
+
+    /**
+     * Startet die Konvertierung mit Kommandozeilenparametern.
+     *
+     * @param args
+     * @return Exit-Code (0: ok, 1: Datensätze mit Fehlern, 2: falsche
+     * Parameter oder Abbruch)
+     */
+    public static int run(String[] args) {
+        if (Arrays.asList(args).contains("--serve")) {
+            return ServeCommand.run(args);
+        }
+        if (Arrays.asList(args).contains("--from-store") || Arrays.asList(args).contains("--compact")) {
+            return StoreCommand.run(args);
+        }
+        String input = null, output = null, apiKey = null;
+        Format format = Format.RDF;
+        int initialRequests = AdaptiveLimiter.DEFAULT_INITIAL, minRequests = AdaptiveLimiter.DEFAULT_MIN, maxRequests = AdaptiveLimiter.DEFAULT_MAX;
+        int maxRequestsPerHost = Integer.MAX_VALUE;
+        long targetLatency = AdaptiveLimiter.DEFAULT_TARGET_LATENCY;
+        int retries = RetryPolicy.DEFAULT_RETRIES;
+        double rate = -1;
+        int burst = -1;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean keepJson = false, normalize = false, restart = false, delta = false;
+        String cacheDir = null;
+        long cacheSize = -1;
+        int trustHours = -1;
+        String storeDir = System.getProperty(RecordStore.DIR_PROPERTY);
+        int shardRecords = ShardedOaiPmhWriter.DEFAULT_MAX_RECORDS;
+        long shardMb = ShardedOaiPmhWriter.DEFAULT_MAX_MB;
+
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                switch (args[i]) {
+                    case "-i":
+                    case "--input":
+                        input = value(args, ++i);
+                        break;
+                    case "-o":
+                    case "--output":
+                        output = value(args, ++i);
+                        break;
+                    case "-f":
+                    case "--format":
+                        format = Format.valueOf(value(args, ++i).toUpperCase());
+                        break;
+                    case "-c":
+                    case "--concurrency":
+                        initialRequests = positive(value(args, ++i));
+                        break;
+                    case "--min-concurrency":
+                        minRequests = positive(value(args, ++i));
+                        break;
+                    case "--max-concurrency":
+                        maxRequests = positive(value(args, ++i));
+                        break;
+                    case "--target-latency":
+                        targetLatency = positive(value(args, ++i));
+                        break;
+                    case "--retries":
+                        retries = Integer.parseInt(value(args, ++i));
+                        break;
+                    case "--rate":
+                        rate = Double.parseDouble(value(args, ++i));
+                        if (rate < 0) {
+                            throw new IllegalArgumentException("Wert muss größer oder gleich 0 sein: " + rate);
+                        }
+                        break;
+                    case "--burst":
+                        burst = positive(value(args, ++i));
+                        break;
+                    case "-p":
+                    case "--per-host":
+                        maxRequestsPerHost = positive(value(args, ++i));
+                        break;
+                    case "-t":
+                    case "--threads":
+                        threads = positive(value(args, ++i));
+                        break;
+                    case "-k":
+                    case "--api-key":
+                        apiKey = value(args, ++i);
+                        break;
+                    case "-j":
+                    case "--keep-json":
+                        keepJson = true;
+                        break;
+                    case "-n":
+                    case "--normalize":
+                        normalize = true;
+                        break;
+                    case "-r":
+                    case "--restart":
+                        restart = true;
+                        break;
+                    case "-d":
+                    case "--delta":
+                        delta = true;
+                        break;
+                    case "--cache-dir":
+                        cacheDir = value(args, ++i);
+                        break;
+                    case "--cache-size":
+                        cacheSize = Long.parseLong(value(args, ++i));
+                        break;
+                    case "--trust-cache":
+                        trustHours = Integer.parseInt(value(args, ++i));
+                        break;
+                    case "--shard-records":
+                        shardRecords = Integer.parseInt(value(args, ++i));
+                        break;
+                    case "--shard-size":
+                        shardMb = Long.parseLong(value(args, ++i));
+                        break;
+                    case "-s":
+                    case "--store":
+                        storeDir = value(args, ++i);
+                        break;
+                    case "-h":
+                    case "--help":
+                        System.out.println(USAGE);
+                        return 0;
+                    default:
+                        throw new IllegalArgumentException("Unbekannte Option: " + args[i]);
+                }
+            }
+            if (storeDir != null && storeDir.isEmpty()) {
+                storeDir = null;
+            }
+            if (output == null) {
+                throw new IllegalArgumentException("Kein Ziel angegeben (-o).");
+            }
+            if (shardRecords < 0 || shardMb < 0) {
+                throw new IllegalArgumentException("--shard-records und --shard-size müssen größer oder gleich 0 sein.");
+            }
+            if (delta && (shardRecords > 0 || shardMb > 0)) {
+                throw new IllegalArgumentException("--delta geht nicht mit --shard-records oder --shard-size.");
+            }
+            if (minRequests > maxRequests) {
+                throw new IllegalArgumentException("--min-concurrency ist größer als --max-concurrency.");
+            }
+            if (delta && format == Format.DC && output.toLowerCase().endsWith(".xml")) {
+                throw new IllegalArgumentException("--delta geht mit DC nur mit einem Zielverzeichnis.");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+
+        final RecordStore store;
+        try {
+            store = storeDir == null ? null : RecordStore.open(new File(storeDir));
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return 2;
+        }
+        try {
+            DocumentCache.configure(cacheDir == null ? null : new File(cacheDir), cacheSize, trustHours);
+            RateLimiter.configure(rate, burst);
+            Transport.configure(apiKey);
+            if (Transport.getInstance().getApiKey().isEmpty()) {
+                System.err.println("Kein ZDF-API-Schlüssel angegeben (-k oder $ZDFAPIKEY).");
+                return 2;
+            }
+
+            final AdaptiveLimiter limiter = new AdaptiveLimiter(initialRequests, minRequests, maxRequests, targetLatency);
+            final BatchConverter converter = new BatchConverter(new File(output), format, limiter, new RetryPolicy(retries), maxRequestsPerHost, threads, keepJson, normalize, restart);
+            converter.setStore(store);
+            converter.setShards(shardRecords, shardMb * 1024 * 1024);
+            final InputStream in = delta && input == null ? new ByteArrayInputStream(new byte[0])
+                    : input == null || input.equals("-") ? System.in : null;
+            try (final BufferedReader ids = new BufferedReader(new InputStreamReader(in == null ? new FileInputStream(input) : in, StandardCharsets.UTF_8))) {
+                return (delta ? converter.harvest(ids) : converter.convert(ids)) ? 0 : 1;
+            } catch (IOException e) {
+                LOG.error("Konvertierung abgebrochen. {}", e.getMessage(), e);
+                return 2;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOG.error("Konvertierung abgebrochen.");
+                return 2;
+            } finally {
+                Transport.getInstance().shutdown();
+                converter.close();
+            }
+        } finally {
+            if (store != null) {
+                try {
+                    store.close();
+                } catch (IOException e) {
+                    LOG.error("Record store could not be closed. {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Legt die konvertierten Datensätze (nur RDF) zusätzlich im Speicher ab.
+     *
+     * @param store <code>null</code>: nicht
+     */
+    public void setStore(RecordStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Verteilt eine gemeinsame Datei (RDF) auf mehrere, siehe
+     * {@link ShardedOaiPmhWriter}.
+     *
+     * @param maxRecords höchstens so viele Datensätze pro Datei,
+     * <code>0</code>: beliebig viele
+     * @param maxBytes neue Datei ab dieser Größe, <code>0</code>: beliebig
+     * groß
+     */
+    public void setShards(int maxRecords, long maxBytes) {
+        this.shardRecords = maxRecords;
+        this.shardBytes = maxBytes;
+    }
+
+    /**
+     * Beendet die Konvertierungs-Threads.
+     */
+    public void close() {
+        pool.close();
+    }
+
+    /**
+     * @return Anzahl der konvertierten Datensätze
+     */
+    public int getConvertedCount() {
+        return count.get();
+    }
+
+    /**
+     * @return Anzahl der IDs mit Fehlern
+     */
+    public int getErrorCount() {
+        return errorCount.get();
+    }
+
+    static String value(String[] args, int i) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Option " + args[i - 1] + " erwartet einen Wert.");
+        }
+        return args[i];
+    }
+
+    static int positive(String val) {
+        final int i = Integer.parseInt(val);
+        if (i <= 0) {
+            throw new IllegalArgumentException("Wert muss größer 0 sein: " + val);
+        }
+        return i;
+    }
+
+    /**
+     * Inkrementeller Lauf: Lädt die Dokumente, die laut Feed seit der
+     * {@link HarvestMark} des Ziels neu sind oder geändert wurden, dazu die
+     * IDs aus <code>ids</code>, und übernimmt sie in das Ziel. Die Marke wird
+     * nur nach einem vollständigen Lauf vorgeschoben, sonst werden beim
+     * nächsten Lauf dieselben Dokumente noch einmal angefragt. Auch die schon
+     * gespeicherten werden dann erneut geladen, denn sie können sich seitdem
+     * wieder geändert haben; nur die übrigen IDs aus <code>ids</code> werden
+     * über das Journal übersprungen.
+     *
+     * @param ids weitere IDs, eine pro Zeile
+     * @return <code>true</code>, wenn alle Datensätze konvertiert wurden
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public boolean harvest(BufferedReader ids) throws IOException, InterruptedException {
+        if (!singleFile && !output.isDirectory() && !output.mkdirs()) {
+            throw new IOException("Verzeichnis " + output.getAbsolutePath() + " konnte nicht angelegt werden.");
+        }
+        final HarvestMark mark = HarvestMark.load(output);
+        final Transport transport = Transport.getInstance();
+        final FeedHarvester.Delta delta = new FeedHarvester(transport.getClient(), new ObjectMapper(), transport.getBaseUrl()).since(mark);
+        LOG.info("Feed since {}: {} new or changed documents ({} pages)", mark, delta.getIds().size(), delta.getPages());
+        if (delta.isGap()) {
+            System.err.println("Der Feed reicht nicht bis zum letzten Lauf (" + mark.getEditorialDate() + ") zurück, es fehlen womöglich Dokumente.");
+        }
+
+        final StringBuilder all = new StringBuilder();
+        for (String id : delta.getIds()) {
+            all.append(id).append('\n');
+        }
+        String line;
+        while ((line = ids.readLine()) != null) {
+            all.append(line).append('\n');
+        }
+        final boolean pendingDelta = JobJournal.of(new File(output.getPath() + DELTA_SUFFIX)).exists();
+        if (all.length() == 0 && !pendingDelta) {
+            System.out.println("Keine neuen Dokumente seit " + mark + ".");
+            return true;
+        }
+
+        merge = true;
+        changed = delta.getIds();
+        final boolean complete = convert(new BufferedReader(new StringReader(all.toString())));
+        if (complete) {
+            delta.advance(mark);
+            mark.save();
+            LOG.info("Harvest mark is now {}", mark);
+        }
+        return complete;
+    }
+
+    /**
+     * Lädt und konvertiert alle IDs (eine pro Zeile, leere Zeilen und Zeilen
+     * mit <code>#</code> werden übersprungen, doppelte IDs nur einmal
+     * geladen).
+     *
+     * @param ids
+     * @return <code>true</code>, wenn alle Datensätze konvertiert wurden
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public boolean convert(BufferedReader ids) throws IOException, InterruptedException {
+        final long start = System.nanoTime();
+        final PipelineMetrics.Snapshot metricsStart = PipelineMetrics.getInstance().snapshot();
+        if (singleFile) {
+            if (output.getAbsoluteFile().getParentFile() != null) {
+                output.getAbsoluteFile().getParentFile().mkdirs();
+            }
+        } else if (!output.isDirectory() && !output.mkdirs()) {
+            throw new IOException("Verzeichnis " + output.getAbsolutePath() + " konnte nicht angelegt werden.");
+        }
+        final File deltaFile = new File(output.getPath() + DELTA_SUFFIX);
+        if (restart) {
+            Files.deleteIfExists(JobJournal.of(output).toPath());
+            Files.deleteIfExists(JobJournal.of(deltaFile).toPath());
+            Files.deleteIfExists(deltaFile.toPath());
+        }
+        // a harvest into an existing export collects its records separately (unless the export itself isn't finished yet)
+        final File target = merge && singleFile
+                && (JobJournal.of(deltaFile).exists() || (output.exists() && !JobJournal.of(output).exists())) ? deltaFile : output;
+
+        if (singleFile && format == Format.DC) {
+            dcList = new ZdfRecordList();
+        } else {
+            journal = JobJournal.open(target);
+            if (journal.isResumed()) {
+                LOG.info("Resuming job from {} ({} IDs done)", journal.getFile().getAbsolutePath(), journal.getDoneCount());
+                final int reopened = journal.reopen(changed);
+                if (reopened > 0) {
+                    LOG.info("{} documents done before are fetched again, the feed reports them as changed", reopened);
+                }
+            }
+            if (singleFile) {
+                writer = journal.getCheckpoint() < 0
+                        ? RdfDocumentProcessor.openShards(target, shardRecords, shardBytes)
+                        : RdfDocumentProcessor.resumeShards(target, shardRecords, shardBytes, journal.getCheckpointFile(), journal.getCheckpoint());
+            }
+        }
+        LOG.info("Save {} to {}", format, target.getAbsolutePath());
+
+        final Set<String> seen = new HashSet<>();
+        int total = 0, skipped = 0;
+        String line;
+        while ((line = ids.readLine()) != null) {
+            final String id = line.trim();
+            if (id.isEmpty() || id.startsWith("#") || !seen.add(id)) {
+                continue;
+            }
+            ++total;
+            if (journal != null) {
+                if (journal.isDone(id)) {
+                    ++skipped;
+                    continue;
+                }
+                journal.pending(id);
+            }
+            inFlight.acquire();
+            pending.register();
+            addDownloadJob(id);
+        }
+        // wait for the remaining downloads and conversions
+        pending.awaitAdvanceInterruptibly(pending.arrive());
+
+        if (writer != null) {
+            writer.close();
+        } else if (dcList != null) {
+            DocumentProcessor.save(dcList, output);
+        }
+        final boolean complete = errorCount.get() == 0;
+        if (complete && target != output) {
+            final int replaced = OaiPmhMerger.merge(output, target);
+            Files.delete(target.toPath());
+            System.out.println(String.format("Neue Datensätze in %s übernommen, %d alte ersetzt", output.getName(), replaced));
+        }
+        if (journal != null) {
+            if (complete) {
+                journal.delete();
+            } else {
+                journal.close();
+                LOG.info("Job is incomplete, run again to retry the failed IDs (journal: {})", journal.getFile().getAbsolutePath());
+            }
+        }
+        // a normalized file can't be resumed any more, so only once the job is complete
+        if (singleFile && normalize && complete) {
+            for (File f : writer == null || target != output ? Collections.singletonList(output) : writer.getFiles()) {
+                NamespaceNormalizer.normalize(f);
+            }
+        }
+        if (writer != null && writer.isSharded()) {
+            System.out.println(String.format("%d Dateien: %s bis %s", writer.getFiles().size(), writer.getFiles().get(0).getName(), writer.getFile().getName()));
+        }
+
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("%d IDs, %d übersprungen, %d konvertiert, %d Fehler in %.1f s (%.1f Datensätze/s)",
+                total, skipped, count.get(), errorCount.get(), seconds, seconds > 0 ? count.get() / seconds : 0));
+        System.out.println(DocumentCache.getInstance());
+        System.out.println(limiter);
+        System.out.println(retry);
+        System.out.println(RateLimiter.getInstance());
+        System.out.println(Transport.getInstance());
+        System.out.println(PipelineMetrics.getInstance().summary(metricsStart));
+        if (store != null) {
+            store.sync();
+            System.out.println(store);
+        }
+        synchronized (errorDownloads) {
+            for (Map.Entry<String, String> e : errorDownloads.entrySet()) {
+                System.err.println(e.getKey() + "\t" + e.getValue());
+            }
+        }
+        return complete;
+    }
+
+    private void addDownloadJob(String id) {
+        final Request request = new Request.Builder()
+                .url(Transport.getInstance().documentUrl(id))
+                .build();
+
+        client.newCall(request).enqueue(new Callback() {
+
+            @Override
+            public void onFailure(Call call, IOException e) {
+                inFlight.release();
+                error(id, e.getMessage());
+                pending.arriveAndDeregister();
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                final byte[] data;
+                try (final ResponseBody body = response.body()) {
+                    if (!response.isSuccessful()) {
+                        throw new IOException("Response code: " + response.code());
+                    }
+                    data = body.bytes();
+                } catch (Exception ex) {
+                    error(id, ex.getMessage());
+                    pending.arriveAndDeregister();
+                    return;
+                } finally {
+                    inFlight.release();
+                }
+
+                // the network thread only hands over the bytes (and waits while the pool is busy)
+                try {
+                    pool.submit(() -> {
+                        try {
+                            convert(id, data);
+                            count.incrementAndGet();
+                        } catch (Exception ex) {
+                            error(id, ex.getMessage());
+                        } finally {
+                            pending.arriveAndDeregister();
+                        }
+                    });
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    error(id, "Interrupted");
+                    pending.arriveAndDeregister();
+                }
+            }
+        });
+    }
+
+    private void convert(String id, byte[] data) throws IOException {
+        if (keepJson) {
+            Files.write(file(id, ".json").toPath(), data);
+        }
+        if (format == Format.RDF) {
+            final ZdfRdfRecord record = RdfDocumentProcessor.process(data);
+            if (writer != null) {
+                synchronized (writer) {
+                    writer.write(record);
+                    journal.done(id, writer.getFile(), writer.checkpoint());
+                }
+            } else {
+                save(RdfDocumentProcessor::save, record, file(id, ".xml"));
+                journal.done(id, file(id, ".xml"));
+            }
+            if (store != null) {
+                store.put(id, data, record);
+            }
+        } else {
+            final ZdfRecord record = DocumentProcessor.process(data);
+            if (dcList != null) {
+                synchronized (dcList) {
+                    dcList.getList().add(record);
+                }
+            } else {
+                save(DocumentProcessor::save, record, file(id, ".xml"));
+                journal.done(id, file(id, ".xml"));
+            }
+        }
+    }
+
+    private <T> void save(Saver<T> saver, T record, File dst) throws IOException {
+        saver.save(record, dst);
+        if (normalize) {
+            NamespaceNormalizer.normalize(dst);
+        }
+    }
+
+    private File file(String id, String extension) {
+        return file(output, id, extension);
+    }
+
+    static File file(File directory, String id, String extension) {
+        return new File(directory, id.replaceAll("[^a-zA-Z0-9\\.\\-]", "_") + extension);
+    }
+
+    private void error(String id, String message) {
+        LOG.error("{}: {}", id, message);
+        errorCount.incrementAndGet();
+        synchronized (errorDownloads) {
+            errorDownloads.put(id, message);
+        }
+        if (journal != null) {
+            try {
+                journal.failed(id, message);
+            } catch (IOException e) {
+                LOG.error("Could not write journal. {}", e.getMessage());
+            }
+        }
+    }
+
+    private interface Saver<T> {
+
+        void save(T record, File dst) throws IOException;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.cli;
+
+import de.ddb.labs.zdf2dc.helper.RecordStore;
+import de.ddb.labs.zdf2dc.server.OaiPmhServer;
+import de.ddb.labs.zdf2dc.server.RecordIndex;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <code>--serve</code>: stellt einen vorhandenen Export (<code>-o</code>)
+ * oder den Speicher (<code>-s</code>) per OAI-PMH bereit, ohne etwas zu
+ * laden (siehe {@link OaiPmhServer}).
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class ServeCommand {
+
+    private final static Logger LOG = LoggerFactory.getLogger(ServeCommand.class);
+
+    private ServeCommand() {
+    }
+
+    /**
+     * @param args Kommandozeilenparameter mit <code>--serve</code>
+     * @return Exit-Code (2: falsche Parameter, Fehler oder Abbruch; der
+     * Server läuft sonst, bis das Programm beendet wird)
+     */
+    public static int run(String[] args) {
+        String output = null;
+        String storeDir = System.getProperty(RecordStore.DIR_PROPERTY);
+        int port = -1, pageSize = OaiPmhServer.DEFAULT_PAGE_SIZE;
+        String adminEmail = OaiPmhServer.DEFAULT_ADMIN_EMAIL;
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                switch (args[i]) {
+                    case "-o":
+                    case "--output":
+                        output = BatchConverter.value(args, ++i);
+                        break;
+                    case "-s":
+                    case "--store":
+                        storeDir = BatchConverter.value(args, ++i);
+                        break;
+                    case "--serve":
+                        port = Integer.parseInt(BatchConverter.value(args, ++i));
+                        if (port < 0 || port > 65535) {
+                            throw new IllegalArgumentException("Ungültiger Port: " + port);
+                        }
+                        break;
+                    case "--page-size":
+                        pageSize = BatchConverter.positive(BatchConverter.value(args, ++i));
+                        break;
+                    case "--admin-email":
+                        adminEmail = BatchConverter.value(args, ++i);
+                        break;
+                    case "-h":
+                    case "--help":
+                        System.out.println(BatchConverter.USAGE);
+                        return 0;
+                    default:
+                        throw new IllegalArgumentException("Option " + args[i] + " geht nicht mit --serve.");
+                }
+            }
+            if (storeDir != null && storeDir.isEmpty()) {
+                storeDir = null;
+            }
+            if (output == null && storeDir == null) {
+                throw new IllegalArgumentException("Kein Export (-o) oder Speicher (--store) angegeben.");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(BatchConverter.USAGE);
+            return 2;
+        }
+
+        RecordStore store = null;
+        try {
+            if (output == null) {
+                store = RecordStore.open(new File(storeDir));
+            }
+            return serve(store == null ? RecordIndex.build(new File(output)) : RecordIndex.of(store), port, pageSize, adminEmail);
+        } catch (IOException e) {
+            LOG.error("Abgebrochen. {}", e.getMessage(), e);
+            return 2;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.error("OAI-PMH provider was interrupted.");
+            return 2;
+        } finally {
+            if (store != null) {
+                try {
+                    store.close();
+                } catch (IOException e) {
+                    LOG.error("Record store could not be closed. {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Stellt die Datensätze aus <code>index</code> bereit, bis das Programm
+     * beendet wird. Der Server endet nie von selbst, daher gilt jedes Ende
+     * als Abbruch.
+     *
+     * @return Exit-Code 2, nachdem das Programm beendet wurde
+     */
+    private static int serve(RecordIndex index, int port, int pageSize, String adminEmail) throws IOException, InterruptedException {
+        final OaiPmhServer server;
+        try {
+            server = new OaiPmhServer(index, port, pageSize, adminEmail);
+        } catch (IOException e) {
+            index.close();
+            throw e;
+        }
+        final CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            stopped.countDown();
+        }));
+        server.start();
+        System.out.println(String.format("OAI-PMH: %d Datensätze unter http://localhost:%d%s", index.size(), server.getPort(), OaiPmhServer.PATH));
+        stopped.await();
+        LOG.info("OAI-PMH provider stopped by shutdown");
+        return 2;
+    }
+}
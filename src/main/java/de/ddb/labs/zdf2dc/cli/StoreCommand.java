@@ -0,0 +1,247 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.cli;
+
+import de.ddb.labs.zdf2dc.data.rdfdc.RdfDocumentProcessor;
+import de.ddb.labs.zdf2dc.data.rdfdc.ShardedOaiPmhWriter;
+import de.ddb.labs.zdf2dc.helper.NamespaceNormalizer;
+import de.ddb.labs.zdf2dc.helper.RecordStore;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pflege des {@link RecordStore} ohne Download: <code>--from-store</code>
+ * exportiert Datensätze aus dem Speicher, <code>--compact</code> entfernt
+ * veraltete (beides zusammen: erst aufräumen, dann exportieren).
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class StoreCommand {
+
+    private final static Logger LOG = LoggerFactory.getLogger(StoreCommand.class);
+
+    private StoreCommand() {
+    }
+
+    /**
+     * @param args Kommandozeilenparameter mit <code>--from-store</code> bzw.
+     * <code>--compact</code>
+     * @return Exit-Code (0: ok, 1: IDs nicht im Speicher, 2: falsche
+     * Parameter oder Abbruch)
+     */
+    public static int run(String[] args) {
+        String input = null, output = null;
+        String storeDir = System.getProperty(RecordStore.DIR_PROPERTY);
+        boolean keepJson = false, normalize = false, fromStore = false, compact = false;
+        int shardRecords = ShardedOaiPmhWriter.DEFAULT_MAX_RECORDS;
+        long shardMb = ShardedOaiPmhWriter.DEFAULT_MAX_MB;
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                switch (args[i]) {
+                    case "-i":
+                    case "--input":
+                        input = BatchConverter.value(args, ++i);
+                        break;
+                    case "-o":
+                    case "--output":
+                        output = BatchConverter.value(args, ++i);
+                        break;
+                    case "-f":
+                    case "--format":
+                        if (BatchConverter.Format.valueOf(BatchConverter.value(args, ++i).toUpperCase()) != BatchConverter.Format.RDF) {
+                            throw new IllegalArgumentException("--from-store geht nur mit RDF.");
+                        }
+                        break;
+                    case "-j":
+                    case "--keep-json":
+                        keepJson = true;
+                        break;
+                    case "-n":
+                    case "--normalize":
+                        normalize = true;
+                        break;
+                    case "--shard-records":
+                        shardRecords = Integer.parseInt(BatchConverter.value(args, ++i));
+                        break;
+                    case "--shard-size":
+                        shardMb = Long.parseLong(BatchConverter.value(args, ++i));
+                        break;
+                    case "-s":
+                    case "--store":
+                        storeDir = BatchConverter.value(args, ++i);
+                        break;
+                    case "--from-store":
+                        fromStore = true;
+                        break;
+                    case "--compact":
+                        compact = true;
+                        break;
+                    case "-h":
+                    case "--help":
+                        System.out.println(BatchConverter.USAGE);
+                        return 0;
+                    default:
+                        throw new IllegalArgumentException("Option " + args[i] + " geht nicht mit --from-store oder --compact.");
+                }
+            }
+            if (storeDir != null && storeDir.isEmpty()) {
+                storeDir = null;
+            }
+            if (storeDir == null) {
+                throw new IllegalArgumentException("--from-store und --compact brauchen einen Speicher (--store).");
+            }
+            if (fromStore && output == null) {
+                throw new IllegalArgumentException("Kein Ziel angegeben (-o).");
+            }
+            if (!fromStore && (output != null || input != null)) {
+                throw new IllegalArgumentException("--compact geht nur allein oder mit --from-store.");
+            }
+            if (shardRecords < 0 || shardMb < 0) {
+                throw new IllegalArgumentException("--shard-records und --shard-size müssen größer oder gleich 0 sein.");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(BatchConverter.USAGE);
+            return 2;
+        }
+
+        final RecordStore store;
+        try {
+            store = RecordStore.open(new File(storeDir));
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return 2;
+        }
+        try {
+            if (compact) {
+                store.compact();
+                System.out.println(store);
+            }
+            if (!fromStore) {
+                return 0;
+            }
+            try (final BufferedReader ids = input == null ? null
+                    : new BufferedReader(new InputStreamReader(input.equals("-") ? System.in : new FileInputStream(input), StandardCharsets.UTF_8))) {
+                return export(store, new File(output), ids, keepJson, normalize, shardRecords, shardMb * 1024 * 1024);
+            }
+        } catch (IOException e) {
+            LOG.error("Abgebrochen. {}", e.getMessage(), e);
+            return 2;
+        } finally {
+            try {
+                store.close();
+            } catch (IOException e) {
+                LOG.error("Record store could not be closed. {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Schreibt Datensätze aus dem Speicher ohne Download in das Ziel
+     * (Verzeichnis oder gemeinsame Datei). Der Speicher wird dabei in einem
+     * Durchgang gelesen.
+     *
+     * @param store
+     * @param output
+     * @param ids IDs oder <code>externalId</code>s, eine pro Zeile;
+     * <code>null</code>: alle Datensätze
+     * @param keepJson JSON-Daten zusätzlich schreiben (nur mit Verzeichnis)
+     * @param normalize
+     * @param shardRecords siehe
+     * {@link BatchConverter#setShards(int, long)}
+     * @param shardBytes
+     * @return Exit-Code (0: ok, 1: IDs nicht im Speicher)
+     * @throws IOException
+     */
+    private static int export(RecordStore store, File output, BufferedReader ids, boolean keepJson, boolean normalize, int shardRecords, long shardBytes) throws IOException {
+        final long start = System.nanoTime();
+        final List<RecordStore.Entry> entries;
+        int missing = 0;
+        if (ids == null) {
+            entries = store.getEntries();
+        } else {
+            entries = new ArrayList<>();
+            final Set<String> seen = new HashSet<>();
+            String line;
+            while ((line = ids.readLine()) != null) {
+                final String id = line.trim();
+                if (id.isEmpty() || id.startsWith("#") || !seen.add(id)) {
+                    continue;
+                }
+                final RecordStore.Entry e = store.get(id);
+                if (e == null) {
+                    System.err.println(id + "\tnicht im Speicher");
+                    ++missing;
+                } else {
+                    entries.add(e);
+                }
+            }
+        }
+
+        if (output.getName().toLowerCase().endsWith(".xml")) {
+            if (output.getAbsoluteFile().getParentFile() != null) {
+                output.getAbsoluteFile().getParentFile().mkdirs();
+            }
+            final ShardedOaiPmhWriter w = RdfDocumentProcessor.openShards(output, shardRecords, shardBytes);
+            try {
+                store.forEach(entries, (e, rdf) -> w.write(e.getExternalId(), new Date(e.getDatestamp()), rdf));
+            } finally {
+                w.close();
+            }
+            if (normalize) {
+                for (File f : w.getFiles()) {
+                    NamespaceNormalizer.normalize(f);
+                }
+            }
+        } else {
+            if (!output.isDirectory() && !output.mkdirs()) {
+                throw new IOException("Verzeichnis " + output.getAbsolutePath() + " konnte nicht angelegt werden.");
+            }
+            final byte[] declaration = RdfDocumentProcessor.DECLARATION.getBytes(StandardCharsets.UTF_8);
+            store.forEach(entries, (e, rdf) -> {
+                final File dst = BatchConverter.file(output, e.getId(), ".xml");
+                try (final OutputStream out = new BufferedOutputStream(new FileOutputStream(dst))) {
+                    out.write(declaration);
+                    out.write(rdf);
+                }
+                if (keepJson) {
+                    Files.write(BatchConverter.file(output, e.getId(), ".json").toPath(), store.readJson(e));
+                }
+                if (normalize) {
+                    NamespaceNormalizer.normalize(dst);
+                }
+            });
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("%d Datensätze aus dem Speicher exportiert, %d nicht gefunden in %.1f s", entries.size(), missing, seconds));
+        return missing == 0 ? 0 : 1;
+    }
+}
@@ -4,29 +4,30 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.dataformat.xml.XmlMapper;
 import com.fasterxml.jackson.dataformat.xml.ser.ToXmlGenerator;
-import com.jayway.jsonpath.DocumentContext;
-import com.jayway.jsonpath.JsonPath;
+import de.ddb.labs.zdf2dc.data.zdf.MappingPlan;
+import de.ddb.labs.zdf2dc.data.zdf.ZdfMappings;
 import de.ddb.labs.zdf2dc.helper.NamespaceFactory;
+import de.ddb.labs.zdf2dc.helper.PipelineMetrics;
+import de.ddb.labs.zdf2dc.helper.Transport;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.nio.charset.Charset;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.nio.file.Files;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
-import java.util.prefs.Preferences;
+import java.util.Objects;
 import okhttp3.Call;
 import okhttp3.Callback;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
-import okio.BufferedSink;
-import okio.Okio;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,14 +38,10 @@ import org.slf4j.LoggerFactory;
 public class DocumentProcessor {
 
     private final static String ID = "SCMS_1aa2b672-b635-4df8-96e6-0ff488a634b0";
-    private final static int CONNECTTIMEOUT = 10;
-    private final static int WRITETIMEOUT = 10;
-    private final static int READTIMEOUT = 30;
-    private final static String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss";
     private final static Logger LOG = LoggerFactory.getLogger(DocumentProcessor.class);
     private final static Map<String, String> otherNamespaces;
     private final static XmlMapper xmlMapper;
-    private final static Preferences userPrefs = Preferences.userRoot().node("de/ddb/labs/zdf2dc");
+    private final static MappingPlan<ZdfRecord> plan;
 
     static {
         otherNamespaces = new HashMap<>();
@@ -65,26 +62,27 @@ public class DocumentProcessor {
         xmlMapper = new XmlMapper(new NamespaceFactory("http://www.openarchives.org/OAI/2.0/", otherNamespaces));
         xmlMapper.enable(SerializationFeature.INDENT_OUTPUT);
         xmlMapper.configure(ToXmlGenerator.Feature.WRITE_XML_DECLARATION, true);
-    }
-
-    public static int getIntegerValueFromJsonPath(DocumentContext docCtx, String jsonPath) {
-        try {
-            return docCtx.read(JsonPath.compile(jsonPath));
-        } catch (Exception e) {
-            return 0;
-        }
-    }
 
-    public static String getStringValueFromJsonPath(DocumentContext docCtx, String jsonPath) {
-        try {
-            final String val = docCtx.read(JsonPath.compile(jsonPath));
-            if (!val.trim().isEmpty()) {
-                return val;
-            }
-        } catch (Exception e) {
-            return null;
-        }
-        return null;
+        plan = MappingPlan.builder(ZdfRecord::new)
+                .string(ZdfMappings.EXTERNAL_ID, (film, val) -> film.getIdentifier().add(new DcElement(val, "providerItemId", null)))
+                .string(ZdfMappings.URI, (film, val) -> film.getIdentifier().add(new DcElement(val, "uri", null)))
+                .string(ZdfMappings.EDITORIAL_DATE, Objects::nonNull, ZdfMappings::editorialDate, ZdfRecord::setEditorialDate)
+                .string(ZdfMappings.SHARING_URL, (film, val) -> film.getIdentifier().add(new DcElement(val, "url", null)))
+                .string(ZdfMappings.ID, (film, val) -> film.getIdentifier().add(new DcElement(val, "id", null)))
+                .string(ZdfMappings.TITLE, (film, val) -> film.getTitle().add(new DcElement(val, null, "deu")))
+                .string(ZdfMappings.SUBTITLE, (film, val) -> film.getTitle().add(new DcElement(val, null, "deu")))
+                .string(ZdfMappings.LEAD_PARAGRAPH, (film, val) -> film.getDescription().add(new DcElement(val, "object", "deu")))
+                .string(ZdfMappings.TEASER_IMAGE_ORIGINAL, ZdfMappings.NOT_ZDF, (film, val) -> film.getIdentifier().add(new DcElement(val, "binary", null)))
+                .string(ZdfMappings.TEASER_IMAGE_TITLE, ZdfMappings.NOT_ZDF, (film, val) -> film.getAlternative().add(new DcTerms(val, null, null, "deu")))
+                .string(ZdfMappings.TEASER_IMAGE_COPYRIGHT_NOTICE, ZdfMappings.NOT_ZDF, (film, val) -> film.getAlternative().add(new DcTerms(val, null, null, "deu")))
+                .string(ZdfMappings.TEASER_IMAGE_SOURCE, ZdfMappings.NOT_ZDF, (film, val) -> film.getAlternative().add(new DcTerms(val, null, null, "deu")))
+                .string(ZdfMappings.TEASER_IMAGE_CAPTION, ZdfMappings.NOT_ZDF, (film, val) -> film.getAlternative().add(new DcTerms(val, null, null, "deu")))
+                .string(ZdfMappings.CATEGORY_TITLE, (film, val) -> film.getType().add(new DcElement(val, "object", "deu")))
+                .string(ZdfMappings.BRAND_TITLE, (film, val) -> film.getSubject().add(new DcElement(val, null, "deu")))
+                .integer(ZdfMappings.DURATION, ZdfMappings.POSITIVE, ZdfRecord::setDuration)
+                .string(ZdfMappings.FSK, ZdfMappings.ALWAYS, ZdfMappings::fsk, (film, val) -> film.getDescription().add(new DcElement(val, "object", "deu")))
+                .string(ZdfMappings.ASPECT_RATIO, Objects::nonNull, ZdfMappings::aspectRatio, (film, val) -> film.getDescription().add(new DcElement(val, "object", "deu")))
+                .build();
     }
 
     /**
@@ -92,16 +90,11 @@ public class DocumentProcessor {
      * @throws java.io.IOException
      */
     public static void main(String[] args) throws IOException {
-        final OkHttpClient client = new OkHttpClient.Builder()
-                .connectTimeout(CONNECTTIMEOUT, TimeUnit.SECONDS)
-                .writeTimeout(WRITETIMEOUT, TimeUnit.SECONDS)
-                .readTimeout(READTIMEOUT, TimeUnit.SECONDS)
-                .build();
+        final OkHttpClient client = Transport.getInstance().getClient();
 
         final Request request = new Request.Builder()
-                .url("https://api.zdf.de/content/documents/" + ID + ".json")
+                .url(Transport.getInstance().documentUrl(ID))
                 .get()
-                .addHeader("Api-Auth", "Bearer " + userPrefs.get("ZDFAPIKEY", ""))
                 .build();
 
         client.newCall(request).enqueue(new Callback() {
@@ -117,41 +110,50 @@ public class DocumentProcessor {
                     return;
                 }
 
-                final File saveToJsonFile = File.createTempFile("zdf2dc-", ".json");
-                try (final BufferedSink sink = Okio.buffer(Okio.sink(saveToJsonFile))) {
-                    sink.writeAll(response.body().source());
+                final ZdfRecord rec;
+                try (final ResponseBody body = response.body()) {
+                    rec = process(body.source());
                 } catch (Exception e) {
                     LOG.error("\"{}\" konnte nicht heruntergeladen werden. {}", ID, e.getMessage());
+                    return;
                 }
 
-                final ZdfRecord rec = process(saveToJsonFile);
-
                 try (final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(System.out, Charset.defaultCharset()))) {
-                    writer.append(xmlMapper.writeValueAsString(rec));
-                    writer.close();
+                    xmlMapper.writeValue(writer, rec);
                 } catch (Exception e) {
                     LOG.error("\"{}\" konnte nicht als XML serialisiert werden. {}", ID, e.getMessage());
                 }
-
-                if (!saveToJsonFile.delete()) {
-                    LOG.warn("Konnte temporäre Datei {} nicht löschen.", saveToJsonFile.getAbsolutePath());
-                }
-
             }
         });
 
-        client.dispatcher().executorService().shutdown();
+        Transport.getInstance().shutdown();
     }
 
     public static void save(ZdfRecord record, File dst) throws FileNotFoundException, IOException {
-        try (final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(dst), Charset.defaultCharset()))) {
-            writer.append(xmlMapper.writeValueAsString(record));
+        try {
+            PipelineMetrics.getInstance().serialize(new FileOutputStream(dst), timed -> {
+                try (final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(timed, Charset.defaultCharset()))) {
+                    xmlMapper.writeValue(writer, record);
+                }
+            });
+        } catch (IOException e) {
+            // don't leave a half-written file behind
+            Files.deleteIfExists(dst.toPath());
+            throw e;
         }
     }
 
     public static void save(ZdfRecordList list, File dst) throws FileNotFoundException, IOException {
-        try (final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(dst), Charset.defaultCharset()))) {
-            writer.append(xmlMapper.writeValueAsString(list));
+        try {
+            PipelineMetrics.getInstance().serialize(new FileOutputStream(dst), timed -> {
+                try (final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(timed, Charset.defaultCharset()))) {
+                    xmlMapper.writeValue(writer, list);
+                }
+            });
+        } catch (IOException e) {
+            // don't leave a half-written file behind
+            Files.deleteIfExists(dst.toPath());
+            throw e;
         }
     }
 
@@ -161,118 +163,41 @@ public class DocumentProcessor {
     }
 
     public static ZdfRecord process(File src) throws JsonProcessingException, IOException {
+        return plan.process(src);
+    }
 
-        final ZdfRecord film = new ZdfRecord();
-
-        final DocumentContext docCtx = JsonPath.parse(src);
-
-        String val = getStringValueFromJsonPath(docCtx, "$.externalId");
-        if (val != null) {
-            film.getIdentifier().add(new DcElement(val, "providerItemId", null));
-        }
-
-        val = getStringValueFromJsonPath(docCtx, "$.[\"http://zdf.de/rels/uri\"]");
-        if (val != null) {
-            film.getIdentifier().add(new DcElement(val, "uri", null));
-        }
-
-        val = getStringValueFromJsonPath(docCtx, "$.editorialDate");
-        if (val != null) {
-            try {
-
-                film.setEditorialDate(new SimpleDateFormat(DATE_FORMAT).parse(val));
-            } catch (ParseException ex) {
-                LOG.warn("Could not parse editorialDate. {}", ex.getMessage());
-            }
-        }
-
-        val = getStringValueFromJsonPath(docCtx, "$.[\"http://zdf.de/rels/sharing-url\"]");
-        if (val != null) {
-
-            film.getIdentifier().add(new DcElement(val, "url", null));
-        }
-
-        val = getStringValueFromJsonPath(docCtx, "$.id");
-        if (val != null) {
-
-            film.getIdentifier().add(new DcElement(val, "id", null));
-        }
-
-        val = getStringValueFromJsonPath(docCtx, "$.title");
-        if (val != null) {
-            film.getTitle().add(new DcElement(val, null, "deu"));
-        }
-
-        val = getStringValueFromJsonPath(docCtx, "$.subtitle");
-        if (val != null) {
-            film.getTitle().add(new DcElement(val, null, "deu"));
-        }
-
-        val = getStringValueFromJsonPath(docCtx, "$.leadParagraph");
-        if (val != null) {
-
-            film.getDescription().add(new DcElement(val, "object", "deu"));
-        }
-
-        val = getStringValueFromJsonPath(docCtx, "$.teaserImageRef.layouts.original");
-        if (val != null && !val.equalsIgnoreCase("zdf")) {
-
-            film.getIdentifier().add(new DcElement(val, "binary", null));
-        }
-
-        val = getStringValueFromJsonPath(docCtx, "$.teaserImageRef.title");
-        if (val != null && !val.equalsIgnoreCase("zdf")) {
-
-            film.getAlternative().add(new DcTerms(val, null, null, "deu"));
-        }
-
-        val = getStringValueFromJsonPath(docCtx, "$.teaserImageRef.copyrightNotice");
-        if (val != null && !val.equalsIgnoreCase("zdf")) {
-
-            film.getAlternative().add(new DcTerms(val, null, null, "deu"));
-        }
-
-        val = getStringValueFromJsonPath(docCtx, "$.teaserImageRef.source");
-        if (val != null && !val.equalsIgnoreCase("zdf")) {
-
-            film.getAlternative().add(new DcTerms(val, null, null, "deu"));
-        }
-
-        val = getStringValueFromJsonPath(docCtx, "$.teaserImageRef.caption");
-        if (val != null && !val.equalsIgnoreCase("zdf")) {
-
-            film.getAlternative().add(new DcTerms(val, null, null, "deu"));
-        }
-
-        val = getStringValueFromJsonPath(docCtx, "$.['http://zdf.de/rels/category']['http://zdf.de/rels/target'].title");
-        if (val != null) {
-
-            film.getType().add(new DcElement(val, "object", "deu"));
-        }
-
-        val = getStringValueFromJsonPath(docCtx, "$.['http://zdf.de/rels/brand']['http://zdf.de/rels/target'].title");
-        if (val != null) {
-
-            film.getSubject().add(new DcElement(val, null, "deu"));
-        }
-
-        int iVal = getIntegerValueFromJsonPath(docCtx, "$.['mainVideoContent']['http://zdf.de/rels/target'].duration");
-        if (iVal > 0) {
-            film.setDuration(iVal);
-        }
-
-        val = getStringValueFromJsonPath(docCtx, "$.['mainVideoContent']['http://zdf.de/rels/target'].fsk");
-        if (val != null && !val.equals("none")) {
-            film.getDescription().add(new DcElement("FSK ab " + val + " freigegeben", "object", "deu"));
-        } else {
-            film.getDescription().add(new DcElement("FSK ab 0 freigegeben", "object", "deu"));
-        }
+    /**
+     * Konvertiert ein ZDF-Dokument direkt aus einem Stream. Der Stream wird
+     * nicht geschlossen.
+     *
+     * @param src
+     * @return
+     * @throws IOException
+     */
+    public static ZdfRecord process(InputStream src) throws IOException {
+        return plan.process(src);
+    }
 
-        val = getStringValueFromJsonPath(docCtx, "$.['mainVideoContent']['http://zdf.de/rels/target'].aspectRatio");
-        if (val != null) {
-            film.getDescription().add(new DcElement("Seitenverhältnis " + val, "object", "deu"));
-        }
+    /**
+     * Konvertiert ein bereits vollständig geladenes ZDF-Dokument.
+     *
+     * @param src
+     * @return
+     * @throws IOException
+     */
+    public static ZdfRecord process(byte[] src) throws IOException {
+        return plan.process(src);
+    }
 
-        return film;
+    /**
+     * Konvertiert ein ZDF-Dokument direkt aus einer Okio-Source (z.B.
+     * <code>ResponseBody.source()</code>). Die Source wird nicht geschlossen.
+     *
+     * @param src
+     * @return
+     * @throws IOException
+     */
+    public static ZdfRecord process(BufferedSource src) throws IOException {
+        return plan.process(src.inputStream());
     }
 }
@@ -15,24 +15,14 @@
  */
 package de.ddb.labs.zdf2dc.data.dc;
 
-import java.util.ArrayList;
-import java.util.ListIterator;
+import de.ddb.labs.zdf2dc.helper.DistinctList;
 
 /**
- * 
+ * Werte eines mehrfach vorkommenden Elements ohne Dupletten (siehe
+ * {@link DistinctList}).
+ *
  * @author Michael Büchner <m.buechner@dnb.de>
  * @param <DcElement> 
  */
-public class ZDF2DcList<DcElement> extends ArrayList<DcElement> {
-
-    @Override
-    public boolean add(DcElement e) {
-        ListIterator<DcElement> litr = super.listIterator();
-        while (litr.hasNext()) {
-            if (e.equals(litr.next())) {
-                return false;
-            }
-        }
-        return super.add(e);
-    }
+public class ZDF2DcList<DcElement> extends DistinctList<DcElement> {
 }
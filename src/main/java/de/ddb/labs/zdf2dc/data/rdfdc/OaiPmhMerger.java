@@ -0,0 +1,283 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.data.rdfdc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Führt zwei OAI-PMH-ListRecords-Dateien zusammen, z.B. einen vorhandenen
+ * Export und die Datensätze eines inkrementellen Harvests: Das Ergebnis hat
+ * den Umschlag (<code>responseDate</code>) der neuen Datei, dann alle alten
+ * Datensätze, deren <code>header/identifier</code> nicht in der neuen Datei
+ * vorkommt, dann alle neuen Datensätze. Kommt ein Identifier in der neuen
+ * Datei mehrfach vor (ein fortgesetzter Harvest hat ein geändertes Dokument
+ * erneut gespeichert), gilt der letzte Datensatz. Beide Dateien werden nur
+ * gestreamt, gehalten wird jeweils ein Datensatz und die neuen Identifier.
+ * <p>
+ * Fehlende Namespace-Deklarationen (z.B. wenn die alte Datei mit
+ * {@link de.ddb.labs.zdf2dc.helper.NamespaceNormalizer} normalisiert wurde)
+ * werden am Datensatz ergänzt.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class OaiPmhMerger {
+
+    private final static String OAI = "http://www.openarchives.org/OAI/2.0/";
+    private final static QName LIST_RECORDS = new QName(OAI, "ListRecords");
+    private final static QName RECORD = new QName(OAI, "record");
+    private final static QName HEADER = new QName(OAI, "header");
+    private final static QName IDENTIFIER = new QName(OAI, "identifier");
+
+    private final static XMLInputFactory inputFactory;
+    private final static XMLOutputFactory outputFactory;
+    private final static XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+
+    static {
+        inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        outputFactory = XMLOutputFactory.newInstance();
+        outputFactory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, true);
+    }
+
+    private OaiPmhMerger() {
+    }
+
+    /**
+     * Ersetzt bzw. ergänzt die Datensätze in <code>base</code> durch die aus
+     * <code>delta</code> (über eine temporäre Datei im selben Verzeichnis).
+     *
+     * @param base vorhandener Export, wird überschrieben
+     * @param delta neue bzw. geänderte Datensätze
+     * @return Anzahl der Datensätze aus <code>base</code>, die ersetzt wurden
+     * @throws IOException
+     */
+    public static int merge(File base, File delta) throws IOException {
+        final File tmp = File.createTempFile(base.getName(), ".tmp", base.getAbsoluteFile().getParentFile());
+        try {
+            final int replaced = merge(base, delta, tmp);
+            Files.move(tmp.toPath(), base.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return replaced;
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /**
+     * @param base
+     * @param delta
+     * @param dst
+     * @return Anzahl der Datensätze aus <code>base</code>, die ersetzt wurden
+     * @throws IOException
+     */
+    public static int merge(File base, File delta, File dst) throws IOException {
+        final Map<String, Integer> identifiers;
+        try (final InputStream in = new BufferedInputStream(new FileInputStream(delta))) {
+            identifiers = identifiers(in);
+        }
+        try (final InputStream baseIn = new BufferedInputStream(new FileInputStream(base));
+                final InputStream deltaIn = new BufferedInputStream(new FileInputStream(delta));
+                final OutputStream out = new BufferedOutputStream(new FileOutputStream(dst))) {
+            final XMLEventReader b = inputFactory.createXMLEventReader(baseIn);
+            final XMLEventReader d = inputFactory.createXMLEventReader(deltaIn);
+            final XMLEventWriter w = outputFactory.createXMLEventWriter(out, "UTF-8");
+            int replaced = 0;
+            try {
+                // envelope of the new file
+                copyUntilListRecords(d, w);
+                skipUntilListRecords(b);
+                // old records, unless replaced
+                List<XMLEvent> rec;
+                while ((rec = nextRecord(b)) != null) {
+                    if (identifiers.containsKey(identifier(rec))) {
+                        ++replaced;
+                    } else {
+                        for (XMLEvent e : rec) {
+                            w.add(e);
+                        }
+                    }
+                }
+                // new records, of a repeated identifier only the last one
+                while ((rec = nextRecord(d)) != null) {
+                    final Integer left = identifiers.computeIfPresent(identifier(rec), (id, n) -> n - 1);
+                    if (left == null || left == 0) {
+                        for (XMLEvent e : rec) {
+                            w.add(e);
+                        }
+                    }
+                }
+                // the end of the envelope (nextRecord() consumed the one of ListRecords)
+                w.add(eventFactory.createEndElement(LIST_RECORDS, null));
+                while (d.hasNext()) {
+                    w.add(d.nextEvent());
+                }
+                w.flush();
+            } finally {
+                b.close();
+                d.close();
+                w.close();
+            }
+            return replaced;
+        } catch (XMLStreamException e) {
+            throw new IOException("OAI-PMH-Dateien konnten nicht zusammengeführt werden: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return die Identifier und wie oft sie vorkommen
+     */
+    private static Map<String, Integer> identifiers(InputStream in) throws IOException {
+        final Map<String, Integer> result = new HashMap<>();
+        try {
+            final XMLStreamReader r = inputFactory.createXMLStreamReader(in);
+            try {
+                boolean inHeader = false;
+                while (r.hasNext()) {
+                    final int event = r.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        if (HEADER.equals(r.getName())) {
+                            inHeader = true;
+                        } else if (inHeader && IDENTIFIER.equals(r.getName())) {
+                            result.merge(r.getElementText().trim(), 1, Integer::sum);
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT && HEADER.equals(r.getName())) {
+                        inHeader = false;
+                    }
+                }
+            } finally {
+                r.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("OAI-PMH-Datei konnte nicht gelesen werden: " + e.getMessage(), e);
+        }
+        return result;
+    }
+
+    private static void copyUntilListRecords(XMLEventReader r, XMLEventWriter w) throws XMLStreamException {
+        while (r.hasNext()) {
+            final XMLEvent e = r.nextEvent();
+            w.add(e);
+            if (e.isStartElement() && LIST_RECORDS.equals(e.asStartElement().getName())) {
+                return;
+            }
+        }
+        throw new XMLStreamException("Kein ListRecords gefunden.");
+    }
+
+    private static void skipUntilListRecords(XMLEventReader r) throws XMLStreamException {
+        while (r.hasNext()) {
+            final XMLEvent e = r.nextEvent();
+            if (e.isStartElement() && LIST_RECORDS.equals(e.asStartElement().getName())) {
+                return;
+            }
+        }
+        throw new XMLStreamException("Kein ListRecords gefunden.");
+    }
+
+    /**
+     * @return der nächste <code>record</code> in <code>ListRecords</code>
+     * samt vorangehendem Leerraum, <code>null</code> am Ende von
+     * <code>ListRecords</code>
+     */
+    private static List<XMLEvent> nextRecord(XMLEventReader r) throws XMLStreamException {
+        final List<XMLEvent> events = new ArrayList<>();
+        int depth = 0;
+        while (r.hasNext()) {
+            final XMLEvent e = r.nextEvent();
+            if (e.isStartElement()) {
+                if (depth == 0 && !RECORD.equals(e.asStartElement().getName())) {
+                    // e.g. resumptionToken
+                    skipElement(r);
+                    events.clear();
+                    continue;
+                }
+                ++depth;
+            } else if (e.isEndElement()) {
+                if (depth == 0) {
+                    return null;
+                }
+                --depth;
+            } else if (depth == 0 && !e.isCharacters()) {
+                continue;
+            }
+            events.add(e);
+            if (depth == 0 && e.isEndElement()) {
+                return events;
+            }
+        }
+        return null;
+    }
+
+    private static void skipElement(XMLEventReader r) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0 && r.hasNext()) {
+            final XMLEvent e = r.nextEvent();
+            if (e.isStartElement()) {
+                ++depth;
+            } else if (e.isEndElement()) {
+                --depth;
+            }
+        }
+    }
+
+    private static String identifier(List<XMLEvent> rec) {
+        boolean inHeader = false, inIdentifier = false;
+        final StringBuilder sb = new StringBuilder();
+        for (XMLEvent e : rec) {
+            if (e.isStartElement()) {
+                final QName name = e.asStartElement().getName();
+                if (HEADER.equals(name)) {
+                    inHeader = true;
+                } else if (inHeader && IDENTIFIER.equals(name)) {
+                    inIdentifier = true;
+                }
+            } else if (e.isEndElement()) {
+                final QName name = e.asEndElement().getName();
+                if (IDENTIFIER.equals(name) && inIdentifier) {
+                    return sb.toString().trim();
+                } else if (HEADER.equals(name)) {
+                    return "";
+                }
+            } else if (inIdentifier && e.isCharacters()) {
+                sb.append(e.asCharacters().getData());
+            }
+        }
+        return "";
+    }
+}
@@ -71,6 +71,11 @@ public class OaiPmhReponse {
         @JacksonXmlProperty(localName = "metadataPrefix", isAttribute = true)
         private String metadataPrefix = "dc-ddb";
 
+        @Getter
+        @Setter
+        @JacksonXmlProperty(localName = "resumptionToken", isAttribute = true)
+        private String resumptionToken;
+
         @Setter
         @Getter
         @JacksonXmlText
@@ -86,6 +91,16 @@ public class OaiPmhReponse {
         private final List<Record> list = new ArrayList<>();
 
         public void addRecord(ZdfRdfRecord rec) {
+            list.add(toRecord(rec));
+        }
+
+        /**
+         * Verpackt einen Datensatz in ein OAI-PMH-Record inkl. Header.
+         *
+         * @param rec
+         * @return
+         */
+        public static Record toRecord(ZdfRdfRecord rec) {
             final Record newRecord = new Record();
             newRecord.getHeader().setDatestamp(rec.getDescription().getCreated());
             newRecord.getHeader().setIdentifier(rec.getDescription().getIsReferencedBy().getCatalogRecord().getIdentifier());
@@ -100,7 +115,7 @@ public class OaiPmhReponse {
             }
 
             newRecord.getMetadata().setRdf(rec);
-            list.add(newRecord);
+            return newRecord;
         }
 
         @JsonInclude(JsonInclude.Include.NON_EMPTY)
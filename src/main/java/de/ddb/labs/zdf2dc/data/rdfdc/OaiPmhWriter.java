@@ -0,0 +1,278 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.data.rdfdc;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+import com.fasterxml.jackson.dataformat.xml.ser.ToXmlGenerator;
+import com.fasterxml.jackson.dataformat.xml.util.DefaultXmlPrettyPrinter;
+import com.fasterxml.jackson.dataformat.xml.util.StaxUtil;
+import de.ddb.labs.zdf2dc.helper.PipelineMetrics;
+import de.ddb.labs.zdf2dc.helper.PipelineMetrics.Stage;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
+import lombok.Getter;
+
+/**
+ * Schreibt eine OAI-PMH-ListRecords-Antwort inkrementell: Der Umschlag
+ * (<code>OAI-PMH</code>, <code>responseDate</code>, <code>request</code>,
+ * <code>ListRecords</code>) wird einmal geöffnet, jeder Datensatz wird sofort
+ * serialisiert und geschrieben, {@link #close()} schließt den Umschlag. Der
+ * Speicherbedarf hängt damit nicht von der Anzahl der Datensätze ab. Das
+ * Ergebnis entspricht {@link RdfDocumentProcessor#save(OaiPmhReponse, java.io.File)}.
+ * <p>
+ * Nach jedem Datensatz liefert {@link #checkpoint()} die Position in der
+ * Ausgabe. Eine abgebrochene Datei kann ab einer solchen Position fortgesetzt
+ * werden (siehe {@link RdfDocumentProcessor#resumeListRecords(java.io.File, long)}).
+ * <p>
+ * {@link #write(ZdfRdfRecord)} zählt als Serialisierung, das Schreiben in
+ * <code>out</code> wird bei {@link #checkpoint()} bzw. {@link #close()} als
+ * Schreiben gemessen.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class OaiPmhWriter implements Closeable {
+
+    private final static String OAI = "http://www.openarchives.org/OAI/2.0/";
+    private final static String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss'Z'";
+
+    private final PositionOutputStream position;
+    private final PipelineMetrics.TimedOutputStream timed;
+    private final PipelineMetrics metrics;
+    private final ToXmlGenerator generator;
+    private final ObjectWriter requestWriter;
+    private final ObjectWriter recordWriter;
+    private final ObjectWriter headerWriter;
+    @Getter
+    private int count;
+    private boolean closed;
+
+    OaiPmhWriter(XmlMapper xmlMapper, OutputStream out, OaiPmhReponse envelope) throws IOException {
+        this(xmlMapper, out, envelope, -1);
+    }
+
+    /**
+     * @param xmlMapper
+     * @param out
+     * @param envelope
+     * @param resumeAt Position hinter dem letzten vollständigen Datensatz, an
+     * der <code>out</code> fortgesetzt wird; <code>-1</code> für eine neue
+     * Ausgabe
+     * @throws IOException
+     */
+    OaiPmhWriter(XmlMapper xmlMapper, OutputStream out, OaiPmhReponse envelope, long resumeAt) throws IOException {
+        this.requestWriter = xmlMapper.writerFor(OaiPmhReponse.Request.class);
+        this.recordWriter = xmlMapper.writerFor(OaiPmhReponse.ListRecords.Record.class);
+        this.headerWriter = xmlMapper.writerFor(OaiPmhReponse.ListRecords.Record.Header.class);
+        // when resuming, the envelope is only written to bring the generator into the right state
+        this.metrics = PipelineMetrics.getInstance();
+        this.timed = new PipelineMetrics.TimedOutputStream(out);
+        this.position = new PositionOutputStream(timed, Math.max(resumeAt, 0), resumeAt >= 0);
+        this.generator = xmlMapper.getFactory().createGenerator(new BufferedOutputStream(position), JsonEncoding.UTF8);
+        this.generator.setPrettyPrinter(new DefaultXmlPrettyPrinter());
+        this.count = 0;
+        this.closed = false;
+
+        final SimpleDateFormat df = new SimpleDateFormat(DATE_FORMAT);
+        df.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        generator.initGenerator();
+        // like XmlSerializerProvider: the root namespace becomes the default namespace
+        try {
+            generator.getStaxWriter().setDefaultNamespace(OAI);
+        } catch (XMLStreamException e) {
+            StaxUtil.throwAsGenerationException(e, generator);
+        }
+        generator.setNextName(new QName(OAI, "OAI-PMH"));
+        generator.writeStartObject();
+        fieldName("responseDate");
+        generator.writeString(df.format(envelope.getResponseDate()));
+        fieldName("request");
+        requestWriter.writeValue(generator, envelope.getRequest());
+        fieldName("ListRecords");
+        generator.writeStartObject();
+        if (position.discard) {
+            // a (discarded) empty record leaves generator and pretty printer where the last record ended
+            fieldName("record");
+            generator.writeStartObject();
+            generator.writeEndObject();
+        }
+        generator.flush();
+        position.discard = false;
+    }
+
+    private void fieldName(String name) throws IOException {
+        generator.writeFieldName(name);
+        generator.setNextName(new QName(OAI, name));
+    }
+
+    /**
+     * Schreibt einen Datensatz als <code>record</code> in die Antwort.
+     *
+     * @param rec
+     * @throws IOException
+     */
+    public synchronized void write(ZdfRdfRecord rec) throws IOException {
+        write(OaiPmhReponse.ListRecords.toRecord(rec));
+    }
+
+    public synchronized void write(OaiPmhReponse.ListRecords.Record rec) throws IOException {
+        if (closed) {
+            throw new IOException("OAI-PMH writer is already closed.");
+        }
+        final long start = System.nanoTime();
+        final long writing = timed.getNanos();
+        try {
+            fieldName("record");
+            recordWriter.writeValue(generator, rec);
+        } catch (IOException | RuntimeException e) {
+            metrics.error(timed.isFailed() ? Stage.WRITE : Stage.SERIALIZATION, e);
+            throw e;
+        }
+        metrics.record(Stage.SERIALIZATION, System.nanoTime() - start - (timed.getNanos() - writing));
+        ++count;
+    }
+
+    /**
+     * Schreibt einen bereits serialisierten Datensatz (siehe
+     * {@link RdfDocumentProcessor#serialize(ZdfRdfRecord)}) unverändert als
+     * <code>record</code> in die Antwort, z.B. beim Export aus dem
+     * {@link de.ddb.labs.zdf2dc.helper.RecordStore}.
+     *
+     * @param identifier für den Header
+     * @param datestamp für den Header
+     * @param rdf <code>rdf:RDF</code>-Element ohne XML-Deklaration, UTF-8
+     * @throws IOException
+     */
+    public synchronized void write(String identifier, Date datestamp, byte[] rdf) throws IOException {
+        if (closed) {
+            throw new IOException("OAI-PMH writer is already closed.");
+        }
+        final OaiPmhReponse.ListRecords.Record.Header header = new OaiPmhReponse.ListRecords.Record.Header();
+        header.setIdentifier(identifier);
+        header.setDatestamp(datestamp);
+        try {
+            fieldName("record");
+            generator.writeStartObject();
+            fieldName("header");
+            headerWriter.writeValue(generator, header);
+            fieldName("metadata");
+            generator.writeStartObject();
+            generator.writeRaw(new String(rdf, StandardCharsets.UTF_8));
+            generator.writeEndObject();
+            generator.writeEndObject();
+        } catch (IOException | RuntimeException e) {
+            metrics.error(Stage.WRITE, e);
+            throw e;
+        }
+        ++count;
+    }
+
+    /**
+     * Schreibt alle gepufferten Daten und liefert die Position hinter dem
+     * zuletzt geschriebenen Datensatz.
+     *
+     * @return
+     * @throws IOException
+     */
+    public synchronized long checkpoint() throws IOException {
+        flush();
+        return position.position;
+    }
+
+    private void flush() throws IOException {
+        try {
+            generator.flush();
+        } catch (IOException e) {
+            metrics.error(Stage.WRITE, e);
+            throw e;
+        }
+        metrics.record(Stage.WRITE, timed.takeNanos());
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        close(null);
+    }
+
+    /**
+     * Schließt die Antwort mit einem <code>resumptionToken</code> am Ende von
+     * <code>ListRecords</code>.
+     *
+     * @param resumptionToken <code>""</code>: leerer Token (letzter Teil
+     * einer Liste), <code>null</code>: keiner
+     * @throws IOException
+     */
+    public synchronized void close(String resumptionToken) throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (resumptionToken != null) {
+                fieldName("resumptionToken");
+                generator.writeString(resumptionToken);
+            }
+            generator.writeEndObject(); // ListRecords
+            generator.writeEndObject(); // OAI-PMH
+        } finally {
+            generator.close();
+        }
+        metrics.record(Stage.WRITE, timed.takeNanos());
+    }
+
+    /**
+     * Zählt die geschriebenen Bytes. Solange <code>discard</code> gesetzt ist,
+     * wird nichts geschrieben.
+     */
+    private static class PositionOutputStream extends FilterOutputStream {
+
+        private long position;
+        private boolean discard;
+
+        private PositionOutputStream(OutputStream out, long position, boolean discard) {
+            super(out);
+            this.position = position;
+            this.discard = discard;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!discard) {
+                out.write(b);
+                ++position;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (!discard) {
+                out.write(b, off, len);
+                position += len;
+            }
+        }
+    }
+}
@@ -16,34 +16,37 @@
 package de.ddb.labs.zdf2dc.data.rdfdc;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.dataformat.xml.XmlMapper;
 import com.fasterxml.jackson.dataformat.xml.ser.ToXmlGenerator;
-import com.jayway.jsonpath.Configuration;
-import com.jayway.jsonpath.DocumentContext;
-import com.jayway.jsonpath.JsonPath;
+import de.ddb.labs.zdf2dc.data.zdf.MappingPlan;
+import de.ddb.labs.zdf2dc.data.zdf.ZdfMappings;
 import de.ddb.labs.zdf2dc.helper.NamespaceFactory;
+import de.ddb.labs.zdf2dc.helper.PipelineMetrics;
+import de.ddb.labs.zdf2dc.helper.Transport;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.nio.charset.Charset;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.nio.file.Files;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
-import java.util.prefs.Preferences;
+import java.util.Objects;
 import lombok.Getter;
 import okhttp3.Call;
 import okhttp3.Callback;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
-import okio.BufferedSink;
-import okio.Okio;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -54,15 +57,17 @@ import org.slf4j.LoggerFactory;
 public class RdfDocumentProcessor {
 
     private final static String ID = "SCMS_1aa2b672-b635-4df8-96e6-0ff488a634b0";
-    private final static int CONNECTTIMEOUT = 10;
-    private final static int WRITETIMEOUT = 10;
-    private final static int READTIMEOUT = 30;
-    private final static String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss";
     private final static Logger LOG = LoggerFactory.getLogger(RdfDocumentProcessor.class);
-    private final static Preferences userPrefs = Preferences.userRoot().node("de/ddb/labs/zdf2dc");
     @Getter
     private final static Map<String, String> otherNamespaces;
     private final static XmlMapper xmlMapper;
+    private final static ObjectWriter fragmentWriter;
+    /**
+     * XML-Deklaration einer einzelnen Datei (siehe
+     * {@link #save(ZdfRdfRecord, OutputStream)})
+     */
+    public final static String DECLARATION = "<?xml version='1.0' encoding='UTF-8'?>\n";
+    private final static MappingPlan<ZdfRdfRecord> plan;
 
     static {
         otherNamespaces = new HashMap<>();
@@ -86,26 +91,41 @@ public class RdfDocumentProcessor {
         xmlMapper.enable(SerializationFeature.INDENT_OUTPUT);
         xmlMapper.configure(ToXmlGenerator.Feature.WRITE_XML_DECLARATION, true);
         // xmlMapper.configure(ToXmlGenerator.Feature.WRITE_XML_1_1, true);
-    }
-
-    public static int getIntegerValueFromJsonPath(DocumentContext docCtx, String jsonPath) {
-        try {
-            return docCtx.read(JsonPath.compile(jsonPath));
-        } catch (Exception e) {
-            return 0;
-        }
-    }
-
-    public static String getStringValueFromJsonPath(DocumentContext docCtx, String jsonPath) {
-        try {
-            final String val = docCtx.read(JsonPath.compile(jsonPath));
-            if (!val.trim().isEmpty()) {
-                return val;
-            }
-        } catch (Exception e) {
-            return null;
-        }
-        return null;
+        fragmentWriter = xmlMapper.writer().without(ToXmlGenerator.Feature.WRITE_XML_DECLARATION);
+
+        plan = MappingPlan.builder(ZdfRdfRecord::new)
+                // Identifier
+                .string(ZdfMappings.EXTERNAL_ID, (rec, val) -> {
+                    rec.getDescription().setAbout(val);
+                    rec.getDescription().getIsReferencedBy().getCatalogRecord().setIdentifier(val);
+                })
+                // dcterms:alternative
+                .string(ZdfMappings.TEASER_IMAGE_TITLE, ZdfMappings.NOT_ZDF, (rec, val) -> rec.getDescription().getAlternative().add(new ElementWithAttributes(val, null, null, "de")))
+                .string(ZdfMappings.TEASER_IMAGE_COPYRIGHT_NOTICE, ZdfMappings.NOT_ZDF, (rec, val) -> rec.getDescription().getAlternative().add(new ElementWithAttributes(val, null, null, "de")))
+                .string(ZdfMappings.TEASER_IMAGE_SOURCE, ZdfMappings.NOT_ZDF, (rec, val) -> rec.getDescription().getAlternative().add(new ElementWithAttributes(val, null, null, "de")))
+                .string(ZdfMappings.TEASER_IMAGE_CAPTION, ZdfMappings.NOT_ZDF, (rec, val) -> rec.getDescription().getAlternative().add(new ElementWithAttributes(val, null, null, "de")))
+                // dc:description
+                .string(ZdfMappings.LEAD_PARAGRAPH, (rec, val) -> rec.getDescription().getDescription().add(new ElementWithAttributes(val, null, null, "de")))
+                .string(ZdfMappings.FSK, ZdfMappings.ALWAYS, ZdfMappings::fsk, (rec, val) -> rec.getDescription().getDescription().add(new ElementWithAttributes(val, null, null, "de")))
+                .string(ZdfMappings.ASPECT_RATIO, Objects::nonNull, ZdfMappings::aspectRatio, (rec, val) -> rec.getDescription().getDescription().add(new ElementWithAttributes(val, null, null, "de")))
+                // extent
+                .integer(ZdfMappings.DURATION, ZdfMappings.POSITIVE, (rec, val) -> rec.getDescription().setExtent(val))
+                // created
+                .string(ZdfMappings.EDITORIAL_DATE, Objects::nonNull, ZdfMappings::editorialDate, (rec, val) -> rec.getDescription().setCreated(val))
+                // isShownAt
+                .string(ZdfMappings.URI, (rec, val) -> rec.getDescription().setIsShownAt(new ElementWithAttributes(null, null, val, null)))
+                // bf:Identifier
+                .string(ZdfMappings.ID, (rec, val) -> rec.getDescription().getIdentifier().getIdentifier().getValue().add(val))
+                // edm:object
+                .string(ZdfMappings.TEASER_IMAGE_ORIGINAL, ZdfMappings.NOT_ZDF, (rec, val) -> rec.getDescription().setObject(new ElementWithAttributes(null, null, val, null)))
+                // dc:subject
+                .string(ZdfMappings.BRAND_TITLE, (rec, val) -> rec.getDescription().setSubject(new ElementWithAttributes(val, null, null, "de")))
+                // dc:title
+                .string(ZdfMappings.TITLE, (rec, val) -> rec.getDescription().getTitle().add(new ElementWithAttributes(val, null, null, "de")))
+                .string(ZdfMappings.SUBTITLE, (rec, val) -> rec.getDescription().getTitle().add(new ElementWithAttributes(val, null, null, "de")))
+                // dc:type
+                .string(ZdfMappings.CATEGORY_TITLE, (rec, val) -> rec.getDescription().setDcType(new ElementWithAttributes(val, null, null, "de")))
+                .build();
     }
 
     /**
@@ -113,17 +133,11 @@ public class RdfDocumentProcessor {
      * @throws java.io.IOException
      */
     public static void main(String[] args) throws IOException {
-       
-        final OkHttpClient client = new OkHttpClient.Builder()
-                .connectTimeout(CONNECTTIMEOUT, TimeUnit.SECONDS)
-                .writeTimeout(WRITETIMEOUT, TimeUnit.SECONDS)
-                .readTimeout(READTIMEOUT, TimeUnit.SECONDS)
-                .build();
+        final OkHttpClient client = Transport.getInstance().getClient();
 
         final Request request = new Request.Builder()
-                .url("https://api.zdf.de/content/documents/" + ID + ".json")
+                .url(Transport.getInstance().documentUrl(ID))
                 .get()
-                .addHeader("Api-Auth", "Bearer " + userPrefs.get("ZDFAPIKEY", ""))
                 .build();
 
         client.newCall(request).enqueue(new Callback() {
@@ -139,183 +153,212 @@ public class RdfDocumentProcessor {
                     return;
                 }
 
-                final File saveToJsonFile = File.createTempFile("zdf2dc-", ".json");
-                try (final BufferedSink sink = Okio.buffer(Okio.sink(saveToJsonFile))) {
-                    sink.writeAll(response.body().source());
+                final ZdfRdfRecord rec;
+                try (final ResponseBody body = response.body()) {
+                    rec = process(body.source());
                 } catch (Exception e) {
                     LOG.error("\"{}\" konnte nicht heruntergeladen werden. {}", ID, e.getMessage());
+                    return;
                 }
 
-                final ZdfRdfRecord rec = process(saveToJsonFile);
-
                 try (final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(System.out, Charset.defaultCharset()))) {
-                    writer.append(cleanupKnownIssue(xmlMapper.writeValueAsString(rec)));
-                    writer.close();
+                    xmlMapper.writeValue(writer, rec);
                 } catch (Exception e) {
                     LOG.error("\"{}\" konnte nicht als XML serialisiert werden. {}", ID, e.getMessage());
                 }
-
-                if (!saveToJsonFile.delete()) {
-                    LOG.warn("Konnte temporäre Datei {} nicht löschen.", saveToJsonFile.getAbsolutePath());
-                }
-
             }
         });
 
-        client.dispatcher().executorService().shutdown();
+        Transport.getInstance().shutdown();
 
     }
 
-    private static String cleanupKnownIssue(String value) {
-        value = value.replaceAll("_DELETE_", "");
-        return value;
-    }
-
     public static void save(ZdfRdfRecord record, File dst) throws FileNotFoundException, IOException {
-        try (final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(dst), Charset.forName("UTF-8")))) {
-            writer.append(cleanupKnownIssue(xmlMapper.writeValueAsString(record)));
-            writer.close();
+        try {
+            save(record, new FileOutputStream(dst));
+        } catch (IOException e) {
+            // don't leave a half-written file behind
+            Files.deleteIfExists(dst.toPath());
+            throw e;
         }
     }
 
-    public static void save(OaiPmhReponse list, File dst) throws FileNotFoundException, IOException {
-        try (final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(dst), Charset.forName("UTF-8")))) {
-            writer.append(cleanupKnownIssue(xmlMapper.writeValueAsString(list)));
-            writer.close();
-        }
+    /**
+     * Serialisiert den Datensatz direkt in den Stream. Der Stream wird
+     * geschlossen. Serialisierung und Schreiben werden getrennt gemessen.
+     *
+     * @param record
+     * @param dst
+     * @throws IOException
+     */
+    public static void save(ZdfRdfRecord record, OutputStream dst) throws IOException {
+        PipelineMetrics.getInstance().serialize(dst, timed -> {
+            try (final OutputStream out = new BufferedOutputStream(timed)) {
+                xmlMapper.writeValue(out, record);
+            }
+        });
     }
 
-    public static void process(File src, File dst) throws JsonProcessingException, IOException {
-        save(process(src), dst);
+    /**
+     * Serialisiert den Datensatz ohne XML-Deklaration, so dass er in ein
+     * anderes Dokument eingebettet werden kann (siehe
+     * {@link OaiPmhWriter#write(String, java.util.Date, byte[])}). Mit
+     * {@link #DECLARATION} davor ergibt sich dieselbe Datei wie mit
+     * {@link #save(ZdfRdfRecord, java.io.File)}.
+     *
+     * @param record
+     * @return
+     * @throws IOException
+     */
+    public static byte[] serialize(ZdfRdfRecord record) throws IOException {
+        return fragmentWriter.writeValueAsBytes(record);
     }
 
-    public static ZdfRdfRecord process(File src) throws JsonProcessingException, IOException {
-
-        final ZdfRdfRecord film = new ZdfRdfRecord();
-        final DocumentContext docCtx = JsonPath.parse(src, Configuration.defaultConfiguration());
-
-        // Identifier ----------------------------------------------------------
-        String val = getStringValueFromJsonPath(docCtx, "$.externalId");
-        if (val != null) {
-            film.getDescription().setAbout(val);
-            film.getDescription().getIsReferencedBy().getCatalogRecord().setIdentifier(val);
-        }
-        // ---------------------------------------------------------------------
-
-        // dcterms:alternative -------------------------------------------------
-        val = getStringValueFromJsonPath(docCtx, "$.teaserImageRef.title");
-        if (val != null && !val.equalsIgnoreCase("zdf")) {
-
-            film.getDescription().getAlternative().add(new ElementWithAttributes(val, null, null, "de"));
-        }
-
-        val = getStringValueFromJsonPath(docCtx, "$.teaserImageRef.copyrightNotice");
-        if (val != null && !val.equalsIgnoreCase("zdf")) {
-
-            film.getDescription().getAlternative().add(new ElementWithAttributes(val, null, null, "de"));
-        }
-
-        val = getStringValueFromJsonPath(docCtx, "$.teaserImageRef.source");
-        if (val != null && !val.equalsIgnoreCase("zdf")) {
-
-            film.getDescription().getAlternative().add(new ElementWithAttributes(val, null, null, "de"));
-        }
-
-        val = getStringValueFromJsonPath(docCtx, "$.teaserImageRef.caption");
-        if (val != null && !val.equalsIgnoreCase("zdf")) {
-
-            film.getDescription().getAlternative().add(new ElementWithAttributes(val, null, null, "de"));
-        }
-
-        // ---------------------------------------------------------------------
-        // dc:description ------------------------------------------------------
-        val = getStringValueFromJsonPath(docCtx, "$.leadParagraph");
-        if (val != null) {
-            film.getDescription().getDescription().add(new ElementWithAttributes(val, null, null, "de"));
-        }
-
-        val = getStringValueFromJsonPath(docCtx, "$.['mainVideoContent']['http://zdf.de/rels/target'].fsk");
-        if (val != null && !val.equals("none")) {
-            film.getDescription().getDescription().add(new ElementWithAttributes("FSK ab " + val + " freigegeben", null, null, "de"));
-        } else {
-            film.getDescription().getDescription().add(new ElementWithAttributes("FSK ab 0 freigegeben", null, null, "de"));
+    public static void save(OaiPmhReponse list, File dst) throws FileNotFoundException, IOException {
+        try {
+            save(list, new FileOutputStream(dst));
+        } catch (IOException e) {
+            Files.deleteIfExists(dst.toPath());
+            throw e;
         }
+    }
 
-        val = getStringValueFromJsonPath(docCtx, "$.['mainVideoContent']['http://zdf.de/rels/target'].aspectRatio");
-        if (val != null) {
-            film.getDescription().getDescription().add(new ElementWithAttributes("Seitenverhältnis " + val, null, null, "de"));
+    /**
+     * Serialisiert die ganze Antwort in den Stream. Der Stream wird
+     * geschlossen.
+     *
+     * @param list
+     * @param dst
+     * @throws IOException
+     */
+    public static void save(OaiPmhReponse list, OutputStream dst) throws IOException {
+        try (final OutputStream out = new BufferedOutputStream(dst)) {
+            xmlMapper.writeValue(out, list);
         }
-        // ---------------------------------------------------------------------
+    }
 
-        // extent --------------------------------------------------------------
-        int iVal = getIntegerValueFromJsonPath(docCtx, "$.['mainVideoContent']['http://zdf.de/rels/target'].duration");
-        if (iVal > 0) {
-            film.getDescription().setExtent(iVal);
-        }
-        // ---------------------------------------------------------------------
+    /**
+     * Öffnet eine OAI-PMH-ListRecords-Antwort zum inkrementellen Schreiben.
+     *
+     * @param dst
+     * @return
+     * @throws IOException
+     */
+    public static OaiPmhWriter openListRecords(File dst) throws IOException {
+        return openListRecords(new FileOutputStream(dst));
+    }
 
-        // created -------------------------------------------------------------
-        val = getStringValueFromJsonPath(docCtx, "$.editorialDate");
-        if (val != null) {
-            try {
-                film.getDescription().setCreated(new SimpleDateFormat(DATE_FORMAT).parse(val));
-            } catch (ParseException ex) {
-                LOG.warn("Could not parse editorialDate. {}", ex.getMessage());
-            }
-        }
-        // ---------------------------------------------------------------------
+    public static OaiPmhWriter openListRecords(OutputStream dst) throws IOException {
+        return new OaiPmhWriter(xmlMapper, dst, new OaiPmhReponse());
+    }
 
-        // isShownAt -----------------------------------------------------------
-        val = getStringValueFromJsonPath(docCtx, "$.[\"http://zdf.de/rels/uri\"]");
-        if (val != null) {
-            film.getDescription().setIsShownAt(new ElementWithAttributes(null, null, val, null));
-        }
-        // ---------------------------------------------------------------------
+    static OaiPmhWriter openListRecords(File dst, OaiPmhReponse envelope) throws IOException {
+        return new OaiPmhWriter(xmlMapper, new FileOutputStream(dst), envelope);
+    }
 
-        // bf:Identifier ------------------------------------------------------
-        val = getStringValueFromJsonPath(docCtx, "$.id");
-        if (val != null) {
+    /**
+     * Öffnet eine ListRecords-Antwort, die auf mehrere Dateien verteilt wird
+     * (siehe {@link ShardedOaiPmhWriter}).
+     *
+     * @param dst
+     * @param maxRecords höchstens so viele Datensätze pro Datei,
+     * <code>0</code>: beliebig viele
+     * @param maxBytes neue Datei ab dieser Größe, <code>0</code>: beliebig
+     * groß
+     * @return
+     * @throws IOException
+     */
+    public static ShardedOaiPmhWriter openShards(File dst, int maxRecords, long maxBytes) throws IOException {
+        return new ShardedOaiPmhWriter(dst, maxRecords, maxBytes, null, -1);
+    }
 
-            film.getDescription().getIdentifier().getIdentifier().getValue().add(val);
-        }
-        // ---------------------------------------------------------------------
+    /**
+     * Setzt eine abgebrochene, auf mehrere Dateien verteilte Antwort in
+     * <code>shard</code> bei <code>checkpoint</code> fort (siehe
+     * {@link #resumeListRecords(java.io.File, long)}).
+     *
+     * @param dst
+     * @param maxRecords
+     * @param maxBytes
+     * @param shard Datei des letzten gespeicherten Datensatzes,
+     * <code>null</code>: die erste
+     * @param checkpoint
+     * @return
+     * @throws IOException
+     */
+    public static ShardedOaiPmhWriter resumeShards(File dst, int maxRecords, long maxBytes, File shard, long checkpoint) throws IOException {
+        return new ShardedOaiPmhWriter(dst, maxRecords, maxBytes, shard, checkpoint);
+    }
 
-        // edm:object ----------------------------------------------------------
-        val = getStringValueFromJsonPath(docCtx, "$.teaserImageRef.layouts.original");
-        if (val != null && !val.equalsIgnoreCase("zdf")) {
+    /**
+     * Setzt eine abgebrochene OAI-PMH-ListRecords-Antwort fort. Die Datei wird
+     * auf <code>checkpoint</code> (siehe {@link OaiPmhWriter#checkpoint()})
+     * gekürzt, alles dahinter (ein unvollständiger Datensatz oder das Ende der
+     * Antwort) wird verworfen.
+     *
+     * @param dst
+     * @param checkpoint
+     * @return
+     * @throws IOException
+     */
+    public static OaiPmhWriter resumeListRecords(File dst, long checkpoint) throws IOException {
+        return resumeListRecords(dst, checkpoint, new OaiPmhReponse());
+    }
 
-            film.getDescription().setObject(new ElementWithAttributes(null, null, val, null));
+    static OaiPmhWriter resumeListRecords(File dst, long checkpoint, OaiPmhReponse envelope) throws IOException {
+        if (dst.length() < checkpoint) {
+            throw new IOException(dst.getAbsolutePath() + " is shorter than the checkpoint " + checkpoint + ".");
         }
-        // ---------------------------------------------------------------------
-
-        // dc:subject ----------------------------------------------------------
-        val = getStringValueFromJsonPath(docCtx, "$.['http://zdf.de/rels/brand']['http://zdf.de/rels/target'].title");
-        if (val != null) {
-
-            film.getDescription().setSubject(new ElementWithAttributes(val, null, null, "de"));
+        final FileOutputStream out = new FileOutputStream(dst, true);
+        try {
+            out.getChannel().truncate(checkpoint);
+            return new OaiPmhWriter(xmlMapper, out, envelope, checkpoint);
+        } catch (IOException e) {
+            out.close();
+            throw e;
         }
-        // ---------------------------------------------------------------------
+    }
 
-        // dc:title ------------------------------------------------------------
-        val = getStringValueFromJsonPath(docCtx, "$.title");
-        if (val != null) {
-            film.getDescription().getTitle().add(new ElementWithAttributes(val, null, null, "de"));
-        }
+    public static void process(File src, File dst) throws JsonProcessingException, IOException {
+        save(process(src), dst);
+    }
 
-        val = getStringValueFromJsonPath(docCtx, "$.subtitle");
-        if (val != null) {
-            film.getDescription().getTitle().add(new ElementWithAttributes(val, null, null, "de"));
-        }
+    public static ZdfRdfRecord process(File src) throws JsonProcessingException, IOException {
+        return plan.process(src);
+    }
 
-        // ---------------------------------------------------------------------
-        // dc:type -------------------------------------------------------------
-        val = getStringValueFromJsonPath(docCtx, "$.['http://zdf.de/rels/category']['http://zdf.de/rels/target'].title");
-        if (val != null) {
+    /**
+     * Konvertiert ein ZDF-Dokument direkt aus einem Stream. Der Stream wird
+     * nicht geschlossen.
+     *
+     * @param src
+     * @return
+     * @throws IOException
+     */
+    public static ZdfRdfRecord process(InputStream src) throws IOException {
+        return plan.process(src);
+    }
 
-            film.getDescription().setDcType(new ElementWithAttributes(val, null, null, "de"));
-        }
-        // ---------------------------------------------------------------------
+    /**
+     * Konvertiert ein bereits vollständig geladenes ZDF-Dokument.
+     *
+     * @param src
+     * @return
+     * @throws IOException
+     */
+    public static ZdfRdfRecord process(byte[] src) throws IOException {
+        return plan.process(src);
+    }
 
-        return film;
+    /**
+     * Konvertiert ein ZDF-Dokument direkt aus einer Okio-Source (z.B.
+     * <code>ResponseBody.source()</code>). Die Source wird nicht geschlossen.
+     *
+     * @param src
+     * @return
+     * @throws IOException
+     */
+    public static ZdfRdfRecord process(BufferedSource src) throws IOException {
+        return plan.process(src.inputStream());
     }
 }
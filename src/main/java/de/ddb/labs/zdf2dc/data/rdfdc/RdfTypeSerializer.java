@@ -0,0 +1,49 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.data.rdfdc;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.fasterxml.jackson.dataformat.xml.ser.ToXmlGenerator;
+import java.io.IOException;
+import javax.xml.namespace.QName;
+
+/**
+ * Schreibt ein Element als <code>rdf:type</code>. Jackson unterscheidet
+ * Properties nur am lokalen Namen, daher kann <code>rdf:type</code> nicht neben
+ * <code>dc:type</code> als Property "type" deklariert werden. Die Property wird
+ * unter anderem Namen geführt und das Element hier umbenannt, bevor es
+ * geöffnet wird.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class RdfTypeSerializer extends StdSerializer<ElementWithAttributes> {
+
+    private final static QName RDF_TYPE = new QName("http://www.w3.org/1999/02/22-rdf-syntax-ns#", "type");
+
+    public RdfTypeSerializer() {
+        super(ElementWithAttributes.class);
+    }
+
+    @Override
+    public void serialize(ElementWithAttributes value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+        if (gen instanceof ToXmlGenerator) {
+            ((ToXmlGenerator) gen).setNextName(RDF_TYPE);
+        }
+        provider.findValueSerializer(ElementWithAttributes.class).serialize(value, gen, provider);
+    }
+}
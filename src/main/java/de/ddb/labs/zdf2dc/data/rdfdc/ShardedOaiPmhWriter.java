@@ -0,0 +1,276 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.data.rdfdc;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import lombok.Getter;
+
+/**
+ * Schreibt eine OAI-PMH-ListRecords-Antwort auf mehrere Dateien verteilt.
+ * Hat eine Datei <code>maxRecords</code> Datensätze bzw. mindestens
+ * <code>maxBytes</code> Bytes, wird sie beim nächsten Datensatz
+ * abgeschlossen und eine neue begonnen. Aus <code>export.xml</code> werden
+ * <code>export-0001.xml</code>, <code>export-0002.xml</code> usw.
+ * <p>
+ * Jede Datei ist eine vollständige Antwort. Ihr
+ * <code>resumptionToken</code> ist der Name der nächsten Datei im selben
+ * Verzeichnis, die letzte hat einen leeren. Eine abgeschlossene Datei wird
+ * nicht mehr verändert und kann schon verarbeitet werden, während der
+ * Auftrag noch läuft. Sobald die nächste Datei existiert, ist sie fertig.
+ * <p>
+ * Ohne Grenzen (beide <code>0</code>) wird wie mit {@link OaiPmhWriter}
+ * genau eine Datei <code>export.xml</code> ohne
+ * <code>resumptionToken</code> geschrieben.
+ * <p>
+ * {@link #checkpoint()} bezieht sich auf die aktuelle Datei
+ * ({@link #getFile()}). Mit beiden kann ein abgebrochener Auftrag
+ * fortgesetzt werden, siehe
+ * {@link RdfDocumentProcessor#resumeShards(java.io.File, int, long, java.io.File, long)}.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class ShardedOaiPmhWriter implements Closeable {
+
+    /**
+     * Voreinstellung für die Datensätze pro Datei aus der System-Property
+     * <code>zdf2dc.shard.records</code>, <code>0</code>: beliebig viele
+     */
+    public final static int DEFAULT_MAX_RECORDS = Integer.getInteger("zdf2dc.shard.records", 0);
+    /**
+     * Voreinstellung für die Größe einer Datei in MB aus der System-Property
+     * <code>zdf2dc.shard.size</code>, <code>0</code>: beliebig groß
+     */
+    public final static long DEFAULT_MAX_MB = Long.getLong("zdf2dc.shard.size", 0);
+    private final static byte[] RECORD = "<record>".getBytes(StandardCharsets.UTF_8);
+
+    @Getter
+    private final File base;
+    @Getter
+    private final int maxRecords;
+    @Getter
+    private final long maxBytes;
+    private final List<File> files;
+    private OaiPmhWriter writer;
+    private int shard;
+    // records in the current file
+    private int shardCount;
+    /**
+     * Anzahl der geschriebenen Datensätze (ohne die einer fortgesetzten
+     * Datei)
+     */
+    @Getter
+    private int count;
+    private boolean closed;
+
+    ShardedOaiPmhWriter(File base, int maxRecords, long maxBytes, File resumeShard, long checkpoint) throws IOException {
+        this.base = base;
+        this.maxRecords = Math.max(maxRecords, 0);
+        this.maxBytes = Math.max(maxBytes, 0);
+        this.files = new ArrayList<>();
+        this.count = 0;
+        this.closed = false;
+
+        if (!isSharded()) {
+            writer = checkpoint < 0
+                    ? RdfDocumentProcessor.openListRecords(base, new OaiPmhReponse())
+                    : RdfDocumentProcessor.resumeListRecords(base, checkpoint, new OaiPmhReponse());
+            files.add(base);
+            return;
+        }
+        if (checkpoint < 0 || resumeShard == null) {
+            deleteFrom(1);
+            open(1);
+            return;
+        }
+        shard = number(resumeShard);
+        if (shard < 1) {
+            throw new IOException(resumeShard.getName() + " is not a part of " + base.getName() + ".");
+        }
+        for (int i = 1; i < shard; ++i) {
+            files.add(shard(i));
+        }
+        // parts after the checkpoint are from the aborted run
+        deleteFrom(shard + 1);
+        final File file = shard(shard);
+        writer = RdfDocumentProcessor.resumeListRecords(file, checkpoint, envelope(shard));
+        shardCount = countRecords(file, checkpoint);
+        files.add(file);
+    }
+
+    public boolean isSharded() {
+        return maxRecords > 0 || maxBytes > 0;
+    }
+
+    /**
+     * @param n ab 1
+     * @return Name der <code>n</code>-ten Datei
+     */
+    public File shard(int n) {
+        final String name = base.getName();
+        final int dot = name.toLowerCase().endsWith(".xml") ? name.length() - 4 : name.length();
+        return new File(base.getAbsoluteFile().getParentFile(), String.format("%s-%04d%s", name.substring(0, dot), n, name.substring(dot)));
+    }
+
+    /**
+     * @return Nummer der Datei, <code>-1</code> wenn sie nicht dazugehört
+     */
+    private int number(File file) {
+        final String name = file.getName();
+        final int dot = name.toLowerCase().endsWith(".xml") ? name.length() - 4 : name.length();
+        final int dash = name.lastIndexOf('-', dot);
+        try {
+            final int n = dash < 0 ? -1 : Integer.parseInt(name.substring(dash + 1, dot));
+            return n > 0 && shard(n).getName().equals(name) ? n : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void deleteFrom(int n) throws IOException {
+        for (int i = n; shard(i).exists(); ++i) {
+            Files.delete(shard(i).toPath());
+        }
+    }
+
+    private OaiPmhReponse envelope(int n) {
+        final OaiPmhReponse envelope = new OaiPmhReponse();
+        if (n > 1) {
+            // like the response to a request with the token of the previous part
+            envelope.getRequest().setMetadataPrefix(null);
+            envelope.getRequest().setResumptionToken(shard(n).getName());
+        }
+        return envelope;
+    }
+
+    private void open(int n) throws IOException {
+        final File file = shard(n);
+        writer = RdfDocumentProcessor.openListRecords(file, envelope(n));
+        shard = n;
+        shardCount = 0;
+        files.add(file);
+    }
+
+    /**
+     * Schließt die aktuelle Datei ab und beginnt die nächste, wenn sie voll
+     * ist.
+     */
+    private void roll() throws IOException {
+        if (closed) {
+            throw new IOException("OAI-PMH writer is already closed.");
+        }
+        if (!isSharded() || shardCount == 0) {
+            return;
+        }
+        if ((maxRecords > 0 && shardCount >= maxRecords) || (maxBytes > 0 && writer.checkpoint() >= maxBytes)) {
+            writer.close(shard(shard + 1).getName());
+            open(shard + 1);
+        }
+    }
+
+    public synchronized void write(ZdfRdfRecord rec) throws IOException {
+        roll();
+        writer.write(rec);
+        ++shardCount;
+        ++count;
+    }
+
+    /**
+     * Schreibt einen bereits serialisierten Datensatz, siehe
+     * {@link OaiPmhWriter#write(String, java.util.Date, byte[])}.
+     *
+     * @param identifier
+     * @param datestamp
+     * @param rdf
+     * @throws IOException
+     */
+    public synchronized void write(String identifier, Date datestamp, byte[] rdf) throws IOException {
+        roll();
+        writer.write(identifier, datestamp, rdf);
+        ++shardCount;
+        ++count;
+    }
+
+    /**
+     * @return Position hinter dem zuletzt geschriebenen Datensatz in
+     * {@link #getFile()}
+     * @throws IOException
+     */
+    public synchronized long checkpoint() throws IOException {
+        return writer.checkpoint();
+    }
+
+    /**
+     * @return die Datei, in die gerade geschrieben wird
+     */
+    public synchronized File getFile() {
+        return files.get(files.size() - 1);
+    }
+
+    /**
+     * @return alle bisher geschriebenen Dateien in ihrer Reihenfolge
+     */
+    public synchronized List<File> getFiles() {
+        return Collections.unmodifiableList(new ArrayList<>(files));
+    }
+
+    /**
+     * Schließt die letzte Datei ab (bei mehreren Dateien mit leerem
+     * <code>resumptionToken</code>).
+     *
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        writer.close(isSharded() ? "" : null);
+    }
+
+    /**
+     * Zählt die <code>record</code>-Elemente in den ersten
+     * <code>limit</code> Bytes einer Datei.
+     */
+    private static int countRecords(File file, long limit) throws IOException {
+        int n = 0, matched = 0;
+        try (final InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            for (long i = 0; i < limit; ++i) {
+                final int b = in.read();
+                if (b < 0) {
+                    break;
+                }
+                matched = b == RECORD[matched] ? matched + 1 : (b == RECORD[0] ? 1 : 0);
+                if (matched == RECORD.length) {
+                    ++n;
+                    matched = 0;
+                }
+            }
+        }
+        return n;
+    }
+}
@@ -15,24 +15,14 @@
  */
 package de.ddb.labs.zdf2dc.data.rdfdc;
 
-import java.util.ArrayList;
-import java.util.ListIterator;
+import de.ddb.labs.zdf2dc.helper.DistinctList;
 
 /**
- * 
+ * Werte eines mehrfach vorkommenden Elements ohne Dupletten (siehe
+ * {@link DistinctList}).
+ *
  * @author Michael Büchner <m.buechner@dnb.de>
  * @param <ElementWithAttributes> 
  */
-public class ZdfElementList<ElementWithAttributes> extends ArrayList<ElementWithAttributes> {
-
-    @Override
-    public boolean add(ElementWithAttributes e) {
-        ListIterator<ElementWithAttributes> litr = super.listIterator();
-        while (litr.hasNext()) {
-            if (e.equals(litr.next())) {
-                return false;
-            }
-        }
-        return super.add(e);
-    }
+public class ZdfElementList<ElementWithAttributes> extends DistinctList<ElementWithAttributes> {
 }
@@ -17,6 +17,7 @@ package de.ddb.labs.zdf2dc.data.rdfdc;
 
 import com.fasterxml.jackson.annotation.JsonFormat;
 import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlElementWrapper;
 import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlProperty;
 import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlRootElement;
@@ -124,7 +125,8 @@ public class ZdfRdfRecord {
 
         @Getter
         @Setter
-        @JacksonXmlProperty(localName = "_DELETE_type", namespace = "http://www.w3.org/1999/02/22-rdf-syntax-ns#")
+        @JacksonXmlProperty(localName = "rdfType", namespace = "http://www.w3.org/1999/02/22-rdf-syntax-ns#")
+        @JsonSerialize(using = RdfTypeSerializer.class)
         private ElementWithAttributes rdfType = new ElementWithAttributes(null, null, "http://purl.org/dc/dcmitype/MovingImage", null);
 
         public String getExtent() {
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.data.zdf;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import de.ddb.labs.zdf2dc.helper.PipelineMetrics;
+import de.ddb.labs.zdf2dc.helper.PipelineMetrics.Stage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Deklarativer Mapping-Plan von einem ZDF-Dokument (JSON) auf ein
+ * Datenmodell. Jedes Feld besteht aus Quellpfad, Filter, Transformation und
+ * Ziel. Beim Erzeugen werden alle Pfade zu einem Baum zusammengefasst, so dass
+ * ein Dokument unabhängig von der Anzahl der Felder nur einmal mit dem
+ * Streaming-Parser gelesen wird. Gemeinsame Präfixe (z.B.
+ * <code>teaserImageRef</code>) werden dabei nur einmal durchlaufen.
+ * <p>
+ * Die Felder werden in der Reihenfolge ihrer Deklaration auf das Ziel
+ * angewendet, unabhängig von der Reihenfolge im Dokument. Ein Wert gilt als
+ * vorhanden, wenn er den erwarteten Typ hat (nicht-leerer String bzw. Integer);
+ * ansonsten ist er <code>null</code>. Bei doppelten Schlüsseln gilt der letzte.
+ * <p>
+ * Lesen und Anwenden der Felder werden getrennt in {@link PipelineMetrics}
+ * gemessen ({@link Stage#PARSE}, {@link Stage#MAPPING}).
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ * @param <T> Datenmodell
+ */
+public class MappingPlan<T> {
+
+    // streams passed in belong to the caller (files are always closed)
+    private final static JsonFactory factory = new JsonFactory().disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+    private final Supplier<T> supplier;
+    private final Node root;
+    private final List<Field<T>> fields;
+    private final int slotCount;
+
+    private MappingPlan(Builder<T> builder) {
+        this.supplier = builder.supplier;
+        this.fields = Collections.unmodifiableList(new ArrayList<>(builder.fields));
+
+        // compile: merge all paths into one tree ...
+        this.root = new Node();
+        final List<Node> leaves = new ArrayList<>();
+        for (Field<T> f : fields) {
+            Node node = root;
+            for (String segment : f.path) {
+                node = node.children.computeIfAbsent(segment, k -> new Node());
+            }
+            if (f.integer) {
+                node.intSlot = 0;
+            } else {
+                node.stringSlot = 0;
+            }
+            leaves.add(node);
+        }
+        // ... and number the value slots depth-first, so every subtree owns a contiguous range
+        this.slotCount = root.assignSlots(0);
+        for (int i = 0; i < fields.size(); ++i) {
+            final Field<T> f = fields.get(i);
+            f.slot = f.integer ? leaves.get(i).intSlot : leaves.get(i).stringSlot;
+        }
+    }
+
+    public static <T> Builder<T> builder(Supplier<T> supplier) {
+        return new Builder<>(supplier);
+    }
+
+    public T process(File src) throws IOException {
+        try (final JsonParser parser = factory.createParser(src)) {
+            return process(parser);
+        }
+    }
+
+    public T process(InputStream src) throws IOException {
+        try (final JsonParser parser = factory.createParser(src)) {
+            return process(parser);
+        }
+    }
+
+    public T process(byte[] src) throws IOException {
+        try (final JsonParser parser = factory.createParser(src)) {
+            return process(parser);
+        }
+    }
+
+    public T process(JsonParser parser) throws IOException {
+        final PipelineMetrics metrics = PipelineMetrics.getInstance();
+        final long start = System.nanoTime();
+        final Object[] values = new Object[slotCount];
+        try {
+            parser.nextToken();
+            read(parser, root, values);
+        } catch (IOException | RuntimeException e) {
+            metrics.error(Stage.PARSE, e);
+            throw e;
+        }
+        final long parsed = System.nanoTime();
+        metrics.record(Stage.PARSE, parsed - start);
+
+        final T target = supplier.get();
+        try {
+            for (Field<T> f : fields) {
+                f.applier.apply(target, values[f.slot]);
+            }
+        } catch (RuntimeException e) {
+            metrics.error(Stage.MAPPING, e);
+            throw e;
+        }
+        metrics.record(Stage.MAPPING, System.nanoTime() - parsed);
+        return target;
+    }
+
+    private static void read(JsonParser parser, Node node, Object[] values) throws IOException {
+        // a repeated key replaces everything read below it before
+        if (node.from < node.to) {
+            Arrays.fill(values, node.from, node.to, null);
+        }
+
+        final JsonToken token = parser.currentToken();
+        if (token == JsonToken.VALUE_STRING && node.stringSlot >= 0) {
+            final String val = parser.getText();
+            if (!val.trim().isEmpty()) {
+                values[node.stringSlot] = val;
+            }
+        } else if (token == JsonToken.VALUE_NUMBER_INT && node.intSlot >= 0 && parser.getNumberType() == JsonParser.NumberType.INT) {
+            values[node.intSlot] = parser.getIntValue();
+        } else if (token == JsonToken.START_OBJECT && !node.children.isEmpty()) {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final Node child = node.children.get(parser.getCurrentName());
+                parser.nextToken();
+                if (child == null) {
+                    parser.skipChildren();
+                } else {
+                    read(parser, child, values);
+                }
+            }
+        } else {
+            parser.skipChildren();
+        }
+    }
+
+    /**
+     * Zerlegt einen Pfad in der Notation
+     * <code>$.a['http://zdf.de/rels/target'].b</code> in seine Segmente.
+     */
+    static String[] parsePath(String path) {
+        if (!path.startsWith("$")) {
+            throw new IllegalArgumentException("Path must start with '$': " + path);
+        }
+        final List<String> segments = new ArrayList<>();
+        int i = 1;
+        while (i < path.length()) {
+            final char c = path.charAt(i);
+            if (c == '.' && i + 1 < path.length() && path.charAt(i + 1) == '[') {
+                ++i;
+            } else if (c == '.') {
+                int end = i + 1;
+                while (end < path.length() && path.charAt(end) != '.' && path.charAt(end) != '[') {
+                    ++end;
+                }
+                segments.add(path.substring(i + 1, end));
+                i = end;
+            } else if (c == '[' && i + 1 < path.length() && (path.charAt(i + 1) == '\'' || path.charAt(i + 1) == '"')) {
+                final int end = path.indexOf(path.charAt(i + 1) + "]", i + 2);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unterminated bracket in path: " + path);
+                }
+                segments.add(path.substring(i + 2, end));
+                i = end + 2;
+            } else {
+                throw new IllegalArgumentException("Unexpected character '" + c + "' in path: " + path);
+            }
+        }
+        if (segments.isEmpty() || segments.contains("")) {
+            throw new IllegalArgumentException("Invalid path: " + path);
+        }
+        return segments.toArray(new String[0]);
+    }
+
+    private static class Node {
+
+        private final Map<String, Node> children = new HashMap<>();
+        private int stringSlot = -1;
+        private int intSlot = -1;
+        private int from, to;
+
+        /**
+         * Vergibt die Slots dieses Teilbaums ab <code>next</code> und liefert
+         * den nächsten freien Slot.
+         */
+        private int assignSlots(int next) {
+            from = next;
+            if (stringSlot >= 0) {
+                stringSlot = next++;
+            }
+            if (intSlot >= 0) {
+                intSlot = next++;
+            }
+            for (Node child : children.values()) {
+                next = child.assignSlots(next);
+            }
+            to = next;
+            return next;
+        }
+    }
+
+    private interface Applier<T> {
+
+        void apply(T target, Object value);
+    }
+
+    private static class Field<T> {
+
+        private final String[] path;
+        private final boolean integer;
+        private final Applier<T> applier;
+        private int slot;
+
+        private Field(String path, boolean integer, Applier<T> applier) {
+            this.path = parsePath(path);
+            this.integer = integer;
+            this.applier = applier;
+        }
+    }
+
+    public static class Builder<T> {
+
+        private final Supplier<T> supplier;
+        private final List<Field<T>> fields = new ArrayList<>();
+
+        private Builder(Supplier<T> supplier) {
+            this.supplier = Objects.requireNonNull(supplier);
+        }
+
+        /**
+         * String-Feld, das nur gesetzt wird, wenn es vorhanden ist.
+         */
+        public Builder<T> string(String path, BiConsumer<T, String> target) {
+            return string(path, Objects::nonNull, Function.identity(), target);
+        }
+
+        /**
+         * String-Feld mit Filter. Der Filter bekommt auch fehlende Werte
+         * (<code>null</code>) zu sehen.
+         */
+        public Builder<T> string(String path, Predicate<String> filter, BiConsumer<T, String> target) {
+            return string(path, filter, Function.identity(), target);
+        }
+
+        /**
+         * String-Feld mit Filter und Transformation. Liefert die
+         * Transformation <code>null</code>, wird das Ziel nicht gesetzt.
+         */
+        public <R> Builder<T> string(String path, Predicate<String> filter, Function<String, R> transform, BiConsumer<T, R> target) {
+            fields.add(new Field<>(path, false, (t, v) -> apply(t, (String) v, filter, transform, target)));
+            return this;
+        }
+
+        /**
+         * Integer-Feld mit Filter. Der Filter bekommt auch fehlende Werte
+         * (<code>null</code>) zu sehen.
+         */
+        public Builder<T> integer(String path, Predicate<Integer> filter, BiConsumer<T, Integer> target) {
+            fields.add(new Field<>(path, true, (t, v) -> apply(t, (Integer) v, filter, Function.identity(), target)));
+            return this;
+        }
+
+        private static <T, V, R> void apply(T target, V value, Predicate<V> filter, Function<V, R> transform, BiConsumer<T, R> consumer) {
+            if (!filter.test(value)) {
+                return;
+            }
+            final R result = transform.apply(value);
+            if (result != null) {
+                consumer.accept(target, result);
+            }
+        }
+
+        public MappingPlan<T> build() {
+            return new MappingPlan<>(this);
+        }
+    }
+}
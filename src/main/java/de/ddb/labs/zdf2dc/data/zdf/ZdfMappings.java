@@ -0,0 +1,90 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.data.zdf;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Objects;
+import java.util.function.Predicate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Quellpfade, Filter und Transformationen für ZDF-Dokumente, die von allen
+ * Mapping-Plänen gemeinsam genutzt werden.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class ZdfMappings {
+
+    private final static Logger LOG = LoggerFactory.getLogger(ZdfMappings.class);
+    private final static String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss";
+
+    public final static String EXTERNAL_ID = "$.externalId";
+    public final static String ID = "$.id";
+    public final static String URI = "$['http://zdf.de/rels/uri']";
+    public final static String SHARING_URL = "$['http://zdf.de/rels/sharing-url']";
+    public final static String EDITORIAL_DATE = "$.editorialDate";
+    public final static String TITLE = "$.title";
+    public final static String SUBTITLE = "$.subtitle";
+    public final static String LEAD_PARAGRAPH = "$.leadParagraph";
+    public final static String TEASER_IMAGE_ORIGINAL = "$.teaserImageRef.layouts.original";
+    public final static String TEASER_IMAGE_TITLE = "$.teaserImageRef.title";
+    public final static String TEASER_IMAGE_COPYRIGHT_NOTICE = "$.teaserImageRef.copyrightNotice";
+    public final static String TEASER_IMAGE_SOURCE = "$.teaserImageRef.source";
+    public final static String TEASER_IMAGE_CAPTION = "$.teaserImageRef.caption";
+    public final static String CATEGORY_TITLE = "$['http://zdf.de/rels/category']['http://zdf.de/rels/target'].title";
+    public final static String BRAND_TITLE = "$['http://zdf.de/rels/brand']['http://zdf.de/rels/target'].title";
+    public final static String DURATION = "$.mainVideoContent['http://zdf.de/rels/target'].duration";
+    public final static String FSK = "$.mainVideoContent['http://zdf.de/rels/target'].fsk";
+    public final static String ASPECT_RATIO = "$.mainVideoContent['http://zdf.de/rels/target'].aspectRatio";
+
+    /**
+     * Vorhanden und nicht nur "ZDF" (ohne Informationsgehalt).
+     */
+    public final static Predicate<String> NOT_ZDF = val -> val != null && !val.equalsIgnoreCase("zdf");
+
+    /**
+     * Immer erfüllt, auch bei fehlendem Wert.
+     */
+    public final static Predicate<String> ALWAYS = val -> true;
+
+    /**
+     * Vorhanden und größer 0.
+     */
+    public final static Predicate<Integer> POSITIVE = val -> val != null && val > 0;
+
+    public static String fsk(String val) {
+        if (val != null && !val.equals("none")) {
+            return "FSK ab " + val + " freigegeben";
+        }
+        return "FSK ab 0 freigegeben";
+    }
+
+    public static String aspectRatio(String val) {
+        return "Seitenverhältnis " + Objects.requireNonNull(val);
+    }
+
+    public static Date editorialDate(String val) {
+        try {
+            return new SimpleDateFormat(DATE_FORMAT).parse(val);
+        } catch (ParseException ex) {
+            LOG.warn("Could not parse editorialDate. {}", ex.getMessage());
+            return null;
+        }
+    }
+}
@@ -16,36 +16,52 @@
 package de.ddb.labs.zdf2dc.gui;
 
 import com.fasterxml.jackson.core.JsonFactory;
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import de.ddb.labs.zdf2dc.data.rdfdc.OaiPmhReponse;
 import de.ddb.labs.zdf2dc.data.rdfdc.RdfDocumentProcessor;
+import de.ddb.labs.zdf2dc.data.rdfdc.ShardedOaiPmhWriter;
 import de.ddb.labs.zdf2dc.data.rdfdc.ZdfRdfRecord;
+import de.ddb.labs.zdf2dc.helper.AdaptiveLimiter;
+import de.ddb.labs.zdf2dc.helper.ConversionPool;
+import de.ddb.labs.zdf2dc.helper.DocumentCache;
+import de.ddb.labs.zdf2dc.helper.IdRegistry;
+import de.ddb.labs.zdf2dc.helper.JobJournal;
+import de.ddb.labs.zdf2dc.helper.NamespaceNormalizer;
+import de.ddb.labs.zdf2dc.helper.PagedSearch;
+import de.ddb.labs.zdf2dc.helper.PipelineMetrics;
+import de.ddb.labs.zdf2dc.helper.RateLimiter;
+import de.ddb.labs.zdf2dc.helper.RecordStore;
+import de.ddb.labs.zdf2dc.helper.RetryPolicy;
+import de.ddb.labs.zdf2dc.helper.Transport;
 import java.awt.event.WindowEvent;
 import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
-import java.util.TreeSet;
-import java.util.concurrent.TimeUnit;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.prefs.Preferences;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 import javax.swing.filechooser.FileNameExtensionFilter;
-import javax.swing.table.DefaultTableModel;
 import lombok.Getter;
 import lombok.Setter;
 import okhttp3.Call;
 import okhttp3.Callback;
-import okhttp3.Dispatcher;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
-import okio.BufferedSink;
-import okio.Okio;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -56,14 +72,16 @@ import org.slf4j.LoggerFactory;
 public class Gui extends JFrame {
 
     private final static Logger LOG = LoggerFactory.getLogger(Gui.class);
-    private final static int CONNECTTIMEOUT = 10;
-    private final static int WRITETIMEOUT = 10;
-    private final static int READTIMEOUT = 30;
+    // search result pages loaded at the same time
+    private final static int SEARCH_CONCURRENCY = Integer.getInteger("zdf2dc.search.concurrency", 4);
     private final OkHttpClient client;
     private final JsonFactory factory;
     private final ObjectMapper mapper;
     private final DataDownloader downloader;
     private final Preferences userPrefs;
+    // IDs of the search results (jTable2) and of the download list (jTable1)
+    private final IdRegistry searchIds;
+    private final IdRegistry downloadIds;
 
     /**
      * Creates new form Gui
@@ -72,15 +90,13 @@ public class Gui extends JFrame {
      * @throws java.io.IOException
      */
     public Gui() throws InterruptedException, IOException {
-        this.client = new OkHttpClient.Builder()
-                .connectTimeout(CONNECTTIMEOUT, TimeUnit.SECONDS)
-                .writeTimeout(WRITETIMEOUT, TimeUnit.SECONDS)
-                .readTimeout(READTIMEOUT, TimeUnit.SECONDS)
-                .build();
+        this.client = Transport.getInstance().getClient();
         this.factory = new JsonFactory();
         this.mapper = new ObjectMapper(factory);
-        this.userPrefs = Preferences.userRoot().node("de/ddb/labs/zdf2dc");
+        this.userPrefs = Preferences.userRoot().node(Transport.PREFERENCES_NODE);
         this.downloader = new DataDownloader();
+        this.searchIds = new IdRegistry();
+        this.downloadIds = new IdRegistry();
         initComponents();
 
     }
@@ -118,6 +134,7 @@ public class Gui extends JFrame {
         jPanel4 = new javax.swing.JPanel();
         jCheckBox2 = new javax.swing.JCheckBox();
         jCheckBox1 = new javax.swing.JCheckBox();
+        jCheckBox3 = new javax.swing.JCheckBox();
 
         setDefaultCloseOperation(javax.swing.WindowConstants.EXIT_ON_CLOSE);
         setTitle("ZDF2DC");
@@ -139,29 +156,7 @@ public class Gui extends JFrame {
             }
         });
 
-        jTable2.setModel(new javax.swing.table.DefaultTableModel(
-            new Object [][] {
-
-            },
-            new String [] {
-                "Id", "Titel"
-            }
-        ) {
-            Class[] types = new Class [] {
-                java.lang.String.class, java.lang.String.class
-            };
-            boolean[] canEdit = new boolean [] {
-                false, false
-            };
-
-            public Class getColumnClass(int columnIndex) {
-                return types [columnIndex];
-            }
-
-            public boolean isCellEditable(int rowIndex, int columnIndex) {
-                return canEdit [columnIndex];
-            }
-        });
+        jTable2.setModel(new IdTableModel("Id", "Titel"));
         jTable2.setShowGrid(true);
         jScrollPane4.setViewportView(jTable2);
 
@@ -200,29 +195,7 @@ public class Gui extends JFrame {
             }
         });
 
-        jTable1.setModel(new javax.swing.table.DefaultTableModel(
-            new Object [][] {
-
-            },
-            new String [] {
-                "Id"
-            }
-        ) {
-            Class[] types = new Class [] {
-                java.lang.String.class
-            };
-            boolean[] canEdit = new boolean [] {
-                false
-            };
-
-            public Class getColumnClass(int columnIndex) {
-                return types [columnIndex];
-            }
-
-            public boolean isCellEditable(int rowIndex, int columnIndex) {
-                return canEdit [columnIndex];
-            }
-        });
+        jTable1.setModel(new IdTableModel("Id"));
         jScrollPane1.setViewportView(jTable1);
 
         javax.swing.GroupLayout jPanel2Layout = new javax.swing.GroupLayout(jPanel2);
@@ -344,6 +317,8 @@ public class Gui extends JFrame {
             }
         });
 
+        jCheckBox3.setText("Namespaces im Wurzelelement deklarieren");
+
         javax.swing.GroupLayout jPanel4Layout = new javax.swing.GroupLayout(jPanel4);
         jPanel4.setLayout(jPanel4Layout);
         jPanel4Layout.setHorizontalGroup(
@@ -352,7 +327,8 @@ public class Gui extends JFrame {
                 .addContainerGap()
                 .addGroup(jPanel4Layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
                     .addComponent(jCheckBox2)
-                    .addComponent(jCheckBox1))
+                    .addComponent(jCheckBox1)
+                    .addComponent(jCheckBox3))
                 .addContainerGap(javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
         );
         jPanel4Layout.setVerticalGroup(
@@ -362,7 +338,9 @@ public class Gui extends JFrame {
                 .addComponent(jCheckBox2)
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                 .addComponent(jCheckBox1)
-                .addContainerGap(28, Short.MAX_VALUE))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(jCheckBox3)
+                .addContainerGap(javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
         );
 
         javax.swing.GroupLayout layout = new javax.swing.GroupLayout(getContentPane());
@@ -419,8 +397,8 @@ public class Gui extends JFrame {
     private void jButton2ActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jButton2ActionPerformed
 
         jButton2.setEnabled(false);
-        final DefaultTableModel model = (DefaultTableModel) jTable2.getModel();
-        model.setRowCount(0);
+        ((IdTableModel) jTable2.getModel()).clear();
+        searchIds.clear();
         String url = "";
         try {
             url = URLEncoder.encode(jTextField2.getText(), "UTF-8");
@@ -429,44 +407,26 @@ public class Gui extends JFrame {
             JOptionPane.showMessageDialog(null, "Download konnte nicht abgeschlossen werden!\n" + ex.getMessage(), "Fehler", JOptionPane.WARNING_MESSAGE);
             return;
         }
-        nextRequest("/search/documents?q=" + url + "&sender=ZDF&hasVideo=true&embeddingPossible=true&visible=true&contentTypes=clip");
+        search("/search/documents?q=" + url + "&sender=ZDF&hasVideo=true&embeddingPossible=true&visible=true&contentTypes=clip");
     }//GEN-LAST:event_jButton2ActionPerformed
 
     private void jButton4ActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jButton4ActionPerformed
-        final int[] selectedRows = jTable2.getSelectedRows();
-        final DefaultTableModel model2 = (DefaultTableModel) jTable2.getModel();
-        final DefaultTableModel model1 = (DefaultTableModel) jTable1.getModel();
-
-        final TreeSet<String> set = new TreeSet<>();
-
-        for (int i = 0; i < model1.getRowCount(); ++i) {
-            set.add((String) model1.getValueAt(i, 0));
-        }
-
-        for (int i = 0; i < selectedRows.length; ++i) {
-            set.add((String) model2.getValueAt(selectedRows[i], 0));
-        }
-
-        model1.setRowCount(0);
+        final IdTableModel model2 = (IdTableModel) jTable2.getModel();
+        final IdTableModel model1 = (IdTableModel) jTable1.getModel();
 
-        for (String s : set) {
-            model1.addRow(new String[]{s});
-        }
+        model1.addIds(downloadIds.addAll(model2.getSelectedIds(jTable2)));
 
     }//GEN-LAST:event_jButton4ActionPerformed
 
     private void jButton5ActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jButton5ActionPerformed
-        final int[] selectedRows = jTable1.getSelectedRows();
-        final DefaultTableModel model1 = (DefaultTableModel) jTable1.getModel();
-
-        for (int i = selectedRows.length; i > 0; --i) {
-            model1.removeRow(selectedRows[i - 1]);
-        }
+        final IdTableModel model1 = (IdTableModel) jTable1.getModel();
+        downloadIds.removeAll(model1.getSelectedIds(jTable1));
+        model1.removeRows(jTable1.getSelectedRows());
     }//GEN-LAST:event_jButton5ActionPerformed
 
     private void jButton3ActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jButton3ActionPerformed
 
-        final DefaultTableModel model1 = (DefaultTableModel) jTable1.getModel();
+        final IdTableModel model1 = (IdTableModel) jTable1.getModel();
         if (model1.getRowCount() <= 0) {
             return;
         }
@@ -496,27 +456,56 @@ public class Gui extends JFrame {
         }
         LOG.info("Save files to {}", file.getAbsolutePath());
         downloader.reset();
+        downloader.setNormalizeNamespaces(jCheckBox3.isSelected());
+        boolean resume = false;
+        if (JobJournal.of(file).exists()) {
+            final int answer = JOptionPane.showConfirmDialog(this, "Für dieses Ziel gibt es einen abgebrochenen Download.\nSoll er fortgesetzt werden? (Nein: neu beginnen)", "Fortsetzen", JOptionPane.YES_NO_CANCEL_OPTION);
+            if (answer != JOptionPane.YES_OPTION && answer != JOptionPane.NO_OPTION) {
+                return;
+            }
+            resume = answer == JOptionPane.YES_OPTION;
+        }
+        try {
+            downloader.open(file, jCheckBox2.isSelected(), resume);
+        } catch (IOException ex) {
+            LOG.error("{} konnte nicht geöffnet werden. {}", file.getAbsolutePath(), ex.getMessage());
+            JOptionPane.showMessageDialog(null, "Datei konnte nicht geöffnet werden!\n" + ex.getMessage(), "Fehler", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
         downloader.setAddingDownloads(true);
         jButton3.setEnabled(false);
 
         final boolean allToOneFile = jCheckBox2.isSelected();
         final boolean keepJson = jCheckBox1.isSelected();
 
-        for (int i = 0; i < model1.getRowCount(); ++i) {
-
-            final String id = ((String) model1.getValueAt(i, 0));
-            if (allToOneFile) {
-                downloader.addDownloadJob(id, file);
-                LOG.info("Save DC dataset {} to file {}", id, file.getAbsolutePath());
-            } else {
-
-                final File f = new File(file.getAbsolutePath() + File.separator + id.replaceAll("[^a-zA-Z0-9\\.\\-]", "_") + ".xml");
-                downloader.addDownloadJob(id, f, keepJson);
-                LOG.info("Save DC file {} to directory {}", id, f.getAbsolutePath());
+        // IDs of the table and the not yet finished ones of a resumed job
+        final Set<String> ids = new LinkedHashSet<>(downloadIds.getIds());
+        ids.addAll(downloader.getJournal().getOutstanding());
+        final List<String> jobs = new ArrayList<>();
+        for (String id : ids) {
+            if (!downloader.getJournal().isDone(id)) {
+                jobs.add(id);
             }
         }
 
-        downloader.setAddingDownloads(false);
+        // adding a download waits while enough of them are running, so not on the EDT
+        final Thread adding = new Thread(() -> {
+            for (String id : jobs) {
+                if (allToOneFile) {
+                    downloader.addDownloadJob(id, file);
+                    LOG.info("Save DC dataset {} to file {}", id, file.getAbsolutePath());
+                } else {
+
+                    final File f = new File(file.getAbsolutePath() + File.separator + id.replaceAll("[^a-zA-Z0-9\\.\\-]", "_") + ".xml");
+                    downloader.addDownloadJob(id, f, keepJson);
+                    LOG.info("Save DC file {} to directory {}", id, f.getAbsolutePath());
+                }
+            }
+            // also completes a resumed job with nothing left to do
+            downloader.downloadsAdded();
+        }, "zdf2dc-downloads");
+        adding.setDaemon(true);
+        adding.start();
     }//GEN-LAST:event_jButton3ActionPerformed
 
     private void jButton1ActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jButton1ActionPerformed
@@ -536,9 +525,8 @@ public class Gui extends JFrame {
         final String url = urlTmp;
 
         final Request request = new Request.Builder()
-                .url("https://api.zdf.de/content/documents/" + url + ".json")
+                .url(Transport.getInstance().documentUrl(url))
                 .head()
-                .addHeader("Api-Auth", "Bearer " + userPrefs.get("ZDFAPIKEY", ""))
                 .build();
 
         client.newCall(request).enqueue(new Callback() {
@@ -554,20 +542,12 @@ public class Gui extends JFrame {
                     return;
                 }
 
-                final DefaultTableModel model = (DefaultTableModel) jTable1.getModel();
-                final TreeSet<String> set = new TreeSet<>();
-
-                for (int i = 0; i < model.getRowCount(); ++i) {
-                    set.add((String) model.getValueAt(i, 0));
-                }
-
-                model.setRowCount(0);
-                set.add(url);
-
-                for (String s : set) {
-                    model.addRow(new String[]{s});
-                }
-                jTextField1.setText("");
+                SwingUtilities.invokeLater(() -> {
+                    if (downloadIds.add(url)) {
+                        ((IdTableModel) jTable1.getModel()).addIds(Collections.singletonList(url));
+                    }
+                    jTextField1.setText("");
+                });
             }
         });
     }//GEN-LAST:event_jButton1ActionPerformed
@@ -590,9 +570,8 @@ public class Gui extends JFrame {
         boolean again = true;
         do {
             final Request request = new Request.Builder()
-                    .url("https://api.zdf.de/content/feed/current")
+                    .url(Transport.getInstance().getBaseUrl() + "/content/feed/current")
                     .head()
-                    .addHeader("Api-Auth", "Bearer " + userPrefs.get("ZDFAPIKEY", ""))
                     .build();
 
             try (final Response response = client.newCall(request).execute()) {
@@ -600,17 +579,18 @@ public class Gui extends JFrame {
                 if (!response.isSuccessful()) {
                     final String s = (String) JOptionPane.showInputDialog(
                             null,
-                            "Bitte einen gültigen API-Key für https://api.zdf.de/ eingeben:",
+                            "Bitte einen gültigen API-Key für " + Transport.getInstance().getBaseUrl() + "/ eingeben:",
                             "ZDF-API-Key",
                             JOptionPane.QUESTION_MESSAGE,
                             null,
                             null,
-                            userPrefs.get("ZDFAPIKEY", ""));
+                            Transport.getInstance().getApiKey());
                     // cancel -> close app
                     if (s == null) {
                         dispatchEvent(new WindowEvent(this, WindowEvent.WINDOW_CLOSING));
                     } else {
-                        userPrefs.put("ZDFAPIKEY", s);
+                        userPrefs.put(Transport.PREFERENCES_KEY, s);
+                        Transport.getInstance().setApiKey(s);
                     }
                 } else {
                     again = false;
@@ -623,80 +603,46 @@ public class Gui extends JFrame {
 
     }//GEN-LAST:event_formWindowOpened
 
-    private void nextRequest(String url) {
-        final Request request = new Request.Builder()
-                .url("https://api.zdf.de" + url)
-                .addHeader("Api-Auth", "Bearer " + userPrefs.get("ZDFAPIKEY", ""))
-                .build();
+    /**
+     * Ersetzt die Download-Liste.
+     *
+     * @param ids
+     */
+    private void setDownloadIds(List<String> ids) {
+        downloadIds.clear();
+        downloadIds.addAll(ids);
+        ((IdTableModel) jTable1.getModel()).setIds(jTable1, downloadIds.getIds());
+    }
 
-        client.newCall(request).enqueue(new Callback() {
+    private void search(String path) {
+        final PagedSearch search = new PagedSearch(client, mapper, Transport.getInstance().getBaseUrl(), SEARCH_CONCURRENCY);
+        search.start(path, new PagedSearch.Listener() {
             @Override
-            public void onFailure(Call call, IOException e) {
-                JOptionPane.showMessageDialog(null, e.getMessage(), "Fehler", JOptionPane.ERROR_MESSAGE);
+            public void onPage(int totalResultsCount, List<String[]> results) {
+                SwingUtilities.invokeLater(() -> {
+                    final IdTableModel model = (IdTableModel) jTable2.getModel();
+                    // one insert event per page, the selection stays where it is
+                    model.addRows(results);
+                    for (String[] row : results) {
+                        searchIds.add(row[0]);
+                    }
+                    jLabel2.setText(model.getRowCount() + "/" + totalResultsCount);
+                    jLabel6.setText(model.getRowCount() + " IDs geladen, " + searchIds.getDuplicates() + " sind Dupletten");
+                });
             }
 
             @Override
-            public void onResponse(Call call, Response response) throws IOException {
-                try ( ResponseBody responseBody = response.body()) {
-                    if (!response.isSuccessful() || responseBody == null) {
-                        throw new IOException("Ungültige Antwort vom Server.\n" + response);
-                    }
-
-                    final JsonNode rootNode = mapper.readTree(responseBody.byteStream());
-                    final int totalResultsCount = rootNode.get("totalResultsCount").asInt(0);
-
-                    if (totalResultsCount == 0) {
-                        JOptionPane.showMessageDialog(null, "Zu dem Suchbegriff wurde nichts gefunden!", "0 Treffer", JOptionPane.INFORMATION_MESSAGE);
-                        jButton2.setEnabled(true);
-                        return;
-                    }
-                    final DefaultTableModel model = (DefaultTableModel) jTable2.getModel();
-
-                    synchronized (model) {
-                        final JsonNode resultsArray = rootNode.get("http://zdf.de/rels/search/results");
-                        if (resultsArray.isArray()) {
-                            for (JsonNode jsonNode : resultsArray) {
-                                String id = "";
-                                String title = "";
-                                try {
-                                    id = jsonNode.get("id").asText("");
-                                    title = jsonNode.get("http://zdf.de/rels/target").get("teaserHeadline").asText("");
-                                } catch (Exception e) {
-                                    LOG.warn("Error parsing JSON. {}", e.getMessage());
-                                } finally {
-                                    if (!id.trim().isEmpty()) {
-                                        model.addRow(new String[]{id, title});
-                                    }
-                                }
-                                int[] selectedRows = jTable2.getSelectedRows();
-                                model.fireTableDataChanged();
-                                for (int i = 0; i < selectedRows.length; i++) {
-                                    jTable2.getSelectionModel().addSelectionInterval(selectedRows[i], selectedRows[i]);
-                                }
-                                jLabel2.setText(model.getRowCount() + "/" + totalResultsCount);
-                            }
-                        }
-
-                        final TreeSet<String> set = new TreeSet<>();
-                        // save selcted Rows
-
-                        for (int i = 0; i < model.getRowCount(); ++i) {
-                            set.add((String) model.getValueAt(i, 0));
-                        }
-
-                        jLabel6.setText(model.getRowCount() + " IDs geladen, " + (model.getRowCount() - set.size()) + " sind Dupletten");
-                    }
-
-                    if (rootNode.has("next")) {
-                        nextRequest(rootNode.get("next").asText());
-                    } else {
-                        jButton2.setEnabled(true);
-                    }
-
-                } catch (Exception e) {
-                    JOptionPane.showMessageDialog(null, e.getMessage(), "Fehler", JOptionPane.ERROR_MESSAGE);
-                    jButton2.setEnabled(true);
+            public void onComplete(int totalResultsCount) {
+                if (totalResultsCount == 0) {
+                    JOptionPane.showMessageDialog(null, "Zu dem Suchbegriff wurde nichts gefunden!", "0 Treffer", JOptionPane.INFORMATION_MESSAGE);
                 }
+                jButton2.setEnabled(true);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                JOptionPane.showMessageDialog(null, e.getMessage(), "Fehler", JOptionPane.ERROR_MESSAGE);
+                jButton2.setEnabled(true);
             }
         });
     }
@@ -709,6 +655,7 @@ public class Gui extends JFrame {
     private javax.swing.JButton jButton5;
     private javax.swing.JCheckBox jCheckBox1;
     private javax.swing.JCheckBox jCheckBox2;
+    private javax.swing.JCheckBox jCheckBox3;
     private javax.swing.JLabel jLabel1;
     private javax.swing.JLabel jLabel2;
     private javax.swing.JLabel jLabel3;
@@ -729,200 +676,425 @@ public class Gui extends JFrame {
 
     public class DataDownloader {
 
-        private final static int MAX_REQUESTS = 10;
-        private final static int MAX_REQUESTS_PER_HOST = 5;
-        private final static int CONNECTTIMEOUT = 10;
-        private final static int WRITETIMEOUT = 10;
-        private final static int READTIMEOUT = 30;
+        private final static int MAX_ERRORS_SHOWN = 10;
         private final OkHttpClient client;
+        @Getter
+        private final AdaptiveLimiter limiter;
+        @Getter
+        private final RetryPolicy retry;
+        private final ConversionPool pool;
         private AtomicInteger totalCount, count;
-        private final TreeSet<String> errorDownloads;
-        private final OaiPmhReponse list;
+        // failed IDs and why, guarded by itself
+        private final TreeMap<String, String> errorDownloads;
+        // all converted records, if the system property zdf2dc.store is set
+        private final RecordStore store;
+        private ShardedOaiPmhWriter writer;
+        @Getter
+        private JobJournal journal;
+        // metrics when the job started
+        private PipelineMetrics.Snapshot metricsStart;
+        // downloads that may be queued or running at once, so interactive calls aren't stuck behind them
+        private final Semaphore slots;
+        // set by the one thread that completes the job
+        private final AtomicBoolean finished;
+        private File target;
         @Getter
         @Setter
-        private boolean addingDownloads;
+        private volatile boolean addingDownloads;
+        @Getter
+        @Setter
+        private boolean normalizeNamespaces;
 
         public DataDownloader() throws InterruptedException, IOException {
-            final Dispatcher dispatcher = new Dispatcher();
-            dispatcher.setMaxRequests(MAX_REQUESTS);
-            dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
-
-            this.client = new OkHttpClient.Builder()
-                    .connectTimeout(CONNECTTIMEOUT, TimeUnit.SECONDS)
-                    .writeTimeout(WRITETIMEOUT, TimeUnit.SECONDS)
-                    .readTimeout(READTIMEOUT, TimeUnit.SECONDS)
-                    .dispatcher(dispatcher)
-                    .build();
+            this.limiter = new AdaptiveLimiter();
+            this.retry = new RetryPolicy();
+            // the limiter decides how many requests run
+            Transport.getInstance().allowConcurrency(limiter.getMax());
 
+            // retries wait outside of the limit
+            this.client = limiter.apply(RateLimiter.getInstance().apply(retry.apply(Transport.getInstance().newBuilder()))).build();
+
+            this.pool = new ConversionPool();
+            this.slots = new Semaphore(limiter.getMax());
+            this.finished = new AtomicBoolean(false);
             this.totalCount = new AtomicInteger(0);
             this.count = new AtomicInteger(0);
-            this.errorDownloads = new TreeSet<>();
-            this.list = new OaiPmhReponse();
+            this.errorDownloads = new TreeMap<>();
             this.addingDownloads = false;
+            this.normalizeNamespaces = false;
+            this.metricsStart = PipelineMetrics.getInstance().snapshot();
+            this.store = RecordStore.fromProperty();
+            if (store != null) {
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        store.close();
+                    } catch (IOException ex) {
+                        LOG.error("Speicher konnte nicht geschlossen werden. {}", ex.getMessage());
+                    }
+                }));
+            }
         }
 
         public synchronized void reset() {
             totalCount = new AtomicInteger(0);
             count = new AtomicInteger(0);
             errorDownloads.clear();
-            list.clear();
+            writer = null;
+            journal = null;
+            finished.set(false);
+            metricsStart = PipelineMetrics.getInstance().snapshot();
         }
 
-        public String truncateAfterWords(int n, String str) {
-            return str.replaceAll("^((?:\\W*\\w+){" + n + "}).*$", "$1");
+        /**
+         * Öffnet das Journal zum Ziel und, falls alle Datensätze in eine Datei
+         * geschrieben werden ("Nur einen DC-Datensatz erzeugen"), diese Datei.
+         * Beim Fortsetzen wird eine abgebrochene Datei hinter dem letzten
+         * gespeicherten Datensatz fortgeschrieben.
+         *
+         * @param target Datei bzw. Verzeichnis
+         * @param allToOneFile
+         * @param resume abgebrochenen Auftrag fortsetzen, sonst neu beginnen
+         * @throws IOException
+         */
+        public synchronized void open(File target, boolean allToOneFile, boolean resume) throws IOException {
+            if (!resume) {
+                Files.deleteIfExists(JobJournal.of(target).toPath());
+            }
+            journal = JobJournal.open(target);
+            this.target = target;
+            if (allToOneFile) {
+                try {
+                    writer = journal.getCheckpoint() < 0
+                            ? RdfDocumentProcessor.openShards(target, ShardedOaiPmhWriter.DEFAULT_MAX_RECORDS, ShardedOaiPmhWriter.DEFAULT_MAX_MB * 1024 * 1024)
+                            : RdfDocumentProcessor.resumeShards(target, ShardedOaiPmhWriter.DEFAULT_MAX_RECORDS, ShardedOaiPmhWriter.DEFAULT_MAX_MB * 1024 * 1024,
+                                    journal.getCheckpointFile(), journal.getCheckpoint());
+                } catch (IOException ex) {
+                    journal.close();
+                    throw ex;
+                }
+            }
+        }
+
+        /**
+         * Schließt das Journal. Ohne Fehler ist der Auftrag erledigt und das
+         * Journal wird gelöscht.
+         *
+         * @return <code>true</code>, wenn der Auftrag erledigt ist
+         * @throws IOException
+         */
+        private synchronized boolean closeJournal() throws IOException {
+            final boolean complete;
+            synchronized (errorDownloads) {
+                complete = errorDownloads.isEmpty();
+            }
+            if (complete) {
+                journal.delete();
+            } else {
+                journal.close();
+            }
+            return complete;
         }
 
-        public synchronized void addDownloadJob(String id, File saveAllToOneFile) {
+        /**
+         * Alle Downloads des Auftrags sind eingereiht. Ist schon alles
+         * erledigt (auch bei einem fortgesetzten Auftrag, in dem nichts mehr
+         * zu tun war), wird der Auftrag abgeschlossen.
+         */
+        public void downloadsAdded() {
+            addingDownloads = false;
+            done();
+        }
 
-            totalCount.incrementAndGet();
-            jLabel4.setText(count.get() + "/" + totalCount.get());
+        /**
+         * Nach jedem Download bzw. jeder Konvertierung: zeigt den Fortschritt
+         * an und schließt den Auftrag ab, sobald alle Downloads eingereiht und
+         * erledigt sind. Läuft auf mehreren Threads gleichzeitig, abgeschlossen
+         * wird nur einmal.
+         */
+        private void done() {
+            final int errors;
+            synchronized (errorDownloads) {
+                errors = errorDownloads.size();
+            }
+            final String progress = count.get() + "/" + totalCount.get() + " (" + errors + " Fehler, " + limiter.getLimit() + " parallel)";
+            SwingUtilities.invokeLater(() -> jLabel4.setText(progress));
+            LOG.debug("addingDownloads: {}; count: {}; totalCount: {}; inFlight: {}", addingDownloads, count, totalCount, limiter.getInFlight());
+            // the dispatcher is shared with the search, so only the counts tell whether the downloads are done
+            if (addingDownloads || count.get() != totalCount.get() || !finished.compareAndSet(false, true)) {
+                return;
+            }
 
-            final Request request = new Request.Builder()
-                    .url("https://api.zdf.de/content/documents/" + id + ".json")
-                    .addHeader("Api-Auth", "Bearer " + userPrefs.get("ZDFAPIKEY", ""))
-                    .build();
+            LOG.info("{}", DocumentCache.getInstance());
+            LOG.info("{}", limiter);
+            LOG.info("{}", retry);
+            LOG.info("{}", RateLimiter.getInstance());
+            LOG.info("{}", Transport.getInstance());
+            LOG.info("{}", PipelineMetrics.getInstance().summary(metricsStart));
+            syncStore();
+            String problem = null;
+            try {
+                if (writer != null) {
+                    writer.close();
+                    // a normalized file can't be resumed any more, so only once the job is complete
+                    if (closeJournal() && normalizeNamespaces) {
+                        normalize();
+                    }
+                } else {
+                    closeJournal();
+                }
+            } catch (IOException ex) {
+                LOG.error("{} konnte nicht gespeichert werden. {}", target.getAbsolutePath(), ex.getMessage());
+                problem = String.valueOf(ex.getMessage());
+            }
+
+            final List<String> failed;
+            final String summary;
+            synchronized (errorDownloads) {
+                failed = new ArrayList<>(errorDownloads.keySet());
+                summary = errorSummary();
+            }
+            final String files = writer != null && writer.isSharded() ? " " + writer.getFiles().size() + " Dateien." : "";
+            final String message = problem;
+            SwingUtilities.invokeLater(() -> {
+                jButton3.setEnabled(true);
+                setDownloadIds(failed);
+                if (message != null) {
+                    JOptionPane.showMessageDialog(null, "Download konnte nicht abgeschlossen werden!\n" + truncateAfterWords(10, message), "Fehler", JOptionPane.WARNING_MESSAGE);
+                } else if (!failed.isEmpty()) {
+                    JOptionPane.showMessageDialog(null, "Download mit Fehlern abgeschlossen! Es gab " + failed.size() + " Fehler." + files + summary, "Fertig", JOptionPane.WARNING_MESSAGE);
+                } else {
+                    JOptionPane.showMessageDialog(null, "Download ist abgeschlossen! Es gab 0 Fehler." + files, "Fertig", JOptionPane.INFORMATION_MESSAGE);
+                }
+            });
+        }
+
+        private void normalize() throws IOException {
+            for (File f : writer.getFiles()) {
+                NamespaceNormalizer.normalize(f);
+            }
+        }
+
+        /**
+         * Schreibt den Index des Speichers am Ende eines Auftrags.
+         */
+        private void syncStore() {
+            if (store == null) {
+                return;
+            }
+            try {
+                store.sync();
+                LOG.info("{}", store);
+            } catch (IOException ex) {
+                LOG.error("Speicher konnte nicht geschrieben werden. {}", ex.getMessage());
+            }
+        }
+
+        /**
+         * @return die ersten Fehler mit Grund für die Meldung am Ende (mit
+         * Sperre auf <code>errorDownloads</code> aufrufen)
+         */
+        private String errorSummary() {
+            final StringBuilder sb = new StringBuilder();
+            int i = 0;
+            for (Map.Entry<String, String> e : errorDownloads.entrySet()) {
+                if (++i > MAX_ERRORS_SHOWN) {
+                    sb.append("\n...");
+                    break;
+                }
+                sb.append("\n").append(e.getKey()).append(": ").append(truncateAfterWords(10, String.valueOf(e.getValue())));
+            }
+            return sb.toString();
+        }
+
+        private void failed(String id, String message) {
+            synchronized (errorDownloads) {
+                errorDownloads.put(id, message);
+            }
+            try {
+                journal.failed(id, message);
+            } catch (IOException ex) {
+                LOG.error("Journal konnte nicht geschrieben werden. {}", ex.getMessage());
+            }
+        }
+
+        /**
+         * Übergibt eine Konvertierung an den Konvertierungs-Pool, damit die
+         * Netzwerk-Threads nur laden. Ist die Warteschlange voll, wartet der
+         * aufrufende Netzwerk-Thread.
+         *
+         * @param id
+         * @param task
+         * @param done wird aufgerufen, wenn die Konvertierung nicht eingereiht
+         * werden konnte
+         */
+        private void convert(String id, Runnable task, Runnable done) {
+            try {
+                pool.submit(task);
+            } catch (InterruptedException | RuntimeException ex) {
+                if (ex instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                count.incrementAndGet();
+                LOG.error("{}: {}", id, ex.getMessage());
+                failed(id, ex.getMessage());
+                done.run();
+            }
+        }
+
+        public String truncateAfterWords(int n, String str) {
+            return str.replaceAll("^((?:\\W*\\w+){" + n + "}).*$", "$1");
+        }
 
-            final Call call = client.newCall(request);
+        /**
+         * Reiht einen Download ein. Wartet, solange schon so viele Downloads
+         * eingereiht sind, wie der {@link AdaptiveLimiter} höchstens zulässt,
+         * damit Suche und Prüfen einer ID im gemeinsamen Dispatcher nicht
+         * hinter allen Downloads warten. Nicht auf dem EDT aufrufen.
+         *
+         * @param id
+         * @param saveAllToOneFile
+         */
+        public void addDownloadJob(String id, File saveAllToOneFile) {
+            final Call call = enqueue(id);
             call.enqueue(new Callback() {
 
                 @Override
                 public void onFailure(Call call, IOException e) {
+                    slots.release();
                     count.incrementAndGet();
-                    errorDownloads.add(id);
+                    failed(id, e.getMessage());
                     LOG.error("{}: {}", id, e.getMessage());
-                    done(saveAllToOneFile);
+                    done();
                 }
 
                 @Override
                 public void onResponse(Call call, Response response) {
-                    count.incrementAndGet();
-
-                    try {
-                        final File saveToJsonFile = File.createTempFile("zdf2dc-", ".json");
-                        final BufferedSink sink = Okio.buffer(Okio.sink(saveToJsonFile));
-                        sink.writeAll(response.body().source());
-                        sink.close();
-
-                        final ZdfRdfRecord record = RdfDocumentProcessor.process(saveToJsonFile);
-                        list.getListRecords().addRecord(record);
-
-                        if (!saveToJsonFile.delete()) {
-                            LOG.warn("Konnte temporäre Datei {} nicht löschen.", saveToJsonFile.getAbsolutePath());
+                    final byte[] data;
+                    try (final ResponseBody body = response.body()) {
+                        if (!response.isSuccessful()) {
+                            throw new IOException("Response code: " + response.code());
                         }
-
+                        data = body.bytes();
                     } catch (Exception ex) {
+                        count.incrementAndGet();
                         LOG.error("{}: {}", id, ex.getMessage());
-                        errorDownloads.add(id);
+                        failed(id, ex.getMessage());
+                        done();
+                        return;
+                    } finally {
+                        slots.release();
                     }
-                    done(saveAllToOneFile);
-                }
 
-                private synchronized void done(File saveAllToOneFile) {
-                    jLabel4.setText(count.get() + "/" + totalCount.get() + " (" + errorDownloads.size() + " Fehler)");
-                    LOG.debug("addingDownloads: {}; count: {}; totalCount: {}; queuedCallsCount: {}; runningCallsCount: {}", addingDownloads, count, totalCount, client.dispatcher().queuedCallsCount(), client.dispatcher().runningCallsCount());
-                    if (!addingDownloads && count.get() == totalCount.get() && client.dispatcher().queuedCallsCount() == 0 && client.dispatcher().runningCallsCount() < 2) {
-
-                        if (saveAllToOneFile == null) {
-                            LOG.error("saveAllToOneFile is null");
-                            return;
-                        }
+                    convert(id, () -> {
                         try {
-                            RdfDocumentProcessor.save(list, saveAllToOneFile);
-                        } catch (IOException ex) {
-                            LOG.error("{} konnte nicht gespeichert werden. {}", saveAllToOneFile.getAbsolutePath(), ex.getMessage());
-                            JOptionPane.showMessageDialog(null, "Download konnte nicht abgeschlossen werden!\n" + truncateAfterWords(10, ex.getMessage()), "Fehler", JOptionPane.WARNING_MESSAGE);
-                            return;
-                        } finally {
-
-                            jButton3.setEnabled(true);
-
-                            final DefaultTableModel model = (DefaultTableModel) jTable1.getModel();
-                            model.setRowCount(0);
-                            for (String s : errorDownloads) {
-                                model.addRow(new String[]{s});
+                            final ZdfRdfRecord record = RdfDocumentProcessor.process(data);
+                            synchronized (writer) {
+                                writer.write(record);
+                                journal.done(id, writer.getFile(), writer.checkpoint());
+                            }
+                            if (store != null) {
+                                store.put(id, data, record);
                             }
+                        } catch (Exception ex) {
+                            LOG.error("{}: {}", id, ex.getMessage());
+                            failed(id, ex.getMessage());
                         }
-
-                        JOptionPane.showMessageDialog(null, "Download ist abgeschlossen! Es gab " + errorDownloads.size() + " Fehler.", "Fertig", JOptionPane.INFORMATION_MESSAGE);
-                    }
+                        count.incrementAndGet();
+                        done();
+                    }, () -> done());
                 }
             });
         }
 
-        public synchronized void addDownloadJob(String id, File saveToFile, boolean keepOriginal) {
-            totalCount.incrementAndGet();
-            jLabel4.setText(count.get() + "/" + totalCount.get());
-
-            final Request request = new Request.Builder()
-                    .url("https://api.zdf.de/content/documents/" + id + ".json")
-                    .addHeader("Api-Auth", "Bearer " + userPrefs.get("ZDFAPIKEY", ""))
-                    .build();
-
-            final Call call = client.newCall(request);
+        /**
+         * Wie {@link #addDownloadJob(java.lang.String, java.io.File)}, aber
+         * jeder Datensatz in eine eigene Datei.
+         *
+         * @param id
+         * @param saveToFile
+         * @param keepOriginal
+         */
+        public void addDownloadJob(String id, File saveToFile, boolean keepOriginal) {
+            final Call call = enqueue(id);
             call.enqueue(new Callback() {
 
                 @Override
                 public void onFailure(Call call, IOException e) {
+                    slots.release();
                     count.incrementAndGet();
-                    errorDownloads.add(id);
+                    failed(id, e.getMessage());
                     LOG.error("{}: {}", saveToFile.getName(), e.getMessage());
                     done();
                 }
 
                 @Override
                 public void onResponse(Call call, Response response) {
-                    count.incrementAndGet();
                     String jsonFileName = saveToFile.getAbsolutePath().replace(".xml", ".json");
                     if (!jsonFileName.endsWith(".json")) {
                         jsonFileName += ".json";
                     }
                     final File saveToJsonFile = new File(jsonFileName);
 
-                    try {
-                        final BufferedSink sink = Okio.buffer(Okio.sink(saveToJsonFile));
-                        sink.writeAll(response.body().source());
-                        sink.close();
-
-                        final ZdfRdfRecord record = RdfDocumentProcessor.process(saveToJsonFile);
-                        list.getListRecords().addRecord(record);
-                        RdfDocumentProcessor.save(record, saveToFile);
-
-                        if (!keepOriginal) {
-
-                            if (!saveToJsonFile.delete()) {
-                                LOG.warn("Konnte temporäre Datei {} nicht löschen.", saveToJsonFile.getAbsolutePath());
-                            }
+                    final byte[] data;
+                    try (final ResponseBody body = response.body()) {
+                        if (!response.isSuccessful()) {
+                            throw new IOException("Response code: " + response.code());
                         }
-
+                        data = body.bytes();
                     } catch (Exception ex) {
+                        count.incrementAndGet();
                         LOG.error("{}: {}", saveToJsonFile.getAbsolutePath(), ex.getLocalizedMessage());
-                        errorDownloads.add(id);
+                        failed(id, ex.getLocalizedMessage());
+                        done();
+                        return;
+                    } finally {
+                        slots.release();
                     }
-                    done();
-                }
-
-                private synchronized void done() {
-                    jLabel4.setText(count.get() + "/" + totalCount.get() + " (" + errorDownloads.size() + " Fehler)");
-                    LOG.debug("addingDownloads: {}; count: {}; totalCount: {}; queuedCallsCount: {}; runningCallsCount: {}", addingDownloads, count, totalCount, client.dispatcher().queuedCallsCount(), client.dispatcher().runningCallsCount());
-                    if (!addingDownloads && count.get() == totalCount.get() && client.dispatcher().queuedCallsCount() == 0 && client.dispatcher().runningCallsCount() < 2) {
 
-                        jButton3.setEnabled(true);
-
-                        final DefaultTableModel model = (DefaultTableModel) jTable1.getModel();
-                        model.setRowCount(0);
-                        for (String s : errorDownloads) {
-                            model.addRow(new String[]{s});
-                        }
-
-                        if (errorDownloads.size() > 0) {
-                            JOptionPane.showMessageDialog(null, "Download mit Fehlern abgeschlossen! Es gab " + errorDownloads.size() + " Fehler.", "Fertig", JOptionPane.WARNING_MESSAGE);
-                        } else {
-                            JOptionPane.showMessageDialog(null, "Download ist abgeschlossen! Es gab " + errorDownloads.size() + " Fehler.", "Fertig", JOptionPane.INFORMATION_MESSAGE);
+                    convert(id, () -> {
+                        try {
+                            if (keepOriginal) {
+                                Files.write(saveToJsonFile.toPath(), data);
+                            }
+                            final ZdfRdfRecord record = RdfDocumentProcessor.process(data);
+                            RdfDocumentProcessor.save(record, saveToFile);
+                            if (normalizeNamespaces) {
+                                NamespaceNormalizer.normalize(saveToFile);
+                            }
+                            journal.done(id, saveToFile);
+                            if (store != null) {
+                                store.put(id, data, record);
+                            }
+                        } catch (Exception ex) {
+                            LOG.error("{}: {}", saveToJsonFile.getAbsolutePath(), ex.getLocalizedMessage());
+                            failed(id, ex.getLocalizedMessage());
                         }
-                    }
+                        count.incrementAndGet();
+                        done();
+                    }, () -> done());
                 }
-
             });
         }
+
+        /**
+         * Wartet auf einen freien Platz, zählt die ID zum Auftrag und legt
+         * den Aufruf an.
+         */
+        private Call enqueue(String id) {
+            slots.acquireUninterruptibly();
+            totalCount.incrementAndGet();
+            try {
+                journal.pending(id);
+            } catch (IOException ex) {
+                LOG.error("Journal konnte nicht geschrieben werden. {}", ex.getMessage());
+            }
+            final String progress = count.get() + "/" + totalCount.get();
+            SwingUtilities.invokeLater(() -> jLabel4.setText(progress));
+
+            final Request request = new Request.Builder()
+                    .url(Transport.getInstance().documentUrl(id))
+                    .build();
+            return client.newCall(request);
+        }
     }
 }
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.gui;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import javax.swing.JTable;
+import javax.swing.ListSelectionModel;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * Nicht editierbares Tabellenmodell für große Listen von IDs (Suchtreffer,
+ * Download-Liste). Die Werte liegen spaltenweise in einfachen Arrays, die
+ * erste Spalte ist immer die ID. Zeilen werden blockweise angehängt und mit
+ * einem einzigen <code>fireTableRowsInserted</code> gemeldet; beim Neuaufbau
+ * bleibt die Auswahl über die IDs erhalten, nicht über die Zeilennummern.
+ * <p>
+ * Alle Methoden dürfen nur im Event Dispatch Thread aufgerufen werden.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class IdTableModel extends AbstractTableModel {
+
+    private final static int INITIAL_CAPACITY = 256;
+
+    private final String[] names;
+    private String[][] columns;
+    private int size;
+
+    /**
+     * @param names Spaltentitel, der erste ist die ID
+     */
+    public IdTableModel(String... names) {
+        if (names.length == 0) {
+            throw new IllegalArgumentException("at least one column required");
+        }
+        this.names = names.clone();
+        this.columns = new String[names.length][INITIAL_CAPACITY];
+        this.size = 0;
+    }
+
+    @Override
+    public int getRowCount() {
+        return size;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return names.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return names[column];
+    }
+
+    @Override
+    public Class<?> getColumnClass(int columnIndex) {
+        return String.class;
+    }
+
+    @Override
+    public boolean isCellEditable(int rowIndex, int columnIndex) {
+        return false;
+    }
+
+    @Override
+    public String getValueAt(int rowIndex, int columnIndex) {
+        if (rowIndex >= size) {
+            throw new IndexOutOfBoundsException("row " + rowIndex + " >= " + size);
+        }
+        return columns[columnIndex][rowIndex];
+    }
+
+    public String getId(int row) {
+        return getValueAt(row, 0);
+    }
+
+    /**
+     * @return alle IDs in der Reihenfolge der Tabelle
+     */
+    public List<String> getIds() {
+        return Arrays.asList(Arrays.copyOf(columns[0], size));
+    }
+
+    /**
+     * Hängt Zeilen an (fehlende Spalten bleiben leer).
+     *
+     * @param rows
+     */
+    public void addRows(List<String[]> rows) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        final int first = size;
+        ensureCapacity(size + rows.size());
+        for (String[] row : rows) {
+            for (int c = 0; c < columns.length; ++c) {
+                columns[c][size] = c < row.length ? row[c] : "";
+            }
+            ++size;
+        }
+        fireTableRowsInserted(first, size - 1);
+    }
+
+    /**
+     * Hängt IDs an (nur erste Spalte).
+     *
+     * @param ids
+     */
+    public void addIds(Collection<String> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        final int first = size;
+        ensureCapacity(size + ids.size());
+        for (String id : ids) {
+            columns[0][size] = id;
+            for (int c = 1; c < columns.length; ++c) {
+                columns[c][size] = "";
+            }
+            ++size;
+        }
+        fireTableRowsInserted(first, size - 1);
+    }
+
+    /**
+     * Ersetzt den Inhalt durch die IDs (nur erste Spalte). Ausgewählte IDs
+     * bleiben ausgewählt, wenn es sie danach noch gibt.
+     *
+     * @param table Tabelle, deren Auswahl erhalten bleiben soll, oder
+     * <code>null</code>
+     * @param ids
+     */
+    public void setIds(JTable table, Collection<String> ids) {
+        final Set<String> selected = table == null ? null : getSelectedIds(table);
+        columns = new String[names.length][Math.max(ids.size(), INITIAL_CAPACITY)];
+        size = 0;
+        for (String id : ids) {
+            columns[0][size] = id;
+            for (int c = 1; c < columns.length; ++c) {
+                columns[c][size] = "";
+            }
+            ++size;
+        }
+        fireTableDataChanged();
+        if (selected != null) {
+            select(table, selected);
+        }
+    }
+
+    /**
+     * Entfernt Zeilen.
+     *
+     * @param rows Zeilennummern des Modells
+     */
+    public void removeRows(int[] rows) {
+        if (rows.length == 0) {
+            return;
+        }
+        final int[] sorted = rows.clone();
+        Arrays.sort(sorted);
+        int next = 0;
+        int dst = 0;
+        for (int src = 0; src < size; ++src) {
+            if (next < sorted.length && sorted[next] == src) {
+                while (next < sorted.length && sorted[next] == src) {
+                    ++next;
+                }
+                continue;
+            }
+            if (dst != src) {
+                for (String[] column : columns) {
+                    column[dst] = column[src];
+                }
+            }
+            ++dst;
+        }
+        for (String[] column : columns) {
+            Arrays.fill(column, dst, size, null);
+        }
+        size = dst;
+        fireTableDataChanged();
+    }
+
+    public void clear() {
+        if (size == 0) {
+            return;
+        }
+        final int last = size - 1;
+        columns = new String[names.length][INITIAL_CAPACITY];
+        size = 0;
+        fireTableRowsDeleted(0, last);
+    }
+
+    /**
+     * @param table
+     * @return die IDs der ausgewählten Zeilen
+     */
+    public Set<String> getSelectedIds(JTable table) {
+        final Set<String> ids = new LinkedHashSet<>();
+        for (int row : table.getSelectedRows()) {
+            ids.add(getId(table.convertRowIndexToModel(row)));
+        }
+        return ids;
+    }
+
+    /**
+     * Wählt alle Zeilen mit den angegebenen IDs aus.
+     *
+     * @param table
+     * @param ids
+     */
+    public void select(JTable table, Set<String> ids) {
+        final ListSelectionModel selection = table.getSelectionModel();
+        selection.setValueIsAdjusting(true);
+        try {
+            selection.clearSelection();
+            if (ids.isEmpty()) {
+                return;
+            }
+            // select runs of rows at once instead of row by row
+            int start = -1;
+            for (int row = 0; row <= size; ++row) {
+                final boolean hit = row < size && ids.contains(columns[0][row]);
+                if (hit && start < 0) {
+                    start = row;
+                } else if (!hit && start >= 0) {
+                    selection.addSelectionInterval(table.convertRowIndexToView(start), table.convertRowIndexToView(row - 1));
+                    start = -1;
+                }
+            }
+        } finally {
+            selection.setValueIsAdjusting(false);
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= columns[0].length) {
+            return;
+        }
+        final int newCapacity = Math.max(capacity, columns[0].length + (columns[0].length >> 1));
+        for (int c = 0; c < columns.length; ++c) {
+            columns[c] = Arrays.copyOf(columns[c], newCapacity);
+        }
+    }
+}
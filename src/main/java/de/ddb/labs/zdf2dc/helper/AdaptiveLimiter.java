@@ -0,0 +1,268 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.helper;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import lombok.Getter;
+import okhttp3.Call;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Passt die Anzahl gleichzeitiger Anfragen zur Laufzeit an (AIMD): Jede
+ * schnelle Antwort erhöht das Limit um <code>1/Limit</code>, also um etwa
+ * eins pro Runde, solange das Limit auch ausgeschöpft wird. Timeouts,
+ * Verbindungsfehler, <code>429</code>, <code>5xx</code> und Antworten
+ * langsamer als die Ziel-Latenz verkleinern es um ein Viertel, höchstens
+ * einmal pro Runde (mittlere Antwortzeit). Antworten aus dem Cache zählen
+ * nicht.
+ * <p>
+ * Gemessen wird nur die Zeit im Netz, vom Senden der Anfrage bis zu den
+ * Headern der Antwort. Wartezeiten im Programm (z.B. auf den
+ * {@link RateLimiter}) gelten nicht als langsamer Server.
+ * <p>
+ * Wird über {@link #apply(okhttp3.OkHttpClient.Builder)} als Interceptor
+ * eingebunden; die Grenzen des Dispatchers sollten mindestens
+ * {@link #getMax()} sein. Die Standardwerte kommen aus den System-Properties
+ * <code>zdf2dc.limit.min</code>, <code>zdf2dc.limit.max</code> und
+ * <code>zdf2dc.limit.latency</code> (ms).
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class AdaptiveLimiter {
+
+    private final static Logger LOG = LoggerFactory.getLogger(AdaptiveLimiter.class);
+    public final static int DEFAULT_INITIAL = 10;
+    public final static int DEFAULT_MIN = Integer.getInteger("zdf2dc.limit.min", 1);
+    public final static int DEFAULT_MAX = Integer.getInteger("zdf2dc.limit.max", 32);
+    public final static long DEFAULT_TARGET_LATENCY = Long.getLong("zdf2dc.limit.latency", 2000);
+    private final static double BACKOFF = 0.75;
+    private final static double RTT_WEIGHT = 0.2;
+
+    @Getter
+    private final int min;
+    @Getter
+    private final int max;
+    /**
+     * Ziel-Latenz in ms
+     */
+    @Getter
+    private final long targetLatency;
+    private final ReentrantLock lock;
+    private final Condition available;
+    private final AtomicLong drops;
+    // time on the network of the last exchange per call, see measure()
+    private final Map<Call, Long> networkNanos;
+    private double limit;
+    private int inFlight;
+    // smoothed latency of the successful requests in ns
+    private double rtt;
+    private long nextDecrease;
+
+    public AdaptiveLimiter() {
+        this(DEFAULT_INITIAL, DEFAULT_MIN, DEFAULT_MAX, DEFAULT_TARGET_LATENCY);
+    }
+
+    /**
+     * @param initial Limit am Anfang
+     * @param min kleinstes Limit
+     * @param max größtes Limit
+     * @param targetLatency Ziel-Latenz in ms
+     */
+    public AdaptiveLimiter(int initial, int min, int max, long targetLatency) {
+        if (min <= 0 || max < min || targetLatency <= 0) {
+            throw new IllegalArgumentException("0 < min <= max and targetLatency > 0 required");
+        }
+        this.min = min;
+        this.max = max;
+        this.targetLatency = targetLatency;
+        this.lock = new ReentrantLock();
+        this.available = lock.newCondition();
+        this.drops = new AtomicLong(0);
+        this.networkNanos = new ConcurrentHashMap<>();
+        this.limit = Math.max(min, Math.min(max, initial));
+        this.inFlight = 0;
+        this.rtt = 0;
+        this.nextDecrease = System.nanoTime();
+    }
+
+    /**
+     * Richtet einen Client für das Limit ein: als Interceptor für die Plätze,
+     * als Network-Interceptor (innerster) für die Messung.
+     *
+     * @param builder
+     * @return
+     */
+    public OkHttpClient.Builder apply(OkHttpClient.Builder builder) {
+        return builder.addInterceptor(this::intercept).addNetworkInterceptor(this::measure);
+    }
+
+    private Response measure(Interceptor.Chain chain) throws IOException {
+        final long start = System.nanoTime();
+        try {
+            return chain.proceed(chain.request());
+        } finally {
+            networkNanos.put(chain.call(), System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return Zeit im Netz, ohne Messung (z.B. kein Verbindungsaufbau) die
+     * ganze Zeit seit <code>start</code>
+     */
+    private long latency(Call call, long start) {
+        final Long nanos = networkNanos.remove(call);
+        return nanos != null ? nanos : System.nanoTime() - start;
+    }
+
+    private Response intercept(Interceptor.Chain chain) throws IOException {
+        if (chain.request().cacheControl().onlyIfCached()) {
+            // answered by the cache, see RateLimiter
+            return chain.proceed(chain.request());
+        }
+        try {
+            acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a request slot");
+        }
+        final long start = System.nanoTime();
+        final Response response;
+        try {
+            response = chain.proceed(chain.request());
+        } catch (IOException e) {
+            release(latency(chain.call(), start), chain.call().isCanceled() ? Sample.IGNORE : Sample.DROP);
+            throw e;
+        } catch (RuntimeException e) {
+            release(latency(chain.call(), start), Sample.IGNORE);
+            throw e;
+        }
+        final long nanos = latency(chain.call(), start);
+        if (response.networkResponse() == null) {
+            release(nanos, Sample.IGNORE);
+        } else if (response.code() == 429 || response.code() >= 500) {
+            release(nanos, Sample.DROP);
+        } else {
+            release(nanos, Sample.OK);
+        }
+        return response;
+    }
+
+    private enum Sample {
+        OK, DROP, IGNORE
+    }
+
+    private void acquire() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (inFlight >= (int) limit) {
+                available.await();
+            }
+            ++inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param nanos Zeit im Netz
+     * @param sample
+     */
+    private void release(long nanos, Sample sample) {
+        final long now = System.nanoTime();
+        final long latency = TimeUnit.NANOSECONDS.toMillis(nanos);
+        lock.lock();
+        try {
+            final int used = inFlight--;
+            if (sample == Sample.OK) {
+                rtt = rtt == 0 ? nanos : rtt + RTT_WEIGHT * (nanos - rtt);
+            }
+            if (sample == Sample.DROP || (sample == Sample.OK && latency > targetLatency)) {
+                drops.incrementAndGet();
+                // the requests already running see the same overload, so back off once per round
+                if (now - nextDecrease >= 0) {
+                    limit = Math.max(min, limit * BACKOFF);
+                    nextDecrease = now + (long) Math.min(rtt, TimeUnit.MILLISECONDS.toNanos(targetLatency));
+                    LOG.debug("Limit decreased to {} ({}, {} ms)", (int) limit, sample, latency);
+                }
+            } else if (sample == Sample.OK && used * 2 >= limit && limit < max) {
+                // only grow if the limit is actually used
+                final int old = (int) limit;
+                limit = Math.min(max, limit + 1 / limit);
+                if ((int) limit != old) {
+                    LOG.debug("Limit increased to {}", (int) limit);
+                }
+            }
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return aktuelle Anzahl erlaubter gleichzeitiger Anfragen
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Anzahl laufender Anfragen
+     */
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Messungen, die noch keiner beendeten Anfrage zugeordnet sind
+     * (ohne laufende Anfragen <code>0</code>)
+     */
+    int getPendingMeasurements() {
+        return networkNanos.size();
+    }
+
+    /**
+     * @return Anzahl der Überlast-Signale (Timeout, 429, 5xx, zu langsam)
+     */
+    public long getDropCount() {
+        return drops.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Limit: %d parallele Anfragen (%d-%d, Ziel %d ms), %d Überlast-Signale", getLimit(), min, max, targetLatency, getDropCount());
+    }
+}
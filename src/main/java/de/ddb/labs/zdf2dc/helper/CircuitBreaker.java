@@ -0,0 +1,146 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.helper;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hält neue Anfragen an, solange der Server nicht antwortet: Nach
+ * <code>threshold</code> Fehlern in Folge wird der Schalter geöffnet und alle
+ * Anfragen warten. Nach der Pause darf genau eine Anfrage als Test durch; ist
+ * sie erfolgreich, wird der Schalter geschlossen, sonst verdoppelt sich die
+ * Pause (höchstens bis <code>maxPause</code>). Ist der Schalter länger als
+ * <code>giveUp</code> offen, schlagen wartende Anfragen sofort fehl, damit
+ * ein Auftrag nicht endlos hängt.
+ * <p>
+ * Jeder Aufruf von {@link #acquire()} muss mit {@link #success()},
+ * {@link #failure()} oder {@link #cancelled()} abgeschlossen werden.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class CircuitBreaker {
+
+    private final static Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int threshold;
+    private final long pause, maxPause, giveUp;
+    @Getter
+    private State state;
+    private int failures;
+    private long currentPause;
+    private long openedAt, openUntil;
+    @Getter
+    private int openCount;
+
+    /**
+     * @param threshold Anzahl der Fehler in Folge, nach der geöffnet wird
+     * @param pause erste Pause in ms
+     * @param maxPause längste Pause in ms
+     * @param giveUp nach so vielen ms offen schlagen Anfragen fehl
+     */
+    public CircuitBreaker(int threshold, long pause, long maxPause, long giveUp) {
+        this.threshold = threshold;
+        this.pause = pause;
+        this.maxPause = maxPause;
+        this.giveUp = giveUp;
+        this.state = State.CLOSED;
+        this.failures = 0;
+        this.currentPause = pause;
+    }
+
+    /**
+     * Wartet, bis eine Anfrage geschickt werden darf.
+     *
+     * @throws InterruptedException
+     * @throws IOException Schalter ist zu lange offen
+     */
+    public synchronized void acquire() throws InterruptedException, IOException {
+        while (true) {
+            final long now = System.nanoTime();
+            switch (state) {
+                case CLOSED:
+                    return;
+                case OPEN:
+                    if (now - openUntil >= 0) {
+                        // this caller is the probe
+                        state = State.HALF_OPEN;
+                        return;
+                    }
+                    if (now - openedAt > TimeUnit.MILLISECONDS.toNanos(giveUp)) {
+                        throw new IOException("API antwortet nicht (seit " + TimeUnit.NANOSECONDS.toSeconds(now - openedAt) + " s)");
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, openUntil - now);
+                    break;
+                default:
+                    // wait for the probe
+                    wait(pause);
+                    break;
+            }
+        }
+    }
+
+    public synchronized void success() {
+        failures = 0;
+        if (state != State.CLOSED) {
+            LOG.info("API is responding again, resuming requests");
+            state = State.CLOSED;
+            currentPause = pause;
+            notifyAll();
+        }
+    }
+
+    public synchronized void failure() {
+        ++failures;
+        if (state == State.HALF_OPEN) {
+            currentPause = Math.min(currentPause * 2, maxPause);
+            open(false);
+        } else if (state == State.CLOSED && failures >= threshold) {
+            open(true);
+        }
+    }
+
+    /**
+     * Anfrage wurde abgebrochen, das sagt nichts über den Server.
+     */
+    public synchronized void cancelled() {
+        if (state == State.HALF_OPEN) {
+            // let the next caller probe
+            state = State.OPEN;
+            openUntil = System.nanoTime();
+            notifyAll();
+        }
+    }
+
+    private void open(boolean first) {
+        final long now = System.nanoTime();
+        if (first) {
+            openedAt = now;
+            ++openCount;
+        }
+        state = State.OPEN;
+        openUntil = now + TimeUnit.MILLISECONDS.toNanos(currentPause);
+        LOG.warn("{} failures in a row, pausing requests for {} ms", failures, currentPause);
+        notifyAll();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.helper;
+
+import java.io.Closeable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.Getter;
+
+/**
+ * Thread-Pool für die CPU-lastige Konvertierung (JSON lesen, Mapping, XML
+ * schreiben), getrennt von den Netzwerk-Threads des OkHttp-Dispatchers. Die
+ * Callbacks reichen nur die geladenen Bytes weiter. Ist die Warteschlange
+ * voll, blockiert {@link #submit(Runnable)} den aufrufenden Netzwerk-Thread,
+ * bis wieder Platz ist (Backpressure).
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class ConversionPool implements Closeable {
+
+    private final static int QUEUE_PER_THREAD = 4;
+    private final static AtomicInteger poolNumber = new AtomicInteger(0);
+
+    private final ExecutorService executor;
+    // running + queued tasks
+    private final Semaphore slots;
+    @Getter
+    private final int threads;
+    @Getter
+    private final int capacity;
+
+    /**
+     * Ein Thread pro Prozessorkern.
+     */
+    public ConversionPool() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ConversionPool(int threads) {
+        this(threads, threads * QUEUE_PER_THREAD);
+    }
+
+    /**
+     * @param threads Anzahl der Konvertierungs-Threads
+     * @param capacity Anzahl der Aufgaben, die höchstens warten dürfen
+     */
+    public ConversionPool(int threads, int capacity) {
+        if (threads <= 0 || capacity < 0) {
+            throw new IllegalArgumentException("threads must be > 0 and capacity >= 0");
+        }
+        this.threads = threads;
+        this.capacity = capacity;
+        this.slots = new Semaphore(threads + capacity);
+
+        final int pool = poolNumber.incrementAndGet();
+        final AtomicInteger threadNumber = new AtomicInteger(0);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+            final Thread t = new Thread(r, "zdf2dc-convert-" + pool + "-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Reiht eine Konvertierung ein. Blockiert, solange die Warteschlange voll
+     * ist.
+     *
+     * @param task
+     * @throws InterruptedException
+     */
+    public void submit(Runnable task) throws InterruptedException {
+        final PipelineMetrics metrics = PipelineMetrics.getInstance();
+        slots.acquire();
+        metrics.conversionQueued();
+        try {
+            executor.execute(() -> {
+                metrics.conversionStarted();
+                try {
+                    task.run();
+                } finally {
+                    metrics.conversionFinished();
+                    slots.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            metrics.conversionStarted();
+            metrics.conversionFinished();
+            slots.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Wartet auf alle eingereihten Konvertierungen und beendet den Pool.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.helper;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * Liste ohne Dupletten in der Reihenfolge des Hinzufügens. Neben den Werten
+ * wird ein Hash-Index gehalten, so dass {@link #add(java.lang.Object)} und
+ * {@link #contains(java.lang.Object)} <code>O(1)</code> kosten statt die
+ * ganze Liste mit <code>equals</code> zu vergleichen. Der Hashcode eines
+ * Werts wird beim Hinzufügen einmal berechnet und im Index gespeichert;
+ * Werte dürfen danach nicht mehr verändert werden.
+ * <p>
+ * Für Jackson ist das eine normale Liste, die Serialisierung bleibt gleich.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ * @param <E>
+ */
+public class DistinctList<E> extends AbstractList<E> implements RandomAccess {
+
+    private final List<E> elements = new ArrayList<>();
+    private final Set<E> index = new HashSet<>();
+
+    @Override
+    public E get(int i) {
+        return elements.get(i);
+    }
+
+    @Override
+    public int size() {
+        return elements.size();
+    }
+
+    /**
+     * Hängt den Wert an, wenn er noch nicht enthalten ist.
+     *
+     * @param e
+     * @return <code>false</code> bei einer Duplette
+     */
+    @Override
+    public boolean add(E e) {
+        if (!index.add(e)) {
+            return false;
+        }
+        ++modCount;
+        return elements.add(e);
+    }
+
+    /**
+     * Fügt den Wert ein, wenn er noch nicht enthalten ist.
+     *
+     * @param i
+     * @param e
+     */
+    @Override
+    public void add(int i, E e) {
+        if (index.add(e)) {
+            ++modCount;
+            elements.add(i, e);
+        }
+    }
+
+    @Override
+    public E set(int i, E e) {
+        final E old = elements.get(i);
+        if (old == null ? e == null : old.equals(e)) {
+            return elements.set(i, e);
+        }
+        if (!index.add(e)) {
+            throw new IllegalArgumentException("duplicate element: " + e);
+        }
+        index.remove(old);
+        return elements.set(i, e);
+    }
+
+    @Override
+    public E remove(int i) {
+        final E old = elements.remove(i);
+        ++modCount;
+        index.remove(old);
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        ++modCount;
+        elements.clear();
+        index.clear();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return index.contains(o);
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        return index.contains(o) ? elements.indexOf(o) : -1;
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        return indexOf(o);
+    }
+}
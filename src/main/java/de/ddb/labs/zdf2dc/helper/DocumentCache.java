@@ -0,0 +1,245 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.helper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Getter;
+import okhttp3.Cache;
+import okhttp3.CacheControl;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistenter HTTP-Cache für ZDF-Dokumente (<code>/content/documents/</code>)
+ * auf Basis des OkHttp-Caches (Größe begrenzt, LRU). Dokumente werden immer
+ * gespeichert und vor der Verwendung mit <code>If-None-Match</code> bzw.
+ * <code>If-Modified-Since</code> geprüft; bei <code>304</code> wird der
+ * gespeicherte Inhalt verwendet. Optional werden gespeicherte Dokumente für
+ * eine bestimmte Zeit ohne Rückfrage verwendet (Offline-Modus). Alle anderen
+ * Anfragen (z.B. Suche) werden nicht gespeichert.
+ * <p>
+ * Es gibt genau einen Cache pro Programm, alle Clients verwenden ihn über
+ * {@link #apply(okhttp3.OkHttpClient.Builder)}. Konfiguriert wird er über
+ * {@link #configure(java.io.File, long, int)} oder die System-Properties
+ * <code>zdf2dc.cache.dir</code>, <code>zdf2dc.cache.size</code> (MB,
+ * <code>0</code> schaltet den Cache ab) und <code>zdf2dc.cache.trust</code>
+ * (Stunden).
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class DocumentCache {
+
+    private final static Logger LOG = LoggerFactory.getLogger(DocumentCache.class);
+    private final static String DOCUMENTS_PATH = "/content/documents/";
+    private final static String DIR_PROPERTY = "zdf2dc.cache.dir";
+    private final static String SIZE_PROPERTY = "zdf2dc.cache.size";
+    private final static String TRUST_PROPERTY = "zdf2dc.cache.trust";
+    private final static long DEFAULT_SIZE = 512; // MB
+    private final static CacheControl NO_STORE = new CacheControl.Builder().noStore().build();
+
+    private static DocumentCache instance;
+
+    private final Cache cache;
+    @Getter
+    private final File directory;
+    @Getter
+    private final int trustHours;
+    private final AtomicLong hits, revalidated, misses, bytesSaved, hitNanos, missNanos;
+
+    private DocumentCache(File directory, long maxSizeMb, int trustHours) {
+        this.directory = directory;
+        this.cache = maxSizeMb > 0 ? new Cache(directory, maxSizeMb * 1024 * 1024) : null;
+        this.trustHours = Math.max(trustHours, 0);
+        this.hits = new AtomicLong(0);
+        this.revalidated = new AtomicLong(0);
+        this.misses = new AtomicLong(0);
+        this.bytesSaved = new AtomicLong(0);
+        this.hitNanos = new AtomicLong(0);
+        this.missNanos = new AtomicLong(0);
+        if (cache != null) {
+            LOG.info("Document cache in {} ({} MB{})", directory.getAbsolutePath(), maxSizeMb, this.trustHours > 0 ? ", trusted for " + this.trustHours + " h" : "");
+        }
+    }
+
+    /**
+     * Legt Ort, Größe und Offline-Zeit fest. Muss vor dem Erzeugen der
+     * Clients aufgerufen werden. Nicht angegebene Werte (<code>null</code>
+     * bzw. negativ) kommen aus den System-Properties. Ein vorher
+     * konfigurierter Cache wird geschlossen; Clients, die ihn noch verwenden,
+     * können danach nicht mehr auf ihn zugreifen.
+     *
+     * @param directory
+     * @param maxSizeMb maximale Größe in MB, <code>0</code>: kein Cache
+     * @param trustHours so lange werden gespeicherte Dokumente ohne Rückfrage
+     * verwendet, <code>0</code>: immer prüfen
+     */
+    public static synchronized void configure(File directory, long maxSizeMb, int trustHours) {
+        if (directory == null) {
+            final String dir = System.getProperty(DIR_PROPERTY);
+            directory = dir == null ? new File(System.getProperty("user.home"), ".zdf2dc" + File.separator + "cache") : new File(dir);
+        }
+        if (instance != null) {
+            // OkHttp's cache must not be opened twice on the same directory
+            instance.close();
+        }
+        instance = new DocumentCache(directory,
+                maxSizeMb < 0 ? Long.getLong(SIZE_PROPERTY, DEFAULT_SIZE) : maxSizeMb,
+                trustHours < 0 ? Integer.getInteger(TRUST_PROPERTY, 0) : trustHours);
+    }
+
+    public static synchronized DocumentCache getInstance() {
+        if (instance == null) {
+            configure(null, -1, -1);
+        }
+        return instance;
+    }
+
+    private void close() {
+        if (cache == null) {
+            return;
+        }
+        try {
+            cache.close();
+        } catch (IOException e) {
+            LOG.warn("Could not close document cache in {}. {}", directory.getAbsolutePath(), e.getMessage());
+        }
+    }
+
+    /**
+     * Richtet einen Client für den Cache ein.
+     *
+     * @param builder
+     * @return
+     */
+    public OkHttpClient.Builder apply(OkHttpClient.Builder builder) {
+        if (cache == null) {
+            return builder;
+        }
+        return builder
+                .cache(cache)
+                .addInterceptor(this::intercept)
+                .addNetworkInterceptor(DocumentCache::interceptNetwork);
+    }
+
+    private static boolean isDocument(Request request) {
+        return request.url().encodedPath().startsWith(DOCUMENTS_PATH);
+    }
+
+    private Response intercept(Interceptor.Chain chain) throws IOException {
+        Request request = chain.request();
+        if (!isDocument(request)) {
+            return chain.proceed(request.newBuilder().cacheControl(NO_STORE).build());
+        }
+        if (trustHours > 0) {
+            request = request.newBuilder()
+                    .cacheControl(new CacheControl.Builder().maxStale(trustHours, TimeUnit.HOURS).build())
+                    .build();
+        }
+
+        final long start = System.nanoTime();
+        final Response response = chain.proceed(request);
+        final long nanos = System.nanoTime() - start;
+
+        if (response.cacheResponse() != null && (response.networkResponse() == null || response.networkResponse().code() == 304)) {
+            (response.networkResponse() == null ? hits : revalidated).incrementAndGet();
+            hitNanos.addAndGet(nanos);
+            final long length = response.body() == null ? -1 : response.body().contentLength();
+            if (length > 0) {
+                bytesSaved.addAndGet(length);
+            }
+        } else {
+            misses.incrementAndGet();
+            missNanos.addAndGet(nanos);
+        }
+        return response;
+    }
+
+    /**
+     * Dokumente immer speichern, aber als sofort veraltet markieren, damit sie
+     * vor jeder Verwendung geprüft werden (außer im Offline-Modus).
+     */
+    private static Response interceptNetwork(Interceptor.Chain chain) throws IOException {
+        final Response response = chain.proceed(chain.request());
+        if (!isDocument(chain.request()) || (response.code() != 200 && response.code() != 304)) {
+            return response;
+        }
+        return response.newBuilder()
+                .removeHeader("Pragma")
+                .removeHeader("Expires")
+                .header("Cache-Control", "max-age=0")
+                .build();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getRevalidatedCount() {
+        return revalidated.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return Bytes, die aus dem Cache statt über das Netz kamen
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    /**
+     * @return durchschnittliche Dauer einer Anfrage aus dem Cache (inkl.
+     * Prüfung) in ms
+     */
+    public double getAverageHitMillis() {
+        final long n = hits.get() + revalidated.get();
+        return n == 0 ? 0 : hitNanos.get() / 1e6 / n;
+    }
+
+    /**
+     * @return durchschnittliche Dauer einer Anfrage über das Netz in ms
+     */
+    public double getAverageMissMillis() {
+        final long n = misses.get();
+        return n == 0 ? 0 : missNanos.get() / 1e6 / n;
+    }
+
+    /**
+     * @return Größe des Caches in Bytes
+     */
+    public long getSize() {
+        try {
+            return cache == null ? 0 : cache.size();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Cache: %d Treffer, %d geprüft (304), %d geladen, %.1f MB gespart, %.1f ms statt %.1f ms pro Dokument",
+                getHitCount(), getRevalidatedCount(), getMissCount(), getBytesSaved() / 1024.0 / 1024.0, getAverageHitMillis(), getAverageMissMillis());
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.helper;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.Getter;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Liest den Feed <code>/content/feed/current</code> der ZDF-API und sammelt
+ * die Dokumente, die seit einer {@link HarvestMark} neu sind oder geändert
+ * wurden. Die Einträge stehen wie bei der Suche in
+ * <code>http://zdf.de/rels/search/results</code>, ID und
+ * <code>editorialDate</code> am Eintrag oder an seinem
+ * <code>http://zdf.de/rels/target</code>. Weitere Seiten (<code>next</code>)
+ * werden gelesen, bis eine Seite nichts Neues mehr enthält, höchstens
+ * <code>zdf2dc.feed.pages</code> (100) Seiten.
+ * <p>
+ * Endet der Feed (auch mit einer leeren Seite), bevor die Marke erreicht ist,
+ * fehlen womöglich Dokumente; dann ist {@link Delta#isGap()} gesetzt und ein
+ * vollständiger Export nötig.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class FeedHarvester {
+
+    private final static Logger LOG = LoggerFactory.getLogger(FeedHarvester.class);
+    private final static String FEED_PATH = "/content/feed/current";
+    private final static String RESULTS = "http://zdf.de/rels/search/results";
+    private final static String TARGET = "http://zdf.de/rels/target";
+    private final static int MAX_PAGES = Integer.getInteger("zdf2dc.feed.pages", 100);
+
+    private final OkHttpClient client;
+    private final ObjectMapper mapper;
+    private final String baseUrl;
+
+    /**
+     * @param client
+     * @param mapper
+     * @param baseUrl z.B. <code>https://api.zdf.de</code>
+     */
+    public FeedHarvester(OkHttpClient client, ObjectMapper mapper, String baseUrl) {
+        this.client = client;
+        this.mapper = mapper;
+        this.baseUrl = baseUrl;
+    }
+
+    /**
+     * Neue bzw. geänderte Dokumente laut Feed.
+     */
+    public static class Delta {
+
+        // new documents and their editorialDate (null: unknown), in feed order
+        private final Map<String, Instant> documents = new LinkedHashMap<>();
+        @Getter
+        private boolean gap;
+        @Getter
+        private int pages;
+
+        /**
+         * @return IDs der neuen bzw. geänderten Dokumente
+         */
+        public List<String> getIds() {
+            return Collections.unmodifiableList(new ArrayList<>(documents.keySet()));
+        }
+
+        /**
+         * Schiebt die Marke bis zum jüngsten Dokument vor.
+         *
+         * @param mark
+         */
+        public void advance(HarvestMark mark) {
+            documents.forEach(mark::advance);
+        }
+    }
+
+    /**
+     * @param mark
+     * @return Dokumente, die nach <code>mark</code> neu sind
+     * @throws IOException
+     */
+    public Delta since(HarvestMark mark) throws IOException {
+        final Delta delta = new Delta();
+        HttpUrl url = HttpUrl.get(baseUrl + FEED_PATH);
+        while (url != null && delta.pages < MAX_PAGES) {
+            final JsonNode rootNode = fetch(url);
+            ++delta.pages;
+            boolean reachedMark = false;
+            final JsonNode results = rootNode.path(RESULTS);
+            for (JsonNode entry : results) {
+                final String id = text(entry, "id");
+                if (id.isEmpty()) {
+                    continue;
+                }
+                final Instant date = HarvestMark.parse(text(entry, "editorialDate"));
+                if (mark.isNew(id, date)) {
+                    delta.documents.putIfAbsent(id, date);
+                } else {
+                    reachedMark = true;
+                }
+            }
+            if (reachedMark) {
+                return delta;
+            }
+            // an empty page ends the feed like a missing next link
+            url = results.size() > 0 && rootNode.has("next") ? HttpUrl.get(baseUrl + rootNode.get("next").asText()) : null;
+        }
+        if (url != null) {
+            LOG.warn("Stopped reading the feed after {} pages", delta.pages);
+        }
+        if (mark.getEditorialDate() != null) {
+            delta.gap = true;
+            LOG.warn("The feed does not reach back to {}, documents in between may be missing", mark.getEditorialDate());
+        }
+        return delta;
+    }
+
+    private JsonNode fetch(HttpUrl url) throws IOException {
+        final Request request = new Request.Builder()
+                .url(url)
+                .build();
+        LOG.debug("Feed: {}", url);
+        try (final Response response = client.newCall(request).execute(); final ResponseBody body = response.body()) {
+            if (!response.isSuccessful() || body == null) {
+                throw new IOException("Feed konnte nicht gelesen werden.\n" + response);
+            }
+            return mapper.readTree(body.byteStream());
+        }
+    }
+
+    /**
+     * @return Wert am Eintrag oder an seinem Ziel, <code>""</code> wenn es
+     * keinen gibt
+     */
+    private static String text(JsonNode entry, String field) {
+        final String value = entry.path(field).asText("");
+        return value.isEmpty() ? entry.path(TARGET).path(field).asText("") : value;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.helper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import lombok.Getter;
+
+/**
+ * Hochwassermarke eines inkrementellen Harvests: das jüngste
+ * <code>editorialDate</code>, das im Feed gesehen wurde, und die IDs mit
+ * genau diesem Datum (die Position im Feed). Beim nächsten Lauf sind nur
+ * Dokumente neu, die jünger sind oder bei gleichem Datum eine andere ID
+ * haben.
+ * <p>
+ * Die Marke liegt neben dem Ziel, wie das {@link JobJournal}:
+ * <code>export.xml.harvest</code> bzw. <code>.zdf2dc.harvest</code> im
+ * Zielverzeichnis. Sie wird erst mit {@link #save()} geschrieben, also nur
+ * nach einem vollständigen Lauf.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class HarvestMark {
+
+    private final static String SUFFIX = ".harvest";
+    private final static String DIRECTORY_MARK = ".zdf2dc" + SUFFIX;
+    private final static String DATE_KEY = "editorialDate";
+    private final static String IDS_KEY = "ids";
+
+    @Getter
+    private final File file;
+    /**
+     * jüngstes gesehenes <code>editorialDate</code>, <code>null</code> vor dem
+     * ersten Lauf
+     */
+    @Getter
+    private Instant editorialDate;
+    private final Set<String> ids;
+
+    private HarvestMark(File file) {
+        this.file = file;
+        this.ids = new TreeSet<>();
+    }
+
+    /**
+     * Liest die Marke zu einem Ziel (Datei oder Verzeichnis).
+     *
+     * @param target
+     * @return eine leere Marke, wenn es noch keine gibt
+     * @throws IOException
+     */
+    public static HarvestMark load(File target) throws IOException {
+        final HarvestMark mark = new HarvestMark(of(target));
+        if (mark.file.exists()) {
+            final Properties p = new Properties();
+            try (final InputStream in = new FileInputStream(mark.file)) {
+                p.load(in);
+            }
+            mark.editorialDate = parse(p.getProperty(DATE_KEY));
+            if (mark.editorialDate != null && !p.getProperty(IDS_KEY, "").isEmpty()) {
+                mark.ids.addAll(Arrays.asList(p.getProperty(IDS_KEY).split(",")));
+            }
+        }
+        return mark;
+    }
+
+    /**
+     * Datei der Marke zu einem Ziel.
+     *
+     * @param target
+     * @return
+     */
+    public static File of(File target) {
+        return target.isDirectory() ? new File(target, DIRECTORY_MARK) : new File(target.getPath() + SUFFIX);
+    }
+
+    /**
+     * @param value z.B. <code>2021-04-12T20:15:00.000+02:00</code>
+     * @return <code>null</code>, wenn der Wert fehlt oder ungültig ist
+     */
+    public static Instant parse(String value) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        try {
+            return OffsetDateTime.parse(value, DateTimeFormatter.ISO_OFFSET_DATE_TIME).toInstant();
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param id
+     * @param date <code>null</code>: unbekannt, gilt als neu
+     * @return <code>true</code>, wenn das Dokument seit dem letzten Lauf neu
+     * ist oder geändert wurde
+     */
+    public boolean isNew(String id, Instant date) {
+        if (editorialDate == null || date == null) {
+            return true;
+        }
+        final int c = date.compareTo(editorialDate);
+        return c > 0 || (c == 0 && !ids.contains(id));
+    }
+
+    /**
+     * Schiebt die Marke bis zu einem Dokument vor, wenn es jünger ist.
+     *
+     * @param id
+     * @param date
+     */
+    public void advance(String id, Instant date) {
+        if (date == null) {
+            return;
+        }
+        if (editorialDate == null || date.isAfter(editorialDate)) {
+            editorialDate = date;
+            ids.clear();
+        }
+        if (date.equals(editorialDate)) {
+            ids.add(id);
+        }
+    }
+
+    /**
+     * @return IDs mit dem Datum der Marke
+     */
+    public Set<String> getIds() {
+        return Collections.unmodifiableSet(ids);
+    }
+
+    /**
+     * Schreibt die Marke (über eine temporäre Datei, damit bei einem Absturz
+     * die alte erhalten bleibt).
+     *
+     * @throws IOException
+     */
+    public void save() throws IOException {
+        if (editorialDate == null) {
+            return;
+        }
+        final Properties p = new Properties();
+        p.setProperty(DATE_KEY, editorialDate.toString());
+        p.setProperty(IDS_KEY, String.join(",", ids));
+        final File tmp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            try (final OutputStream out = new FileOutputStream(tmp)) {
+                p.store(out, "zdf2dc harvest mark");
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return editorialDate == null ? "keine" : editorialDate + " (" + ids.size() + " IDs)";
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.helper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import lombok.Getter;
+
+/**
+ * Verzeichnis von IDs in der Reihenfolge, in der sie hinzugefügt wurden, mit
+ * Hash-Zugriff. Wird schrittweise gepflegt: Hinzufügen von <code>k</code>
+ * IDs kostet <code>O(k)</code> und liefert genau die neuen IDs, die dann an
+ * eine Tabelle angehängt werden können. Bereits vorhandene IDs werden als
+ * Dupletten gezählt.
+ * <p>
+ * Nicht thread-safe (wird nur im Event Dispatch Thread verwendet).
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class IdRegistry {
+
+    private final Set<String> ids;
+    /**
+     * Anzahl der hinzugefügten IDs, die schon vorhanden waren.
+     */
+    @Getter
+    private int duplicates;
+
+    public IdRegistry() {
+        this.ids = new LinkedHashSet<>();
+        this.duplicates = 0;
+    }
+
+    /**
+     * @param id
+     * @return <code>true</code>, wenn die ID neu ist
+     */
+    public boolean add(String id) {
+        if (ids.add(id)) {
+            return true;
+        }
+        ++duplicates;
+        return false;
+    }
+
+    /**
+     * @param newIds
+     * @return die IDs, die neu sind (in der angegebenen Reihenfolge)
+     */
+    public List<String> addAll(Collection<String> newIds) {
+        final List<String> added = new ArrayList<>(newIds.size());
+        for (String id : newIds) {
+            if (add(id)) {
+                added.add(id);
+            }
+        }
+        return added;
+    }
+
+    public void removeAll(Collection<String> oldIds) {
+        // not Set.removeAll, which may call contains() on the argument for every element
+        for (String id : oldIds) {
+            ids.remove(id);
+        }
+    }
+
+    public boolean contains(String id) {
+        return ids.contains(id);
+    }
+
+    public int size() {
+        return ids.size();
+    }
+
+    /**
+     * @return alle IDs in der Reihenfolge des Hinzufügens
+     */
+    public Set<String> getIds() {
+        return Collections.unmodifiableSet(ids);
+    }
+
+    public void clear() {
+        ids.clear();
+        duplicates = 0;
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.helper;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Journal eines Download-Auftrags. Jede Zustandsänderung einer ID wird als
+ * Zeile angehängt (<code>STATUS&lt;TAB&gt;ID&lt;TAB&gt;Info</code>):
+ * <ul>
+ * <li><code>PENDING</code>: ID ist Teil des Auftrags.</li>
+ * <li><code>DONE</code>: Datensatz ist gespeichert, Info ist die Zieldatei
+ * bzw. bei einer gemeinsamen Datei <code>Datei#Position</code> hinter dem
+ * Datensatz (siehe
+ * {@link de.ddb.labs.zdf2dc.data.rdfdc.OaiPmhWriter#checkpoint()}).</li>
+ * <li><code>FAILED</code>: Fehler, Info ist die Fehlermeldung.</li>
+ * </ul>
+ * Beim Öffnen wird ein vorhandenes Journal eingelesen, so dass ein
+ * abgebrochener Auftrag fortgesetzt werden kann: erledigte IDs werden
+ * übersprungen, alle anderen erneut geladen. Unvollständige letzte Zeilen
+ * (Absturz beim Schreiben) werden ignoriert.
+ * <p>
+ * Journal und Ausgabe werden nicht synchronisiert (kein <code>fsync</code>
+ * pro Datensatz). Nach einem Stromausfall kann das Journal deshalb auf Daten
+ * verweisen, die nie auf der Platte angekommen sind. Beim Einlesen gilt ein
+ * Datensatz daher nur als erledigt, wenn seine Datei existiert und nicht leer
+ * ist bzw. die gemeinsame Datei mindestens bis zu seinem Checkpoint reicht.
+ * Ab dem ersten Checkpoint, der nicht mehr in die Datei passt, werden alle
+ * folgenden Datensätze erneut geladen und der letzte passende Checkpoint
+ * gilt.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class JobJournal implements Closeable {
+
+    private final static Logger LOG = LoggerFactory.getLogger(JobJournal.class);
+    private final static String SUFFIX = ".journal";
+    private final static String DIRECTORY_JOURNAL = ".zdf2dc" + SUFFIX;
+
+    public enum Status {
+        PENDING, DONE, FAILED
+    }
+
+    @Getter
+    private final File file;
+    private final Map<String, Status> status;
+    @Getter
+    private final boolean resumed;
+    /**
+     * Position hinter dem letzten gespeicherten Datensatz in einer gemeinsamen
+     * Datei, <code>-1</code> wenn es keinen gibt.
+     */
+    @Getter
+    private long checkpoint;
+    /**
+     * Datei, auf die sich {@link #getCheckpoint()} bezieht (bei einer auf
+     * mehrere Dateien verteilten Antwort), <code>null</code> wenn es keinen
+     * Checkpoint gibt
+     */
+    @Getter
+    private File checkpointFile;
+    private final Writer writer;
+
+    private JobJournal(File file) throws IOException {
+        this.file = file;
+        this.status = new LinkedHashMap<>();
+        this.checkpoint = -1;
+        this.resumed = file.exists() && file.length() > 0;
+        if (resumed) {
+            replay();
+        }
+        this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Öffnet das Journal zu einem Ziel (Datei oder Verzeichnis) und liest ein
+     * vorhandenes Journal ein.
+     *
+     * @param target
+     * @return
+     * @throws IOException
+     */
+    public static JobJournal open(File target) throws IOException {
+        return new JobJournal(of(target));
+    }
+
+    /**
+     * Journal-Datei zu einem Ziel: <code>export.xml.journal</code> bzw.
+     * <code>.zdf2dc.journal</code> im Zielverzeichnis.
+     *
+     * @param target
+     * @return
+     */
+    public static File of(File target) {
+        return target.isDirectory() ? new File(target, DIRECTORY_JOURNAL) : new File(target.getPath() + SUFFIX);
+    }
+
+    private void replay() throws IOException {
+        // DONE lines with a checkpoint, in the order they were written
+        final List<String> ids = new ArrayList<>();
+        final List<File> files = new ArrayList<>();
+        final List<Long> positions = new ArrayList<>();
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split("\t", 3);
+                if (fields.length < 3) {
+                    LOG.warn("Ignoring incomplete journal line: {}", line);
+                    continue;
+                }
+                final Status s;
+                try {
+                    s = Status.valueOf(fields[0]);
+                } catch (IllegalArgumentException e) {
+                    LOG.warn("Ignoring invalid journal line: {}", line);
+                    continue;
+                }
+                if (s == Status.DONE) {
+                    final int hash = fields[2].lastIndexOf('#');
+                    if (hash >= 0) {
+                        try {
+                            positions.add(Long.parseLong(fields[2].substring(hash + 1)));
+                        } catch (NumberFormatException e) {
+                            LOG.warn("Ignoring invalid journal line: {}", line);
+                            continue;
+                        }
+                        ids.add(fields[1]);
+                        files.add(new File(fields[2].substring(0, hash)));
+                    } else {
+                        final File output = new File(fields[2]);
+                        if (output.length() == 0) {
+                            // lost with the page cache, or removed since
+                            LOG.warn("{} is missing or empty, {} will be fetched again", output.getPath(), fields[1]);
+                            status.put(fields[1], Status.PENDING);
+                            continue;
+                        }
+                    }
+                }
+                // PENDING never overwrites a later state
+                if (s != Status.PENDING || !status.containsKey(fields[1])) {
+                    status.put(fields[1], s);
+                }
+            }
+        }
+        for (int i = 0; i < ids.size(); ++i) {
+            if (files.get(i).length() < positions.get(i)) {
+                LOG.warn("{} ends before checkpoint {}, {} record(s) from there on will be fetched again", files.get(i).getPath(), positions.get(i), ids.size() - i);
+                for (String id : ids.subList(i, ids.size())) {
+                    status.put(id, Status.PENDING);
+                }
+                break;
+            }
+            checkpoint = positions.get(i);
+            checkpointFile = files.get(i);
+        }
+    }
+
+    public synchronized boolean isDone(String id) {
+        return status.get(id) == Status.DONE;
+    }
+
+    /**
+     * @return alle IDs, die noch nicht erledigt sind (in der Reihenfolge des
+     * Auftrags)
+     */
+    public synchronized Set<String> getOutstanding() {
+        final Set<String> ids = new LinkedHashSet<>();
+        for (Map.Entry<String, Status> e : status.entrySet()) {
+            if (e.getValue() != Status.DONE) {
+                ids.add(e.getKey());
+            }
+        }
+        return Collections.unmodifiableSet(ids);
+    }
+
+    public synchronized int getDoneCount() {
+        int i = 0;
+        for (Status s : status.values()) {
+            if (s == Status.DONE) {
+                ++i;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Lädt erledigte IDs erneut, z.B. Dokumente, die sich laut Feed seit
+     * einem abgebrochenen Lauf geändert haben können. Wird nicht ins Journal
+     * geschrieben: Bricht auch dieser Lauf ab, meldet der Feed dieselben
+     * Dokumente beim nächsten Lauf wieder.
+     *
+     * @param ids
+     * @return Anzahl der IDs, die erledigt waren
+     */
+    public synchronized int reopen(Collection<String> ids) {
+        int i = 0;
+        for (String id : ids) {
+            if (status.get(id) == Status.DONE) {
+                status.put(id, Status.PENDING);
+                ++i;
+            }
+        }
+        return i;
+    }
+
+    public synchronized void pending(String id) throws IOException {
+        if (!status.containsKey(id)) {
+            append(Status.PENDING, id, "");
+        }
+    }
+
+    /**
+     * Datensatz ist in einer eigenen Datei gespeichert.
+     *
+     * @param id
+     * @param output
+     * @throws IOException
+     */
+    public synchronized void done(String id, File output) throws IOException {
+        append(Status.DONE, id, output.getPath());
+    }
+
+    /**
+     * Datensatz ist in der gemeinsamen Datei <code>output</code> bis
+     * <code>checkpoint</code> gespeichert.
+     *
+     * @param id
+     * @param output
+     * @param checkpoint
+     * @throws IOException
+     */
+    public synchronized void done(String id, File output, long checkpoint) throws IOException {
+        append(Status.DONE, id, output.getPath() + "#" + checkpoint);
+        this.checkpoint = checkpoint;
+        this.checkpointFile = output;
+    }
+
+    public synchronized void failed(String id, String message) throws IOException {
+        append(Status.FAILED, id, message == null ? "" : message.replaceAll("\\s+", " "));
+    }
+
+    private void append(Status s, String id, String info) throws IOException {
+        status.put(id, s);
+        writer.write(s.name() + "\t" + id + "\t" + info + "\n");
+        // one line per record, so a crash loses at most the line being written
+        writer.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+
+    /**
+     * Schließt und löscht das Journal (Auftrag vollständig erledigt).
+     *
+     * @throws IOException
+     */
+    public synchronized void delete() throws IOException {
+        writer.close();
+        Files.deleteIfExists(file.toPath());
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.helper;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogramm für Laufzeiten mit fester Größe und ohne Sperren: Die Werte
+ * (in µs) werden in Klassen gezählt, pro Zweierpotenz gibt es
+ * {@value #SUB_BUCKETS} Klassen. Perzentile sind damit auf etwa 12 % genau,
+ * unabhängig von der Anzahl der Werte. Werte ab 2<sup>41</sup> µs
+ * (25 Tage) landen in der letzten Klasse.
+ * <p>
+ * {@link #snapshot()} liefert einen unveränderlichen Stand; die Differenz
+ * zweier Stände ({@link Snapshot#minus(Snapshot)}) beschreibt die Werte
+ * dazwischen, z.B. eines Auftrags.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class LatencyHistogram {
+
+    private final static int SUB_BITS = 3;
+    private final static int SUB_BUCKETS = 1 << SUB_BITS;
+    private final static int MAX_EXPONENT = 40;
+    private final static int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong sum, max;
+
+    public LatencyHistogram() {
+        this.counts = new AtomicLongArray(BUCKETS);
+        this.sum = new AtomicLong(0);
+        this.max = new AtomicLong(0);
+    }
+
+    /**
+     * @param nanos Laufzeit in ns
+     */
+    public void record(long nanos) {
+        final long micros = Math.max(TimeUnit.NANOSECONDS.toMicros(nanos), 0);
+        counts.incrementAndGet(bucket(micros));
+        sum.addAndGet(micros);
+        max.accumulateAndGet(micros, Math::max);
+    }
+
+    /**
+     * Klasse eines Werts: unter {@value #SUB_BUCKETS} direkt, darüber die
+     * Zweierpotenz und die nächsten {@value #SUB_BITS} Bits.
+     */
+    private static int bucket(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        final int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return größter Wert (in µs) der Klasse
+     */
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        final long sub = bucket % SUB_BUCKETS;
+        final long width = 1L << (exponent - SUB_BITS);
+        return (1L << exponent) + (sub + 1) * width - 1;
+    }
+
+    public Snapshot snapshot() {
+        final long[] c = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; ++i) {
+            c[i] = counts.get(i);
+        }
+        return new Snapshot(c, sum.get(), max.get());
+    }
+
+    /**
+     * Unveränderlicher Stand eines {@link LatencyHistogram}. Alle Zeiten in
+     * ms.
+     */
+    public static class Snapshot {
+
+        private final long[] counts;
+        private final long count, sum, max;
+
+        private Snapshot(long[] counts, long sum, long max) {
+            this.counts = counts;
+            this.sum = sum;
+            this.max = max;
+            long n = 0;
+            for (long c : counts) {
+                n += c;
+            }
+            this.count = n;
+        }
+
+        /**
+         * @param earlier früherer Stand desselben Histogramms
+         * @return die Werte seit <code>earlier</code>; das Maximum ist das
+         * des späteren Stands
+         */
+        public Snapshot minus(Snapshot earlier) {
+            final long[] c = new long[counts.length];
+            for (int i = 0; i < c.length; ++i) {
+                c[i] = counts[i] - earlier.counts[i];
+            }
+            return new Snapshot(c, sum - earlier.sum, max);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : sum / 1000.0 / count;
+        }
+
+        public double getMax() {
+            return max / 1000.0;
+        }
+
+        /**
+         * @param p z.B. <code>0.95</code>
+         * @return obere Grenze der Klasse, in der das Perzentil liegt
+         */
+        public double getPercentile(double p) {
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = Math.max((long) Math.ceil(p * count), 1);
+            long seen = 0;
+            for (int i = 0; i < counts.length; ++i) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max) / 1000.0;
+                }
+            }
+            return getMax();
+        }
+    }
+}
@@ -19,6 +19,7 @@ import com.fasterxml.jackson.core.io.IOContext;
 import com.fasterxml.jackson.dataformat.xml.XmlFactory;
 import com.fasterxml.jackson.dataformat.xml.util.StaxUtil;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Writer;
 import java.util.Map;
 import java.util.Objects;
@@ -41,7 +42,15 @@ public class NamespaceFactory extends XmlFactory {
 
     @Override
     public XMLStreamWriter _createXmlWriter(IOContext ctxt, Writer w) throws IOException {
-        final XMLStreamWriter writer = super._createXmlWriter(ctxt, w);
+        return configure(super._createXmlWriter(ctxt, w));
+    }
+
+    @Override
+    public XMLStreamWriter _createXmlWriter(IOContext ctxt, OutputStream out) throws IOException {
+        return configure(super._createXmlWriter(ctxt, out));
+    }
+
+    private XMLStreamWriter configure(XMLStreamWriter writer) throws IOException {
         try {
             writer.setDefaultNamespace(defaultNamespace);
             for (Map.Entry<String, String> e : prefix2Namespace.entrySet()) {
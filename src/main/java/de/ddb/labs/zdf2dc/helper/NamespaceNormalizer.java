@@ -0,0 +1,324 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.helper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Normalisiert die Namespace-Deklarationen eines XML-Dokuments mit StAX
+ * (Nachfolger des DOM/XSLT-basierten <code>Reformatter</code>):
+ * <ol>
+ * <li>Alle Namespace-Deklarationen werden im Root-Element deklariert.</li>
+ * <li>Bekannte Namespaces bekommen das Präfix aus {@link EdmNamespaces}.</li>
+ * <li>Alle anderen Namespace-Deklarationen entfallen.</li>
+ * </ol>
+ * Das Dokument wird dabei nur gestreamt, der Speicherbedarf ist unabhängig von
+ * der Dateigröße. Bei Dateien werden die tatsächlich verwendeten Namespaces in
+ * einem ersten, leichtgewichtigen Durchlauf gesammelt; bei Streams werden die
+ * Namespaces aus {@link EdmNamespaces} deklariert und unbekannte Namespaces
+ * dort, wo sie zuerst vorkommen.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class NamespaceNormalizer {
+
+    private final static XMLInputFactory inputFactory;
+    private final static XMLOutputFactory outputFactory;
+
+    static {
+        inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        outputFactory = XMLOutputFactory.newInstance();
+        outputFactory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, false);
+    }
+
+    /**
+     * Normalisiert eine Datei an Ort und Stelle (über eine temporäre Datei im
+     * selben Verzeichnis).
+     *
+     * @param file
+     * @throws IOException
+     */
+    public static void normalize(File file) throws IOException {
+        final File tmp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            normalize(file, tmp);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /**
+     * Normalisiert <code>src</code> nach <code>dst</code>. Im Root-Element
+     * werden nur die tatsächlich verwendeten Namespaces deklariert.
+     *
+     * @param src
+     * @param dst
+     * @throws IOException
+     */
+    public static void normalize(File src, File dst) throws IOException {
+        final Map<String, String> prefixes;
+        try (final InputStream in = new BufferedInputStream(new FileInputStream(src))) {
+            prefixes = collect(in);
+        }
+        try (final InputStream in = new BufferedInputStream(new FileInputStream(src));
+                final OutputStream out = new BufferedOutputStream(new FileOutputStream(dst))) {
+            rewrite(in, out, prefixes);
+        }
+    }
+
+    /**
+     * Normalisiert in einem Durchlauf. Im Root-Element werden die Namespaces
+     * aus {@link EdmNamespaces} deklariert, unbekannte Namespaces am ersten
+     * Element, das sie verwendet.
+     *
+     * @param in
+     * @param out
+     * @throws IOException
+     */
+    public static void normalize(InputStream in, OutputStream out) throws IOException {
+        final Map<String, String> prefixes = new LinkedHashMap<>();
+        for (Map.Entry<String, String> e : EdmNamespaces.getUriNs().entrySet()) {
+            add(prefixes, e.getKey(), e.getValue());
+        }
+        rewrite(in, out, prefixes);
+    }
+
+    /**
+     * Erster Durchlauf: sammelt alle von Elementen und Attributen verwendeten
+     * Namespaces (ohne Default-Namespace) mit ihrem Präfix.
+     */
+    private static Map<String, String> collect(InputStream in) throws IOException {
+        final Map<String, String> prefixes = new LinkedHashMap<>();
+        XMLStreamReader reader = null;
+        try {
+            reader = inputFactory.createXMLStreamReader(in);
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                final String prefix = reader.getPrefix();
+                if (prefix != null && !prefix.isEmpty()) {
+                    add(prefixes, reader.getNamespaceURI(), prefix);
+                }
+                for (int i = 0; i < reader.getAttributeCount(); ++i) {
+                    add(prefixes, reader.getAttributeNamespace(i), reader.getAttributePrefix(i));
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException(e.getMessage(), e);
+        } finally {
+            close(reader);
+        }
+        return prefixes;
+    }
+
+    /**
+     * Nimmt einen Namespace auf. Das Präfix aus {@link EdmNamespaces} hat
+     * Vorrang; ist ein Präfix schon an einen anderen Namespace vergeben, wird
+     * es durchnummeriert.
+     */
+    private static void add(Map<String, String> prefixes, String uri, String prefix) {
+        if (uri == null || uri.isEmpty() || prefixes.containsKey(uri)
+                || uri.equals(XMLConstants.XML_NS_URI) || uri.equals(XMLConstants.XMLNS_ATTRIBUTE_NS_URI)) {
+            return;
+        }
+        String p = EdmNamespaces.getUriNs().getOrDefault(uri, prefix == null || prefix.isEmpty() ? "ns" : prefix);
+        if (prefixes.containsValue(p)) {
+            int i = 1;
+            while (prefixes.containsValue(p + i)) {
+                ++i;
+            }
+            p = p + i;
+        }
+        prefixes.put(uri, p);
+    }
+
+    /**
+     * Zweiter Durchlauf: schreibt das Dokument mit den Präfixen aus
+     * <code>prefixes</code> und deklariert diese im Root-Element.
+     * Default-Namespaces bleiben erhalten.
+     */
+    private static void rewrite(InputStream in, OutputStream out, Map<String, String> prefixes) throws IOException {
+        // namespaces in scope; those declared below the root are dropped again at their end element
+        final Map<String, String> scope = new HashMap<>(prefixes);
+        final Deque<List<String>> declared = new ArrayDeque<>();
+        final Deque<String> defaults = new ArrayDeque<>();
+        defaults.push("");
+
+        XMLStreamReader reader = null;
+        XMLStreamWriter writer = null;
+        try {
+            reader = inputFactory.createXMLStreamReader(in);
+            writer = outputFactory.createXMLStreamWriter(out, "UTF-8");
+            writer.writeStartDocument("UTF-8", "1.0");
+            writer.writeCharacters("\n");
+            boolean root = true;
+
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT: {
+                        final List<String> local = new ArrayList<>();
+                        final String uri = nullToEmpty(reader.getNamespaceURI());
+                        final String prefix = nullToEmpty(reader.getPrefix());
+
+                        // element name
+                        String defaultNs = defaults.peek();
+                        final boolean newDefault = prefix.isEmpty() && !uri.equals(defaultNs);
+                        if (prefix.isEmpty()) {
+                            defaultNs = uri;
+                            writer.writeStartElement("", reader.getLocalName(), uri);
+                        } else {
+                            writer.writeStartElement(prefixFor(uri, prefix, scope, local), reader.getLocalName(), uri);
+                        }
+                        defaults.push(defaultNs);
+
+                        // namespace declarations
+                        if (newDefault) {
+                            writer.writeDefaultNamespace(uri);
+                        }
+                        if (root) {
+                            for (Map.Entry<String, String> e : prefixes.entrySet()) {
+                                writer.writeNamespace(e.getValue(), e.getKey());
+                            }
+                            root = false;
+                        }
+                        final String[] attributePrefixes = new String[reader.getAttributeCount()];
+                        for (int i = 0; i < attributePrefixes.length; ++i) {
+                            final String attrUri = nullToEmpty(reader.getAttributeNamespace(i));
+                            if (!attrUri.isEmpty()) {
+                                attributePrefixes[i] = prefixFor(attrUri, reader.getAttributePrefix(i), scope, local);
+                            }
+                        }
+                        for (String u : local) {
+                            writer.writeNamespace(scope.get(u), u);
+                        }
+                        declared.push(local);
+
+                        // attributes
+                        for (int i = 0; i < attributePrefixes.length; ++i) {
+                            if (attributePrefixes[i] == null) {
+                                writer.writeAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+                            } else {
+                                writer.writeAttribute(attributePrefixes[i], reader.getAttributeNamespace(i), reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+                            }
+                        }
+                        break;
+                    }
+                    case XMLStreamConstants.END_ELEMENT:
+                        writer.writeEndElement();
+                        defaults.pop();
+                        for (String u : declared.pop()) {
+                            scope.remove(u);
+                        }
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.SPACE:
+                        writer.writeCharacters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        break;
+                    case XMLStreamConstants.CDATA:
+                        writer.writeCData(reader.getText());
+                        break;
+                    case XMLStreamConstants.COMMENT:
+                        writer.writeComment(reader.getText());
+                        break;
+                    case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                        writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+                        break;
+                    case XMLStreamConstants.ENTITY_REFERENCE:
+                        writer.writeEntityRef(reader.getLocalName());
+                        break;
+                    default:
+                        break;
+                }
+            }
+            writer.writeEndDocument();
+            writer.flush();
+        } catch (XMLStreamException e) {
+            throw new IOException(e.getMessage(), e);
+        } finally {
+            close(reader);
+            close(writer);
+        }
+    }
+
+    /**
+     * Liefert das Präfix für einen Namespace. Unbekannte Namespaces (nur im
+     * Stream-Modus möglich) werden am aktuellen Element deklariert.
+     */
+    private static String prefixFor(String uri, String prefix, Map<String, String> scope, List<String> local) {
+        if (uri.equals(XMLConstants.XML_NS_URI)) {
+            return XMLConstants.XML_NS_PREFIX;
+        }
+        String p = scope.get(uri);
+        if (p == null) {
+            add(scope, uri, prefix);
+            p = scope.get(uri);
+            local.add(uri);
+        }
+        return p;
+    }
+
+    private static String nullToEmpty(String s) {
+        return s == null ? "" : s;
+    }
+
+    private static void close(XMLStreamReader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (XMLStreamException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static void close(XMLStreamWriter writer) {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (XMLStreamException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.helper;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lädt alle Seiten einer Suche (<code>/search/documents</code>). Die erste
+ * Seite liefert <code>totalResultsCount</code>; enthält der
+ * <code>next</code>-Link einen Parameter <code>page</code>, werden damit alle
+ * weiteren Seiten geplant und parallel geladen (höchstens
+ * <code>concurrency</code> gleichzeitig). Sonst wird dem
+ * <code>next</code>-Link gefolgt, wobei die nächste Seite schon angefragt
+ * wird, bevor die aktuelle verarbeitet ist. In beiden Fällen bekommt der
+ * {@link Listener} die Seiten in der richtigen Reihenfolge.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class PagedSearch {
+
+    private final static Logger LOG = LoggerFactory.getLogger(PagedSearch.class);
+    private final static String PAGE_PARAMETER = "page";
+
+    private final OkHttpClient client;
+    private final ObjectMapper mapper;
+    private final String baseUrl;
+    private final int concurrency;
+
+    public interface Listener {
+
+        /**
+         * Eine Seite mit Treffern (<code>{id, Titel}</code>), in der
+         * Reihenfolge der Seiten.
+         *
+         * @param totalResultsCount
+         * @param results
+         */
+        void onPage(int totalResultsCount, List<String[]> results);
+
+        void onComplete(int totalResultsCount);
+
+        void onError(Exception e);
+    }
+
+    /**
+     * @param client meldet sich bei der API an, siehe {@link Transport}
+     * @param mapper
+     * @param baseUrl z.B. <code>https://api.zdf.de</code>
+     * @param concurrency maximale Anzahl gleichzeitig geladener Seiten
+     */
+    public PagedSearch(OkHttpClient client, ObjectMapper mapper, String baseUrl, int concurrency) {
+        this.client = client;
+        this.mapper = mapper;
+        this.baseUrl = baseUrl;
+        this.concurrency = Math.max(concurrency, 1);
+    }
+
+    /**
+     * Startet die Suche asynchron.
+     *
+     * @param path z.B. <code>/search/documents?q=...</code>
+     * @param listener
+     */
+    public void start(String path, Listener listener) {
+        new Run(listener).fetch(1, HttpUrl.get(baseUrl + path));
+    }
+
+    private class Run {
+
+        private final Listener listener;
+        // pages that arrived before their predecessors
+        private final Map<Integer, List<String[]>> ready = new TreeMap<>();
+        // planned pages not requested yet
+        private final Deque<Integer> planned = new ArrayDeque<>();
+        private HttpUrl template;
+        // number of planned pages, 0 if the pages are followed one by one
+        private int plannedPages;
+        private int running;
+        private int delivered;
+        private int lastPage = -1;
+        private int totalResultsCount;
+        private boolean finished;
+
+        private Run(Listener listener) {
+            this.listener = listener;
+        }
+
+        private void fetch(int page, HttpUrl url) {
+            synchronized (this) {
+                ++running;
+            }
+            final Request request = new Request.Builder()
+                    .url(url)
+                    .build();
+            LOG.debug("Search page {}: {}", page, url);
+
+            client.newCall(request).enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    fail(e);
+                }
+
+                @Override
+                public void onResponse(Call call, Response response) {
+                    try (final ResponseBody body = response.body()) {
+                        if (!response.isSuccessful() || body == null) {
+                            throw new IOException("Ungültige Antwort vom Server.\n" + response);
+                        }
+                        arrived(page, mapper.readTree(body.byteStream()));
+                    } catch (Exception e) {
+                        fail(e);
+                    }
+                }
+            });
+        }
+
+        private void arrived(int page, JsonNode rootNode) {
+            final List<String[]> results = results(rootNode);
+            final HttpUrl next = rootNode.has("next") ? HttpUrl.get(baseUrl + rootNode.get("next").asText()) : null;
+
+            synchronized (this) {
+                --running;
+                if (finished) {
+                    return;
+                }
+                if (page == 1) {
+                    totalResultsCount = rootNode.path("totalResultsCount").asInt(0);
+                    plan(next, results.size());
+                }
+
+                if (page >= plannedPages) {
+                    // follow "next" (also beyond the plan, if there are more results by now)
+                    // and ask for it before this page is processed
+                    if (next != null) {
+                        lastPage = -1;
+                        fetch(page + 1, next);
+                    } else {
+                        lastPage = page;
+                    }
+                }
+                while (running < concurrency && !planned.isEmpty()) {
+                    final int p = planned.poll();
+                    fetch(p, template.newBuilder().setQueryParameter(PAGE_PARAMETER, String.valueOf(p)).build());
+                }
+
+                ready.put(page, results);
+                deliver();
+            }
+        }
+
+        /**
+         * Plant alle weiteren Seiten, wenn der <code>next</code>-Link der
+         * ersten Seite auf <code>page=2</code> zeigt.
+         */
+        private void plan(HttpUrl next, int pageSize) {
+            if (next == null || pageSize == 0 || !"2".equals(next.queryParameter(PAGE_PARAMETER))) {
+                return;
+            }
+            template = next;
+            plannedPages = Math.max((totalResultsCount + pageSize - 1) / pageSize, 2);
+            lastPage = plannedPages;
+            for (int p = 2; p <= plannedPages; ++p) {
+                planned.add(p);
+            }
+            LOG.debug("Search: {} results, {} pages of {}", totalResultsCount, plannedPages, pageSize);
+        }
+
+        private void deliver() {
+            List<String[]> results;
+            while ((results = ready.remove(delivered + 1)) != null) {
+                ++delivered;
+                listener.onPage(totalResultsCount, results);
+            }
+            if (delivered == lastPage) {
+                finished = true;
+                listener.onComplete(totalResultsCount);
+            }
+        }
+
+        private void fail(Exception e) {
+            synchronized (this) {
+                --running;
+                if (finished) {
+                    return;
+                }
+                finished = true;
+                planned.clear();
+            }
+            listener.onError(e);
+        }
+    }
+
+    private static List<String[]> results(JsonNode rootNode) {
+        final JsonNode resultsArray = rootNode.get("http://zdf.de/rels/search/results");
+        if (resultsArray == null || !resultsArray.isArray()) {
+            return Collections.emptyList();
+        }
+        final List<String[]> results = new ArrayList<>(resultsArray.size());
+        for (JsonNode jsonNode : resultsArray) {
+            String id = "";
+            String title = "";
+            try {
+                id = jsonNode.get("id").asText("");
+                title = jsonNode.get("http://zdf.de/rels/target").get("teaserHeadline").asText("");
+            } catch (Exception e) {
+                LOG.warn("Error parsing JSON. {}", e.getMessage());
+            } finally {
+                if (!id.trim().isEmpty()) {
+                    results.add(new String[]{id, title});
+                }
+            }
+        }
+        return results;
+    }
+}
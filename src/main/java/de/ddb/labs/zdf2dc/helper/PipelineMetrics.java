@@ -0,0 +1,497 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.helper;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import okhttp3.Dispatcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Messwerte der Pipeline, damit sich erkennen lässt, worauf ein langsamer
+ * Export wartet: Für jede {@link Stage} gibt es ein
+ * {@link LatencyHistogram} (p50/p95/p99) und einen Fehlerzähler, dazu die
+ * Fehler nach Ursache (z.B. <code>fetch/timeout</code>,
+ * <code>fetch/HTTP 404</code>) und als aktuelle Werte die Warteschlangen von
+ * Dispatcher und {@link ConversionPool} sowie die Anfragen, die gerade über
+ * das Netz laufen.
+ * <p>
+ * Alles ist per JMX (z.B. mit <code>jconsole</code>) unter
+ * <code>de.ddb.labs.zdf2dc:type=Stage,name=…</code> und
+ * <code>de.ddb.labs.zdf2dc:type=Pipeline</code> zu sehen.
+ * {@link #summary(Snapshot)} fasst die Werte seit einem
+ * {@link #snapshot()} zusammen, z.B. am Ende eines Auftrags.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class PipelineMetrics {
+
+    private final static Logger LOG = LoggerFactory.getLogger(PipelineMetrics.class);
+    private final static String DOMAIN = "de.ddb.labs.zdf2dc";
+
+    public enum Stage {
+        FETCH("fetch", "HTTP-Abruf"),
+        PARSE("parse", "JSON lesen"),
+        MAPPING("mapping", "Mapping"),
+        SERIALIZATION("serialization", "Serialisierung"),
+        WRITE("write", "Datei schreiben");
+
+        private final String key;
+        private final String label;
+
+        Stage(String key, String label) {
+            this.key = key;
+            this.label = label;
+        }
+    }
+
+    public interface StageMXBean {
+
+        long getCount();
+
+        long getErrorCount();
+
+        double getMeanMillis();
+
+        double getP50Millis();
+
+        double getP95Millis();
+
+        double getP99Millis();
+
+        double getMaxMillis();
+    }
+
+    public interface PipelineMXBean {
+
+        /**
+         * @return Anfragen, die im Dispatcher auf einen Thread warten
+         */
+        int getQueuedRequests();
+
+        /**
+         * @return Anfragen in Bearbeitung (inkl. Warten auf Limit und Rate)
+         */
+        int getRunningRequests();
+
+        /**
+         * @return Anfragen, die gerade eine Verbindung belegen
+         */
+        int getNetworkRequests();
+
+        int getQueuedConversions();
+
+        int getRunningConversions();
+
+        Map<String, Long> getErrorsByCause();
+    }
+
+    private static PipelineMetrics instance;
+
+    private final Map<Stage, LatencyHistogram> histograms;
+    private final Map<Stage, AtomicLong> stageErrors;
+    private final Map<String, AtomicLong> errors;
+    private final AtomicInteger networkRequests, queuedConversions, runningConversions;
+    private volatile Dispatcher dispatcher;
+
+    private PipelineMetrics() {
+        this.histograms = new EnumMap<>(Stage.class);
+        this.stageErrors = new EnumMap<>(Stage.class);
+        for (Stage stage : Stage.values()) {
+            histograms.put(stage, new LatencyHistogram());
+            stageErrors.put(stage, new AtomicLong(0));
+        }
+        this.errors = new ConcurrentHashMap<>();
+        this.networkRequests = new AtomicInteger(0);
+        this.queuedConversions = new AtomicInteger(0);
+        this.runningConversions = new AtomicInteger(0);
+    }
+
+    public static synchronized PipelineMetrics getInstance() {
+        if (instance == null) {
+            instance = new PipelineMetrics();
+            instance.register();
+        }
+        return instance;
+    }
+
+    private void register() {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (Stage stage : Stage.values()) {
+                final ObjectName name = new ObjectName(DOMAIN + ":type=Stage,name=" + stage.key);
+                if (!server.isRegistered(name)) {
+                    server.registerMBean(new StandardMBean(new StageBean(stage), StageMXBean.class, true), name);
+                }
+            }
+            final ObjectName name = new ObjectName(DOMAIN + ":type=Pipeline");
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new StandardMBean(new PipelineBean(), PipelineMXBean.class, true), name);
+            }
+        } catch (JMException e) {
+            LOG.warn("Metrics could not be registered with JMX. {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Liest die Warteschlange des Dispatchers für JMX.
+     *
+     * @param dispatcher
+     */
+    public void watch(Dispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * @param stage
+     * @param nanos Laufzeit in ns
+     */
+    public void record(Stage stage, long nanos) {
+        histograms.get(stage).record(nanos);
+    }
+
+    public void error(Stage stage, Throwable e) {
+        error(stage, cause(e));
+    }
+
+    public void error(Stage stage, String cause) {
+        stageErrors.get(stage).incrementAndGet();
+        errors.computeIfAbsent(stage.key + "/" + cause, k -> new AtomicLong(0)).incrementAndGet();
+    }
+
+    private static String cause(Throwable e) {
+        if (e instanceof SocketTimeoutException) {
+            return "timeout";
+        }
+        if (e instanceof ConnectException || e instanceof NoRouteToHostException || e instanceof UnknownHostException) {
+            return "connection";
+        }
+        if (e instanceof InterruptedIOException) {
+            return "interrupted";
+        }
+        return e.getClass().getSimpleName();
+    }
+
+    public void networkStarted() {
+        networkRequests.incrementAndGet();
+    }
+
+    public void networkFinished() {
+        networkRequests.decrementAndGet();
+    }
+
+    public void conversionQueued() {
+        queuedConversions.incrementAndGet();
+    }
+
+    public void conversionStarted() {
+        queuedConversions.decrementAndGet();
+        runningConversions.incrementAndGet();
+    }
+
+    public void conversionFinished() {
+        runningConversions.decrementAndGet();
+    }
+
+    /**
+     * Misst, wie lange <code>serializer</code> insgesamt braucht und wie viel
+     * davon auf das Schreiben in <code>dst</code> entfällt. Der Rest zählt
+     * als Serialisierung.
+     *
+     * @param dst
+     * @param serializer
+     * @throws IOException
+     */
+    public void serialize(OutputStream dst, Serializer serializer) throws IOException {
+        final TimedOutputStream out = new TimedOutputStream(dst);
+        final long start = System.nanoTime();
+        try {
+            serializer.write(out);
+        } catch (IOException | RuntimeException e) {
+            error(out.isFailed() ? Stage.WRITE : Stage.SERIALIZATION, e);
+            throw e;
+        }
+        final long writing = out.takeNanos();
+        record(Stage.SERIALIZATION, System.nanoTime() - start - writing);
+        record(Stage.WRITE, writing);
+    }
+
+    public interface Serializer {
+
+        void write(OutputStream out) throws IOException;
+    }
+
+    public Snapshot snapshot() {
+        final Map<Stage, LatencyHistogram.Snapshot> h = new EnumMap<>(Stage.class);
+        final Map<Stage, Long> e = new EnumMap<>(Stage.class);
+        for (Stage stage : Stage.values()) {
+            h.put(stage, histograms.get(stage).snapshot());
+            e.put(stage, stageErrors.get(stage).get());
+        }
+        return new Snapshot(h, e, errorsByCause());
+    }
+
+    private Map<String, Long> errorsByCause() {
+        final Map<String, Long> result = new TreeMap<>();
+        errors.forEach((k, v) -> result.put(k, v.get()));
+        return result;
+    }
+
+    /**
+     * @param since Stand am Anfang, <code>null</code>: seit Programmstart
+     * @return Zusammenfassung über mehrere Zeilen
+     */
+    public String summary(Snapshot since) {
+        final Snapshot now = snapshot();
+        final StringBuilder sb = new StringBuilder("Pipeline (Anzahl, Mittel, p50/p95/p99, max in ms):");
+        for (Stage stage : Stage.values()) {
+            final LatencyHistogram.Snapshot h = since == null ? now.histograms.get(stage) : now.histograms.get(stage).minus(since.histograms.get(stage));
+            final long e = now.stageErrors.get(stage) - (since == null ? 0 : since.stageErrors.get(stage));
+            sb.append(String.format("%n  %-16s %6d, %8.1f, %.1f/%.1f/%.1f, %.1f, %d Fehler",
+                    stage.label + ":", h.getCount(), h.getMean(), h.getPercentile(0.5), h.getPercentile(0.95), h.getPercentile(0.99), h.getMax(), e));
+        }
+        final StringBuilder causes = new StringBuilder();
+        now.errors.forEach((cause, n) -> {
+            final long d = n - (since == null ? 0 : since.errors.getOrDefault(cause, 0L));
+            if (d > 0) {
+                causes.append(causes.length() == 0 ? "" : ", ").append(cause).append(' ').append(d);
+            }
+        });
+        if (causes.length() > 0) {
+            sb.append(String.format("%n  Fehler nach Ursache: ")).append(causes);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Stand aller Histogramme und Fehlerzähler.
+     */
+    public static class Snapshot {
+
+        private final Map<Stage, LatencyHistogram.Snapshot> histograms;
+        private final Map<Stage, Long> stageErrors;
+        private final Map<String, Long> errors;
+
+        private Snapshot(Map<Stage, LatencyHistogram.Snapshot> histograms, Map<Stage, Long> stageErrors, Map<String, Long> errors) {
+            this.histograms = histograms;
+            this.stageErrors = stageErrors;
+            this.errors = errors;
+        }
+
+        /**
+         * @param stage
+         * @return Laufzeiten der Stufe bis zu diesem Stand
+         */
+        public LatencyHistogram.Snapshot getHistogram(Stage stage) {
+            return histograms.get(stage);
+        }
+
+        /**
+         * @param stage
+         * @return Anzahl der Fehler der Stufe bis zu diesem Stand
+         */
+        public long getErrorCount(Stage stage) {
+            return stageErrors.get(stage);
+        }
+    }
+
+    /**
+     * Summiert die Zeit, die in <code>write</code>, <code>flush</code> und
+     * <code>close</code> des darunterliegenden Streams verbracht wird.
+     */
+    public static class TimedOutputStream extends FilterOutputStream {
+
+        private long nanos;
+        private boolean failed;
+
+        public TimedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            final long start = System.nanoTime();
+            try {
+                out.write(b);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            } finally {
+                nanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            final long start = System.nanoTime();
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            } finally {
+                nanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            final long start = System.nanoTime();
+            try {
+                out.flush();
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            } finally {
+                nanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            final long start = System.nanoTime();
+            try {
+                out.close();
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            } finally {
+                nanos += System.nanoTime() - start;
+            }
+        }
+
+        /**
+         * @return Zeit im Stream bisher in ns
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * @return Zeit im Stream seit dem letzten Aufruf in ns
+         */
+        public long takeNanos() {
+            final long n = nanos;
+            nanos = 0;
+            return n;
+        }
+
+        /**
+         * @return <code>true</code>, wenn der darunterliegende Stream einen
+         * Fehler geworfen hat
+         */
+        public boolean isFailed() {
+            return failed;
+        }
+    }
+
+    private class StageBean implements StageMXBean {
+
+        private final Stage stage;
+
+        private StageBean(Stage stage) {
+            this.stage = stage;
+        }
+
+        @Override
+        public long getCount() {
+            return histograms.get(stage).snapshot().getCount();
+        }
+
+        @Override
+        public long getErrorCount() {
+            return stageErrors.get(stage).get();
+        }
+
+        @Override
+        public double getMeanMillis() {
+            return histograms.get(stage).snapshot().getMean();
+        }
+
+        @Override
+        public double getP50Millis() {
+            return histograms.get(stage).snapshot().getPercentile(0.5);
+        }
+
+        @Override
+        public double getP95Millis() {
+            return histograms.get(stage).snapshot().getPercentile(0.95);
+        }
+
+        @Override
+        public double getP99Millis() {
+            return histograms.get(stage).snapshot().getPercentile(0.99);
+        }
+
+        @Override
+        public double getMaxMillis() {
+            return histograms.get(stage).snapshot().getMax();
+        }
+    }
+
+    private class PipelineBean implements PipelineMXBean {
+
+        @Override
+        public int getQueuedRequests() {
+            final Dispatcher d = dispatcher;
+            return d == null ? 0 : d.queuedCallsCount();
+        }
+
+        @Override
+        public int getRunningRequests() {
+            final Dispatcher d = dispatcher;
+            return d == null ? 0 : d.runningCallsCount();
+        }
+
+        @Override
+        public int getNetworkRequests() {
+            return networkRequests.get();
+        }
+
+        @Override
+        public int getQueuedConversions() {
+            return queuedConversions.get();
+        }
+
+        @Override
+        public int getRunningConversions() {
+            return runningConversions.get();
+        }
+
+        @Override
+        public Map<String, Long> getErrorsByCause() {
+            return errorsByCause();
+        }
+    }
+}
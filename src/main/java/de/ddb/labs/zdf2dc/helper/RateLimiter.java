@@ -0,0 +1,353 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.helper;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import lombok.Getter;
+import okhttp3.CacheControl;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Begrenzt die Anfragen an die ZDF-API für das ganze Programm (Token
+ * Bucket): Pro Sekunde kommen <code>rate</code> Tokens dazu, höchstens
+ * <code>burst</code> werden angespart, jede Anfrage über das Netz kostet
+ * eins. Antworten aus dem Cache kosten nichts: Für Dokumente wird zuerst nur
+ * im {@link DocumentCache} nachgesehen (<code>only-if-cached</code>), erst
+ * wenn er nicht antworten kann, wird auf ein Token gewartet.
+ * <p>
+ * Interaktive Anfragen (Suche, Prüfen einer ID, alles außer
+ * <code>GET /content/documents/</code>) haben Vorrang vor Downloads: Solange
+ * eine interaktive Anfrage wartet, bekommt kein Download ein Token.
+ * <p>
+ * Schickt der Server <code>X-RateLimit-Remaining</code> und
+ * <code>X-RateLimit-Reset</code>, wird die Rate so gesenkt, dass das
+ * restliche Kontingent bis zum Reset reicht; bei <code>0</code> bzw. einem
+ * <code>Retry-After</code> (<code>429</code>, <code>503</code>) wird bis dahin
+ * pausiert.
+ * <p>
+ * Es gibt genau einen Limiter pro Programm, alle Clients verwenden ihn über
+ * {@link #apply(okhttp3.OkHttpClient.Builder)}. Gewartet wird in einem
+ * Interceptor der Anwendung, also ohne eine Verbindung aus dem Pool oder
+ * einen Platz im {@link AdaptiveLimiter} zu belegen. Konfiguriert wird er
+ * über {@link #configure(double, int)} oder die System-Properties
+ * <code>zdf2dc.rate</code> (Anfragen pro Sekunde, Standard <code>0</code>:
+ * nur nach den Angaben des Servers) und <code>zdf2dc.rate.burst</code>.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class RateLimiter {
+
+    private final static Logger LOG = LoggerFactory.getLogger(RateLimiter.class);
+    private final static String DOCUMENTS_PATH = "/content/documents/";
+    private final static String RATE_PROPERTY = "zdf2dc.rate";
+    private final static String BURST_PROPERTY = "zdf2dc.rate.burst";
+    public final static double DEFAULT_RATE = 0;
+    public final static int DEFAULT_BURST = 20;
+    // reset values above this are epoch seconds, below seconds from now
+    private final static long EPOCH_THRESHOLD = 1000000000L;
+
+    public enum Priority {
+        INTERACTIVE, BULK
+    }
+
+    private static RateLimiter instance;
+
+    /**
+     * konfigurierte Rate (Anfragen pro Sekunde), <code>0</code>: unbegrenzt
+     */
+    @Getter
+    private final double rate;
+    @Getter
+    private final int burst;
+    private final ReentrantLock lock;
+    private final Condition available;
+    private final AtomicLong waits, waitNanos;
+    private final Interceptor interceptor;
+    private double tokens;
+    private long lastRefill;
+    // rate lowered from the server's headers, 0: none
+    private double serverRate;
+    private long serverRateUntil;
+    private long pausedUntil;
+    private int interactiveWaiting;
+
+    private RateLimiter(double rate, int burst) {
+        this.rate = Math.max(rate, 0);
+        this.burst = Math.max(burst, 1);
+        this.lock = new ReentrantLock();
+        this.available = lock.newCondition();
+        this.waits = new AtomicLong(0);
+        this.waitNanos = new AtomicLong(0);
+        this.interceptor = this::intercept;
+        this.tokens = this.burst;
+        this.lastRefill = System.nanoTime();
+        this.pausedUntil = lastRefill;
+        if (this.rate > 0) {
+            LOG.info("Rate limit {}/s (burst {})", this.rate, this.burst);
+        }
+    }
+
+    /**
+     * Legt Rate und Burst fest. Muss vor dem Erzeugen der Clients aufgerufen
+     * werden. Nicht angegebene Werte (negativ) kommen aus den
+     * System-Properties.
+     *
+     * @param rate Anfragen pro Sekunde, <code>0</code>: unbegrenzt
+     * @param burst so viele Anfragen dürfen auf einmal kommen
+     */
+    public static synchronized void configure(double rate, int burst) {
+        instance = new RateLimiter(
+                rate < 0 ? Double.parseDouble(System.getProperty(RATE_PROPERTY, String.valueOf(DEFAULT_RATE))) : rate,
+                burst < 0 ? Integer.getInteger(BURST_PROPERTY, DEFAULT_BURST) : burst);
+    }
+
+    public static synchronized RateLimiter getInstance() {
+        if (instance == null) {
+            configure(-1, -1);
+        }
+        return instance;
+    }
+
+    /**
+     * Richtet einen Client für das Limit ein: als letzter Interceptor der
+     * Anwendung, hinter dem {@link DocumentCache}. Ist der Limiter schon
+     * eingerichtet (Client aus {@link Transport#newBuilder()}), wird er an
+     * das Ende verschoben. Abgeleitete Clients rufen das hinter
+     * {@link RetryPolicy} und vor {@link AdaptiveLimiter} auf, damit jeder
+     * Versuch ein Token kostet und das Warten keinen Platz belegt.
+     *
+     * @param builder
+     * @return
+     */
+    public OkHttpClient.Builder apply(OkHttpClient.Builder builder) {
+        builder.interceptors().remove(interceptor);
+        return builder.addInterceptor(interceptor);
+    }
+
+    private static Priority priority(Request request) {
+        final Priority tagged = request.tag(Priority.class);
+        if (tagged != null) {
+            return tagged;
+        }
+        return request.method().equals("GET") && request.url().encodedPath().startsWith(DOCUMENTS_PATH) ? Priority.BULK : Priority.INTERACTIVE;
+    }
+
+    private Response intercept(Interceptor.Chain chain) throws IOException {
+        final Request request = chain.request();
+        if (request.method().equals("GET") && request.url().encodedPath().startsWith(DOCUMENTS_PATH)) {
+            final Response cached = chain.proceed(request.newBuilder().cacheControl(onlyIfCached(request.cacheControl())).build());
+            // 504: not in the cache or it has to be revalidated
+            if (cached.code() != 504) {
+                return cached;
+            }
+            cached.close();
+        }
+        try {
+            acquire(priority(request));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the rate limit");
+        }
+        final Response response = chain.proceed(request);
+        if (response.networkResponse() != null) {
+            update(response);
+        }
+        return response;
+    }
+
+    private static CacheControl onlyIfCached(CacheControl cacheControl) {
+        final CacheControl.Builder builder = new CacheControl.Builder().onlyIfCached();
+        if (cacheControl.maxStaleSeconds() >= 0) {
+            builder.maxStale(cacheControl.maxStaleSeconds(), TimeUnit.SECONDS);
+        }
+        return builder.build();
+    }
+
+    private double currentRate(long now) {
+        if (serverRate > 0 && now - serverRateUntil < 0) {
+            return rate > 0 ? Math.min(rate, serverRate) : serverRate;
+        }
+        return rate;
+    }
+
+    private void refill(long now) {
+        final double r = currentRate(now);
+        if (r <= 0) {
+            tokens = burst;
+        } else {
+            tokens = Math.min(burst, tokens + (now - lastRefill) / 1e9 * r);
+        }
+        lastRefill = now;
+    }
+
+    private void acquire(Priority priority) throws InterruptedException {
+        final long start = System.nanoTime();
+        boolean waited = false;
+        lock.lockInterruptibly();
+        try {
+            if (priority == Priority.INTERACTIVE) {
+                ++interactiveWaiting;
+            }
+            try {
+                while (true) {
+                    final long now = System.nanoTime();
+                    refill(now);
+                    final boolean paused = now - pausedUntil < 0;
+                    final boolean turn = priority == Priority.INTERACTIVE || interactiveWaiting == 0;
+                    if (!paused && turn && tokens >= 1) {
+                        tokens -= 1;
+                        return;
+                    }
+                    waited = true;
+                    long nanos;
+                    if (paused) {
+                        nanos = pausedUntil - now;
+                    } else if (!turn) {
+                        nanos = TimeUnit.MILLISECONDS.toNanos(100);
+                    } else {
+                        final double r = currentRate(now);
+                        nanos = r > 0 ? (long) ((1 - tokens) / r * 1e9) + 1 : 1;
+                    }
+                    available.awaitNanos(nanos);
+                }
+            } finally {
+                if (priority == Priority.INTERACTIVE) {
+                    --interactiveWaiting;
+                    available.signalAll();
+                }
+            }
+        } finally {
+            lock.unlock();
+            if (waited) {
+                waits.incrementAndGet();
+                waitNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Übernimmt die Angaben des Servers zum Kontingent.
+     */
+    private void update(Response response) {
+        final long now = System.nanoTime();
+        final long retryAfter = (response.code() == 429 || response.code() == 503) ? retryAfter(response) : -1;
+        final long remaining = number(response.header("X-RateLimit-Remaining"));
+        final long reset = resetSeconds(response.header("X-RateLimit-Reset"));
+        if (retryAfter < 0 && (remaining < 0 || reset < 0)) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (retryAfter >= 0) {
+                pause(now, TimeUnit.SECONDS.toNanos(retryAfter));
+            }
+            if (remaining >= 0 && reset >= 0) {
+                final long resetAt = now + TimeUnit.SECONDS.toNanos(reset);
+                if (remaining == 0) {
+                    pause(now, resetAt - now);
+                } else {
+                    // spread what is left over the time until the reset
+                    serverRate = remaining / (double) Math.max(reset, 1);
+                    serverRateUntil = resetAt;
+                    tokens = Math.min(tokens, remaining);
+                }
+            }
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void pause(long now, long nanos) {
+        if (nanos > 0 && now + nanos - pausedUntil > 0) {
+            pausedUntil = now + nanos;
+            tokens = 0;
+            LOG.info("API quota exhausted, pausing requests for {} s", TimeUnit.NANOSECONDS.toSeconds(nanos));
+        }
+    }
+
+    private static long retryAfter(Response response) {
+        final long seconds = number(response.header("Retry-After"));
+        if (seconds >= 0) {
+            return seconds;
+        }
+        final Date date = response.headers().getDate("Retry-After");
+        return date == null ? -1 : Math.max(TimeUnit.MILLISECONDS.toSeconds(date.getTime() - System.currentTimeMillis()), 0);
+    }
+
+    private static long resetSeconds(String value) {
+        final long reset = number(value);
+        if (reset >= EPOCH_THRESHOLD) {
+            return Math.max(reset - TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()), 0);
+        }
+        return reset;
+    }
+
+    private static long number(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return aktuelle Rate (Anfragen pro Sekunde), <code>0</code>: unbegrenzt
+     */
+    public double getCurrentRate() {
+        lock.lock();
+        try {
+            return currentRate(System.nanoTime());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Anzahl der Anfragen, die warten mussten
+     */
+    public long getWaitCount() {
+        return waits.get();
+    }
+
+    /**
+     * @return durchschnittliche Wartezeit der Anfragen, die warten mussten, in
+     * ms
+     */
+    public double getAverageWaitMillis() {
+        final long n = waits.get();
+        return n == 0 ? 0 : waitNanos.get() / 1e6 / n;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Rate: %.1f Anfragen/s (Burst %d), %d mussten warten (%.0f ms)", getCurrentRate(), burst, getWaitCount(), getAverageWaitMillis());
+    }
+}
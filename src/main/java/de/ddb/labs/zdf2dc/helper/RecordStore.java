@@ -0,0 +1,608 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.helper;
+
+import de.ddb.labs.zdf2dc.data.rdfdc.OaiPmhReponse;
+import de.ddb.labs.zdf2dc.data.rdfdc.RdfDocumentProcessor;
+import de.ddb.labs.zdf2dc.data.rdfdc.ZdfRdfRecord;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Eingebetteter Speicher für konvertierte Datensätze: pro ZDF-ID das
+ * Original-JSON und das serialisierte RDF (ohne XML-Deklaration, siehe
+ * {@link RdfDocumentProcessor#serialize(ZdfRdfRecord)}).
+ * <p>
+ * Die Datensätze werden nur angehängt (<code>records.dat</code>), ein neuer
+ * Stand einer ID ersetzt den alten im Index, der alte bleibt als Müll in der
+ * Datei, bis {@link #compact()} die gültigen Datensätze in eine neue Datei
+ * umkopiert (automatisch beim Öffnen, wenn mehr als die Hälfte Müll ist).
+ * Jeder Eintrag hat eine Prüfsumme; ein beim Absturz halb geschriebener
+ * letzter Eintrag wird beim Öffnen abgeschnitten.
+ * <p>
+ * Der Index liegt im Speicher: primär nach ZDF-ID und
+ * <code>externalId</code> (Identifier im OAI-Header), sekundär nach
+ * Datestamp. {@link #sync()} und {@link #close()} schreiben ihn nach
+ * <code>records.idx</code>, damit beim Öffnen nur die danach angehängten
+ * Einträge gelesen werden müssen. Export und Auswahl lesen die Datei mit
+ * {@link #forEach(Collection, Visitor)} in einem Durchgang.
+ * <p>
+ * Ein Verzeichnis kann nur von einem Programm zur Zeit geöffnet werden. Die
+ * GUI verwendet den Speicher, wenn die System-Property
+ * <code>zdf2dc.store</code> ein Verzeichnis angibt.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class RecordStore implements Closeable {
+
+    private final static Logger LOG = LoggerFactory.getLogger(RecordStore.class);
+    public final static String DIR_PROPERTY = "zdf2dc.store";
+    private final static String DATA = "records.dat";
+    private final static String INDEX = "records.idx";
+    private final static String LOCK = "records.lock";
+    private final static int INDEX_MAGIC = 0x5a444631;
+    private final static byte VERSION = 1;
+    private final static double COMPACT_RATIO = 0.5;
+    private final static long COMPACT_MIN = 16 * 1024 * 1024;
+    private final static Comparator<Entry> BY_DATESTAMP = Comparator.comparingLong(Entry::getDatestamp).thenComparing(Entry::getId);
+    private final static Comparator<Entry> BY_OFFSET = Comparator.comparingLong(e -> e.offset);
+
+    /**
+     * Ein gespeicherter Datensatz.
+     */
+    public static class Entry {
+
+        /**
+         * ZDF-ID
+         */
+        @Getter
+        private final String id;
+        /**
+         * Identifier im OAI-Header
+         */
+        @Getter
+        private final String externalId;
+        /**
+         * in ms seit 1970 (UTC)
+         */
+        @Getter
+        private final long datestamp;
+        private final long offset;
+        private final int jsonLength;
+        /**
+         * Position des RDF in {@link #getFile()}
+         */
+        @Getter
+        private final long rdfOffset;
+        @Getter
+        private final int rdfLength;
+
+        private Entry(String id, String externalId, long datestamp, long offset, int jsonLength, int rdfLength) {
+            this.id = id;
+            this.externalId = externalId;
+            this.datestamp = datestamp;
+            this.offset = offset;
+            this.jsonLength = jsonLength;
+            this.rdfLength = rdfLength;
+            this.rdfOffset = jsonOffset() + jsonLength + 4;
+        }
+
+        private int headerLength() {
+            return 1 + utfLength(id) + utfLength(externalId) + 8 + 4;
+        }
+
+        private long jsonOffset() {
+            return offset + 4 + headerLength();
+        }
+
+        /**
+         * @return Länge des ganzen Eintrags in der Datei
+         */
+        private long size() {
+            return 4 + headerLength() + jsonLength + 4 + rdfLength + 4;
+        }
+    }
+
+    public interface Visitor {
+
+        void accept(Entry entry, byte[] rdf) throws IOException;
+    }
+
+    @Getter
+    private final File directory;
+    private final File file;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final Map<String, Entry> byId;
+    private final Map<String, Entry> byExternalId;
+    private final NavigableSet<Entry> byDatestamp;
+    private FileChannel channel;
+    private long end;
+    private long liveBytes;
+    // the index file is up to date
+    private boolean synced;
+
+    private RecordStore(File directory) throws IOException {
+        this.directory = directory;
+        this.file = new File(directory, DATA);
+        this.byId = new HashMap<>();
+        this.byExternalId = new HashMap<>();
+        this.byDatestamp = new TreeSet<>(BY_DATESTAMP);
+        this.lockChannel = FileChannel.open(new File(directory, LOCK).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock l;
+        try {
+            l = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            l = null;
+        }
+        if (l == null) {
+            lockChannel.close();
+            throw new IOException("Der Speicher " + directory.getAbsolutePath() + " wird bereits von einem anderen Programm verwendet.");
+        }
+        this.lock = l;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Öffnet den Speicher in <code>directory</code> (wird bei Bedarf
+     * angelegt).
+     *
+     * @param directory
+     * @return
+     * @throws IOException
+     */
+    public static RecordStore open(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Verzeichnis " + directory.getAbsolutePath() + " konnte nicht angelegt werden.");
+        }
+        final long start = System.nanoTime();
+        final RecordStore store = new RecordStore(directory);
+        try {
+            store.load();
+            if (store.getGarbage() > COMPACT_MIN && store.getGarbage() > store.end * COMPACT_RATIO) {
+                store.compact();
+            }
+        } catch (IOException | RuntimeException e) {
+            store.close();
+            throw e;
+        }
+        LOG.info("Opened record store {} with {} records in {} ms", directory.getAbsolutePath(), store.size(), (System.nanoTime() - start) / 1000000);
+        return store;
+    }
+
+    /**
+     * Öffnet den Speicher aus der System-Property <code>zdf2dc.store</code>.
+     *
+     * @return <code>null</code>, wenn die Property nicht gesetzt ist
+     * @throws IOException
+     */
+    public static RecordStore fromProperty() throws IOException {
+        final String dir = System.getProperty(DIR_PROPERTY);
+        return dir == null || dir.isEmpty() ? null : open(new File(dir));
+    }
+
+    /**
+     * Liest den gespeicherten Index und danach die Einträge, die er noch
+     * nicht enthält.
+     */
+    private void load() throws IOException {
+        final long length = channel.size();
+        long covered = readIndex(length);
+        if (covered < 0) {
+            byId.clear();
+            byExternalId.clear();
+            byDatestamp.clear();
+            liveBytes = 0;
+            covered = 0;
+        }
+        synced = covered == length;
+        end = covered;
+        try (final FileChannel scan = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                final DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(scan.position(covered)), 1 << 16))) {
+            while (end < length) {
+                final Entry entry = readEntry(in, end, length);
+                if (entry == null) {
+                    LOG.warn("Truncating {} after an incomplete entry at {} ({} bytes)", file.getName(), end, length - end);
+                    channel.truncate(end);
+                    break;
+                }
+                index(entry);
+                end += entry.size();
+            }
+        }
+    }
+
+    /**
+     * Liest einen Eintrag samt Prüfsumme.
+     *
+     * @return <code>null</code>, wenn der Eintrag unvollständig oder
+     * beschädigt ist
+     */
+    private static Entry readEntry(DataInputStream in, long offset, long length) throws IOException {
+        try {
+            final int bodyLength = in.readInt();
+            if (bodyLength <= 0 || offset + 4 + bodyLength + 4 > length) {
+                return null;
+            }
+            final byte[] body = new byte[bodyLength];
+            in.readFully(body);
+            final int crc = in.readInt();
+            final CRC32 check = new CRC32();
+            check.update(body, 0, body.length);
+            if ((int) check.getValue() != crc) {
+                return null;
+            }
+            final DataInputStream b = new DataInputStream(new ByteArrayInputStream(body));
+            if (b.readByte() != VERSION) {
+                return null;
+            }
+            final String id = b.readUTF();
+            final String externalId = b.readUTF();
+            final long datestamp = b.readLong();
+            final int jsonLength = b.readInt();
+            b.skipBytes(jsonLength);
+            final int rdfLength = b.readInt();
+            return new Entry(id, externalId, datestamp, offset, jsonLength, rdfLength);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return Länge der Datei, die der gespeicherte Index abdeckt,
+     * <code>-1</code> wenn es keinen (gültigen) gibt
+     */
+    private long readIndex(long length) {
+        final File idx = new File(directory, INDEX);
+        if (!idx.exists()) {
+            return -1;
+        }
+        final CRC32 crc = new CRC32();
+        try (final InputStream raw = new BufferedInputStream(Files.newInputStream(idx.toPath()))) {
+            final DataInputStream in = new DataInputStream(new CheckedInputStream(raw, crc));
+            if (in.readInt() != INDEX_MAGIC) {
+                throw new IOException("wrong format");
+            }
+            final long covered = in.readLong();
+            final int count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                index(new Entry(in.readUTF(), in.readUTF(), in.readLong(), in.readLong(), in.readInt(), in.readInt()));
+            }
+            final long expected = crc.getValue();
+            if (new DataInputStream(raw).readLong() != expected || covered > length) {
+                throw new IOException("checksum or length mismatch");
+            }
+            return covered;
+        } catch (IOException e) {
+            LOG.warn("Ignoring index {}, reading all of {}: {}", idx.getName(), file.getName(), e.getMessage());
+            return -1;
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        final File idx = new File(directory, INDEX);
+        final File tmp = File.createTempFile(INDEX, ".tmp", directory);
+        try {
+            final CRC32 crc = new CRC32();
+            try (final FileOutputStream raw = new FileOutputStream(tmp)) {
+                final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(raw, crc)));
+                out.writeInt(INDEX_MAGIC);
+                out.writeLong(end);
+                out.writeInt(byId.size());
+                for (Entry e : byId.values()) {
+                    out.writeUTF(e.id);
+                    out.writeUTF(e.externalId);
+                    out.writeLong(e.datestamp);
+                    out.writeLong(e.offset);
+                    out.writeInt(e.jsonLength);
+                    out.writeInt(e.rdfLength);
+                }
+                out.flush();
+                new DataOutputStream(raw).writeLong(crc.getValue());
+                raw.getFD().sync();
+            }
+            Files.move(tmp.toPath(), idx.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    private void index(Entry entry) {
+        final Entry old = byId.put(entry.id, entry);
+        if (old != null) {
+            byDatestamp.remove(old);
+            if (byExternalId.get(old.externalId) == old) {
+                byExternalId.remove(old.externalId);
+            }
+            liveBytes -= old.size();
+        }
+        byExternalId.put(entry.externalId, entry);
+        byDatestamp.add(entry);
+        liveBytes += entry.size();
+    }
+
+    /**
+     * Speichert einen konvertierten Datensatz. Identifier und Datestamp
+     * kommen wie bei
+     * {@link OaiPmhReponse.ListRecords#toRecord(ZdfRdfRecord)} aus dem
+     * Datensatz.
+     *
+     * @param id ZDF-ID
+     * @param json Original-JSON
+     * @param record
+     * @return
+     * @throws IOException
+     */
+    public Entry put(String id, byte[] json, ZdfRdfRecord record) throws IOException {
+        final OaiPmhReponse.ListRecords.Record.Header header = OaiPmhReponse.ListRecords.toRecord(record).getHeader();
+        return put(id, header.getIdentifier(), header.getDatestamp().getTime(), json, RdfDocumentProcessor.serialize(record));
+    }
+
+    /**
+     * Hängt einen Datensatz an. Ein vorhandener Datensatz mit derselben ID
+     * wird ersetzt.
+     *
+     * @param id ZDF-ID
+     * @param externalId Identifier im OAI-Header
+     * @param datestamp ms seit 1970
+     * @param json
+     * @param rdf ohne XML-Deklaration
+     * @return
+     * @throws IOException
+     */
+    public synchronized Entry put(String id, String externalId, long datestamp, byte[] json, byte[] rdf) throws IOException {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(json.length + rdf.length + 128);
+        final DataOutputStream out = new DataOutputStream(buffer);
+        out.writeInt(0); // length, filled in below
+        out.writeByte(VERSION);
+        out.writeUTF(id);
+        out.writeUTF(externalId);
+        out.writeLong(datestamp);
+        out.writeInt(json.length);
+        out.write(json);
+        out.writeInt(rdf.length);
+        out.write(rdf);
+        out.writeInt(0); // checksum
+        final ByteBuffer entry = ByteBuffer.wrap(buffer.toByteArray());
+        final int bodyLength = entry.capacity() - 8;
+        final CRC32 crc = new CRC32();
+        crc.update(entry.array(), 4, bodyLength);
+        entry.putInt(0, bodyLength);
+        entry.putInt(4 + bodyLength, (int) crc.getValue());
+
+        final long offset = end;
+        while (entry.hasRemaining()) {
+            channel.write(entry, offset + entry.position());
+        }
+        end += entry.capacity();
+        synced = false;
+        final Entry e = new Entry(id, externalId, datestamp, offset, json.length, rdf.length);
+        index(e);
+        return e;
+    }
+
+    /**
+     * @param key ZDF-ID oder <code>externalId</code>
+     * @return <code>null</code>, wenn es keinen Datensatz gibt
+     */
+    public synchronized Entry get(String key) {
+        final Entry e = byId.get(key);
+        return e != null ? e : byExternalId.get(key);
+    }
+
+    public synchronized byte[] readJson(Entry entry) throws IOException {
+        return read(entry.jsonOffset(), entry.jsonLength);
+    }
+
+    public synchronized byte[] readRdf(Entry entry) throws IOException {
+        return read(entry.rdfOffset, entry.rdfLength);
+    }
+
+    private byte[] read(long position, int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of " + file.getName());
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @return alle Datensätze in der Reihenfolge der Datei
+     */
+    public synchronized List<Entry> getEntries() {
+        final List<Entry> entries = new ArrayList<>(byId.values());
+        entries.sort(BY_OFFSET);
+        return entries;
+    }
+
+    /**
+     * @param from kleinster Datestamp (einschließlich)
+     * @param until größter Datestamp (einschließlich)
+     * @return Datensätze in diesem Bereich, nach Datestamp sortiert
+     */
+    public synchronized List<Entry> range(long from, long until) {
+        if (from > until) {
+            return new ArrayList<>();
+        }
+        final Entry lower = new Entry("", "", from, 0, 0, 0);
+        final List<Entry> result = new ArrayList<>();
+        for (Entry e : byDatestamp.tailSet(lower, true)) {
+            if (e.datestamp > until) {
+                break;
+            }
+            result.add(e);
+        }
+        return result;
+    }
+
+    /**
+     * Liest das RDF der Datensätze in der Reihenfolge der Datei, also in
+     * einem Durchgang, und übergibt es an <code>visitor</code>.
+     *
+     * @param entries z.B. {@link #getEntries()} oder eine Auswahl
+     * @param visitor
+     * @throws IOException
+     */
+    public synchronized void forEach(Collection<Entry> entries, Visitor visitor) throws IOException {
+        final List<Entry> sorted = new ArrayList<>(entries);
+        sorted.sort(BY_OFFSET);
+        for (Entry e : sorted) {
+            visitor.accept(e, read(e.rdfOffset, e.rdfLength));
+        }
+    }
+
+    /**
+     * Schreibt die Daten auf die Platte und den Index in
+     * <code>records.idx</code>.
+     *
+     * @throws IOException
+     */
+    public synchronized void sync() throws IOException {
+        if (synced) {
+            return;
+        }
+        channel.force(false);
+        writeIndex();
+        synced = true;
+    }
+
+    /**
+     * Kopiert die gültigen Datensätze in eine neue Datei und ersetzt damit
+     * die alte.
+     *
+     * @throws IOException
+     */
+    public synchronized void compact() throws IOException {
+        final long start = System.nanoTime();
+        final long before = end;
+        final List<Entry> entries = getEntries();
+        final File tmp = new File(directory, DATA + ".compact");
+        long offset = 0;
+        final List<Entry> moved = new ArrayList<>(entries.size());
+        try (final FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (Entry e : entries) {
+                final long size = e.size();
+                long done = 0;
+                while (done < size) {
+                    done += channel.transferTo(e.offset + done, size - done, out);
+                }
+                moved.add(new Entry(e.id, e.externalId, e.datestamp, offset, e.jsonLength, e.rdfLength));
+                offset += size;
+            }
+            out.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp.toPath());
+            throw e;
+        }
+        channel.close();
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        byId.clear();
+        byExternalId.clear();
+        byDatestamp.clear();
+        liveBytes = 0;
+        for (Entry e : moved) {
+            index(e);
+        }
+        end = offset;
+        synced = false;
+        writeIndex();
+        synced = true;
+        LOG.info("Compacted record store from {} to {} MB in {} ms", before / (1024 * 1024), end / (1024 * 1024), (System.nanoTime() - start) / 1000000);
+    }
+
+    public synchronized int size() {
+        return byId.size();
+    }
+
+    /**
+     * @return Bytes in der Datei, die zu ersetzten Datensätzen gehören
+     */
+    public synchronized long getGarbage() {
+        return end - liveBytes;
+    }
+
+    /**
+     * @return Datei mit den Datensätzen (für eigene Lesezugriffe, z.B.
+     * {@link Entry#getRdfOffset()})
+     */
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (channel.isOpen()) {
+                sync();
+            }
+        } finally {
+            channel.close();
+            if (lock.isValid()) {
+                lock.release();
+            }
+            lockChannel.close();
+        }
+    }
+
+    private static int utfLength(String s) {
+        int n = 2;
+        for (int i = 0; i < s.length(); ++i) {
+            final char c = s.charAt(i);
+            n += c >= 0x0001 && c <= 0x007F ? 1 : c > 0x07FF ? 3 : 2;
+        }
+        return n;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Speicher: %d Datensätze, %.1f MB (%.0f %% veraltet)", byId.size(), end / 1048576.0, end > 0 ? 100.0 * getGarbage() / end : 0);
+    }
+}
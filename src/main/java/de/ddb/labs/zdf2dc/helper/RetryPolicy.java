@@ -0,0 +1,269 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.helper;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Getter;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Wiederholt fehlgeschlagene <code>GET</code>- und
+ * <code>HEAD</code>-Anfragen:
+ * <ul>
+ * <li>Netzwerkfehler, <code>408</code>, <code>500</code>, <code>502</code>,
+ * <code>503</code>, <code>504</code>: mit exponentiell wachsender Pause, von
+ * der zufällig bis zur Hälfte abgezogen wird.</li>
+ * <li><code>429</code>: wie oben, aber ein <code>Retry-After</code> des
+ * Servers geht vor (wenn er nicht länger als <code>maxDelay</code> ist).</li>
+ * <li>alle anderen Status (z.B. <code>404</code>): keine Wiederholung.</li>
+ * </ul>
+ * Wiederholungen kosten Guthaben aus einem Budget, das mit jeder neuen
+ * Anfrage wächst (20 %); ist es leer, wird nicht mehr wiederholt, damit
+ * ein ausgefallener Server nicht mit Wiederholungen überhäuft wird. Dazu
+ * hält ein {@link CircuitBreaker} alle Anfragen an, solange der Server nur
+ * mit Netzwerkfehlern oder <code>5xx</code> antwortet.
+ * <p>
+ * Wird über {@link #apply(okhttp3.OkHttpClient.Builder)} vor dem
+ * {@link AdaptiveLimiter} eingebunden, damit eine wartende Wiederholung
+ * keinen Platz im Limit belegt.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class RetryPolicy {
+
+    private final static Logger LOG = LoggerFactory.getLogger(RetryPolicy.class);
+    public final static int DEFAULT_RETRIES = Integer.getInteger("zdf2dc.retry.count", 3);
+    private final static long BASE_DELAY = 500; // ms
+    private final static long MAX_DELAY = 60000; // ms
+    private final static double BUDGET_RATIO = 0.2;
+    private final static double BUDGET_INITIAL = 50;
+    private final static double BUDGET_MAX = 100;
+    private final static int BREAKER_THRESHOLD = 10;
+    private final static long BREAKER_PAUSE = 5000; // ms
+    private final static long BREAKER_MAX_PAUSE = 30000; // ms
+    private final static long BREAKER_GIVE_UP = 120000; // ms
+
+    @Getter
+    private final int retries;
+    private final long baseDelay, maxDelay;
+    @Getter
+    private final CircuitBreaker breaker;
+    private final AtomicLong retried, exhausted;
+    private double budget;
+
+    public RetryPolicy() {
+        this(DEFAULT_RETRIES);
+    }
+
+    /**
+     * @param retries höchstens so viele Wiederholungen pro Anfrage,
+     * <code>0</code>: keine
+     */
+    public RetryPolicy(int retries) {
+        this(retries, BASE_DELAY, MAX_DELAY, new CircuitBreaker(BREAKER_THRESHOLD, BREAKER_PAUSE, BREAKER_MAX_PAUSE, BREAKER_GIVE_UP));
+    }
+
+    /**
+     * @param retries höchstens so viele Wiederholungen pro Anfrage
+     * @param baseDelay Pause vor der ersten Wiederholung in ms (ohne Zufall)
+     * @param maxDelay längste Pause in ms
+     * @param breaker
+     */
+    public RetryPolicy(int retries, long baseDelay, long maxDelay, CircuitBreaker breaker) {
+        this.retries = Math.max(retries, 0);
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.breaker = breaker;
+        this.retried = new AtomicLong(0);
+        this.exhausted = new AtomicLong(0);
+        this.budget = BUDGET_INITIAL;
+    }
+
+    /**
+     * Richtet einen Client für die Wiederholungen ein.
+     *
+     * @param builder
+     * @return
+     */
+    public OkHttpClient.Builder apply(OkHttpClient.Builder builder) {
+        return builder.addInterceptor(this::intercept);
+    }
+
+    private enum Outcome {
+        SUCCESS, RETRY, PERMANENT
+    }
+
+    private static Outcome classify(Response response) {
+        switch (response.code()) {
+            case 408:
+            case 429:
+            case 500:
+            case 502:
+            case 503:
+            case 504:
+                return Outcome.RETRY;
+            default:
+                return response.isSuccessful() || response.code() == 304 ? Outcome.SUCCESS : Outcome.PERMANENT;
+        }
+    }
+
+    private Response intercept(Interceptor.Chain chain) throws IOException {
+        final Request request = chain.request();
+        if (!request.method().equals("GET") && !request.method().equals("HEAD")) {
+            return chain.proceed(request);
+        }
+        deposit();
+
+        for (int attempt = 0;; ++attempt) {
+            try {
+                breaker.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while the API is paused");
+            }
+
+            final Response response;
+            try {
+                response = chain.proceed(request);
+            } catch (IOException e) {
+                if (chain.call().isCanceled()) {
+                    breaker.cancelled();
+                    throw e;
+                }
+                breaker.failure();
+                final long delay = backoff(attempt);
+                if (!retry(request, attempt, delay, e.toString())) {
+                    throw e;
+                }
+                sleep(delay);
+                continue;
+            } catch (RuntimeException e) {
+                breaker.cancelled();
+                throw e;
+            }
+
+            final Outcome outcome = classify(response);
+            if (outcome != Outcome.RETRY || response.code() == 429) {
+                // the server answered, even if with 404 or "too many requests"
+                breaker.success();
+            } else {
+                breaker.failure();
+            }
+            if (outcome != Outcome.RETRY) {
+                return response;
+            }
+            final long delay = retryAfter(response, attempt);
+            if (!retry(request, attempt, delay, "HTTP " + response.code())) {
+                return response;
+            }
+            response.close();
+            sleep(delay);
+        }
+    }
+
+    /**
+     * @return <code>false</code>, wenn nicht mehr wiederholt wird
+     */
+    private boolean retry(Request request, int attempt, long delay, String reason) {
+        if (attempt >= retries) {
+            LOG.debug("{}: giving up after {} attempts ({})", request.url(), attempt + 1, reason);
+            return false;
+        }
+        if (delay > maxDelay) {
+            LOG.debug("{}: Retry-After of {} ms is too long ({})", request.url(), delay, reason);
+            return false;
+        }
+        if (!withdraw()) {
+            exhausted.incrementAndGet();
+            LOG.debug("{}: retry budget exhausted ({})", request.url(), reason);
+            return false;
+        }
+        retried.incrementAndGet();
+        LOG.debug("{}: retry {} in {} ms ({})", request.url(), attempt + 1, delay, reason);
+        return true;
+    }
+
+    private static void sleep(long delay) throws IOException {
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a retry");
+        }
+    }
+
+    private long backoff(int attempt) {
+        final long cap = Math.min(maxDelay, baseDelay << Math.min(attempt + 1, 20));
+        return ThreadLocalRandom.current().nextLong(cap / 2, cap + 1);
+    }
+
+    private long retryAfter(Response response, int attempt) {
+        final String value = response.header("Retry-After");
+        if (value != null) {
+            try {
+                return TimeUnit.SECONDS.toMillis(Math.max(Long.parseLong(value.trim()), 0));
+            } catch (NumberFormatException e) {
+                final Date date = response.headers().getDate("Retry-After");
+                if (date != null) {
+                    return Math.max(date.getTime() - System.currentTimeMillis(), 0);
+                }
+            }
+        }
+        return backoff(attempt);
+    }
+
+    private synchronized void deposit() {
+        budget = Math.min(BUDGET_MAX, budget + BUDGET_RATIO);
+    }
+
+    private synchronized boolean withdraw() {
+        if (budget < 1) {
+            return false;
+        }
+        budget -= 1;
+        return true;
+    }
+
+    /**
+     * @return Anzahl der Wiederholungen
+     */
+    public long getRetryCount() {
+        return retried.get();
+    }
+
+    /**
+     * @return Anzahl der Anfragen, die wegen des leeren Budgets nicht
+     * wiederholt wurden
+     */
+    public long getExhaustedCount() {
+        return exhausted.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Wiederholungen: %d, %d wegen Budget nicht wiederholt, API %d-mal pausiert", getRetryCount(), getExhaustedCount(), breaker.getOpenCount());
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.helper;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.prefs.Preferences;
+import lombok.Getter;
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.EventListener;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Gemeinsamer HTTP-Zugang zur ZDF-API: ein Connection-Pool, ein Dispatcher
+ * und ein API-Schlüssel pro Programm. Alle Anfragen (Suche, Prüfen einer ID,
+ * Downloads) laufen über {@link #getClient()} bzw. über einen davon
+ * abgeleiteten Client aus {@link #newBuilder()}, der Pool und Dispatcher
+ * mitbenutzt. Verbindungen werden so über alle Aufrufer hinweg
+ * wiederverwendet (Keep-Alive), bei HTTPS wird HTTP/2 verwendet, wenn der
+ * Server es anbietet.
+ * <p>
+ * Der Client bringt als Interceptoren mit: <code>Api-Auth</code>, Statistik
+ * (auch für {@link PipelineMetrics}), {@link DocumentCache} und
+ * {@link RateLimiter}. Abgeleitete Clients hängen
+ * ihre eigenen ({@link RetryPolicy}, {@link AdaptiveLimiter}) dahinter an
+ * und holen den {@link RateLimiter} dazwischen (siehe
+ * {@link RateLimiter#apply(okhttp3.OkHttpClient.Builder)}).
+ * {@link DocumentCache} und {@link RateLimiter} müssen deshalb vor dem ersten
+ * {@link #getInstance()} konfiguriert sein.
+ * <p>
+ * Der API-Schlüssel wird einmal gelesen: aus {@link #configure(String)},
+ * sonst aus <code>$ZDFAPIKEY</code>, sonst aus den Preferences. Die Größe von
+ * Pool und Dispatcher kommt aus den System-Properties
+ * <code>zdf2dc.http.idle</code> (Verbindungen, die offen gehalten werden)
+ * und <code>zdf2dc.http.requests</code> (gleichzeitige Anfragen), die Adresse
+ * der API aus <code>zdf2dc.api.url</code> (z.B. für einen Testserver).
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class Transport {
+
+    private final static Logger LOG = LoggerFactory.getLogger(Transport.class);
+    public final static String PREFERENCES_NODE = "de/ddb/labs/zdf2dc";
+    public final static String PREFERENCES_KEY = "ZDFAPIKEY";
+    private final static String ENV_KEY = "ZDFAPIKEY";
+    private final static String URL_PROPERTY = "zdf2dc.api.url";
+    public final static String DEFAULT_URL = "https://api.zdf.de";
+    private final static String DOCUMENTS_PATH = "/content/documents/";
+    private final static int CONNECTTIMEOUT = 10;
+    private final static int WRITETIMEOUT = 10;
+    private final static int READTIMEOUT = 30;
+    private final static int MAX_IDLE = Integer.getInteger("zdf2dc.http.idle", 32);
+    private final static long KEEP_ALIVE = 5; // min
+    private final static int MAX_REQUESTS = Integer.getInteger("zdf2dc.http.requests", 64);
+
+    private static Transport instance;
+
+    @Getter
+    private final OkHttpClient client;
+    @Getter
+    private final Dispatcher dispatcher;
+    /**
+     * Adresse der API ohne <code>/</code> am Ende, z.B.
+     * <code>https://api.zdf.de</code>
+     */
+    @Getter
+    private final String baseUrl;
+    private final ConnectionPool connectionPool;
+    private final AtomicLong requests, failures, connects, acquired, http2;
+    private final PipelineMetrics metrics;
+    private volatile String apiKey;
+
+    private Transport(String apiKey) {
+        this.apiKey = apiKey;
+        this.baseUrl = System.getProperty(URL_PROPERTY, DEFAULT_URL).replaceAll("/+$", "");
+        this.requests = new AtomicLong(0);
+        this.failures = new AtomicLong(0);
+        this.connects = new AtomicLong(0);
+        this.acquired = new AtomicLong(0);
+        this.http2 = new AtomicLong(0);
+        this.metrics = PipelineMetrics.getInstance();
+        this.connectionPool = new ConnectionPool(MAX_IDLE, KEEP_ALIVE, TimeUnit.MINUTES);
+        this.dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(MAX_REQUESTS);
+        dispatcher.setMaxRequestsPerHost(MAX_REQUESTS);
+        metrics.watch(dispatcher);
+
+        final OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .addInterceptor(this::authenticate)
+                .addInterceptor(this::count)
+                .eventListenerFactory(call -> new CallStatistics());
+        this.client = RateLimiter.getInstance().apply(DocumentCache.getInstance().apply(builder))
+                .connectionPool(connectionPool)
+                .dispatcher(dispatcher)
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .connectTimeout(CONNECTTIMEOUT, TimeUnit.SECONDS)
+                .writeTimeout(WRITETIMEOUT, TimeUnit.SECONDS)
+                .readTimeout(READTIMEOUT, TimeUnit.SECONDS)
+                .build();
+        LOG.debug("HTTP transport to {} with {} idle connections, {} requests", baseUrl, MAX_IDLE, MAX_REQUESTS);
+    }
+
+    /**
+     * Legt den API-Schlüssel fest. Muss vor dem ersten
+     * {@link #getInstance()} aufgerufen werden. Ein vorher konfigurierter
+     * Zugang wird mit {@link #shutdown()} beendet.
+     *
+     * @param apiKey <code>null</code>: aus <code>$ZDFAPIKEY</code> bzw. den
+     * Preferences
+     */
+    public static synchronized void configure(String apiKey) {
+        if (apiKey == null) {
+            apiKey = System.getenv(ENV_KEY);
+        }
+        if (apiKey == null) {
+            apiKey = Preferences.userRoot().node(PREFERENCES_NODE).get(PREFERENCES_KEY, "");
+        }
+        if (instance != null) {
+            instance.shutdown();
+        }
+        instance = new Transport(apiKey);
+    }
+
+    public static synchronized Transport getInstance() {
+        if (instance == null) {
+            configure(null);
+        }
+        return instance;
+    }
+
+    /**
+     * @return Client mit eigenen Einstellungen (z.B. weiteren Interceptoren),
+     * der Pool, Dispatcher und Schlüssel mitbenutzt
+     */
+    public OkHttpClient.Builder newBuilder() {
+        return client.newBuilder();
+    }
+
+    /**
+     * @param id ZDF-ID (URL-kodiert)
+     * @return Adresse des Dokuments als JSON
+     */
+    public String documentUrl(String id) {
+        return baseUrl + DOCUMENTS_PATH + id + ".json";
+    }
+
+    public String getApiKey() {
+        return apiKey;
+    }
+
+    /**
+     * Ersetzt den API-Schlüssel, z.B. nach einer Eingabe des Benutzers. Gilt
+     * für alle folgenden Anfragen.
+     *
+     * @param apiKey
+     */
+    public void setApiKey(String apiKey) {
+        this.apiKey = apiKey == null ? "" : apiKey;
+    }
+
+    /**
+     * Sorgt dafür, dass der Dispatcher mindestens so viele Anfragen
+     * gleichzeitig laufen lässt (insgesamt und pro Host).
+     *
+     * @param requests
+     */
+    public synchronized void allowConcurrency(int requests) {
+        if (dispatcher.getMaxRequests() < requests) {
+            dispatcher.setMaxRequests(requests);
+        }
+        if (dispatcher.getMaxRequestsPerHost() < requests) {
+            dispatcher.setMaxRequestsPerHost(requests);
+        }
+    }
+
+    /**
+     * Beendet die Threads des Dispatchers und schließt offene Verbindungen.
+     * Danach können keine Anfragen mehr geschickt werden.
+     */
+    public void shutdown() {
+        dispatcher.executorService().shutdown();
+        connectionPool.evictAll();
+    }
+
+    private Response authenticate(Interceptor.Chain chain) throws IOException {
+        final Request request = chain.request();
+        if (request.header("Api-Auth") != null) {
+            return chain.proceed(request);
+        }
+        return chain.proceed(request.newBuilder().header("Api-Auth", "Bearer " + apiKey).build());
+    }
+
+    private Response count(Interceptor.Chain chain) throws IOException {
+        requests.incrementAndGet();
+        final Response response;
+        try {
+            response = chain.proceed(chain.request());
+        } catch (IOException | RuntimeException e) {
+            failures.incrementAndGet();
+            if (chain.call().isCanceled()) {
+                metrics.error(PipelineMetrics.Stage.FETCH, "canceled");
+            } else {
+                metrics.error(PipelineMetrics.Stage.FETCH, e);
+            }
+            throw e;
+        }
+        if (response.code() >= 400) {
+            metrics.error(PipelineMetrics.Stage.FETCH, "HTTP " + response.code());
+        }
+        return response;
+    }
+
+    /**
+     * Misst die Dauer eines Aufrufs bis zum Ende der Antwort und zählt, wie
+     * oft eine neue Verbindung aufgebaut werden musste.
+     */
+    private class CallStatistics extends EventListener {
+
+        private long start;
+
+        @Override
+        public void callStart(Call call) {
+            start = System.nanoTime();
+        }
+
+        @Override
+        public void callEnd(Call call) {
+            metrics.record(PipelineMetrics.Stage.FETCH, System.nanoTime() - start);
+        }
+
+        @Override
+        public void connectionAcquired(Call call, Connection connection) {
+            acquired.incrementAndGet();
+            metrics.networkStarted();
+        }
+
+        @Override
+        public void connectionReleased(Call call, Connection connection) {
+            metrics.networkFinished();
+        }
+
+        @Override
+        public void connectEnd(Call call, InetSocketAddress address, Proxy proxy, Protocol protocol) {
+            connects.incrementAndGet();
+            if (protocol == Protocol.HTTP_2) {
+                http2.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return Anzahl der Anfragen
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return Anzahl der Anfragen, die ohne Antwort fehlgeschlagen sind
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * @return Anzahl neu aufgebauter Verbindungen
+     */
+    public long getConnectCount() {
+        return connects.get();
+    }
+
+    /**
+     * @return Anzahl der Anfragen über das Netz, die eine offene Verbindung
+     * wiederverwenden konnten
+     */
+    public long getReusedCount() {
+        return Math.max(acquired.get() - connects.get(), 0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("HTTP: %d Anfragen, %d fehlgeschlagen, %d Verbindungen (%d HTTP/2), %d-mal wiederverwendet, %d offen",
+                getRequestCount(), getFailureCount(), getConnectCount(), http2.get(), getReusedCount(), connectionPool.connectionCount());
+    }
+}
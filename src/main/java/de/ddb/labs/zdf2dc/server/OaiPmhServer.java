@@ -0,0 +1,428 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * OAI-PMH-Schnittstelle (Version 2.0) für die konvertierten Datensätze, auf
+ * dem HTTP-Server des JDK. Unterstützt werden alle Verben
+ * (<code>Identify</code>, <code>ListMetadataFormats</code>,
+ * <code>ListSets</code>, <code>GetRecord</code>,
+ * <code>ListIdentifiers</code>, <code>ListRecords</code>) per GET und POST
+ * unter <code>/oai</code>, mit <code>from</code>/<code>until</code> auf dem
+ * Datestamp (Tag oder Sekunde) und Seiten zu <code>pageSize</code>
+ * Datensätzen, die über <code>resumptionToken</code> verkettet sind. Das
+ * einzige Format ist <code>dc-ddb</code> (RDF, wie in den Exporten), Sets
+ * gibt es nicht.
+ * <p>
+ * Die Datensätze kommen aus einem {@link RecordIndex}; der
+ * <code>resumptionToken</code> enthält Position, Bereich und Größe der Liste
+ * und wird ungültig, wenn sich die Liste geändert hat.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class OaiPmhServer implements Closeable {
+
+    private final static Logger LOG = LoggerFactory.getLogger(OaiPmhServer.class);
+    public final static String PATH = "/oai";
+    private final static String OAI = "http://www.openarchives.org/OAI/2.0/";
+    private final static String SCHEMA_LOCATION = OAI + " http://www.openarchives.org/OAI/2.0/OAI-PMH.xsd";
+    private final static String METADATA_PREFIX = "dc-ddb";
+    private final static String METADATA_NAMESPACE = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+    private final static String METADATA_SCHEMA = "http://www.w3.org/2000/07/rdf.xsd";
+    private final static String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss'Z'";
+    private final static long DAY = TimeUnit.DAYS.toMillis(1);
+    public final static int DEFAULT_PAGE_SIZE = Integer.getInteger("zdf2dc.oai.pagesize", 100);
+    public final static String DEFAULT_ADMIN_EMAIL = System.getProperty("zdf2dc.oai.admin", "m.buechner@dnb.de");
+
+    private final static Map<String, Set<String>> ARGUMENTS = new LinkedHashMap<>();
+
+    static {
+        ARGUMENTS.put("Identify", set());
+        ARGUMENTS.put("ListMetadataFormats", set("identifier"));
+        ARGUMENTS.put("ListSets", set("resumptionToken"));
+        ARGUMENTS.put("GetRecord", set("identifier", "metadataPrefix"));
+        ARGUMENTS.put("ListIdentifiers", set("metadataPrefix", "from", "until", "set", "resumptionToken"));
+        ARGUMENTS.put("ListRecords", set("metadataPrefix", "from", "until", "set", "resumptionToken"));
+    }
+
+    private final RecordIndex index;
+    private final int pageSize;
+    private final String adminEmail;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * @param index
+     * @param port
+     * @param pageSize Datensätze pro Seite
+     * @param adminEmail für <code>Identify</code>
+     * @throws IOException
+     */
+    public OaiPmhServer(RecordIndex index, int port, int pageSize, String adminEmail) throws IOException {
+        this.index = index;
+        this.pageSize = Math.max(pageSize, 1);
+        this.adminEmail = adminEmail;
+        this.executor = Executors.newFixedThreadPool(Math.max(Runtime.getRuntime().availableProcessors(), 2));
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(executor);
+        server.createContext(PATH, this::handle);
+    }
+
+    public void start() {
+        server.start();
+        LOG.info("OAI-PMH provider listening on port {}", getPort());
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(1);
+        executor.shutdown();
+        try {
+            index.close();
+        } catch (IOException e) {
+            LOG.warn("Could not remove the record index. {}", e.getMessage());
+        }
+    }
+
+    private static Set<String> set(String... values) {
+        return Collections.unmodifiableSet(new HashSet<>(Arrays.asList(values)));
+    }
+
+    /**
+     * Fehler nach OAI-PMH, z.B. <code>badArgument</code>.
+     */
+    private static class OaiError extends Exception {
+
+        private final String code;
+
+        private OaiError(String code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            final Map<String, String> args;
+            final String verb;
+            final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            final Writer w = new OutputStreamWriter(buffer, StandardCharsets.UTF_8);
+            final String baseUrl = "http://" + exchange.getRequestHeaders().getFirst("Host") + PATH;
+            w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<OAI-PMH xmlns=\"" + OAI
+                    + "\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xsi:schemaLocation=\"" + SCHEMA_LOCATION + "\">\n");
+            w.write("  <responseDate>" + format(System.currentTimeMillis()) + "</responseDate>\n");
+            try {
+                if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("POST")) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                final String query = exchange.getRequestMethod().equals("POST") ? read(exchange.getRequestBody()) : exchange.getRequestURI().getRawQuery();
+                final Map<String, List<String>> params = parse(query);
+                verb = single(params, "verb");
+                if (verb == null || !ARGUMENTS.containsKey(verb)) {
+                    throw new OaiError("badVerb", verb == null ? "Kein Verb angegeben." : "Unbekanntes Verb: " + verb);
+                }
+                args = arguments(verb, params);
+                w.write("  <request");
+                for (Map.Entry<String, String> e : args.entrySet()) {
+                    w.write(" " + e.getKey() + "=\"" + escape(e.getValue()) + "\"");
+                }
+                w.write(">" + escape(baseUrl) + "</request>\n");
+                w.flush();
+                switch (verb) {
+                    case "Identify":
+                        identify(w, baseUrl);
+                        break;
+                    case "ListMetadataFormats":
+                        listMetadataFormats(w, args);
+                        break;
+                    case "ListSets":
+                        throw new OaiError("noSetHierarchy", "Es gibt keine Sets.");
+                    case "GetRecord":
+                        getRecord(w, buffer, args);
+                        break;
+                    default:
+                        list(w, buffer, args, verb.equals("ListRecords"));
+                }
+            } catch (OaiError e) {
+                // the request element has only attributes if the arguments were valid
+                if (!e.code.equals("badVerb") && !e.code.equals("badArgument")) {
+                    w.write("  <error code=\"" + e.code + "\">" + escape(e.getMessage()) + "</error>\n");
+                } else {
+                    w.write("  <request>" + escape(baseUrl) + "</request>\n  <error code=\"" + e.code + "\">" + escape(e.getMessage()) + "</error>\n");
+                }
+            }
+            w.write("</OAI-PMH>\n");
+            w.flush();
+            exchange.getResponseHeaders().set("Content-Type", "text/xml;charset=UTF-8");
+            exchange.sendResponseHeaders(200, buffer.size());
+            try (final OutputStream out = exchange.getResponseBody()) {
+                buffer.writeTo(out);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.error("OAI-PMH request {} failed. {}", exchange.getRequestURI(), e.getMessage(), e);
+            throw e;
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static Map<String, String> arguments(String verb, Map<String, List<String>> params) throws OaiError {
+        final Map<String, String> args = new LinkedHashMap<>();
+        args.put("verb", verb);
+        for (Map.Entry<String, List<String>> e : params.entrySet()) {
+            if (e.getKey().equals("verb")) {
+                continue;
+            }
+            if (!ARGUMENTS.get(verb).contains(e.getKey())) {
+                throw new OaiError("badArgument", "Unzulässiges Argument für " + verb + ": " + e.getKey());
+            }
+            if (e.getValue().size() > 1) {
+                throw new OaiError("badArgument", "Argument mehrfach angegeben: " + e.getKey());
+            }
+            args.put(e.getKey(), e.getValue().get(0));
+        }
+        if (args.containsKey("resumptionToken") && args.size() > 2) {
+            throw new OaiError("badArgument", "resumptionToken muss das einzige Argument sein.");
+        }
+        if (verb.equals("GetRecord") && (!args.containsKey("identifier") || !args.containsKey("metadataPrefix"))) {
+            throw new OaiError("badArgument", "GetRecord braucht identifier und metadataPrefix.");
+        }
+        if (verb.startsWith("List") && ARGUMENTS.get(verb).contains("metadataPrefix")
+                && !args.containsKey("metadataPrefix") && !args.containsKey("resumptionToken")) {
+            throw new OaiError("badArgument", verb + " braucht metadataPrefix.");
+        }
+        // checked here, as the request element is written before the verb is processed
+        final String from = args.get("from"), until = args.get("until");
+        if (from != null && until != null && from.length() != until.length()) {
+            throw new OaiError("badArgument", "from und until haben eine unterschiedliche Granularität.");
+        }
+        if (from != null) {
+            date(from, false);
+        }
+        if (until != null) {
+            date(until, true);
+        }
+        return args;
+    }
+
+    private void identify(Writer w, String baseUrl) throws IOException {
+        w.write("  <Identify>\n");
+        w.write("    <repositoryName>ZDF2DC</repositoryName>\n");
+        w.write("    <baseURL>" + escape(baseUrl) + "</baseURL>\n");
+        w.write("    <protocolVersion>2.0</protocolVersion>\n");
+        w.write("    <adminEmail>" + escape(adminEmail) + "</adminEmail>\n");
+        w.write("    <earliestDatestamp>" + format(Math.max(index.getEarliestDatestamp(), 0)) + "</earliestDatestamp>\n");
+        w.write("    <deletedRecord>no</deletedRecord>\n");
+        w.write("    <granularity>YYYY-MM-DDThh:mm:ssZ</granularity>\n");
+        w.write("  </Identify>\n");
+    }
+
+    private void listMetadataFormats(Writer w, Map<String, String> args) throws IOException, OaiError {
+        if (args.containsKey("identifier") && index.get(args.get("identifier")) == null) {
+            throw new OaiError("idDoesNotExist", "Unbekannter Identifier: " + args.get("identifier"));
+        }
+        w.write("  <ListMetadataFormats>\n    <metadataFormat>\n");
+        w.write("      <metadataPrefix>" + METADATA_PREFIX + "</metadataPrefix>\n");
+        w.write("      <schema>" + METADATA_SCHEMA + "</schema>\n");
+        w.write("      <metadataNamespace>" + METADATA_NAMESPACE + "</metadataNamespace>\n");
+        w.write("    </metadataFormat>\n  </ListMetadataFormats>\n");
+    }
+
+    private void getRecord(Writer w, OutputStream out, Map<String, String> args) throws IOException, OaiError {
+        checkPrefix(args.get("metadataPrefix"));
+        final RecordIndex.Entry entry = index.get(args.get("identifier"));
+        if (entry == null) {
+            throw new OaiError("idDoesNotExist", "Unbekannter Identifier: " + args.get("identifier"));
+        }
+        w.write("  <GetRecord>\n");
+        record(w, out, entry, true);
+        w.write("  </GetRecord>\n");
+    }
+
+    private void list(Writer w, OutputStream out, Map<String, String> args, boolean records) throws IOException, OaiError {
+        final long from, until;
+        final int cursor;
+        if (args.containsKey("resumptionToken")) {
+            final long[] token = token(args.get("resumptionToken"));
+            cursor = (int) token[0];
+            from = token[1];
+            until = token[2];
+            if (index.range(from, until).size() != token[3]) {
+                throw new OaiError("badResumptionToken", "Die Liste hat sich geändert, bitte neu beginnen.");
+            }
+        } else {
+            checkPrefix(args.get("metadataPrefix"));
+            if (args.containsKey("set")) {
+                throw new OaiError("noSetHierarchy", "Es gibt keine Sets.");
+            }
+            final String f = args.get("from"), u = args.get("until");
+            from = f == null ? Long.MIN_VALUE : date(f, false);
+            until = u == null ? Long.MAX_VALUE : date(u, true);
+            cursor = 0;
+        }
+        final List<RecordIndex.Entry> entries = index.range(from, until);
+        if (entries.isEmpty()) {
+            throw new OaiError("noRecordsMatch", "Keine Datensätze in diesem Bereich.");
+        }
+        if (cursor < 0 || cursor >= entries.size()) {
+            throw new OaiError("badResumptionToken", "Ungültiger resumptionToken.");
+        }
+        final String element = records ? "ListRecords" : "ListIdentifiers";
+        w.write("  <" + element + ">\n");
+        final int end = Math.min(cursor + pageSize, entries.size());
+        for (RecordIndex.Entry entry : entries.subList(cursor, end)) {
+            record(w, out, entry, records);
+        }
+        w.write("    <resumptionToken completeListSize=\"" + entries.size() + "\" cursor=\"" + cursor + "\">");
+        if (end < entries.size()) {
+            w.write(end + "," + from + "," + until + "," + entries.size());
+        }
+        w.write("</resumptionToken>\n");
+        w.write("  </" + element + ">\n");
+    }
+
+    /**
+     * Schreibt Header und (bei <code>metadata</code>) den Datensatz.
+     */
+    private void record(Writer w, OutputStream out, RecordIndex.Entry entry, boolean metadata) throws IOException {
+        final String header = "<header><identifier>" + escape(entry.getIdentifier()) + "</identifier><datestamp>"
+                + format(entry.getDatestamp()) + "</datestamp></header>";
+        if (!metadata) {
+            w.write("    " + header + "\n");
+            return;
+        }
+        w.write("    <record>" + header + "<metadata>");
+        w.flush();
+        index.writeMetadata(entry, out);
+        w.write("</metadata></record>\n");
+    }
+
+    private static void checkPrefix(String prefix) throws OaiError {
+        if (!METADATA_PREFIX.equals(prefix)) {
+            throw new OaiError("cannotDisseminateFormat", "Unbekanntes Format: " + prefix);
+        }
+    }
+
+    /**
+     * @param end <code>true</code>: Ende des Tages bzw. der Sekunde
+     */
+    private static long date(String value, boolean end) throws OaiError {
+        final long t = value.length() == 10 || value.length() == 20 ? RecordIndex.parse(value) : -1;
+        if (t < 0) {
+            throw new OaiError("badArgument", "Ungültiges Datum: " + value);
+        }
+        return end ? t + (value.length() == 10 ? DAY : 1000) - 1 : t;
+    }
+
+    private static long[] token(String value) throws OaiError {
+        final String[] fields = value.split(",");
+        try {
+            if (fields.length != 4) {
+                throw new NumberFormatException();
+            }
+            final long[] result = new long[4];
+            for (int i = 0; i < 4; ++i) {
+                result[i] = Long.parseLong(fields[i]);
+            }
+            return result;
+        } catch (NumberFormatException e) {
+            throw new OaiError("badResumptionToken", "Ungültiger resumptionToken: " + value);
+        }
+    }
+
+    private static String format(long time) {
+        final SimpleDateFormat df = new SimpleDateFormat(DATE_FORMAT);
+        df.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return df.format(new Date(time));
+    }
+
+    private static String single(Map<String, List<String>> params, String key) throws OaiError {
+        final List<String> values = params.get(key);
+        if (values == null) {
+            return null;
+        }
+        if (values.size() > 1) {
+            throw new OaiError("badVerb", "Verb mehrfach angegeben.");
+        }
+        return values.get(0);
+    }
+
+    private static Map<String, List<String>> parse(String query) throws UnsupportedEncodingException {
+        final Map<String, List<String>> result = new LinkedHashMap<>();
+        if (query == null || query.isEmpty()) {
+            return result;
+        }
+        for (String pair : query.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            final int eq = pair.indexOf('=');
+            final String key = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+            final String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+            result.computeIfAbsent(key, k -> new ArrayList<>()).add(value);
+        }
+        return result;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String escape(String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+}
@@ -0,0 +1,396 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.server;
+
+import de.ddb.labs.zdf2dc.helper.RecordStore;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Index über gespeicherte RDF-Datensätze für den {@link OaiPmhServer}.
+ * Quelle ist eine OAI-PMH-ListRecords-Datei (gemeinsame Datei) oder ein
+ * Verzeichnis mit einer RDF-Datei pro Datensatz. Beim Aufbau wird die Quelle
+ * einmal gestreamt: Identifier und Datestamp kommen in den Index (sortiert
+ * nach Datestamp), das <code>rdf:RDF</code>-Element jedes Datensatzes wird
+ * mit allen nötigen Namespace-Deklarationen in eine temporäre Datei
+ * geschrieben. Eine Antwort liest danach nur noch die Byte-Bereiche der
+ * Datensätze, die sie enthält.
+ * <p>
+ * Identifier und Datestamp stehen im OAI-Header bzw. bei einzelnen Dateien
+ * in <code>dcat:CatalogRecord/dc:identifier</code> und
+ * <code>dcterms:created</code> (wie bei
+ * {@link de.ddb.labs.zdf2dc.data.rdfdc.OaiPmhReponse.ListRecords#toRecord}).
+ * Kommt ein Identifier mehrfach vor, gilt der letzte.
+ * <p>
+ * Mit {@link #of(RecordStore)} kommen die Datensätze aus einem
+ * {@link RecordStore}.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class RecordIndex implements Closeable {
+
+    private final static Logger LOG = LoggerFactory.getLogger(RecordIndex.class);
+    private final static String OAI = "http://www.openarchives.org/OAI/2.0/";
+    private final static String RDF = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+    private final static QName RECORD = new QName(OAI, "record");
+    private final static QName HEADER_IDENTIFIER = new QName(OAI, "identifier");
+    private final static QName DATESTAMP = new QName(OAI, "datestamp");
+    private final static QName METADATA = new QName(OAI, "metadata");
+    private final static QName RDF_ROOT = new QName(RDF, "RDF");
+    private final static QName CATALOG_RECORD = new QName("http://www.w3.org/ns/dcat#", "CatalogRecord");
+    private final static QName DC_IDENTIFIER = new QName("http://purl.org/dc/elements/1.1/", "identifier");
+    private final static QName CREATED = new QName("http://purl.org/dc/terms/", "created");
+
+    private final static XMLInputFactory inputFactory;
+    private final static XMLOutputFactory outputFactory;
+
+    static {
+        inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        outputFactory = XMLOutputFactory.newInstance();
+        // every record gets the declarations it needs, also if the source declares them at the root
+        outputFactory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, true);
+    }
+
+    /**
+     * Ein Datensatz im Index.
+     */
+    public static class Entry {
+
+        @Getter
+        private final String identifier;
+        /**
+         * in ms seit 1970 (UTC)
+         */
+        @Getter
+        private final long datestamp;
+        private final long offset;
+        private final int length;
+
+        private Entry(String identifier, long datestamp, long offset, int length) {
+            this.identifier = identifier;
+            this.datestamp = datestamp;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final File spool;
+    // the spool is ours to delete (not the file of a record store)
+    private final boolean temporary;
+    private final FileChannel channel;
+    private final List<Entry> entries;
+    private final Map<String, Entry> byIdentifier;
+    private final List<Long> datestamps;
+
+    private RecordIndex(File spool, boolean temporary, List<Entry> unsorted) throws IOException {
+        this.spool = spool;
+        this.temporary = temporary;
+        this.channel = new RandomAccessFile(spool, "r").getChannel();
+        this.byIdentifier = new HashMap<>();
+        for (Entry e : unsorted) {
+            byIdentifier.put(e.identifier, e);
+        }
+        this.entries = new ArrayList<>(byIdentifier.values());
+        entries.sort(Comparator.comparingLong(Entry::getDatestamp).thenComparing(Entry::getIdentifier));
+        this.datestamps = new ArrayList<>(entries.size());
+        for (Entry e : entries) {
+            datestamps.add(e.datestamp);
+        }
+    }
+
+    /**
+     * Baut den Index über eine Quelle auf.
+     *
+     * @param source OAI-PMH-Datei oder Verzeichnis mit einer RDF-Datei pro
+     * Datensatz
+     * @return
+     * @throws IOException
+     */
+    public static RecordIndex build(File source) throws IOException {
+        final long start = System.nanoTime();
+        final File spool = File.createTempFile("zdf2dc-oai", ".spool");
+        spool.deleteOnExit();
+        final List<Entry> entries = new ArrayList<>();
+        try (final CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(spool.toPath())))) {
+            final File[] files = source.isDirectory() ? source.listFiles((dir, name) -> name.toLowerCase().endsWith(".xml")) : new File[]{source};
+            if (files == null) {
+                throw new IOException(source.getAbsolutePath() + " konnte nicht gelesen werden.");
+            }
+            Arrays.sort(files);
+            for (File file : files) {
+                try (final InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+                    read(in, file, out, entries);
+                } catch (XMLStreamException e) {
+                    LOG.warn("Skipping {}: {}", file.getName(), e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(spool.toPath());
+            throw e;
+        }
+        final RecordIndex index = new RecordIndex(spool, true, entries);
+        LOG.info("Indexed {} records from {} in {} ms", index.size(), source.getAbsolutePath(), (System.nanoTime() - start) / 1000000);
+        return index;
+    }
+
+    /**
+     * Index über die Datensätze eines {@link RecordStore}. Gelesen wird direkt
+     * aus dessen Datei, ohne temporäre Kopie. Später gespeicherte Datensätze
+     * sind nicht im Index.
+     *
+     * @param store
+     * @return
+     * @throws IOException
+     */
+    public static RecordIndex of(RecordStore store) throws IOException {
+        final List<Entry> entries = new ArrayList<>(store.size());
+        for (RecordStore.Entry e : store.getEntries()) {
+            entries.add(new Entry(e.getExternalId(), e.getDatestamp(), e.getRdfOffset(), e.getRdfLength()));
+        }
+        final RecordIndex index = new RecordIndex(store.getFile(), false, entries);
+        LOG.info("Indexed {} records from the record store {}", index.size(), store.getDirectory().getAbsolutePath());
+        return index;
+    }
+
+    private static void read(InputStream in, File file, CountingOutputStream out, List<Entry> entries) throws XMLStreamException, IOException {
+        final XMLEventReader r = inputFactory.createXMLEventReader(in);
+        try {
+            String identifier = null, datestamp = null;
+            boolean inMetadata = false;
+            while (r.hasNext()) {
+                final XMLEvent e = r.nextEvent();
+                if (e.isStartElement()) {
+                    final QName name = e.asStartElement().getName();
+                    if (RECORD.equals(name)) {
+                        identifier = null;
+                        datestamp = null;
+                    } else if (HEADER_IDENTIFIER.equals(name)) {
+                        identifier = r.getElementText().trim();
+                    } else if (DATESTAMP.equals(name)) {
+                        datestamp = r.getElementText().trim();
+                    } else if (METADATA.equals(name)) {
+                        inMetadata = true;
+                    } else if (RDF_ROOT.equals(name) && (inMetadata || identifier == null)) {
+                        final long offset = out.count;
+                        final String[] found = copy(r, e.asStartElement(), out);
+                        final String id = identifier != null ? identifier : found[0];
+                        if (id == null || id.isEmpty()) {
+                            LOG.warn("Skipping a record without identifier in {}", file.getName());
+                            continue;
+                        }
+                        long date = parse(datestamp != null ? datestamp : found[1]);
+                        if (date < 0) {
+                            date = file.lastModified();
+                        }
+                        entries.add(new Entry(id, date, offset, (int) (out.count - offset)));
+                    }
+                } else if (e.isEndElement() && METADATA.equals(e.asEndElement().getName())) {
+                    inMetadata = false;
+                }
+            }
+        } finally {
+            r.close();
+        }
+    }
+
+    /**
+     * Schreibt ein Element samt Inhalt in die temporäre Datei.
+     *
+     * @return Werte von <code>dcat:CatalogRecord/dc:identifier</code> und
+     * <code>dcterms:created</code> (oder <code>null</code>)
+     */
+    private static String[] copy(XMLEventReader r, StartElement root, OutputStream out) throws XMLStreamException {
+        final String[] found = new String[2];
+        final XMLEventWriter w = outputFactory.createXMLEventWriter(out, "UTF-8");
+        w.add(root);
+        int depth = 1;
+        boolean inCatalogRecord = false;
+        StringBuilder text = null;
+        int field = -1;
+        while (depth > 0) {
+            final XMLEvent e = r.nextEvent();
+            w.add(e);
+            if (e.isStartElement()) {
+                ++depth;
+                final QName name = e.asStartElement().getName();
+                if (CATALOG_RECORD.equals(name)) {
+                    inCatalogRecord = true;
+                } else if ((inCatalogRecord && DC_IDENTIFIER.equals(name) && found[0] == null) || (CREATED.equals(name) && found[1] == null)) {
+                    field = CREATED.equals(name) ? 1 : 0;
+                    text = new StringBuilder();
+                }
+            } else if (e.isEndElement()) {
+                --depth;
+                final QName name = e.asEndElement().getName();
+                if (CATALOG_RECORD.equals(name)) {
+                    inCatalogRecord = false;
+                } else if (text != null) {
+                    found[field] = text.toString().trim();
+                    text = null;
+                }
+            } else if (text != null && e.isCharacters()) {
+                text.append(e.asCharacters().getData());
+            }
+        }
+        w.flush();
+        w.close();
+        return found;
+    }
+
+    /**
+     * @param value <code>yyyy-MM-dd'T'HH:mm:ss'Z'</code> oder
+     * <code>yyyy-MM-dd</code> (UTC)
+     * @return ms seit 1970, <code>-1</code> wenn ungültig
+     */
+    public static long parse(String value) {
+        if (value == null) {
+            return -1;
+        }
+        final SimpleDateFormat df = new SimpleDateFormat(value.length() > 10 ? "yyyy-MM-dd'T'HH:mm:ss'Z'" : "yyyy-MM-dd");
+        df.setTimeZone(TimeZone.getTimeZone("UTC"));
+        df.setLenient(false);
+        try {
+            return df.parse(value).getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @param identifier
+     * @return <code>null</code>, wenn es den Datensatz nicht gibt
+     */
+    public Entry get(String identifier) {
+        return byIdentifier.get(identifier);
+    }
+
+    /**
+     * @return Datestamp des ältesten Datensatzes, <code>-1</code> bei einem
+     * leeren Index
+     */
+    public long getEarliestDatestamp() {
+        return entries.isEmpty() ? -1 : entries.get(0).datestamp;
+    }
+
+    /**
+     * @param from kleinster Datestamp (einschließlich)
+     * @param until größter Datestamp (einschließlich)
+     * @return Datensätze in diesem Bereich, nach Datestamp sortiert
+     */
+    public List<Entry> range(long from, long until) {
+        if (from > until) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(entries.subList(lowerBound(from), lowerBound(until == Long.MAX_VALUE ? until : until + 1)));
+    }
+
+    private int lowerBound(long datestamp) {
+        int i = Collections.binarySearch(datestamps, datestamp);
+        if (i < 0) {
+            return -i - 1;
+        }
+        while (i > 0 && datestamps.get(i - 1) == datestamp) {
+            --i;
+        }
+        return i;
+    }
+
+    /**
+     * Schreibt das <code>rdf:RDF</code>-Element eines Datensatzes.
+     *
+     * @param entry
+     * @param out
+     * @throws IOException
+     */
+    public void writeMetadata(Entry entry, OutputStream out) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, entry.offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of " + spool.getName());
+            }
+        }
+        buffer.flip();
+        Channels.newChannel(out).write(buffer);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        if (temporary) {
+            Files.deleteIfExists(spool.toPath());
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
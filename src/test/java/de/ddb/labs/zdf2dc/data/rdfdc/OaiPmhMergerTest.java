@@ -0,0 +1,125 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.data.rdfdc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.xml.parsers.DocumentBuilderFactory;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class OaiPmhMergerTest {
+
+    private final static String OAI = "http://www.openarchives.org/OAI/2.0/";
+    private final static String DC = "http://purl.org/dc/elements/1.1/";
+
+    @TempDir
+    File dir;
+
+    private static String record(String id, String title, boolean declare) {
+        return "<record><header><identifier>" + id + "</identifier></header><metadata><dc:title"
+                + (declare ? " xmlns:dc=\"" + DC + "\"" : "") + ">" + title + "</dc:title></metadata></record>";
+    }
+
+    private File file(String name, String date, boolean normalized, String... records) throws IOException {
+        final StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<OAI-PMH xmlns=\"" + OAI + "\"")
+                .append(normalized ? " xmlns:dc=\"" + DC + "\"" : "")
+                .append("><responseDate>").append(date).append("</responseDate><ListRecords>");
+        for (String r : records) {
+            sb.append("\n").append(r);
+        }
+        sb.append("\n<resumptionToken/></ListRecords></OAI-PMH>\n");
+        final File f = new File(dir, name);
+        Files.write(f.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+        return f;
+    }
+
+    /**
+     * @return <code>identifier=title</code> je Datensatz
+     */
+    private static List<String> records(Document doc) {
+        final List<String> result = new ArrayList<>();
+        final NodeList records = doc.getElementsByTagNameNS(OAI, "record");
+        for (int i = 0; i < records.getLength(); ++i) {
+            final Element r = (Element) records.item(i);
+            result.add(r.getElementsByTagNameNS(OAI, "identifier").item(0).getTextContent()
+                    + "=" + r.getElementsByTagNameNS(DC, "title").item(0).getTextContent());
+        }
+        return result;
+    }
+
+    private static Document parse(File f) throws Exception {
+        final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        return dbf.newDocumentBuilder().parse(f);
+    }
+
+    @Test
+    public void replacesAndAppendsRecords() throws Exception {
+        final File base = file("export.xml", "2021-01-01T00:00:00Z", true,
+                record("a", "A", false), record("b", "B", false), record("c", "C", false));
+        final File delta = file("export.xml.delta", "2021-02-01T00:00:00Z", false,
+                record("b", "B2", true), record("d", "D", true));
+
+        assertEquals(1, OaiPmhMerger.merge(base, delta));
+
+        final Document doc = parse(base);
+        assertEquals("2021-02-01T00:00:00Z", doc.getElementsByTagNameNS(OAI, "responseDate").item(0).getTextContent());
+        // the namespace of the normalized export is declared on the records taken over
+        assertEquals(Arrays.asList("a=A", "c=C", "b=B2", "d=D"), records(doc));
+        assertEquals(1, doc.getElementsByTagNameNS(OAI, "ListRecords").getLength());
+        assertFalse(new File(dir, "export.xml.tmp").exists());
+    }
+
+    @Test
+    public void keepsTheLastOfARepeatedRecord() throws Exception {
+        final File base = file("export.xml", "2021-01-01T00:00:00Z", false,
+                record("a", "A", true), record("b", "B", true));
+        // a resumed harvest stored b again after it changed once more
+        final File delta = file("export.xml.delta", "2021-02-01T00:00:00Z", false,
+                record("b", "B2", true), record("c", "C", true), record("b", "B3", true));
+
+        assertEquals(1, OaiPmhMerger.merge(base, delta));
+        assertEquals(Arrays.asList("a=A", "c=C", "b=B3"), records(parse(base)));
+    }
+
+    @Test
+    public void rejectsFilesWithoutListRecords() throws IOException {
+        final File base = file("export.xml", "2021-01-01T00:00:00Z", false, record("a", "A", true));
+        final File delta = new File(dir, "export.xml.delta");
+        Files.write(delta.toPath(), ("<OAI-PMH xmlns=\"" + OAI + "\"/>").getBytes(StandardCharsets.UTF_8));
+        final byte[] before = Files.readAllBytes(base.toPath());
+
+        assertThrows(IOException.class, () -> OaiPmhMerger.merge(base, delta));
+        assertEquals(new String(before, StandardCharsets.UTF_8), new String(Files.readAllBytes(base.toPath()), StandardCharsets.UTF_8));
+        assertEquals(2, dir.list().length);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.data.rdfdc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import javax.xml.parsers.DocumentBuilderFactory;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+/**
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class ShardedOaiPmhWriterTest {
+
+    private final static String OAI = "http://www.openarchives.org/OAI/2.0/";
+
+    @TempDir
+    File dir;
+
+    private static void write(ShardedOaiPmhWriter writer, String... ids) throws IOException {
+        for (String id : ids) {
+            writer.write(id, new Date(0), ("<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\"><rdf:Description rdf:about=\""
+                    + id + "\"/></rdf:RDF>").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static Document parse(File f) throws Exception {
+        final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        return dbf.newDocumentBuilder().parse(f);
+    }
+
+    private static List<String> identifiers(Document doc) {
+        final List<String> ids = new ArrayList<>();
+        final NodeList nodes = doc.getElementsByTagNameNS(OAI, "identifier");
+        for (int i = 0; i < nodes.getLength(); ++i) {
+            ids.add(nodes.item(i).getTextContent());
+        }
+        return ids;
+    }
+
+    /**
+     * @return <code>null</code>, wenn die Datei keinen Token hat
+     */
+    private static String token(Document doc) {
+        final NodeList nodes = doc.getElementsByTagNameNS(OAI, "resumptionToken");
+        return nodes.getLength() == 0 ? null : nodes.item(0).getTextContent();
+    }
+
+    /**
+     * Folgt der Kette der <code>resumptionToken</code> ab der ersten Datei.
+     *
+     * @return Identifier je Datei
+     */
+    private List<List<String>> chain(File first) throws Exception {
+        final List<List<String>> result = new ArrayList<>();
+        File f = first;
+        while (true) {
+            final Document doc = parse(f);
+            result.add(identifiers(doc));
+            final String token = token(doc);
+            if (token == null || token.isEmpty()) {
+                return result;
+            }
+            f = new File(dir, token);
+        }
+    }
+
+    @Test
+    public void rollsByRecordCount() throws Exception {
+        final File base = new File(dir, "export.xml");
+        try (final ShardedOaiPmhWriter writer = RdfDocumentProcessor.openShards(base, 2, 0)) {
+            write(writer, "a", "b", "c", "d", "e");
+            assertEquals(5, writer.getCount());
+            assertEquals(Arrays.asList(writer.shard(1), writer.shard(2), writer.shard(3)), writer.getFiles());
+        }
+        assertEquals(Arrays.asList(Arrays.asList("a", "b"), Arrays.asList("c", "d"), Arrays.asList("e")), chain(new File(dir, "export-0001.xml")));
+        assertEquals("", token(parse(new File(dir, "export-0003.xml"))));
+        assertFalse(base.exists());
+    }
+
+    @Test
+    public void rollsBySize() throws Exception {
+        try (final ShardedOaiPmhWriter writer = RdfDocumentProcessor.openShards(new File(dir, "export.xml"), 0, 1)) {
+            write(writer, "a", "b", "c");
+        }
+        assertEquals(Arrays.asList(Arrays.asList("a"), Arrays.asList("b"), Arrays.asList("c")), chain(new File(dir, "export-0001.xml")));
+    }
+
+    @Test
+    public void writesOneFileWithoutLimits() throws Exception {
+        final File base = new File(dir, "export.xml");
+        try (final ShardedOaiPmhWriter writer = RdfDocumentProcessor.openShards(base, 0, 0)) {
+            write(writer, "a", "b", "c");
+            assertEquals(base, writer.getFile());
+        }
+        final Document doc = parse(base);
+        assertEquals(Arrays.asList("a", "b", "c"), identifiers(doc));
+        assertNull(token(doc));
+        assertEquals(1, dir.list().length);
+    }
+
+    @Test
+    public void resumesAtTheCheckpoint() throws Exception {
+        final File base = new File(dir, "export.xml");
+        final File file;
+        final long checkpoint;
+        try (final ShardedOaiPmhWriter writer = RdfDocumentProcessor.openShards(base, 2, 0)) {
+            write(writer, "a", "b", "c");
+            file = writer.getFile();
+            checkpoint = writer.checkpoint();
+            // written after the last checkpoint of the aborted run
+            write(writer, "d", "e");
+        }
+        assertEquals(new File(dir, "export-0002.xml"), file);
+
+        try (final ShardedOaiPmhWriter writer = RdfDocumentProcessor.resumeShards(base, 2, 0, file, checkpoint)) {
+            assertFalse(new File(dir, "export-0003.xml").exists());
+            write(writer, "d2", "e2");
+            assertEquals(2, writer.getCount());
+            assertEquals(3, writer.getFiles().size());
+        }
+        assertEquals(Arrays.asList(Arrays.asList("a", "b"), Arrays.asList("c", "d2"), Arrays.asList("e2")), chain(new File(dir, "export-0001.xml")));
+
+        assertThrows(IOException.class, () -> RdfDocumentProcessor.resumeShards(base, 2, 0, new File(dir, "other-0001.xml"), checkpoint));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.data.zdf;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class MappingPlanTest {
+
+    private final static MappingPlan<Map<String, Object>> PLAN = MappingPlan.<Map<String, Object>>builder(LinkedHashMap::new)
+            .string("$.title", (m, v) -> m.put("title", v))
+            .string("$.ref.url", (m, v) -> m.put("url", v))
+            .string("$.ref['http://zdf.de/rels/target'].name", (m, v) -> m.put("name", v))
+            .integer("$.ref.width", Objects::nonNull, (m, v) -> m.put("width", v))
+            .build();
+
+    private static Map<String, Object> process(String json) throws IOException {
+        return PLAN.process(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void readsFieldsWithSharedPrefix() throws IOException {
+        final Map<String, Object> m = process("{\"ref\":{\"width\":640,\"http://zdf.de/rels/target\":{\"name\":\"n\"},\"url\":\"u\"},\"title\":\"t\",\"other\":[1,2]}");
+        assertEquals("t", m.get("title"));
+        assertEquals("u", m.get("url"));
+        assertEquals("n", m.get("name"));
+        assertEquals(640, m.get("width"));
+    }
+
+    @Test
+    public void appliesFieldsInDeclarationOrder() throws IOException {
+        final List<String> order = new ArrayList<>();
+        final MappingPlan<List<String>> plan = MappingPlan.<List<String>>builder(() -> order)
+                .string("$.b", (l, v) -> l.add("b"))
+                .string("$.a", (l, v) -> l.add("a"))
+                .build();
+        plan.process("{\"a\":\"1\",\"b\":\"2\"}".getBytes(StandardCharsets.UTF_8));
+        assertEquals(Arrays.asList("b", "a"), order);
+    }
+
+    @Test
+    public void repeatedKeyResetsItsSubtree() throws IOException {
+        final Map<String, Object> m = process("{\"ref\":{\"url\":\"old\",\"width\":1},\"title\":\"t\",\"ref\":{\"url\":\"new\"}}");
+        assertEquals("new", m.get("url"));
+        assertFalse(m.containsKey("width"));
+        assertEquals("t", m.get("title"));
+    }
+
+    @Test
+    public void ignoresBlankAndMistypedValues() throws IOException {
+        final Map<String, Object> m = process("{\"title\":\"  \",\"ref\":{\"url\":42,\"width\":\"640\"}}");
+        assertNull(m.get("title"));
+        assertNull(m.get("url"));
+        assertNull(m.get("width"));
+    }
+
+    @Test
+    public void filterSeesMissingValues() throws IOException {
+        final List<Integer> seen = new ArrayList<>();
+        final MappingPlan<Map<String, Object>> plan = MappingPlan.<Map<String, Object>>builder(LinkedHashMap::new)
+                .integer("$.n", v -> seen.add(v), (m, v) -> m.put("n", v))
+                .string("$.s", v -> v != null, v -> null, (m, v) -> m.put("s", v))
+                .build();
+        final Map<String, Object> m = plan.process("{\"s\":\"x\"}".getBytes(StandardCharsets.UTF_8));
+        assertEquals(Arrays.asList((Integer) null), seen);
+        // the transformation returned null
+        assertFalse(m.containsKey("s"));
+    }
+
+    @Test
+    public void parsesPaths() {
+        assertArrayEquals(new String[]{"a", "http://zdf.de/rels/target", "b"}, MappingPlan.parsePath("$.a['http://zdf.de/rels/target'].b"));
+        assertArrayEquals(new String[]{"a", "x.y"}, MappingPlan.parsePath("$.a.[\"x.y\"]"));
+        assertThrows(IllegalArgumentException.class, () -> MappingPlan.parsePath("a.b"));
+        assertThrows(IllegalArgumentException.class, () -> MappingPlan.parsePath("$.a['b"));
+        assertThrows(IllegalArgumentException.class, () -> MappingPlan.parsePath("$"));
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.helper;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Cache;
+import okhttp3.CacheControl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Der Server antwortet nach <code>delay</code> ms mit <code>status</code>;
+ * mit <code>hold</code> erst, wenn {@link #release} offen ist.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class AdaptiveLimiterTest {
+
+    @TempDir
+    File dir;
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private String baseUrl;
+    private final List<OkHttpClient> clients = new ArrayList<>();
+    private volatile CountDownLatch release = new CountDownLatch(0);
+
+    @BeforeEach
+    public void start() throws IOException {
+        executor = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    @AfterEach
+    public void stop() {
+        release.countDown();
+        server.stop(0);
+        executor.shutdownNow();
+        for (OkHttpClient client : clients) {
+            client.dispatcher().executorService().shutdown();
+            client.connectionPool().evictAll();
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            final String query = exchange.getRequestURI().getQuery();
+            int status = 200;
+            long delay = 0;
+            for (String pair : query == null ? new String[0] : query.split("&")) {
+                final String value = pair.substring(pair.indexOf('=') + 1);
+                if (pair.startsWith("status=")) {
+                    status = Integer.parseInt(value);
+                } else if (pair.startsWith("delay=")) {
+                    delay = Long.parseLong(value);
+                } else if (pair.startsWith("hold=")) {
+                    release.await(10, TimeUnit.SECONDS);
+                } else if (pair.startsWith("cache=")) {
+                    exchange.getResponseHeaders().set("Cache-Control", "max-age=60");
+                }
+            }
+            Thread.sleep(delay);
+            final byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, body.length);
+            try (final OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private OkHttpClient client(OkHttpClient.Builder builder) {
+        final OkHttpClient client = builder.build();
+        clients.add(client);
+        return client;
+    }
+
+    private OkHttpClient client(AdaptiveLimiter limiter) {
+        return client(limiter.apply(new OkHttpClient.Builder()));
+    }
+
+    private int get(OkHttpClient client, String query) throws IOException {
+        try (final Response response = client.newCall(new Request.Builder().url(baseUrl + "?" + query).build()).execute()) {
+            response.body().string();
+            return response.code();
+        }
+    }
+
+    /**
+     * Schickt <code>n</code> Anfragen gleichzeitig und wartet auf alle.
+     */
+    private void parallel(OkHttpClient client, String query, int n) throws Exception {
+        final List<Future<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < n; ++i) {
+            results.add(executor.submit(() -> get(client, query)));
+        }
+        for (Future<Integer> f : results) {
+            f.get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void growsOnlyWhenTheLimitIsUsed() throws Exception {
+        final AdaptiveLimiter limiter = new AdaptiveLimiter(4, 1, 8, 1000);
+        final OkHttpClient client = client(limiter);
+        for (int i = 0; i < 20; ++i) {
+            assertEquals(200, get(client, "delay=0"));
+        }
+        assertEquals(4, limiter.getLimit());
+
+        for (int i = 0; i < 5; ++i) {
+            parallel(client, "delay=20", 8);
+        }
+        assertTrue(limiter.getLimit() > 4, "limit " + limiter.getLimit());
+        assertEquals(0, limiter.getDropCount());
+        assertEquals(0, limiter.getInFlight());
+        assertEquals(0, limiter.getPendingMeasurements());
+    }
+
+    @Test
+    public void backsOffOncePerRound() throws Exception {
+        final AdaptiveLimiter limiter = new AdaptiveLimiter(8, 1, 8, 1000);
+        final OkHttpClient client = client(limiter);
+        for (int i = 0; i < 5; ++i) {
+            get(client, "delay=200");
+        }
+        // all eight answers arrive together, within one round
+        release = new CountDownLatch(1);
+        final List<Future<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < 8; ++i) {
+            results.add(executor.submit(() -> get(client, "status=429&hold=1")));
+        }
+        while (limiter.getInFlight() < 8) {
+            Thread.sleep(5);
+        }
+        release.countDown();
+        for (Future<Integer> f : results) {
+            assertEquals(429, f.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(8, limiter.getDropCount());
+        assertEquals(6, limiter.getLimit());
+
+        Thread.sleep(300);
+        assertEquals(503, get(client, "status=503"));
+        assertEquals(4, limiter.getLimit());
+        assertEquals(0, limiter.getPendingMeasurements());
+    }
+
+    @Test
+    public void countsOnlyTheTimeOnTheNetwork() throws Exception {
+        final AdaptiveLimiter limiter = new AdaptiveLimiter(4, 1, 8, 300);
+        // waits inside the limit, like a throttled request
+        final OkHttpClient client = client(limiter.apply(new OkHttpClient.Builder()).addInterceptor(chain -> {
+            try {
+                Thread.sleep(400);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return chain.proceed(chain.request());
+        }));
+        get(client, "delay=0");
+        assertEquals(0, limiter.getDropCount());
+
+        get(client, "delay=500");
+        assertEquals(1, limiter.getDropCount());
+        assertEquals(3, limiter.getLimit());
+        assertEquals(0, limiter.getPendingMeasurements());
+    }
+
+    @Test
+    public void timeoutsAreDrops() throws Exception {
+        final AdaptiveLimiter limiter = new AdaptiveLimiter(4, 1, 8, 1000);
+        final OkHttpClient client = client(limiter.apply(new OkHttpClient.Builder().readTimeout(50, TimeUnit.MILLISECONDS)));
+        assertThrows(IOException.class, () -> get(client, "delay=500"));
+        assertEquals(1, limiter.getDropCount());
+        assertEquals(0, limiter.getInFlight());
+        assertEquals(0, limiter.getPendingMeasurements());
+    }
+
+    @Test
+    public void ignoresTheCache() throws Exception {
+        final AdaptiveLimiter limiter = new AdaptiveLimiter(1, 1, 1, 1000);
+        final OkHttpClient client = client(limiter.apply(new OkHttpClient.Builder().cache(new Cache(dir, 1024 * 1024))));
+        get(client, "cache=1&delay=0");
+        get(client, "cache=1&delay=0");
+        assertEquals(1, client.cache().hitCount());
+        assertEquals(0, limiter.getDropCount());
+        assertEquals(0, limiter.getPendingMeasurements());
+
+        // a cache probe doesn't wait for the request holding the only slot
+        release = new CountDownLatch(1);
+        final Future<Integer> held = executor.submit(() -> get(client, "hold=1"));
+        while (limiter.getInFlight() < 1) {
+            Thread.sleep(5);
+        }
+        final Future<Integer> probe = executor.submit(() -> {
+            try (final Response response = client.newCall(new Request.Builder().url(baseUrl + "?other=1")
+                    .cacheControl(CacheControl.FORCE_CACHE).build()).execute()) {
+                return response.code();
+            }
+        });
+        assertEquals(504, probe.get(1, TimeUnit.SECONDS));
+        release.countDown();
+        assertEquals(200, held.get(10, TimeUnit.SECONDS));
+        assertEquals(0, limiter.getInFlight());
+        assertEquals(0, limiter.getDropCount());
+        assertEquals(0, limiter.getPendingMeasurements());
+    }
+}
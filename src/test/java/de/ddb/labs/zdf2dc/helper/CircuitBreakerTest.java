@@ -0,0 +1,132 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.helper;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class CircuitBreakerTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @AfterEach
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return Wartezeit von {@link CircuitBreaker#acquire()} in ms
+     */
+    private static long acquire(CircuitBreaker breaker) throws Exception {
+        final long start = System.nanoTime();
+        breaker.acquire();
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private Future<?> acquireLater(CircuitBreaker breaker) {
+        return executor.submit(() -> {
+            breaker.acquire();
+            return null;
+        });
+    }
+
+    @Test
+    public void opensAfterFailuresInARow() throws Exception {
+        final CircuitBreaker breaker = new CircuitBreaker(3, 50, 100, 10000);
+        breaker.failure();
+        breaker.failure();
+        breaker.success();
+        breaker.failure();
+        breaker.failure();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(acquire(breaker) < 50);
+
+        breaker.failure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(1, breaker.getOpenCount());
+        assertTrue(acquire(breaker) >= 40);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.success();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void letsOneProbeThrough() throws Exception {
+        final CircuitBreaker breaker = new CircuitBreaker(1, 20, 20, 10000);
+        breaker.failure();
+        acquire(breaker);
+        final Future<?> waiting = acquireLater(breaker);
+        assertThrows(TimeoutException.class, () -> waiting.get(200, TimeUnit.MILLISECONDS));
+
+        breaker.success();
+        waiting.get(1, TimeUnit.SECONDS);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void doublesThePauseAfterAFailedProbe() throws Exception {
+        final CircuitBreaker breaker = new CircuitBreaker(1, 40, 100, 10000);
+        breaker.failure();
+        acquire(breaker);
+        breaker.failure();
+        assertTrue(acquire(breaker) >= 70);
+        breaker.failure();
+        final long capped = acquire(breaker);
+        assertTrue(capped >= 90 && capped < 160, "waited " + capped + " ms");
+        breaker.success();
+        breaker.failure();
+        assertTrue(acquire(breaker) < 70, "the pause starts over once closed");
+        assertEquals(2, breaker.getOpenCount());
+    }
+
+    @Test
+    public void givesUpWhenOpenTooLong() throws Exception {
+        final CircuitBreaker breaker = new CircuitBreaker(1, 30, 30, 50);
+        breaker.failure();
+        acquire(breaker);
+        breaker.failure();
+        acquire(breaker);
+        breaker.failure();
+        assertThrows(IOException.class, () -> breaker.acquire());
+    }
+
+    @Test
+    public void cancelledHandsTheProbeOn() throws Exception {
+        final CircuitBreaker breaker = new CircuitBreaker(1, 20, 20, 10000);
+        breaker.failure();
+        acquire(breaker);
+        final Future<?> waiting = acquireLater(breaker);
+        assertThrows(TimeoutException.class, () -> waiting.get(100, TimeUnit.MILLISECONDS));
+
+        breaker.cancelled();
+        waiting.get(1, TimeUnit.SECONDS);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertEquals(1, breaker.getOpenCount());
+    }
+}
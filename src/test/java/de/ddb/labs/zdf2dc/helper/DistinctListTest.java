@@ -0,0 +1,90 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.helper;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.Arrays;
+import java.util.Iterator;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class DistinctListTest {
+
+    private static DistinctList<String> of(String... values) {
+        final DistinctList<String> list = new DistinctList<>();
+        list.addAll(Arrays.asList(values));
+        return list;
+    }
+
+    @Test
+    public void keepsFirstOccurrenceInOrder() {
+        final DistinctList<String> list = of("b", "a", "b", "c", "a");
+        assertEquals(Arrays.asList("b", "a", "c"), list);
+        assertFalse(list.add("c"));
+        assertTrue(list.add("d"));
+        list.add(0, "a");
+        list.add(0, "e");
+        assertEquals(Arrays.asList("e", "b", "a", "c", "d"), list);
+    }
+
+    @Test
+    public void indexFollowsRemovalAndReplacement() {
+        final DistinctList<String> list = of("a", "b", "c");
+        assertEquals("b", list.remove(1));
+        assertFalse(list.contains("b"));
+        assertTrue(list.add("b"));
+
+        assertEquals("a", list.set(0, "x"));
+        assertFalse(list.contains("a"));
+        assertTrue(list.contains("x"));
+        assertEquals("x", list.set(0, "x"));
+        assertThrows(IllegalArgumentException.class, () -> list.set(0, "c"));
+        assertEquals(Arrays.asList("x", "c", "b"), list);
+
+        final Iterator<String> it = list.iterator();
+        it.next();
+        it.remove();
+        assertFalse(list.contains("x"));
+        assertEquals(-1, list.indexOf("x"));
+        assertEquals(1, list.indexOf("b"));
+        assertEquals(1, list.lastIndexOf("b"));
+
+        list.clear();
+        assertTrue(list.isEmpty());
+        assertTrue(list.add("c"));
+    }
+
+    @Test
+    public void allowsOneNull() {
+        final DistinctList<String> list = of("a", null, null);
+        assertEquals(Arrays.asList("a", null), list);
+        assertTrue(list.contains(null));
+    }
+
+    @Test
+    public void serializesLikeAList() throws JsonProcessingException {
+        final ObjectMapper mapper = new ObjectMapper();
+        assertEquals(mapper.writeValueAsString(Arrays.asList("a", "b")), mapper.writeValueAsString(of("a", "b", "a")));
+    }
+}
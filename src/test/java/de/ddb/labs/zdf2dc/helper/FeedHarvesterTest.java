@@ -0,0 +1,139 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.helper;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import okhttp3.OkHttpClient;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Der Feed liefert die Seiten aus {@link #pages}, jüngste Dokumente zuerst.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class FeedHarvesterTest {
+
+    @TempDir
+    File dir;
+
+    private HttpServer server;
+    private OkHttpClient client;
+    private FeedHarvester harvester;
+    // entries per page as "id@editorialDate"
+    private final List<String[]> pages = new ArrayList<>();
+
+    @BeforeEach
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/content/feed/current", this::handle);
+        server.start();
+        client = new OkHttpClient();
+        harvester = new FeedHarvester(client, new ObjectMapper(), "http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    @AfterEach
+    public void stop() {
+        server.stop(0);
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            final String query = exchange.getRequestURI().getQuery();
+            final int page = query == null ? 1 : Integer.parseInt(query.substring(query.indexOf('=') + 1));
+            final StringBuilder sb = new StringBuilder("{\"http://zdf.de/rels/search/results\":[");
+            final String[] entries = pages.get(page - 1);
+            for (int i = 0; i < entries.length; ++i) {
+                final String[] e = entries[i].split("@");
+                sb.append(i > 0 ? "," : "").append("{\"id\":\"").append(e[0])
+                        .append("\",\"http://zdf.de/rels/target\":{\"editorialDate\":\"").append(e[1]).append("\"}}");
+            }
+            sb.append(']');
+            if (page < pages.size()) {
+                sb.append(",\"next\":\"/content/feed/current?page=").append(page + 1).append('"');
+            }
+            sb.append('}');
+            final byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (final OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private HarvestMark mark() throws IOException {
+        final HarvestMark mark = HarvestMark.load(new File(dir, "export.xml"));
+        mark.advance("m", HarvestMark.parse("2021-04-01T00:00:00Z"));
+        return mark;
+    }
+
+    @Test
+    public void stopsAtTheMark() throws IOException {
+        pages.add(new String[]{"e@2021-04-05T00:00:00Z", "d@2021-04-04T00:00:00Z"});
+        pages.add(new String[]{"c@2021-04-03T00:00:00Z", "m@2021-04-01T00:00:00Z"});
+        pages.add(new String[]{"old@2021-03-01T00:00:00Z"});
+        final FeedHarvester.Delta delta = harvester.since(mark());
+        assertEquals(Arrays.asList("e", "d", "c"), delta.getIds());
+        assertEquals(2, delta.getPages());
+        assertFalse(delta.isGap());
+    }
+
+    @Test
+    public void anEmptyPageBeforeTheMarkIsAGap() throws IOException {
+        pages.add(new String[]{"e@2021-04-05T00:00:00Z"});
+        pages.add(new String[]{"d@2021-04-04T00:00:00Z"});
+        pages.add(new String[0]);
+        pages.add(new String[]{"c@2021-04-03T00:00:00Z", "m@2021-04-01T00:00:00Z"});
+        final FeedHarvester.Delta delta = harvester.since(mark());
+        assertEquals(Arrays.asList("e", "d"), delta.getIds());
+        assertEquals(3, delta.getPages());
+        assertTrue(delta.isGap());
+    }
+
+    @Test
+    public void theEndOfTheFeedBeforeTheMarkIsAGap() throws IOException {
+        pages.add(new String[]{"e@2021-04-05T00:00:00Z"});
+        assertTrue(harvester.since(mark()).isGap());
+    }
+
+    @Test
+    public void theFirstRunTakesTheWholeFeed() throws IOException {
+        pages.add(new String[]{"e@2021-04-05T00:00:00Z"});
+        pages.add(new String[0]);
+        final FeedHarvester.Delta delta = harvester.since(HarvestMark.load(new File(dir, "export.xml")));
+        assertEquals(Arrays.asList("e"), delta.getIds());
+        assertFalse(delta.isGap());
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.helper;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.TreeSet;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class HarvestMarkTest {
+
+    private final static Instant T1 = HarvestMark.parse("2021-04-12T20:15:00.000+02:00");
+    private final static Instant T2 = HarvestMark.parse("2021-04-12T18:16:00Z");
+
+    @TempDir
+    File dir;
+
+    @Test
+    public void parsesOffsetDates() {
+        assertEquals(Instant.parse("2021-04-12T18:15:00Z"), T1);
+        assertNull(HarvestMark.parse("2021-04-12"));
+        assertNull(HarvestMark.parse(""));
+        assertNull(HarvestMark.parse(null));
+    }
+
+    @Test
+    public void everythingIsNewBeforeTheFirstRun() throws IOException {
+        final HarvestMark mark = HarvestMark.load(new File(dir, "export.xml"));
+        assertNull(mark.getEditorialDate());
+        assertTrue(mark.isNew("a", T1));
+        assertTrue(mark.isNew("a", null));
+    }
+
+    @Test
+    public void newMeansLaterOrSameDateWithAnotherId() throws IOException {
+        final HarvestMark mark = HarvestMark.load(new File(dir, "export.xml"));
+        mark.advance("a", T1);
+        mark.advance("b", T1);
+        mark.advance("old", T1.minusSeconds(60));
+        mark.advance("unknown", null);
+        assertEquals(T1, mark.getEditorialDate());
+        assertEquals(new TreeSet<>(Arrays.asList("a", "b")), mark.getIds());
+
+        assertFalse(mark.isNew("a", T1));
+        assertTrue(mark.isNew("c", T1));
+        assertFalse(mark.isNew("c", T1.minusMillis(1)));
+        assertTrue(mark.isNew("a", T2));
+        assertTrue(mark.isNew("a", null));
+
+        // a later date starts a new position
+        mark.advance("c", T2);
+        assertEquals(T2, mark.getEditorialDate());
+        assertEquals(new TreeSet<>(Arrays.asList("c")), mark.getIds());
+    }
+
+    @Test
+    public void savesNextToTheTarget() throws IOException {
+        final File target = new File(dir, "export.xml");
+        final HarvestMark mark = HarvestMark.load(target);
+        mark.save();
+        assertFalse(mark.getFile().exists(), "an empty mark is not saved");
+
+        mark.advance("a", T1);
+        mark.advance("b", T1);
+        mark.save();
+        assertEquals(new File(dir, "export.xml.harvest"), mark.getFile());
+
+        final HarvestMark loaded = HarvestMark.load(target);
+        assertEquals(T1, loaded.getEditorialDate());
+        assertEquals(mark.getIds(), loaded.getIds());
+        assertEquals(new File(dir, ".zdf2dc.harvest"), HarvestMark.of(dir));
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.helper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class JobJournalTest {
+
+    @TempDir
+    File dir;
+
+    private File write(String name, int length) throws IOException {
+        final File f = new File(dir, name);
+        try (final RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength(length);
+        }
+        return f;
+    }
+
+    @Test
+    public void newJournalIsNotResumed() throws IOException {
+        final File target = new File(dir, "export.xml");
+        try (final JobJournal journal = JobJournal.open(target)) {
+            assertFalse(journal.isResumed());
+            assertEquals(-1, journal.getCheckpoint());
+            assertEquals(new File(dir, "export.xml.journal"), journal.getFile());
+        }
+        assertEquals(new File(dir, ".zdf2dc.journal"), JobJournal.of(dir));
+    }
+
+    @Test
+    public void resumesWithDoneAndOutstandingIds() throws IOException {
+        final File out = new File(dir, "out");
+        out.mkdir();
+        final File a = write("out/a.xml", 10);
+        try (final JobJournal journal = JobJournal.open(out)) {
+            journal.pending("a");
+            journal.pending("b");
+            journal.pending("c");
+            journal.done("a", a);
+            journal.failed("b", "Response code: 500");
+        }
+        try (final JobJournal journal = JobJournal.open(out)) {
+            assertTrue(journal.isResumed());
+            assertTrue(journal.isDone("a"));
+            assertFalse(journal.isDone("b"));
+            assertEquals(1, journal.getDoneCount());
+            assertEquals(new LinkedHashSet<>(Arrays.asList("b", "c")), journal.getOutstanding());
+        }
+    }
+
+    @Test
+    public void pendingDoesNotOverwriteALaterState() throws IOException {
+        final File target = new File(dir, "export.xml");
+        final File a = write("a.xml", 10);
+        try (final JobJournal journal = JobJournal.open(target)) {
+            journal.pending("a");
+            journal.done("a", a);
+        }
+        // a resumed job queues the ID again
+        Files.write(JobJournal.of(target).toPath(), "PENDING\ta\t\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        try (final JobJournal journal = JobJournal.open(target)) {
+            assertTrue(journal.isDone("a"));
+        }
+    }
+
+    @Test
+    public void ignoresIncompleteLastLine() throws IOException {
+        final File target = new File(dir, "export.xml");
+        final File shard = write("export.xml", 300);
+        try (final JobJournal journal = JobJournal.open(target)) {
+            journal.done("a", shard, 100);
+            journal.done("b", shard, 200);
+        }
+        Files.write(JobJournal.of(target).toPath(), "DONE\tc".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        try (final JobJournal journal = JobJournal.open(target)) {
+            assertEquals(200, journal.getCheckpoint());
+            assertEquals(shard, journal.getCheckpointFile());
+            assertFalse(journal.isDone("c"));
+        }
+    }
+
+    @Test
+    public void fallsBackToTheLastCheckpointInTheFile() throws IOException {
+        final File target = new File(dir, "export.xml");
+        final File first = write("export-0001.xml", 200);
+        final File second = write("export-0002.xml", 250);
+        try (final JobJournal journal = JobJournal.open(target)) {
+            journal.done("a", first, 100);
+            journal.done("b", first, 200);
+            journal.done("c", second, 100);
+            journal.done("d", second, 200);
+            journal.done("e", second, 300);
+            journal.done("f", second, 400);
+        }
+        // the end of the second file never reached the disk
+        try (final JobJournal journal = JobJournal.open(target)) {
+            assertEquals(200, journal.getCheckpoint());
+            assertEquals(second, journal.getCheckpointFile());
+            assertTrue(journal.isDone("d"));
+            assertFalse(journal.isDone("e"));
+            assertFalse(journal.isDone("f"));
+            assertEquals(new LinkedHashSet<>(Arrays.asList("e", "f")), journal.getOutstanding());
+        }
+    }
+
+    @Test
+    public void fetchesMissingOrEmptyFilesAgain() throws IOException {
+        final File out = new File(dir, "out");
+        out.mkdir();
+        final File a = write("out/a.xml", 10);
+        final File b = write("out/b.xml", 0);
+        try (final JobJournal journal = JobJournal.open(out)) {
+            journal.done("a", a);
+            journal.done("b", b);
+            journal.done("c", new File(out, "c.xml"));
+        }
+        try (final JobJournal journal = JobJournal.open(out)) {
+            assertTrue(journal.isDone("a"));
+            assertFalse(journal.isDone("b"));
+            assertFalse(journal.isDone("c"));
+        }
+    }
+
+    @Test
+    public void reopenFetchesDoneIdsAgainInThisRunOnly() throws IOException {
+        final File target = new File(dir, "export.xml");
+        final File shard = write("export.xml", 200);
+        try (final JobJournal journal = JobJournal.open(target)) {
+            journal.done("a", shard, 100);
+            journal.done("b", shard, 200);
+            journal.pending("c");
+        }
+        try (final JobJournal journal = JobJournal.open(target)) {
+            assertEquals(1, journal.reopen(Arrays.asList("b", "c", "x")));
+            assertTrue(journal.isDone("a"));
+            assertFalse(journal.isDone("b"));
+            assertEquals(new LinkedHashSet<>(Arrays.asList("b", "c")), journal.getOutstanding());
+            // the records already written stay valid
+            assertEquals(200, journal.getCheckpoint());
+        }
+        // not written: the next harvest reports the same IDs again
+        try (final JobJournal journal = JobJournal.open(target)) {
+            assertTrue(journal.isDone("b"));
+        }
+    }
+
+    @Test
+    public void deleteRemovesTheJournal() throws IOException {
+        final File target = new File(dir, "export.xml");
+        final JobJournal journal = JobJournal.open(target);
+        journal.pending("a");
+        journal.delete();
+        assertFalse(JobJournal.of(target).exists());
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.helper;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import okhttp3.OkHttpClient;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Seiten kommen in umgekehrter Reihenfolge an (spätere Seiten antworten
+ * schneller), der Listener muss sie trotzdem der Reihe nach bekommen.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class PagedSearchTest {
+
+    private final static int TOTAL = 95;
+    private final static int PAGE_SIZE = 10;
+    private final static int PAGES = 10;
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private OkHttpClient client;
+    private String baseUrl;
+    // the next link carries "page" (planned) or "cursor" (followed)
+    private volatile String parameter = "page";
+    private volatile int failingPage = -1;
+    private final AtomicInteger running = new AtomicInteger(), maxRunning = new AtomicInteger();
+
+    @BeforeEach
+    public void start() throws IOException {
+        executor = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/search/documents", this::handle);
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+        client = new OkHttpClient();
+    }
+
+    @AfterEach
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        final int now = running.incrementAndGet();
+        maxRunning.accumulateAndGet(now, Math::max);
+        try {
+            final String query = exchange.getRequestURI().getQuery();
+            int page = 1;
+            for (String pair : query.split("&")) {
+                if (pair.startsWith("page=") || pair.startsWith("cursor=")) {
+                    page = Integer.parseInt(pair.substring(pair.indexOf('=') + 1));
+                }
+            }
+            Thread.sleep((PAGES - page) * 15L);
+            if (page == failingPage) {
+                exchange.sendResponseHeaders(500, -1);
+                return;
+            }
+            final StringBuilder sb = new StringBuilder("{\"totalResultsCount\":" + TOTAL + ",\"http://zdf.de/rels/search/results\":[");
+            for (int i = (page - 1) * PAGE_SIZE; i < Math.min(page * PAGE_SIZE, TOTAL); ++i) {
+                if (i > (page - 1) * PAGE_SIZE) {
+                    sb.append(',');
+                }
+                sb.append("{\"id\":\"d-").append(i).append("\",\"http://zdf.de/rels/target\":{\"teaserHeadline\":\"T ").append(i).append("\"}}");
+            }
+            sb.append(']');
+            if (page < PAGES) {
+                sb.append(",\"next\":\"/search/documents?q=x&").append(parameter).append('=').append(page + 1).append('"');
+            }
+            sb.append('}');
+            final byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (final OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            running.decrementAndGet();
+            exchange.close();
+        }
+    }
+
+    private static class Collector implements PagedSearch.Listener {
+
+        private final List<String> ids = Collections.synchronizedList(new ArrayList<>());
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Integer completed;
+        private volatile Exception error;
+
+        @Override
+        public void onPage(int totalResultsCount, List<String[]> results) {
+            for (String[] r : results) {
+                ids.add(r[0]);
+            }
+        }
+
+        @Override
+        public void onComplete(int totalResultsCount) {
+            completed = totalResultsCount;
+            done.countDown();
+        }
+
+        @Override
+        public void onError(Exception e) {
+            error = e;
+            done.countDown();
+        }
+
+        private void await() throws InterruptedException {
+            assertTrue(done.await(10, TimeUnit.SECONDS), "search did not finish");
+        }
+    }
+
+    private static List<String> expected() {
+        final List<String> ids = new ArrayList<>();
+        for (int i = 0; i < TOTAL; ++i) {
+            ids.add("d-" + i);
+        }
+        return ids;
+    }
+
+    @Test
+    public void deliversPlannedPagesInOrder() throws InterruptedException {
+        final Collector c = new Collector();
+        new PagedSearch(client, new ObjectMapper(), baseUrl, 4).start("/search/documents?q=x", c);
+        c.await();
+        assertNull(c.error);
+        assertEquals(TOTAL, (int) c.completed);
+        assertEquals(expected(), c.ids);
+        assertTrue(maxRunning.get() > 1, "pages were not loaded concurrently");
+        assertTrue(maxRunning.get() <= 4, "more pages than allowed at once: " + maxRunning.get());
+    }
+
+    @Test
+    public void followsNextLinksInOrder() throws InterruptedException {
+        parameter = "cursor";
+        final Collector c = new Collector();
+        new PagedSearch(client, new ObjectMapper(), baseUrl, 4).start("/search/documents?q=x", c);
+        c.await();
+        assertNull(c.error);
+        assertEquals(expected(), c.ids);
+    }
+
+    @Test
+    public void reportsAFailedPageOnce() throws InterruptedException {
+        failingPage = 5;
+        final Collector c = new Collector();
+        new PagedSearch(client, new ObjectMapper(), baseUrl, 4).start("/search/documents?q=x", c);
+        c.await();
+        assertNotNull(c.error);
+        assertNull(c.completed);
+        // nothing from page 5 on
+        assertTrue(c.ids.size() <= 4 * PAGE_SIZE);
+        assertEquals(expected().subList(0, c.ids.size()), c.ids);
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.helper;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Cache;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Der Server setzt die Header aus der Query, z.B.
+ * <code>?remaining=2&amp;reset=4</code>, und merkt sich die Reihenfolge der
+ * Anfragen.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class RateLimiterTest {
+
+    @TempDir
+    File dir;
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private String baseUrl;
+    private final List<OkHttpClient> clients = new ArrayList<>();
+    private final List<String> received = Collections.synchronizedList(new ArrayList<>());
+
+    @BeforeEach
+    public void start() throws IOException {
+        executor = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @AfterEach
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+        for (OkHttpClient client : clients) {
+            client.dispatcher().executorService().shutdown();
+            client.connectionPool().evictAll();
+        }
+        RateLimiter.configure(-1, -1);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            received.add(exchange.getRequestURI().getPath());
+            final String query = exchange.getRequestURI().getQuery();
+            int status = 200;
+            for (String pair : query == null ? new String[0] : query.split("&")) {
+                final String value = pair.substring(pair.indexOf('=') + 1);
+                if (pair.startsWith("status=")) {
+                    status = Integer.parseInt(value);
+                } else if (pair.startsWith("remaining=")) {
+                    exchange.getResponseHeaders().set("X-RateLimit-Remaining", value);
+                } else if (pair.startsWith("reset=")) {
+                    exchange.getResponseHeaders().set("X-RateLimit-Reset", value);
+                } else if (pair.startsWith("retryAfter=")) {
+                    exchange.getResponseHeaders().set("Retry-After", value);
+                } else if (pair.startsWith("cache=")) {
+                    exchange.getResponseHeaders().set("Cache-Control", "max-age=60");
+                }
+            }
+            final byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, body.length);
+            try (final OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private OkHttpClient client(double rate, int burst, OkHttpClient.Builder builder) {
+        RateLimiter.configure(rate, burst);
+        final OkHttpClient client = RateLimiter.getInstance().apply(builder).build();
+        clients.add(client);
+        return client;
+    }
+
+    private OkHttpClient client(double rate, int burst) {
+        return client(rate, burst, new OkHttpClient.Builder());
+    }
+
+    private int get(OkHttpClient client, String pathAndQuery) throws IOException {
+        try (final Response response = client.newCall(new Request.Builder().url(baseUrl + pathAndQuery).build()).execute()) {
+            response.body().string();
+            return response.code();
+        }
+    }
+
+    /**
+     * @return Dauer von <code>n</code> Anfragen nacheinander in ms
+     */
+    private long time(OkHttpClient client, String pathAndQuery, int n) throws IOException {
+        final long start = System.nanoTime();
+        for (int i = 0; i < n; ++i) {
+            get(client, pathAndQuery);
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    @Test
+    public void keepsTheRateAfterTheBurst() throws Exception {
+        final OkHttpClient client = client(20, 5);
+        final long start = System.nanoTime();
+        final List<Future<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < 15; ++i) {
+            results.add(executor.submit(() -> get(client, "/search")));
+        }
+        for (Future<Integer> f : results) {
+            assertEquals(200, f.get(5, TimeUnit.SECONDS));
+        }
+        // five at once, ten more at 20 per second
+        final long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(millis >= 450 && millis < 2000, "took " + millis + " ms");
+        assertEquals(10, RateLimiter.getInstance().getWaitCount());
+    }
+
+    @Test
+    public void interactiveRequestsGoFirst() throws Exception {
+        final OkHttpClient client = client(10, 1);
+        get(client, "/search");
+        received.clear();
+        final List<Future<Integer>> downloads = new ArrayList<>();
+        for (int i = 0; i < 3; ++i) {
+            final String path = "/content/documents/d" + i + ".json";
+            downloads.add(executor.submit(() -> get(client, path)));
+        }
+        Thread.sleep(20);
+        assertEquals(200, get(client, "/search"));
+        for (Future<Integer> f : downloads) {
+            assertEquals(200, f.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals("/search", received.get(0));
+        assertEquals(4, received.size());
+    }
+
+    @Test
+    public void cachedDocumentsCostNoToken() throws IOException {
+        final OkHttpClient client = client(1, 1, new OkHttpClient.Builder().cache(new Cache(dir, 1024 * 1024)));
+        get(client, "/content/documents/a.json?cache=1");
+        final long millis = time(client, "/content/documents/a.json?cache=1", 5);
+        assertTrue(millis < 500, "took " + millis + " ms");
+        assertEquals(1, received.size());
+        assertEquals(0, RateLimiter.getInstance().getWaitCount());
+
+        // the bucket is still empty for the network
+        assertTrue(time(client, "/content/documents/b.json", 1) >= 800);
+    }
+
+    @Test
+    public void followsTheQuotaOfTheServer() throws IOException {
+        final OkHttpClient client = client(0, 5);
+        get(client, "/search?remaining=2&reset=4");
+        assertEquals(0.5, RateLimiter.getInstance().getCurrentRate(), 0.001);
+
+        // reset given as a point in time
+        get(client, "/search?remaining=10&reset=" + (TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + 10));
+        assertEquals(1.0, RateLimiter.getInstance().getCurrentRate(), 0.15);
+
+        final OkHttpClient other = client(0, 5);
+        get(other, "/search?remaining=0&reset=1");
+        final long millis = time(other, "/search", 1);
+        assertTrue(millis >= 800 && millis < 2000, "took " + millis + " ms");
+    }
+
+    @Test
+    public void pausesForRetryAfter() throws IOException {
+        final OkHttpClient client = client(0, 5);
+        assertEquals(429, get(client, "/search?status=429&retryAfter=1"));
+        final long millis = time(client, "/search", 1);
+        assertTrue(millis >= 800 && millis < 2000, "took " + millis + " ms");
+        assertEquals(1, RateLimiter.getInstance().getWaitCount());
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.helper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class RecordStoreTest {
+
+    @TempDir
+    File dir;
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void put(RecordStore store, String id, long datestamp, String rdf) throws IOException {
+        store.put(id, "ext-" + id, datestamp, bytes("{\"id\":\"" + id + "\"}"), bytes(rdf));
+    }
+
+    private static String rdf(RecordStore store, String key) throws IOException {
+        return new String(store.readRdf(store.get(key)), StandardCharsets.UTF_8);
+    }
+
+    private static List<String> ids(List<RecordStore.Entry> entries) {
+        final List<String> ids = new ArrayList<>();
+        for (RecordStore.Entry e : entries) {
+            ids.add(e.getId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void replacesRecordsById() throws IOException {
+        try (final RecordStore store = RecordStore.open(dir)) {
+            put(store, "a", 3, "<a/>");
+            put(store, "b", 1, "<b/>");
+            put(store, "c", 2, "<c/>");
+            assertEquals(0, store.getGarbage());
+            put(store, "a", 0, "<a2/>");
+
+            assertEquals(3, store.size());
+            assertTrue(store.getGarbage() > 0);
+            assertEquals("<a2/>", rdf(store, "a"));
+            assertEquals("a", store.get("ext-a").getId());
+            assertEquals("{\"id\":\"a\"}", new String(store.readJson(store.get("a")), StandardCharsets.UTF_8));
+            assertNull(store.get("x"));
+            assertEquals(Arrays.asList("a", "b", "c"), ids(store.range(Long.MIN_VALUE, Long.MAX_VALUE)));
+            assertEquals(Arrays.asList("b", "c"), ids(store.range(1, 2)));
+            assertEquals(Arrays.asList("b", "c", "a"), ids(store.getEntries()));
+
+            final List<String> visited = new ArrayList<>();
+            store.forEach(store.range(0, 1), (e, rdf) -> visited.add(e.getId() + new String(rdf, StandardCharsets.UTF_8)));
+            assertEquals(Arrays.asList("b<b/>", "a<a2/>"), visited);
+        }
+    }
+
+    @Test
+    public void opensOnlyOnce() throws IOException {
+        try (final RecordStore store = RecordStore.open(dir)) {
+            assertThrows(IOException.class, () -> RecordStore.open(dir));
+        }
+        RecordStore.open(dir).close();
+    }
+
+    @Test
+    public void readsEntriesTheIndexDoesNotCover() throws IOException {
+        final File idx = new File(dir, "records.idx");
+        final File stale = new File(dir, "stale.idx");
+        try (final RecordStore store = RecordStore.open(dir)) {
+            put(store, "a", 1, "<a/>");
+        }
+        Files.copy(idx.toPath(), stale.toPath());
+        try (final RecordStore store = RecordStore.open(dir)) {
+            put(store, "a", 2, "<a2/>");
+            put(store, "b", 3, "<b/>");
+        }
+        // as if the program ended before the index was written again
+        Files.copy(stale.toPath(), idx.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        try (final RecordStore store = RecordStore.open(dir)) {
+            assertEquals(2, store.size());
+            assertEquals("<a2/>", rdf(store, "a"));
+            assertEquals(2, store.get("a").getDatestamp());
+            assertTrue(store.getGarbage() > 0);
+        }
+        // a broken index is ignored
+        Files.write(idx.toPath(), bytes("nope"));
+        try (final RecordStore store = RecordStore.open(dir)) {
+            assertEquals(2, store.size());
+            assertEquals("<b/>", rdf(store, "ext-b"));
+        }
+    }
+
+    @Test
+    public void truncatesAnIncompleteLastEntry() throws IOException {
+        final File data = new File(dir, "records.dat");
+        final long length;
+        try (final RecordStore store = RecordStore.open(dir)) {
+            put(store, "a", 1, "<a/>");
+            put(store, "b", 2, "<b/>");
+            length = data.length();
+        }
+        // half of an entry, written after the index
+        Files.write(data.toPath(), new byte[]{0, 0, 0, 100, 1, 0}, StandardOpenOption.APPEND);
+        try (final RecordStore store = RecordStore.open(dir)) {
+            assertEquals(2, store.size());
+            put(store, "c", 3, "<c/>");
+        }
+        try (final RecordStore store = RecordStore.open(dir)) {
+            assertEquals(3, store.size());
+            assertEquals("<c/>", rdf(store, "c"));
+        }
+
+        // the checksum of the last entry does not match
+        Files.delete(new File(dir, "records.idx").toPath());
+        try (final RandomAccessFile raf = new RandomAccessFile(data, "rw")) {
+            raf.seek(raf.length() - 6);
+            raf.write('x');
+        }
+        try (final RecordStore store = RecordStore.open(dir)) {
+            assertEquals(Arrays.asList("a", "b"), ids(store.getEntries()));
+            assertEquals(length, data.length());
+        }
+    }
+
+    @Test
+    public void compactDropsReplacedEntries() throws IOException {
+        final File data = new File(dir, "records.dat");
+        try (final RecordStore store = RecordStore.open(dir)) {
+            put(store, "a", 1, "<a/>");
+            put(store, "b", 2, "<b/>");
+            put(store, "a", 3, "<a2/>");
+            put(store, "b", 4, "<b2/>");
+            final long before = data.length();
+
+            store.compact();
+            assertEquals(0, store.getGarbage());
+            assertTrue(data.length() < before);
+            assertEquals("<a2/>", rdf(store, "a"));
+            put(store, "c", 5, "<c/>");
+        }
+        assertFalse(new File(dir, "records.dat.compact").exists());
+        try (final RecordStore store = RecordStore.open(dir)) {
+            assertEquals(0, store.getGarbage());
+            assertEquals(Arrays.asList("a", "b", "c"), ids(store.getEntries()));
+            assertEquals("<b2/>", rdf(store, "b"));
+            assertEquals("<c/>", rdf(store, "c"));
+        }
+    }
+}
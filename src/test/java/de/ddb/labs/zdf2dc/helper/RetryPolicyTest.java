@@ -0,0 +1,206 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.helper;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Der Server antwortet der Reihe nach mit den Status aus {@link #replies},
+ * danach immer mit dem letzten.
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class RetryPolicyTest {
+
+    private HttpServer server;
+    private String url;
+    // status, optionally followed by a Retry-After value
+    private final Queue<String[]> replies = new ConcurrentLinkedQueue<>();
+    private volatile String[] last = {"200"};
+    private final AtomicInteger requests = new AtomicInteger();
+
+    @BeforeEach
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/x";
+    }
+
+    @AfterEach
+    public void stop() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            requests.incrementAndGet();
+            final String[] reply = replies.isEmpty() ? last : replies.poll();
+            if (reply.length > 1) {
+                exchange.getResponseHeaders().set("Retry-After", reply[1]);
+            }
+            exchange.sendResponseHeaders(Integer.parseInt(reply[0]), -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void reply(String... reply) {
+        replies.add(reply);
+        last = reply;
+    }
+
+    private static CircuitBreaker breaker() {
+        return new CircuitBreaker(1000, 10, 10, 10000);
+    }
+
+    private static OkHttpClient client(RetryPolicy policy) {
+        return policy.apply(new OkHttpClient.Builder()).build();
+    }
+
+    private static int get(OkHttpClient client, String url) throws IOException {
+        try (final Response response = client.newCall(new Request.Builder().url(url).build()).execute()) {
+            return response.code();
+        }
+    }
+
+    @Test
+    public void retriesTransientStatus() throws IOException {
+        final RetryPolicy policy = new RetryPolicy(3, 5, 50, breaker());
+        reply("503");
+        reply("500");
+        reply("200");
+        assertEquals(200, get(client(policy), url));
+        assertEquals(3, requests.get());
+        assertEquals(2, policy.getRetryCount());
+    }
+
+    @Test
+    public void doesNotRetryOtherStatus() throws IOException {
+        final OkHttpClient client = client(new RetryPolicy(3, 5, 50, breaker()));
+        reply("404");
+        assertEquals(404, get(client, url));
+        assertEquals(1, requests.get());
+
+        // only GET and HEAD
+        reply("503");
+        try (final Response response = client.newCall(new Request.Builder().url(url)
+                .post(RequestBody.create("x", MediaType.get("text/plain"))).build()).execute()) {
+            assertEquals(503, response.code());
+        }
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void givesUpAfterTheLastRetry() throws IOException {
+        final RetryPolicy policy = new RetryPolicy(2, 5, 50, breaker());
+        reply("502");
+        assertEquals(502, get(client(policy), url));
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    public void waitsForRetryAfterInSeconds() throws IOException {
+        final RetryPolicy policy = new RetryPolicy(3, 5, 5000, breaker());
+        reply("429", "1");
+        reply("200");
+        final long start = System.nanoTime();
+        assertEquals(200, get(client(policy), url));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 1000);
+        assertEquals(CircuitBreaker.State.CLOSED, policy.getBreaker().getState());
+    }
+
+    @Test
+    public void waitsForRetryAfterAsDate() throws IOException {
+        final RetryPolicy policy = new RetryPolicy(3, 5, 5000, breaker());
+        // dates are in whole seconds, so this waits between one and two seconds
+        final SimpleDateFormat df = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        df.setTimeZone(TimeZone.getTimeZone("GMT"));
+        reply("503", df.format(new Date(System.currentTimeMillis() + 2000)));
+        reply("200");
+        final long start = System.nanoTime();
+        assertEquals(200, get(client(policy), url));
+        final long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(waited >= 900 && waited < 2500, "waited " + waited + " ms");
+    }
+
+    @Test
+    public void doesNotWaitForATooLongRetryAfter() throws IOException {
+        final RetryPolicy policy = new RetryPolicy(3, 5, 1000, breaker());
+        reply("429", "120");
+        assertEquals(429, get(client(policy), url));
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void stopsRetryingWhenTheBudgetIsSpent() throws IOException {
+        final RetryPolicy policy = new RetryPolicy(100, 1, 2, breaker());
+        final OkHttpClient client = client(policy);
+        reply("503");
+        assertEquals(503, get(client, url));
+        // the budget starts with 50 retries
+        assertEquals(51, requests.get());
+        assertEquals(1, policy.getExhaustedCount());
+        assertEquals(503, get(client, url));
+        assertEquals(52, requests.get());
+        assertEquals(2, policy.getExhaustedCount());
+    }
+
+    @Test
+    public void networkErrorsAndServerErrorsOpenTheBreaker() throws IOException {
+        final int closed;
+        try (final ServerSocket socket = new ServerSocket(0)) {
+            closed = socket.getLocalPort();
+        }
+        final RetryPolicy policy = new RetryPolicy(2, 5, 50, new CircuitBreaker(3, 1000, 1000, 10000));
+        assertThrows(IOException.class, () -> get(client(policy), "http://127.0.0.1:" + closed + "/x"));
+        assertEquals(CircuitBreaker.State.OPEN, policy.getBreaker().getState());
+
+        // the server answers, even if only with "too many requests"
+        final RetryPolicy limited = new RetryPolicy(0, 5, 50, new CircuitBreaker(2, 1000, 1000, 10000));
+        reply("429");
+        get(client(limited), url);
+        get(client(limited), url);
+        assertEquals(CircuitBreaker.State.CLOSED, limited.getBreaker().getState());
+        reply("503");
+        get(client(limited), url);
+        get(client(limited), url);
+        assertEquals(CircuitBreaker.State.OPEN, limited.getBreaker().getState());
+    }
+}
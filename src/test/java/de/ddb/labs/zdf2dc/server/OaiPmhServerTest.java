@@ -0,0 +1,169 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.xml.parsers.DocumentBuilderFactory;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class OaiPmhServerTest {
+
+    private final static String OAI = RecordIndexTest.OAI;
+
+    @TempDir
+    File dir;
+
+    private OaiPmhServer server;
+
+    @BeforeEach
+    public void start() throws IOException {
+        final File f = RecordIndexTest.export(dir,
+                RecordIndexTest.record("a", "2021-01-01T00:00:00Z", "A"),
+                RecordIndexTest.record("b", "2021-01-02T00:00:00Z", "B"),
+                RecordIndexTest.record("c", "2021-01-02T12:00:00Z", "C"),
+                RecordIndexTest.record("d", "2021-01-03T00:00:00Z", "D"),
+                RecordIndexTest.record("e", "2021-01-04T00:00:00Z", "E"));
+        server = new OaiPmhServer(RecordIndex.build(f), 0, 2, "a@b.de");
+        server.start();
+    }
+
+    @AfterEach
+    public void stop() {
+        server.close();
+    }
+
+    private Document request(String query, boolean post) throws Exception {
+        final HttpURLConnection c = (HttpURLConnection) new URL("http://127.0.0.1:" + server.getPort() + "/oai" + (post ? "" : "?" + query)).openConnection();
+        if (post) {
+            c.setRequestMethod("POST");
+            c.setDoOutput(true);
+            c.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            try (final OutputStream out = c.getOutputStream()) {
+                out.write(query.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        assertEquals(200, c.getResponseCode());
+        final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        try (final InputStream in = c.getInputStream()) {
+            return dbf.newDocumentBuilder().parse(in);
+        }
+    }
+
+    private Document get(String query) throws Exception {
+        return request(query, false);
+    }
+
+    private static String text(Document doc, String name) {
+        final NodeList nodes = doc.getElementsByTagNameNS(OAI, name);
+        return nodes.getLength() == 0 ? null : nodes.item(0).getTextContent();
+    }
+
+    private static String error(Document doc) {
+        final NodeList errors = doc.getElementsByTagNameNS(OAI, "error");
+        return errors.getLength() == 0 ? null : ((Element) errors.item(0)).getAttribute("code");
+    }
+
+    private static List<String> identifiers(Document doc) {
+        final List<String> ids = new ArrayList<>();
+        final NodeList headers = doc.getElementsByTagNameNS(OAI, "header");
+        for (int i = 0; i < headers.getLength(); ++i) {
+            ids.add(((Element) headers.item(i)).getElementsByTagNameNS(OAI, "identifier").item(0).getTextContent());
+        }
+        return ids;
+    }
+
+    @Test
+    public void identifies() throws Exception {
+        final Document doc = get("verb=Identify");
+        assertNull(error(doc));
+        assertEquals("2021-01-01T00:00:00Z", text(doc, "earliestDatestamp"));
+        assertEquals("a@b.de", text(doc, "adminEmail"));
+        assertEquals("Identify", ((Element) doc.getElementsByTagNameNS(OAI, "request").item(0)).getAttribute("verb"));
+    }
+
+    @Test
+    public void pagesWithResumptionTokens() throws Exception {
+        final List<String> ids = new ArrayList<>();
+        Document doc = get("verb=ListIdentifiers&metadataPrefix=dc-ddb");
+        while (true) {
+            assertNull(error(doc));
+            ids.addAll(identifiers(doc));
+            final Element token = (Element) doc.getElementsByTagNameNS(OAI, "resumptionToken").item(0);
+            assertEquals("5", token.getAttribute("completeListSize"));
+            if (token.getTextContent().isEmpty()) {
+                break;
+            }
+            doc = request("verb=ListIdentifiers&resumptionToken=" + token.getTextContent(), true);
+        }
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e"), ids);
+    }
+
+    @Test
+    public void selectsByDate() throws Exception {
+        // until a day includes the whole day
+        assertEquals(Arrays.asList("b", "c"), identifiers(get("verb=ListRecords&metadataPrefix=dc-ddb&from=2021-01-02&until=2021-01-02")));
+        assertEquals(Arrays.asList("d", "e"), identifiers(get("verb=ListIdentifiers&metadataPrefix=dc-ddb&from=2021-01-02T12:00:01Z")));
+        assertEquals("noRecordsMatch", error(get("verb=ListIdentifiers&metadataPrefix=dc-ddb&from=2022-01-01")));
+    }
+
+    @Test
+    public void getsRecords() throws Exception {
+        final Document doc = get("verb=GetRecord&identifier=c&metadataPrefix=dc-ddb");
+        assertNull(error(doc));
+        assertEquals("C", doc.getElementsByTagNameNS(RecordIndexTest.DC, "title").item(0).getTextContent());
+        assertEquals("idDoesNotExist", error(get("verb=GetRecord&identifier=x&metadataPrefix=dc-ddb")));
+        assertEquals("cannotDisseminateFormat", error(get("verb=GetRecord&identifier=c&metadataPrefix=oai_dc")));
+    }
+
+    @Test
+    public void reportsErrorsWithOneBareRequest() throws Exception {
+        for (String query : new String[]{
+            "verb=Nope",
+            "verb=ListRecords",
+            "verb=ListRecords&metadataPrefix=dc-ddb&from=nope",
+            "verb=ListRecords&metadataPrefix=dc-ddb&from=2021-01-01&until=2021-01-02T00:00:00Z",
+            "verb=ListRecords&metadataPrefix=dc-ddb&resumptionToken=2,0,1,1"}) {
+            final Document doc = get(query);
+            final NodeList request = doc.getElementsByTagNameNS(OAI, "request");
+            assertEquals(1, request.getLength(), query);
+            assertEquals(0, request.item(0).getAttributes().getLength(), query);
+            assertEquals(query.equals("verb=Nope") ? "badVerb" : "badArgument", error(doc), query);
+        }
+        assertEquals("badResumptionToken", error(get("verb=ListIdentifiers&resumptionToken=x")));
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2019-2021 Michael Büchner <m.buechner@dnb.de>, Deutsche Digitale Bibliothek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.ddb.labs.zdf2dc.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.xml.parsers.DocumentBuilderFactory;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.w3c.dom.Element;
+
+/**
+ *
+ * @author Michael Büchner <m.buechner@dnb.de>
+ */
+public class RecordIndexTest {
+
+    final static String OAI = "http://www.openarchives.org/OAI/2.0/";
+    final static String RDF = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+    final static String DC = "http://purl.org/dc/elements/1.1/";
+
+    @TempDir
+    File dir;
+
+    static String record(String id, String datestamp, String title) {
+        return "<record><header><identifier>" + id + "</identifier><datestamp>" + datestamp + "</datestamp></header>"
+                + "<metadata><rdf:RDF><rdf:Description><dc:title>" + title + "</dc:title></rdf:Description></rdf:RDF></metadata></record>\n";
+    }
+
+    /**
+     * Export mit den Namespaces am Wurzelelement (wie nach dem Normalisieren).
+     */
+    static File export(File dir, String... records) throws IOException {
+        final StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<OAI-PMH xmlns=\"" + OAI
+                + "\" xmlns:rdf=\"" + RDF + "\" xmlns:dc=\"" + DC + "\"><responseDate>2021-06-01T00:00:00Z</responseDate><ListRecords>\n");
+        for (String r : records) {
+            sb.append(r);
+        }
+        sb.append("<resumptionToken/></ListRecords></OAI-PMH>\n");
+        final File f = new File(dir, "export.xml");
+        Files.write(f.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+        return f;
+    }
+
+    private static List<String> identifiers(List<RecordIndex.Entry> entries) {
+        final List<String> ids = new ArrayList<>();
+        for (RecordIndex.Entry e : entries) {
+            ids.add(e.getIdentifier());
+        }
+        return ids;
+    }
+
+    @Test
+    public void indexesAnExportByDatestamp() throws Exception {
+        final File f = export(dir,
+                record("c", "2021-01-03T00:00:00Z", "C"),
+                record("a", "2021-01-01T00:00:00Z", "A"),
+                record("b", "2021-01-02T00:00:00Z", "B"),
+                record("a", "2021-01-04T00:00:00Z", "A2"));
+        try (final RecordIndex index = RecordIndex.build(f)) {
+            assertEquals(3, index.size());
+            assertEquals(Arrays.asList("b", "c", "a"), identifiers(index.range(Long.MIN_VALUE, Long.MAX_VALUE)));
+            assertEquals(RecordIndex.parse("2021-01-02"), index.getEarliestDatestamp());
+            // both ends included
+            assertEquals(Arrays.asList("b", "c"), identifiers(index.range(RecordIndex.parse("2021-01-02"), RecordIndex.parse("2021-01-03T00:00:00Z"))));
+            assertTrue(index.range(RecordIndex.parse("2021-01-05"), Long.MAX_VALUE).isEmpty());
+            assertTrue(index.range(2, 1).isEmpty());
+            assertNull(index.get("x"));
+
+            // the last version of a repeated identifier, with the namespaces it needs
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            index.writeMetadata(index.get("a"), out);
+            final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+            dbf.setNamespaceAware(true);
+            final Element rdf = dbf.newDocumentBuilder().parse(new ByteArrayInputStream(out.toByteArray())).getDocumentElement();
+            assertEquals(RDF, rdf.getNamespaceURI());
+            assertEquals("A2", rdf.getElementsByTagNameNS(DC, "title").item(0).getTextContent());
+        }
+    }
+
+    @Test
+    public void indexesADirectoryOfRecords() throws Exception {
+        final File out = new File(dir, "out");
+        out.mkdir();
+        for (String id : new String[]{"x", "y"}) {
+            Files.write(new File(out, id + ".xml").toPath(), ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<rdf:RDF xmlns:rdf=\"" + RDF
+                    + "\" xmlns:dc=\"" + DC + "\" xmlns:dcat=\"http://www.w3.org/ns/dcat#\" xmlns:dcterms=\"http://purl.org/dc/terms/\">"
+                    + "<dcat:CatalogRecord><dc:identifier>" + id + "-ext</dc:identifier><dcterms:created>"
+                    + (id.equals("x") ? "2021-02-02" : "2021-02-01") + "</dcterms:created></dcat:CatalogRecord>"
+                    + "<rdf:Description><dc:identifier>other</dc:identifier></rdf:Description></rdf:RDF>\n").getBytes(StandardCharsets.UTF_8));
+        }
+        Files.write(new File(out, "broken.xml").toPath(), "<rdf:RDF".getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(out, "notes.txt").toPath(), "-".getBytes(StandardCharsets.UTF_8));
+        try (final RecordIndex index = RecordIndex.build(out)) {
+            assertEquals(Arrays.asList("y-ext", "x-ext"), identifiers(index.range(Long.MIN_VALUE, Long.MAX_VALUE)));
+            assertEquals(RecordIndex.parse("2021-02-02"), index.get("x-ext").getDatestamp());
+        }
+    }
+
+    @Test
+    public void parsesDaysAndSeconds() {
+        assertEquals(0, RecordIndex.parse("1970-01-01"));
+        assertEquals(1000, RecordIndex.parse("1970-01-01T00:00:01Z"));
+        assertEquals(-1, RecordIndex.parse("1970-13-01"));
+        assertEquals(-1, RecordIndex.parse("1970-01-01T00:00:01"));
+        assertEquals(-1, RecordIndex.parse(null));
+    }
+}